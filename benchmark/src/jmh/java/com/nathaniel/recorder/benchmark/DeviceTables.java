@@ -0,0 +1,110 @@
+package com.nathaniel.recorder.benchmark;
+
+/**
+ * Camera parameter tables in the {@code Camera.Parameters#flatten()} format, modelled on the back cameras of
+ * three device classes: a Nexus 5 (few sizes, separate video sizes), a Galaxy S7 (many aspect ratios, 4K
+ * video) and a budget MediaTek phone (no video sizes, wide fps ranges). Besides the keys the library reads,
+ * each table carries the usual vendor keys so parsing cost is close to a real dump.
+ *
+ * @author nathaniel
+ */
+final class DeviceTables {
+
+    static final String NEXUS_5 = "nexus5";
+    static final String GALAXY_S7 = "galaxyS7";
+    static final String BUDGET_MTK = "budgetMtk";
+
+    private static final String COMMON = "antibanding=auto;antibanding-values=off,50hz,60hz,auto;"
+            + "whitebalance=auto;whitebalance-values=auto,incandescent,fluorescent,warm-fluorescent,daylight,"
+            + "cloudy-daylight,twilight,shade;effect=none;effect-values=none,mono,negative,solarize,sepia,posterize,"
+            + "whiteboard,blackboard,aqua;scene-mode=auto;scene-mode-values=auto,action,portrait,landscape,night,"
+            + "night-portrait,theatre,beach,snow,sunset,steadyphoto,fireworks,sports,party,candlelight,barcode,hdr;"
+            + "exposure-compensation=0;max-exposure-compensation=12;min-exposure-compensation=-12;"
+            + "exposure-compensation-step=0.166667;auto-exposure-lock=false;auto-exposure-lock-supported=true;"
+            + "auto-whitebalance-lock=false;auto-whitebalance-lock-supported=true;jpeg-quality=85;"
+            + "jpeg-thumbnail-quality=85;jpeg-thumbnail-size-values=512x288,480x288,256x154,432x288,320x240,176x144,0x0;"
+            + "jpeg-thumbnail-width=512;jpeg-thumbnail-height=384;picture-format=jpeg;picture-format-values=jpeg;"
+            + "preview-format=yuv420sp;preview-format-values=yuv420sp,yuv420p,nv12-venus,yuv420p,yuv420sp;"
+            + "max-num-focus-areas=1;max-num-metering-areas=5;max-num-detected-faces-hw=5;"
+            + "video-snapshot-supported=true;video-stabilization=false;video-stabilization-supported=true;"
+            + "recording-hint=false;focal-length=3.97;horizontal-view-angle=63.5;vertical-view-angle=49.7;"
+            + "focus-distances=0.100000,0.150000,Infinity;focus-areas=(0,0,0,0,0);metering-areas=(0,0,0,0,0);";
+
+    private DeviceTables() {
+    }
+
+    /**
+     * @param device one of the device constants
+     * @return the flattened parameters of its back camera
+     */
+    static String flattened(String device) {
+        if (NEXUS_5.equals(device)) {
+            return COMMON
+                    + "preview-size=640x480;"
+                    + "preview-size-values=1920x1080,1280x960,1280x720,1024x768,800x600,800x480,720x480,640x480,"
+                    + "352x288,320x240,176x144;"
+                    + "video-size-values=1920x1080,1280x720,800x480,720x480,640x480,480x320,352x288,320x240,176x144;"
+                    + "preferred-preview-size-for-video=1920x1080;"
+                    + "picture-size-values=3264x2448,3264x1836,2592x1944,2048x1536,1920x1080,1600x1200,1280x768,"
+                    + "1280x720,1024x768,800x600,800x480,720x480,640x480,352x288,320x240,176x144;"
+                    + "preview-fps-range=7000,30000;"
+                    + "preview-fps-range-values=(15000,15000),(24000,24000),(7000,30000),(30000,30000);"
+                    + "preview-frame-rate-values=15,24,30;"
+                    + "focus-mode=auto;focus-mode-values=auto,infinity,macro,continuous-video,continuous-picture;"
+                    + "flash-mode=off;flash-mode-values=off,auto,on,torch;"
+                    + "zoom=0;max-zoom=99;zoom-supported=true;smooth-zoom-supported=false;"
+                    + "zoom-ratios=" + zoomRatios(100, 400) + ";";
+        } else if (GALAXY_S7.equals(device)) {
+            return COMMON
+                    + "preview-size=1920x1080;"
+                    + "preview-size-values=1920x1080,1440x1080,1280x720,1088x1088,1056x864,1024x768,960x720,"
+                    + "800x450,720x720,720x480,640x480,352x288,320x240,256x144,176x144;"
+                    + "video-size-values=3840x2160,2560x1440,1920x1080,1440x1080,1280x720,1088x1088,800x450,"
+                    + "720x480,640x480,320x240,176x144;"
+                    + "preferred-preview-size-for-video=1920x1080;"
+                    + "picture-size-values=4032x3024,4032x2268,3024x3024,3984x2988,3264x2448,3264x1836,2976x2976,"
+                    + "2880x2160,2560x1440,2160x2160,2048x1152,1920x1080,1440x1080,1088x1088,1280x720,1024x768,"
+                    + "1056x704,960x720,800x450,720x720,720x480,640x480,352x288,320x240,256x144,176x144;"
+                    + "preview-fps-range=15000,30000;"
+                    + "preview-fps-range-values=(4000,15000),(8000,24000),(15000,15000),(24000,24000),"
+                    + "(10000,30000),(15000,30000),(30000,30000),(60000,60000);"
+                    + "preview-frame-rate-values=15,24,30,60;"
+                    + "focus-mode=continuous-picture;focus-mode-values=auto,infinity,macro,fixed,"
+                    + "continuous-video,continuous-picture,face-priority;"
+                    + "flash-mode=off;flash-mode-values=off,auto,on,torch,red-eye;"
+                    + "zoom=0;max-zoom=80;zoom-supported=true;smooth-zoom-supported=false;"
+                    + "zoom-ratios=" + zoomRatios(81, 800) + ";";
+        } else if (BUDGET_MTK.equals(device)) {
+            return COMMON
+                    + "preview-size=640x480;"
+                    + "preview-size-values=1280x720,960x540,864x480,800x480,720x480,640x480,480x368,480x320,"
+                    + "352x288,320x240,176x144;"
+                    + "picture-size-values=2560x1920,2560x1440,2048x1536,1920x1080,1600x1200,1280x960,1280x720,"
+                    + "1024x768,640x480,320x240;"
+                    + "preview-fps-range=5000,30000;"
+                    + "preview-fps-range-values=(5000,30000),(5000,60000),(15000,15000),(20000,20000),"
+                    + "(24000,24000),(30000,30000);"
+                    + "preview-frame-rate-values=15,20,24,30;"
+                    + "focus-mode=auto;focus-mode-values=auto,macro,infinity,continuous-picture,continuous-video,"
+                    + "manual,fullscan;"
+                    + "flash-mode=off;flash-mode-values=off,on,auto,red-eye,torch;"
+                    + "zoom=0;max-zoom=10;zoom-supported=true;smooth-zoom-supported=true;"
+                    + "zoom-ratios=" + zoomRatios(11, 400) + ";";
+        }
+        throw new IllegalArgumentException("Unknown device " + device);
+    }
+
+    /**
+     * @return {@code count} zoom ratios in percent, evenly spread from 100 to {@code max}
+     */
+    private static String zoomRatios(int count, int max) {
+        StringBuilder builder = new StringBuilder(count * 4);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(100 + (max - 100) * i / (count - 1));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package com.nathaniel.recorder.benchmark;
+
+import com.nathaniel.recorder.audio.LevelMeter;
+import com.nathaniel.recorder.frame.BrightnessEstimator;
+import com.nathaniel.recorder.frame.FrameRateMeter;
+import com.nathaniel.recorder.frame.MotionDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Per frame kernels that run on the preview and audio threads besides frame conversion: motion
+ * detection, brightness sampling, frame rate metering and audio level metering. Steps and sizes are the
+ * library defaults, so a score is directly the frame rate one core can sustain.
+ *
+ * @author nathaniel
+ * @see FrameConverterBenchmark
+ */
+@State(Scope.Thread)
+public class FrameAnalysisBenchmark {
+
+    /**
+     * 20 ms of 48 kHz stereo, the read size of the audio capture thread
+     */
+    private static final int PCM_BYTES = 48000 / 50 * 2 * 2;
+
+    @Param({"720p", "1080p", "4K"})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private byte[][] frames;
+    private int next;
+    private MotionDetector motionDetector;
+    private BrightnessEstimator brightnessEstimator;
+    private FrameRateMeter frameRateMeter;
+    private long frameNanos;
+    private LevelMeter levelMeter;
+    private ByteBuffer pcm;
+    private long pcmNanos;
+
+    @Setup
+    public void setUp() {
+        if ("4K".equals(resolution)) {
+            width = 3840;
+            height = 2160;
+        } else if ("1080p".equals(resolution)) {
+            width = 1920;
+            height = 1080;
+        } else {
+            width = 1280;
+            height = 720;
+        }
+        // Two frames differing in a corner, alternated so the detector always compares
+        Random random = new Random(42);
+        frames = new byte[2][width * height * 3 / 2];
+        random.nextBytes(frames[0]);
+        System.arraycopy(frames[0], 0, frames[1], 0, frames[0].length);
+        for (int y = 0; y < height / 4; y++) {
+            for (int x = 0; x < width / 4; x++) {
+                frames[1][y * width + x] ^= 0x7F;
+            }
+        }
+        motionDetector = new MotionDetector(8, 8);
+        motionDetector.process(frames[0], width, height);
+        brightnessEstimator = new BrightnessEstimator(16);
+        frameRateMeter = new FrameRateMeter(30);
+        levelMeter = new LevelMeter(50);
+        pcm = ByteBuffer.allocateDirect(PCM_BYTES).order(ByteOrder.nativeOrder());
+        while (pcm.hasRemaining()) {
+            pcm.putShort((short) (random.nextGaussian() * 3000));
+        }
+        pcm.flip();
+    }
+
+    @Benchmark
+    public float motion() {
+        next ^= 1;
+        return motionDetector.process(frames[next], width, height);
+    }
+
+    @Benchmark
+    public int brightness() {
+        brightnessEstimator.sample(frames[0], width, height);
+        return brightnessEstimator.percentile(0.5f);
+    }
+
+    @Benchmark
+    public float frameRate() {
+        frameNanos += 33333333L;
+        frameRateMeter.onFrame(frameNanos);
+        return frameRateMeter.getFramesPerSecond();
+    }
+
+    /**
+     * Scored per 20 ms buffer; with the 50 ms interval every third buffer publishes levels.
+     */
+    @Benchmark
+    public boolean audioLevel() {
+        pcmNanos += 20000000L;
+        return levelMeter.update(pcm, pcmNanos);
+    }
+}
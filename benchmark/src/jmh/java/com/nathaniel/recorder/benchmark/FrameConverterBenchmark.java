@@ -0,0 +1,117 @@
+package com.nathaniel.recorder.benchmark;
+
+import com.nathaniel.recorder.frame.FrameConverter;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Throughput of {@link FrameConverter}. Besides frames per second, every benchmark reports a
+ * {@code megapixels} counter whose rate is the source megapixels converted per second (MP/s).
+ *
+ * @author nathaniel
+ */
+@State(Scope.Thread)
+public class FrameConverterBenchmark {
+
+    @Param({"720p", "1080p", "4K"})
+    public String resolution;
+
+    @Param({"I420", "NV12", "ARGB_8888"})
+    public String format;
+
+    /**
+     * none: straight conversion; rotate: 90 degrees plus mirror, the front camera case;
+     * downscale: 90 degrees to a quarter of the pixels, the thumbnail case.
+     */
+    @Param({"none", "rotate", "downscale"})
+    public String transform;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private FrameConverter converter;
+    private ForkJoinPool pool;
+    private byte[] input;
+    private byte[] bytes;
+    private int[] argb;
+    private double megapixelsPerFrame;
+
+    /**
+     * Megapixels converted in the current iteration, reported as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megapixels = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        int width;
+        int height;
+        if ("4K".equals(resolution)) {
+            width = 3840;
+            height = 2160;
+        } else if ("1080p".equals(resolution)) {
+            width = 1920;
+            height = 1080;
+        } else {
+            width = 1280;
+            height = 720;
+        }
+        converter = new FrameConverter(width, height, FrameConverter.Format.valueOf(format));
+        if ("rotate".equals(transform)) {
+            converter.setRotation(90).setMirror(true);
+        } else if ("downscale".equals(transform)) {
+            converter.setRotation(90).setOutputSize(height / 2, width / 2);
+        }
+        input = new byte[converter.getInputLength()];
+        new Random(42).nextBytes(input);
+        if (converter.getFormat() == FrameConverter.Format.ARGB_8888) {
+            argb = new int[converter.getOutputLength()];
+        } else {
+            bytes = new byte[converter.getOutputLength()];
+        }
+        pool = parallel ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+        megapixelsPerFrame = width * height / 1e6;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public Object convert(Counters counters) {
+        if (argb != null) {
+            if (pool != null) {
+                converter.convert(input, argb, pool);
+            } else {
+                converter.convert(input, argb);
+            }
+        } else if (pool != null) {
+            converter.convert(input, bytes, pool);
+        } else {
+            converter.convert(input, bytes);
+        }
+        counters.megapixels += megapixelsPerFrame;
+        return argb != null ? argb : bytes;
+    }
+}
@@ -0,0 +1,185 @@
+package com.nathaniel.recorder.benchmark;
+
+import com.nathaniel.recorder.mp4.AvcUtils;
+import com.nathaniel.recorder.mp4.FragmentedMp4Writer;
+import com.nathaniel.recorder.mp4.Mp4Box;
+import com.nathaniel.recorder.mp4.Mp4Recovery;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * MP4 box writing and parsing. {@code write} muxes ten seconds of synthetic H.264 and AAC samples with
+ * {@link FragmentedMp4Writer}, including the fsync after every fragment, and reports a {@code megabytes}
+ * counter; the other benchmarks parse a file written the same way, as done when recovering or merging takes.
+ * <p>
+ * The file lives in {@code java.io.tmpdir}, so {@code write} also measures that file system; point it at a
+ * tmpfs with {@code -Djava.io.tmpdir} to measure the muxer alone.
+ *
+ * @author nathaniel
+ */
+@State(Scope.Thread)
+public class Mp4Benchmark {
+
+    private static final int FRAME_RATE = 30;
+    private static final int GOP_FRAMES = 30;
+    private static final int SECONDS = 10;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int AUDIO_BIT_RATE = 128000;
+    private static final long FRAGMENT_DURATION_US = 1000 * 1000;
+    /**
+     * A key frame is about five times the size of a predicted one at camera bitrates
+     */
+    private static final int KEY_FRAME_WEIGHT = 5;
+    private static final byte[] SPS = {0x67, 0x64, 0x00, 0x28, (byte) 0xAC, 0x2B, 0x40, 0x3C, 0x01, 0x13, (byte) 0xF2, (byte) 0xA0};
+    private static final byte[] PPS = {0x68, (byte) 0xEE, 0x3C, (byte) 0xB0};
+    /**
+     * AAC-LC, 44100 Hz, stereo
+     */
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+
+    /**
+     * Video bitrate in bits per second
+     */
+    @Param({"2000000", "6000000", "12000000"})
+    public int bitRate;
+
+    private ByteBuffer keyFrame;
+    private ByteBuffer frame;
+    private ByteBuffer audioFrame;
+    private File output;
+    private File parsed;
+    private double megabytesPerFile;
+
+    /**
+     * Megabytes muxed in the current iteration, reported as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        int frameBytes = bitRate / 8 * GOP_FRAMES / FRAME_RATE / (GOP_FRAMES - 1 + KEY_FRAME_WEIGHT);
+        keyFrame = annexB(5, frameBytes * KEY_FRAME_WEIGHT, random);
+        frame = annexB(1, frameBytes, random);
+        audioFrame = ByteBuffer.allocate(AUDIO_BIT_RATE / 8 * AAC_FRAME_SAMPLES / SAMPLE_RATE);
+        output = File.createTempFile("bench", ".mp4");
+        parsed = File.createTempFile("bench-parse", ".mp4");
+        megabytesPerFile = mux(parsed) / 1e6;
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.delete();
+        parsed.delete();
+    }
+
+    @Benchmark
+    public long write(Counters counters) throws IOException {
+        long bytes = mux(output);
+        counters.megabytes += megabytesPerFile;
+        return bytes;
+    }
+
+    /**
+     * Reads the codec config from the track headers, as done before recovering a broken take.
+     */
+    @Benchmark
+    public Object readVideoConfig() throws IOException {
+        return Mp4Recovery.readVideoConfig(parsed);
+    }
+
+    /**
+     * Walks every top level box of a complete file; nothing is truncated.
+     */
+    @Benchmark
+    public long trimFragmented() throws IOException {
+        return Mp4Recovery.trimFragmented(parsed);
+    }
+
+    @Benchmark
+    public int readTopLevel() throws IOException {
+        RandomAccessFile input = new RandomAccessFile(parsed, "r");
+        try {
+            return Mp4Box.readTopLevel(input.getChannel()).size();
+        } finally {
+            input.close();
+        }
+    }
+
+    @Benchmark
+    public Object splitAnnexB() {
+        return AvcUtils.splitAnnexB(keyFrame.duplicate());
+    }
+
+    /**
+     * @return bytes written
+     */
+    private long mux(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, FRAGMENT_DURATION_US);
+            int video = writer.addVideoTrack(1920, 1080, SPS, PPS, 90);
+            int audio = writer.addAudioTrack(SAMPLE_RATE, 2, AUDIO_BIT_RATE, AUDIO_SPECIFIC_CONFIG);
+            writer.start();
+            long audioTimeUs = 0;
+            for (int i = 0; i < FRAME_RATE * SECONDS; i++) {
+                long videoTimeUs = i * 1000000L / FRAME_RATE;
+                while (audioTimeUs <= videoTimeUs) {
+                    writer.writeSample(audio, audioFrame, audioTimeUs, true);
+                    audioTimeUs += AAC_FRAME_SAMPLES * 1000000L / SAMPLE_RATE;
+                }
+                boolean sync = i % GOP_FRAMES == 0;
+                writer.writeSample(video, sync ? keyFrame : frame, videoTimeUs, sync);
+            }
+            writer.finish();
+            return writer.getBytesWritten();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * One NAL unit with a start code and a payload free of start code emulation.
+     */
+    private static ByteBuffer annexB(int nalType, int size, Random random) {
+        byte[] unit = new byte[Math.max(size, 8)];
+        random.nextBytes(unit);
+        for (int i = 5; i < unit.length; i++) {
+            if (unit[i] == 0) {
+                unit[i] = 1;
+            }
+        }
+        unit[0] = 0;
+        unit[1] = 0;
+        unit[2] = 0;
+        unit[3] = 1;
+        unit[4] = (byte) (0x60 | nalType);
+        return ByteBuffer.wrap(unit);
+    }
+}
@@ -0,0 +1,105 @@
+package com.nathaniel.recorder.benchmark;
+
+import com.nathaniel.recorder.CameraCapabilities;
+import com.nathaniel.recorder.CameraFacing;
+import com.nathaniel.recorder.policy.BitratePolicy;
+import com.nathaniel.recorder.policy.FrameRateSelector;
+import com.nathaniel.recorder.policy.SizeSelector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Size, frame rate and bitrate negotiation done every time a camera is opened or a take is configured,
+ * against the tables of {@link DeviceTables}. {@code selectVideoSize} and {@code selectPreviewSize} are the
+ * uncached paths of {@code RecorderFactory.findCloseSizeValue} and {@code CameraUtils.findBestPreviewSizeValue},
+ * {@code findCloseFrameRate} and {@code findConstantRange} those of {@code RecorderFactory.findCloseFrameRate}
+ * and {@code CameraUtils.setConstantPreviewFPS}.
+ *
+ * @author nathaniel
+ */
+@State(Scope.Thread)
+public class NegotiationBenchmark {
+
+    @Param({DeviceTables.NEXUS_5, DeviceTables.GALAXY_S7, DeviceTables.BUDGET_MTK})
+    public String device;
+
+    /**
+     * Requested video size; the screen the preview is fitted to is 1080x1920 in every case.
+     */
+    @Param({"480p", "1080p", "4K"})
+    public String target;
+
+    @Param({"30"})
+    public int frameRate;
+
+    private int[][] previewSizes;
+    private int[][] videoSizes;
+    private SizeSelector selector;
+    private List<int[]> fpsRanges;
+    private BitratePolicy bitratePolicy;
+    private int targetWidth;
+    private int targetHeight;
+    private int[] videoSize;
+
+    @Setup
+    public void setUp() {
+        CameraCapabilities capabilities = CameraCapabilities.parse(0, CameraFacing.BACK, 90,
+                DeviceTables.flattened(device));
+        previewSizes = capabilities.getPreviewSizes();
+        videoSizes = capabilities.getVideoSizes();
+        selector = new SizeSelector(previewSizes, videoSizes);
+        fpsRanges = Arrays.asList(capabilities.getFpsRanges());
+        bitratePolicy = new BitratePolicy();
+        if ("4K".equals(target)) {
+            targetWidth = 3840;
+            targetHeight = 2160;
+        } else if ("1080p".equals(target)) {
+            targetWidth = 1920;
+            targetHeight = 1080;
+        } else {
+            targetWidth = 640;
+            targetHeight = 480;
+        }
+        videoSize = selector.selectVideoSize(targetWidth, targetHeight);
+    }
+
+    /**
+     * Builds the per camera index, paid once per camera open and when the cost function changes.
+     */
+    @Benchmark
+    public Object buildSelector() {
+        return new SizeSelector(previewSizes, videoSizes);
+    }
+
+    @Benchmark
+    public Object selectVideoSize() {
+        return selector.selectVideoSize(targetWidth, targetHeight);
+    }
+
+    @Benchmark
+    public Object selectPreviewSize() {
+        return selector.selectPreviewSize(1080, 1920, videoSize);
+    }
+
+    @Benchmark
+    public int findCloseFrameRate() {
+        return FrameRateSelector.findCloseFrameRate(fpsRanges, frameRate);
+    }
+
+    @Benchmark
+    public Object findConstantRange() {
+        return FrameRateSelector.findConstantRange(fpsRanges, frameRate);
+    }
+
+    @Benchmark
+    public int videoBitRate() {
+        return bitratePolicy.videoBitRate(videoSize[0], videoSize[1], frameRate, BitratePolicy.Codec.H264);
+    }
+}
@@ -0,0 +1,53 @@
+package com.nathaniel.recorder.benchmark;
+
+import com.nathaniel.recorder.CameraCapabilities;
+import com.nathaniel.recorder.CameraFacing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Flattened parameter handling of {@link CameraCapabilities}: parsing a {@code Camera.Parameters#flatten()}
+ * dump when a camera is probed, and the round trip through the persisted form that every later camera open
+ * reads instead.
+ *
+ * @author nathaniel
+ */
+@State(Scope.Thread)
+public class ParametersBenchmark {
+
+    @Param({DeviceTables.NEXUS_5, DeviceTables.GALAXY_S7, DeviceTables.BUDGET_MTK})
+    public String device;
+
+    private String parameters;
+    private CameraCapabilities capabilities;
+    private String persisted;
+
+    @Setup
+    public void setUp() {
+        parameters = DeviceTables.flattened(device);
+        capabilities = CameraCapabilities.parse(0, CameraFacing.BACK, 90, parameters);
+        // A persisted entry carries the sizes chosen for the last take as well
+        capabilities.setChosenVideoSize(1920, 1080, 1920, 1080);
+        capabilities.setChosenPreviewSize(1080, 1920, new int[]{1920, 1080}, 1920, 1080);
+        persisted = capabilities.flatten();
+    }
+
+    @Benchmark
+    public Object parse() {
+        return CameraCapabilities.parse(0, CameraFacing.BACK, 90, parameters);
+    }
+
+    @Benchmark
+    public Object flatten() {
+        return capabilities.flatten();
+    }
+
+    @Benchmark
+    public Object unflatten() {
+        return CameraCapabilities.unflatten(persisted);
+    }
+}
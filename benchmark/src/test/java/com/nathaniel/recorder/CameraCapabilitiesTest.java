@@ -0,0 +1,82 @@
+package com.nathaniel.recorder;
+
+import com.nathaniel.recorder.policy.SizeSelector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the sizes chosen for a camera survive a round trip through the persisted form, and are only
+ * dropped when the size cost really changes.
+ *
+ * @author nathaniel
+ */
+public class CameraCapabilitiesTest {
+
+    private static final String PARAMETERS = "preview-size=640x480;"
+            + "preview-size-values=1920x1080,1440x1080,1280x720,640x480;"
+            + "video-size-values=1920x1080,1280x720,640x480;";
+
+    private static final SizeSelector.Cost ENCODER_LIMITED = SizeSelector.Cost.DEFAULT.withEncoderLimit(1920, 1088);
+
+    private static CameraCapabilities chosen(SizeSelector.Cost cost) {
+        CameraCapabilities capabilities = CameraCapabilities.parse(0, CameraFacing.BACK, 90, PARAMETERS);
+        capabilities.setSizeCost(cost);
+        capabilities.setChosenVideoSize(1920, 1080, 1920, 1080);
+        capabilities.setChosenPreviewSize(1080, 2220, new int[]{1920, 1080}, 1920, 1080);
+        return capabilities;
+    }
+
+    @Test
+    public void costsWithEqualFieldsAreEqual() {
+        SizeSelector.Cost same = SizeSelector.Cost.DEFAULT.withEncoderLimit(1088, 1920);
+
+        assertEquals(ENCODER_LIMITED, same);
+        assertEquals(ENCODER_LIMITED.hashCode(), same.hashCode());
+        assertEquals(ENCODER_LIMITED.flatten(), same.flatten());
+        assertNotEquals(SizeSelector.Cost.DEFAULT, ENCODER_LIMITED);
+        assertNotEquals(ENCODER_LIMITED.flatten(), ENCODER_LIMITED.withMinPreviewPixels(0).flatten());
+    }
+
+    @Test
+    public void chosenSizesSurviveReloadWithEqualCost() {
+        CameraCapabilities reloaded = CameraCapabilities.unflatten(chosen(ENCODER_LIMITED).flatten());
+        // A cold start builds a new but equal cost
+        reloaded.setSizeCost(SizeSelector.Cost.DEFAULT.withEncoderLimit(1920, 1088));
+
+        assertArrayEquals(new int[]{1920, 1080}, reloaded.getChosenVideoSize(1920, 1080));
+        assertArrayEquals(new int[]{1920, 1080}, reloaded.getChosenPreviewSize(1080, 2220, new int[]{1920, 1080}));
+        assertEquals(chosen(ENCODER_LIMITED).flatten(), reloaded.flatten());
+    }
+
+    @Test
+    public void nullCostMatchesSizesChosenUnderDefault() {
+        CameraCapabilities reloaded = CameraCapabilities.unflatten(chosen(null).flatten());
+        reloaded.setSizeCost(SizeSelector.Cost.DEFAULT);
+
+        assertArrayEquals(new int[]{1920, 1080}, reloaded.getChosenVideoSize(1920, 1080));
+    }
+
+    @Test
+    public void changedCostDropsChosenSizes() {
+        CameraCapabilities reloaded = CameraCapabilities.unflatten(chosen(ENCODER_LIMITED).flatten());
+        reloaded.setSizeCost(SizeSelector.Cost.DEFAULT.withEncoderLimit(1280, 720));
+
+        assertNull(reloaded.getChosenVideoSize(1920, 1080));
+        assertNull(reloaded.getChosenPreviewSize(1080, 2220, new int[]{1920, 1080}));
+    }
+
+    @Test
+    public void sizesPersistedWithoutCostAreChosenAgain() {
+        // Written before the cost was persisted: the cost they were chosen under is unknown
+        String flattened = chosen(ENCODER_LIMITED).flatten().replaceAll(";size-cost=[^;]*", "");
+        CameraCapabilities reloaded = CameraCapabilities.unflatten(flattened);
+        reloaded.setSizeCost(ENCODER_LIMITED);
+
+        assertNull(reloaded.getChosenVideoSize(1920, 1080));
+    }
+}
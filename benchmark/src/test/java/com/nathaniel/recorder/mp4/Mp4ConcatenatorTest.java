@@ -0,0 +1,296 @@
+package com.nathaniel.recorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Joins the fixtures in {@code src/test/resources/mp4} (see make_fixtures.py there) and checks the sample
+ * tables of the result against those of the inputs, sample by sample. Every fixture sample starts with a tag
+ * naming its file, track and index, so following stsc/stco/stsz of the output must land on the input samples
+ * in order.
+ *
+ * @author nathaniel
+ */
+public class Mp4ConcatenatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sampleCountsAndDurationsAreSummed() throws Exception {
+        File output = concat("a.mp4", "b.mp4", "c.mp4");
+        Samples video = Samples.read(output, Mp4Box.VIDE);
+        Samples audio = Samples.read(output, Mp4Box.SOUN);
+
+        assertEquals(30 + 20 + 10, video.size());
+        assertEquals(44 + 30 + 15, audio.size());
+        assertEquals(60 * 3000, video.mediaDuration);
+        assertEquals(89 * 1024, audio.mediaDuration);
+        assertEquals(sum(video.deltas), video.mediaDuration);
+        assertEquals(sum(audio.deltas), audio.mediaDuration);
+        // Every input has a single stts run with the same delta, so the runs merge across inputs
+        assertEquals(1, video.sttsEntries);
+        assertEquals(1, audio.sttsEntries);
+    }
+
+    @Test
+    public void perSampleTablesMatchInputs() throws Exception {
+        String[] names = {"a.mp4", "b.mp4", "c.mp4"};
+        File output = concat(names);
+        for (int handler : new int[]{Mp4Box.VIDE, Mp4Box.SOUN}) {
+            Samples expected = new Samples();
+            for (String name : names) {
+                expected.append(Samples.read(fixture(name), handler));
+            }
+            Samples actual = Samples.read(output, handler);
+            String track = Mp4Box.typeName(handler);
+            assertEquals(track + " sizes", expected.sizes, actual.sizes);
+            assertEquals(track + " deltas", expected.deltas, actual.deltas);
+            assertEquals(track + " composition offsets", expected.compositionOffsets, actual.compositionOffsets);
+            assertEquals(track + " chunks", expected.chunkCount, actual.chunkCount);
+        }
+    }
+
+    @Test
+    public void missingCompositionOffsetsBecomeZero() throws Exception {
+        Samples video = Samples.read(concat("a.mp4", "c.mp4"), Mp4Box.VIDE);
+
+        assertTrue(video.hasCtts);
+        for (int i = 30; i < 40; i++) {
+            assertEquals(Long.valueOf(0), video.compositionOffsets.get(i));
+        }
+        assertFalse(Samples.read(concat("c.mp4", "c.mp4"), Mp4Box.VIDE).hasCtts);
+    }
+
+    @Test
+    public void syncSamplesAreRebased() throws Exception {
+        File output = concat("a.mp4", "b.mp4", "c.mp4");
+
+        assertEquals(Arrays.asList(1L, 16L, 31L, 41L, 51L), Samples.read(output, Mp4Box.VIDE).syncSamples);
+        // AAC inputs have no stss, every sample is a sync sample and the output keeps it that way
+        assertNull(Samples.read(output, Mp4Box.SOUN).syncSamples);
+    }
+
+    @Test
+    public void chunkOffsetsResolveToInputSamples() throws Exception {
+        File output = concat("a.mp4", "b.mp4", "c.mp4");
+        for (int handler : new int[]{Mp4Box.VIDE, Mp4Box.SOUN}) {
+            Samples samples = Samples.read(output, handler);
+            int trackId = handler == Mp4Box.VIDE ? 1 : 2;
+            List<Integer> expected = new ArrayList<>();
+            int[] counts = handler == Mp4Box.VIDE ? new int[]{30, 20, 10} : new int[]{44, 30, 15};
+            for (int file = 0; file < counts.length; file++) {
+                for (int index = 0; index < counts[file]; index++) {
+                    expected.add(((file + 1) << 24) | (trackId << 16) | index);
+                }
+            }
+            assertEquals(Mp4Box.typeName(handler) + " tags", expected, samples.tags);
+        }
+    }
+
+    @Test
+    public void co64InputIsWrittenAsStco() throws Exception {
+        assertTrue(Samples.read(fixture("b.mp4"), Mp4Box.VIDE).co64);
+
+        File output = concat("b.mp4", "a.mp4");
+        Samples video = Samples.read(output, Mp4Box.VIDE);
+        assertFalse(video.co64);
+        assertEquals(2, video.tags.get(0) >>> 24);
+        assertEquals(1, video.tags.get(20) >>> 24);
+    }
+
+    @Test
+    public void mediaDataFollowsFtypInSingleMdat() throws Exception {
+        File output = concat("b.mp4", "a.mp4");
+        RandomAccessFile file = new RandomAccessFile(output, "r");
+        try {
+            List<Mp4Box> boxes = Mp4Box.readTopLevel(file.getChannel());
+            assertEquals(3, boxes.size());
+            assertEquals(Mp4Box.FTYP, boxes.get(0).getType());
+            assertEquals(Mp4Box.MDAT, boxes.get(1).getType());
+            assertEquals(Mp4Box.MOOV, boxes.get(2).getType());
+            assertEquals(file.length(), boxes.get(2).getEnd());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void differentTimescalesAreRejected() throws Exception {
+        try {
+            concat("c.mp4", "d48k.mp4");
+            fail("joined audio tracks with different timescales");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("48000"));
+        }
+    }
+
+    private File concat(String... names) throws IOException, URISyntaxException {
+        List<File> inputs = new ArrayList<>();
+        for (String name : names) {
+            inputs.add(fixture(name));
+        }
+        File output = folder.newFile();
+        Mp4Concatenator.concat(inputs, output);
+        return output;
+    }
+
+    private static File fixture(String name) throws URISyntaxException {
+        return new File(Mp4ConcatenatorTest.class.getResource("/mp4/" + name).toURI());
+    }
+
+    private static long sum(List<Long> values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * The sample tables of one track expanded to one entry per sample.
+     */
+    private static final class Samples {
+        final List<Integer> tags = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+        final List<Long> deltas = new ArrayList<>();
+        final List<Long> compositionOffsets = new ArrayList<>();
+        /**
+         * 1-based sync sample numbers, null when the track has no stss
+         */
+        List<Long> syncSamples;
+        boolean hasCtts;
+        boolean co64;
+        long sttsEntries;
+        long chunkCount;
+        long mediaDuration;
+
+        int size() {
+            return sizes.size();
+        }
+
+        void append(Samples other) {
+            tags.addAll(other.tags);
+            sizes.addAll(other.sizes);
+            deltas.addAll(other.deltas);
+            compositionOffsets.addAll(other.compositionOffsets);
+            chunkCount += other.chunkCount;
+            mediaDuration += other.mediaDuration;
+        }
+
+        static Samples read(File file, int handler) throws IOException {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                for (Mp4Box box : Mp4Box.readTopLevel(channel)) {
+                    if (box.getType() != Mp4Box.MOOV) {
+                        continue;
+                    }
+                    for (Mp4Box trak : box.children(channel)) {
+                        Mp4Box mdia = trak.child(channel, Mp4Box.MDIA);
+                        if (trak.getType() == Mp4Box.TRAK && mdia != null
+                                && mdia.child(channel, Mp4Box.HDLR).readPayload(channel).getInt(8) == handler) {
+                            return read(channel, mdia);
+                        }
+                    }
+                }
+            } finally {
+                input.close();
+            }
+            throw new AssertionError("No '" + Mp4Box.typeName(handler) + "' track in " + file);
+        }
+
+        private static Samples read(FileChannel channel, Mp4Box mdia) throws IOException {
+            Samples samples = new Samples();
+            samples.mediaDuration = Mp4Concatenator.readTimescaleAndDuration(
+                    mdia.child(channel, Mp4Box.MDHD).readPayload(channel))[1];
+            Mp4Box stbl = mdia.find(channel, Mp4Box.MINF, Mp4Box.STBL);
+
+            ByteBuffer stsz = stbl.child(channel, Mp4Box.STSZ).readPayload(channel);
+            int constantSize = stsz.getInt(4);
+            int sampleCount = stsz.getInt(8);
+            for (int i = 0; i < sampleCount; i++) {
+                samples.sizes.add(constantSize != 0 ? constantSize : stsz.getInt(12 + i * 4));
+            }
+
+            ByteBuffer stts = stbl.child(channel, Mp4Box.STTS).readPayload(channel);
+            samples.sttsEntries = stts.getInt(4);
+            for (int e = 0; e < samples.sttsEntries; e++) {
+                for (int s = 0; s < stts.getInt(8 + e * 8); s++) {
+                    samples.deltas.add((long) stts.getInt(12 + e * 8));
+                }
+            }
+
+            Mp4Box cttsBox = stbl.child(channel, Mp4Box.CTTS);
+            samples.hasCtts = cttsBox != null;
+            if (cttsBox != null) {
+                ByteBuffer ctts = cttsBox.readPayload(channel);
+                for (int e = 0; e < ctts.getInt(4); e++) {
+                    for (int s = 0; s < ctts.getInt(8 + e * 8); s++) {
+                        samples.compositionOffsets.add((long) ctts.getInt(12 + e * 8));
+                    }
+                }
+            } else {
+                for (int i = 0; i < sampleCount; i++) {
+                    samples.compositionOffsets.add(0L);
+                }
+            }
+
+            Mp4Box stssBox = stbl.child(channel, Mp4Box.STSS);
+            if (stssBox != null) {
+                ByteBuffer stss = stssBox.readPayload(channel);
+                samples.syncSamples = new ArrayList<>();
+                for (int e = 0; e < stss.getInt(4); e++) {
+                    samples.syncSamples.add(stss.getInt(8 + e * 4) & 0xFFFFFFFFL);
+                }
+            }
+
+            Mp4Box offsetsBox = stbl.child(channel, Mp4Box.STCO);
+            if (offsetsBox == null) {
+                offsetsBox = stbl.child(channel, Mp4Box.CO64);
+                samples.co64 = true;
+            }
+            ByteBuffer offsets = offsetsBox.readPayload(channel);
+            samples.chunkCount = offsets.getInt(4) & 0xFFFFFFFFL;
+            ByteBuffer stsc = stbl.child(channel, Mp4Box.STSC).readPayload(channel);
+            int stscEntries = stsc.getInt(4);
+
+            // Walk the chunks, reading the tag at the start of every sample
+            int sample = 0;
+            ByteBuffer tag = ByteBuffer.allocate(4);
+            for (int chunk = 1; chunk <= samples.chunkCount; chunk++) {
+                int samplesPerChunk = 0;
+                for (int e = 0; e < stscEntries && stsc.getInt(8 + e * 12) <= chunk; e++) {
+                    samplesPerChunk = stsc.getInt(12 + e * 12);
+                }
+                long position = samples.co64 ? offsets.getLong(8 + (chunk - 1) * 8)
+                        : offsets.getInt(8 + (chunk - 1) * 4) & 0xFFFFFFFFL;
+                for (int s = 0; s < samplesPerChunk; s++, sample++) {
+                    tag.clear();
+                    Mp4Box.readFully(channel, tag, position);
+                    samples.tags.add(tag.getInt(0));
+                    position += samples.sizes.get(sample);
+                }
+            }
+            assertEquals("samples reached through stsc", sampleCount, sample);
+            return samples;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.nathaniel.recorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovers hand built orphan files: {@code ftyp}, an {@code mdat} with a placeholder size and H.264 access
+ * units interleaved with audio, either raw AAC as MediaRecorder writes it or ADTS framed.
+ *
+ * @author nathaniel
+ */
+public class Mp4RecoveryTest {
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x0d, (byte) 0xda, 0x05, 0x07, (byte) 0xe8};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    /**
+     * AAC LC, 44100Hz, mono
+     */
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x08};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void aacLcConfigMatchesEncoderOutput() {
+        assertArrayEquals(AUDIO_SPECIFIC_CONFIG, Mp4Recovery.aacLcConfig(44100, 1));
+        assertArrayEquals(new byte[]{0x11, (byte) 0x90}, Mp4Recovery.aacLcConfig(48000, 2));
+        assertNull(Mp4Recovery.aacLcConfig(44000, 1));
+    }
+
+    @Test
+    public void rawAudioBetweenVideoIsReportedAsDropped() throws Exception {
+        ByteArrayOutputStream media = new ByteArrayOutputStream();
+        writeKeyFrame(media);
+        writeFrame(media);
+        writeRaw(media, 300);
+        writeFrame(media);
+        writeFrame(media);
+        writeRaw(media, 200);
+        writeFrame(media);
+        File file = orphan(media);
+
+        Mp4Recovery.Result result = Mp4Recovery.recover(file, config());
+
+        assertEquals(5, result.getVideoSamples());
+        assertEquals(0, result.getAudioSamples());
+        assertEquals(500, result.getSkippedBytes());
+        assertEquals(500, result.getDroppedAudioBytes());
+        assertTrue(result.isAudioDropped());
+        assertFalse(Mp4Recovery.needsRecovery(file));
+    }
+
+    @Test
+    public void tornTailIsNotReportedAsAudio() throws Exception {
+        ByteArrayOutputStream media = new ByteArrayOutputStream();
+        writeKeyFrame(media);
+        writeFrame(media);
+        writeRaw(media, 100);
+        File file = orphan(media);
+
+        Mp4Recovery.Result result = Mp4Recovery.recover(file, config());
+
+        assertEquals(2, result.getVideoSamples());
+        assertEquals(100, result.getSkippedBytes());
+        assertFalse(result.isAudioDropped());
+    }
+
+    @Test
+    public void adtsAudioBetweenVideoIsRecovered() throws Exception {
+        ByteArrayOutputStream media = new ByteArrayOutputStream();
+        writeKeyFrame(media);
+        writeAdts(media, 20);
+        writeAdts(media, 30);
+        writeFrame(media);
+        writeFrame(media);
+        File file = orphan(media);
+
+        Mp4Recovery.Result result = Mp4Recovery.recover(file, config());
+
+        assertEquals(3, result.getVideoSamples());
+        assertEquals(2, result.getAudioSamples());
+        assertEquals(0, result.getSkippedBytes());
+        assertFalse(result.isAudioDropped());
+    }
+
+    private static Mp4Recovery.Config config() {
+        return new Mp4Recovery.Config(320, 240, 30).setAudioSpecificConfig(AUDIO_SPECIFIC_CONFIG);
+    }
+
+    private File orphan(ByteArrayOutputStream media) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            header.putInt(16).putInt(Mp4Box.fourcc("ftyp")).putInt(Mp4Box.fourcc("isom")).putInt(0);
+            // The writer died before patching the size of mdat
+            header.putInt(0).putInt(Mp4Box.MDAT);
+            output.write(header.array());
+            media.writeTo(output);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static void writeKeyFrame(ByteArrayOutputStream media) throws IOException {
+        writeNal(media, SPS);
+        writeNal(media, PPS);
+        writeNal(media, new byte[]{0x65, (byte) 0x88, 0x11, 0x22, 0x33});
+    }
+
+    private static void writeFrame(ByteArrayOutputStream media) throws IOException {
+        // first_mb_in_slice == 0, each slice starts a picture
+        writeNal(media, new byte[]{0x41, (byte) 0x9a, 0x44, 0x55});
+    }
+
+    private static void writeNal(ByteArrayOutputStream media, byte[] unit) throws IOException {
+        media.write(ByteBuffer.allocate(4).putInt(unit.length).array());
+        media.write(unit);
+    }
+
+    /**
+     * Bytes that neither look like a length prefixed NAL unit nor like an ADTS header.
+     */
+    private static void writeRaw(ByteArrayOutputStream media, int size) {
+        byte[] raw = new byte[size];
+        Arrays.fill(raw, (byte) 0x21);
+        media.write(raw, 0, size);
+    }
+
+    private static void writeAdts(ByteArrayOutputStream media, int payloadSize) throws IOException {
+        int length = 7 + payloadSize;
+        // Sync word, MPEG-4, no CRC; AAC LC, 44100Hz, mono
+        media.write(new byte[]{(byte) 0xff, (byte) 0xf1, 0x50, (byte) (0x40 | (length >> 11)),
+                (byte) (length >> 3), (byte) (((length & 0x07) << 5) | 0x1f), (byte) 0xfc});
+        media.write(new byte[payloadSize]);
+    }
+}
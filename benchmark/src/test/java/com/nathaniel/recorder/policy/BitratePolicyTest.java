@@ -0,0 +1,97 @@
+package com.nathaniel.recorder.policy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the bits per pixel model of {@link BitratePolicy}: the product of size, frame rate and bits per pixel,
+ * the caps and the codec factors.
+ *
+ * @author nathaniel
+ */
+public class BitratePolicyTest {
+
+    private final BitratePolicy policy = new BitratePolicy();
+
+    @Test
+    public void bitRateIsPixelsTimesFrameRateTimesBitsPerPixel() {
+        // 1920 * 1080 * 30 * 0.1
+        assertEquals(6220800, policy.videoBitRate(1920, 1080, 30, BitratePolicy.Codec.H264));
+        assertEquals(2764800, policy.videoBitRate(1280, 720, 30, BitratePolicy.Codec.H264));
+        assertEquals(1382400, policy.videoBitRate(1280, 720, 15, BitratePolicy.Codec.H264));
+        assertEquals(12441600, policy.withBitsPerPixel(0.2f).videoBitRate(1920, 1080, 30, BitratePolicy.Codec.H264));
+    }
+
+    @Test
+    public void smallFormatsGetTheMinimum() {
+        // 176 * 144 * 15 * 0.1 = 38016
+        assertEquals(BitratePolicy.DEFAULT_MIN_BIT_RATE,
+                policy.videoBitRate(176, 144, 15, BitratePolicy.Codec.H264));
+        assertEquals(100000,
+                policy.withLimits(100000, 1000000).videoBitRate(176, 144, 15, BitratePolicy.Codec.H264));
+    }
+
+    @Test
+    public void largeFormatsGetTheMaximum() {
+        // 3840 * 2160 * 60 * 0.1 = 49766400
+        assertEquals(BitratePolicy.DEFAULT_MAX_BIT_RATE,
+                policy.videoBitRate(3840, 2160, 60, BitratePolicy.Codec.H264));
+        assertEquals(4000000,
+                policy.withLimits(500000, 4000000).videoBitRate(1920, 1080, 30, BitratePolicy.Codec.H264));
+    }
+
+    @Test
+    public void codecFactorsScaleTheH264Rate() {
+        assertEquals(4043520, policy.videoBitRate(1920, 1080, 30, BitratePolicy.Codec.HEVC));
+        assertEquals(6842880, policy.videoBitRate(1920, 1080, 30, BitratePolicy.Codec.VP8));
+        assertEquals(4354560, policy.videoBitRate(1920, 1080, 30, BitratePolicy.Codec.VP9));
+        assertEquals(9953280, policy.videoBitRate(1920, 1080, 30, BitratePolicy.Codec.MPEG4_SP));
+    }
+
+    @Test
+    public void codecFactorIsAppliedBeforeTheCaps() {
+        // 1280 * 720 * 60 * 0.1 * 1.6 = 8847360, and 3840 * 2160 * 30 * 0.1 * 0.65 = 16174080
+        assertEquals(8847360, policy.videoBitRate(1280, 720, 60, BitratePolicy.Codec.MPEG4_SP));
+        assertEquals(16174080, policy.videoBitRate(3840, 2160, 30, BitratePolicy.Codec.HEVC));
+        assertEquals(BitratePolicy.DEFAULT_MIN_BIT_RATE, policy.videoBitRate(320, 240, 30, BitratePolicy.Codec.HEVC));
+    }
+
+    @Test
+    public void withCodecFactorChangesOnlyThatCodecOfTheCopy() {
+        BitratePolicy tuned = policy.withCodecFactor(BitratePolicy.Codec.HEVC, 0.5f);
+
+        assertEquals(3110400, tuned.videoBitRate(1920, 1080, 30, BitratePolicy.Codec.HEVC));
+        assertEquals(6220800, tuned.videoBitRate(1920, 1080, 30, BitratePolicy.Codec.H264));
+        assertEquals(0.65f, policy.getCodecFactor(BitratePolicy.Codec.HEVC), 0f);
+    }
+
+    @Test
+    public void estimateAddsAudioAndReportsGrantedBitsPerPixel() {
+        BitratePolicy.Estimate estimate = policy.estimate(3840, 2160, 60, BitratePolicy.Codec.H264, 128000);
+
+        assertEquals(20000000, estimate.getVideoBitRate());
+        assertEquals((20000000 + 128000) / 8, estimate.getBytesPerSecond());
+        assertEquals(20000000 / (3840f * 2160 * 60), estimate.getBitsPerPixel(), 1e-6f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyFormat() {
+        policy.videoBitRate(1920, 1080, 0, BitratePolicy.Codec.H264);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedLimits() {
+        policy.withLimits(2000000, 1000000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveBitsPerPixel() {
+        policy.withBitsPerPixel(0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveCodecFactor() {
+        policy.withCodecFactor(BitratePolicy.Codec.VP9, 0f);
+    }
+}
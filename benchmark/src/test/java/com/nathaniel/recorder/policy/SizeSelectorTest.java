@@ -0,0 +1,138 @@
+package com.nathaniel.recorder.policy;
+
+import com.nathaniel.recorder.CameraCapabilities;
+import com.nathaniel.recorder.CameraFacing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs {@link SizeSelector} over the size tables of the back cameras the benchmarks model (see DeviceTables in
+ * the jmh sources), parsed through {@link CameraCapabilities} the way the library reads a camera.
+ *
+ * @author nathaniel
+ */
+public class SizeSelectorTest {
+
+    /**
+     * Few sizes, separate video sizes, no 1440x1080
+     */
+    private static final String NEXUS_5 = "preview-size=640x480;"
+            + "preview-size-values=1920x1080,1280x960,1280x720,1024x768,800x600,800x480,720x480,640x480,"
+            + "352x288,320x240,176x144;"
+            + "video-size-values=1920x1080,1280x720,800x480,720x480,640x480,480x320,352x288,320x240,176x144;";
+    /**
+     * Many aspect ratios, 1440x1080 next to 1920x1080, 4K video
+     */
+    private static final String GALAXY_S7 = "preview-size=1920x1080;"
+            + "preview-size-values=1920x1080,1440x1080,1280x720,1088x1088,1056x864,1024x768,960x720,"
+            + "800x450,720x720,720x480,640x480,352x288,320x240,256x144,176x144;"
+            + "video-size-values=3840x2160,2560x1440,1920x1080,1440x1080,1280x720,1088x1088,800x450,"
+            + "720x480,640x480,320x240,176x144;";
+    /**
+     * No video sizes, the camera records at preview sizes
+     */
+    private static final String BUDGET_MTK = "preview-size=640x480;"
+            + "preview-size-values=1280x720,960x540,864x480,800x480,720x480,640x480,480x368,480x320,"
+            + "352x288,320x240,176x144;";
+
+    private static SizeSelector selector(String flattened) {
+        return CameraCapabilities.parse(0, CameraFacing.BACK, 90, flattened).getSizeSelector();
+    }
+
+    private static SizeSelector selector(String flattened, SizeSelector.Cost cost) {
+        return selector(flattened).withCost(cost);
+    }
+
+    @Test
+    public void sameShortSideDoesNotMakeFourThreeWinOverSixteenNine() {
+        SizeSelector selector = selector(GALAXY_S7);
+
+        assertArrayEquals(new int[]{1920, 1080}, selector.selectVideoSize(1920, 1080));
+        assertArrayEquals(new int[]{1440, 1080}, selector.selectVideoSize(1440, 1080));
+        // 1440x1080 has the pixels of neither target, aspect decides
+        assertArrayEquals(new int[]{1920, 1080}, selector.selectVideoSize(1600, 900));
+        assertArrayEquals(new int[]{1440, 1080}, selector.selectVideoSize(1600, 1200));
+    }
+
+    @Test
+    public void previewFollowsTheVideoAspect() {
+        SizeSelector selector = selector(GALAXY_S7);
+
+        assertArrayEquals(new int[]{1920, 1080},
+                selector.selectPreviewSize(1080, 2220, selector.selectVideoSize(1920, 1080)));
+        assertArrayEquals(new int[]{1440, 1080},
+                selector.selectPreviewSize(1080, 2220, selector.selectVideoSize(1440, 1080)));
+        // No 4K preview: keep 16:9 at the largest preview size rather than a closer pixel count
+        assertArrayEquals(new int[]{1920, 1080},
+                selector.selectPreviewSize(1080, 2220, selector.selectVideoSize(3840, 2160)));
+    }
+
+    @Test
+    public void missingFourThreeFallsBackToSixteenNine() {
+        // 4:3 at 1080 lines would need 1440x1080; 1920x1080 is closer than 640x480
+        assertArrayEquals(new int[]{1920, 1080}, selector(NEXUS_5).selectVideoSize(1440, 1080));
+    }
+
+    @Test
+    public void portraitTargetMatchesLandscapeSize() {
+        assertArrayEquals(new int[]{1920, 1080}, selector(GALAXY_S7).selectVideoSize(1080, 1920));
+        assertArrayEquals(new int[]{1280, 720}, selector(NEXUS_5).selectVideoSize(720, 1280));
+    }
+
+    @Test
+    public void cameraWithoutVideoSizesRecordsAtPreviewSizes() {
+        SizeSelector selector = selector(BUDGET_MTK);
+        int[] video = selector.selectVideoSize(1920, 1080);
+
+        assertArrayEquals(new int[]{1280, 720}, video);
+        assertArrayEquals(video, selector.selectPreviewSize(720, 1280, video));
+    }
+
+    @Test
+    public void encoderLimitCutsOffLargerSizes() {
+        SizeSelector selector = selector(GALAXY_S7);
+
+        assertArrayEquals(new int[]{3840, 2160}, selector.selectVideoSize(3840, 2160));
+        assertArrayEquals(new int[]{1920, 1080},
+                selector.withCost(SizeSelector.Cost.DEFAULT.withEncoderLimit(1920, 1080)).selectVideoSize(3840, 2160));
+        // The limit is orientation independent
+        assertArrayEquals(new int[]{1920, 1080},
+                selector.withCost(SizeSelector.Cost.DEFAULT.withEncoderLimit(1080, 1920)).selectVideoSize(3840, 2160));
+        assertArrayEquals(new int[]{1280, 720},
+                selector.withCost(SizeSelector.Cost.DEFAULT.withEncoderLimit(1280, 720)).selectVideoSize(1920, 1080));
+    }
+
+    @Test
+    public void encoderLimitBelowEverySizeStillReturnsOne() {
+        SizeSelector.Cost tiny = SizeSelector.Cost.DEFAULT.withEncoderLimit(160, 120);
+
+        assertArrayEquals(new int[]{1280, 720}, selector(NEXUS_5, tiny).selectVideoSize(1280, 720));
+    }
+
+    @Test
+    public void smallPreviewSizesAreSkipped() {
+        SizeSelector selector = selector(GALAXY_S7);
+        int[] video = selector.selectVideoSize(176, 144);
+
+        assertArrayEquals(new int[]{176, 144}, video);
+        assertArrayEquals(new int[]{640, 480}, selector.selectPreviewSize(720, 1280, video));
+        assertArrayEquals(video, selector.withCost(SizeSelector.Cost.DEFAULT.withMinPreviewPixels(0))
+                .selectPreviewSize(720, 1280, video));
+    }
+
+    @Test
+    public void cameraWithoutSizesSelectsNothing() {
+        SizeSelector selector = selector("");
+
+        assertNull(selector.selectVideoSize(1920, 1080));
+        assertNull(selector.selectPreviewSize(1080, 1920, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyTarget() {
+        selector(NEXUS_5).selectVideoSize(0, 1080);
+    }
+}
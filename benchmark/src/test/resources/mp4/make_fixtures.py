@@ -0,0 +1,203 @@
+#!/usr/bin/env python3
+"""Writes the MP4 fixtures used by Mp4ConcatenatorTest.
+
+The files are laid out like MediaRecorder output: one H.264 and one AAC track, chunks of both tracks
+interleaved in a single mdat. The first 4 bytes of every sample are a tag, (file << 24) | (track << 16) |
+sample index, so a test can check that chunk offsets still point at the right sample after rewriting.
+The sample data is otherwise filler, no decoder can play these files.
+
+  a.mp4    30 video / 44 audio samples, moov after mdat, stco, ctts, stss 1 and 16
+  b.mp4    20 video / 30 audio samples, moov before mdat, co64, ctts, stss 1 and 11
+  c.mp4    10 video / 15 audio samples, no ctts, stss 1, constant audio sample size
+  d48k.mp4 same as c.mp4 with audio at 48000 Hz, cannot be joined with the others
+
+Run from this directory: python3 make_fixtures.py
+"""
+import struct
+
+VIDEO_TIMESCALE = 90000
+VIDEO_DELTA = 3000
+AUDIO_DELTA = 1024
+MOVIE_TIMESCALE = 1000
+WIDTH = 320
+HEIGHT = 240
+SPS = bytes([0x67, 0x42, 0xC0, 0x1E, 0xDA, 0x05, 0x07, 0xE8, 0x40, 0x00, 0x00, 0x03, 0x00, 0x40,
+             0x00, 0x00, 0x0F, 0x03, 0xC5, 0x8B, 0xA8])
+PPS = bytes([0x68, 0xCE, 0x3C, 0x80])
+AAC_CONFIG = bytes([0x12, 0x10])
+
+
+def box(kind, *payload):
+    data = b''.join(payload)
+    return struct.pack('>I4s', 8 + len(data), kind.encode('ascii')) + data
+
+
+def full_box(kind, version, flags, *payload):
+    return box(kind, struct.pack('>I', (version << 24) | flags), *payload)
+
+
+def u32(*values):
+    return struct.pack('>%dI' % len(values), *values)
+
+
+def matrix():
+    return u32(0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000)
+
+
+def avc1():
+    avcc = box('avcC', bytes([1, SPS[1], SPS[2], SPS[3], 0xFF, 0xE1]), struct.pack('>H', len(SPS)), SPS,
+               bytes([1]), struct.pack('>H', len(PPS)), PPS)
+    return box('avc1', bytes(6), struct.pack('>H', 1), bytes(16), struct.pack('>HH', WIDTH, HEIGHT),
+               u32(0x480000, 0x480000, 0), struct.pack('>H', 1), bytes(32), struct.pack('>Hh', 0x18, -1), avcc)
+
+
+def mp4a(sample_rate):
+    decoder_specific = bytes([0x05, len(AAC_CONFIG)]) + AAC_CONFIG
+    decoder_config = bytes([0x04, 13 + len(decoder_specific), 0x40, 0x15, 0, 0x03, 0x00]) + u32(128000, 128000) \
+        + decoder_specific
+    es = bytes([0x03, 3 + len(decoder_config) + 3, 0, 1, 0]) + decoder_config + bytes([0x06, 1, 2])
+    return box('mp4a', bytes(6), struct.pack('>H', 1), bytes(8), struct.pack('>HHHH', 1, 16, 0, 0),
+               u32(sample_rate << 16), full_box('esds', 0, 0, es))
+
+
+def runs(values):
+    """Run-length encodes per-sample values into (count, value) pairs."""
+    out = []
+    for value in values:
+        if out and out[-1][1] == value:
+            out[-1][0] += 1
+        else:
+            out.append([1, value])
+    return out
+
+
+class Track:
+    def __init__(self, track_id, handler, timescale, delta, sizes, chunks, ctts=None, sync=None,
+                 constant_size=False):
+        self.track_id = track_id
+        self.handler = handler
+        self.timescale = timescale
+        self.delta = delta
+        self.sizes = sizes
+        self.chunks = chunks
+        self.ctts = ctts
+        self.sync = sync
+        self.constant_size = constant_size
+        self.offsets = []
+
+    def duration(self):
+        return len(self.sizes) * self.delta
+
+    def samples(self, file_index):
+        """Sample payloads grouped by chunk."""
+        index = 0
+        for chunk in self.chunks:
+            data = []
+            for _ in range(chunk):
+                tag = (file_index << 24) | (self.track_id << 16) | index
+                filler = bytes((index + i) & 0xFF for i in range(self.sizes[index] - 4))
+                data.append(u32(tag) + filler)
+                index += 1
+            yield b''.join(data)
+
+    def stbl(self, sample_entry, co64):
+        stts = full_box('stts', 0, 0, u32(1, len(self.sizes), self.delta))
+        tables = [full_box('stsd', 0, 0, u32(1), sample_entry), stts]
+        if self.ctts is not None:
+            entries = runs(self.ctts)
+            tables.append(full_box('ctts', 0, 0, u32(len(entries)), *[u32(c, v) for c, v in entries]))
+        if self.sync is not None:
+            tables.append(full_box('stss', 0, 0, u32(len(self.sync), *self.sync)))
+        if self.constant_size:
+            tables.append(full_box('stsz', 0, 0, u32(self.sizes[0], len(self.sizes))))
+        else:
+            tables.append(full_box('stsz', 0, 0, u32(0, len(self.sizes), *self.sizes)))
+        stsc = []
+        for number, chunk in enumerate(self.chunks, 1):
+            if not stsc or stsc[-1][1] != chunk:
+                stsc.append((number, chunk, 1))
+        tables.append(full_box('stsc', 0, 0, u32(len(stsc)), *[u32(*entry) for entry in stsc]))
+        if co64:
+            tables.append(full_box('co64', 0, 0, u32(len(self.offsets)),
+                                   *[struct.pack('>Q', offset) for offset in self.offsets]))
+        else:
+            tables.append(full_box('stco', 0, 0, u32(len(self.offsets), *self.offsets)))
+        return box('stbl', *tables)
+
+    def trak(self, sample_entry, co64):
+        video = self.handler == 'vide'
+        movie_duration = self.duration() * MOVIE_TIMESCALE // self.timescale
+        tkhd = full_box('tkhd', 0, 7, u32(0, 0, self.track_id, 0, movie_duration, 0, 0),
+                        struct.pack('>hhhH', 0, 0 if video else 1, 0 if video else 0x100, 0), matrix(),
+                        u32(WIDTH << 16 if video else 0, HEIGHT << 16 if video else 0))
+        mdhd = full_box('mdhd', 0, 0, u32(0, 0, self.timescale, self.duration()), struct.pack('>HH', 0x55C4, 0))
+        name = b'VideoHandle\0' if video else b'SoundHandle\0'
+        hdlr = full_box('hdlr', 0, 0, u32(0), self.handler.encode('ascii'), bytes(12), name)
+        media_header = full_box('vmhd', 0, 1, bytes(8)) if video else full_box('smhd', 0, 0, bytes(4))
+        dinf = box('dinf', full_box('dref', 0, 0, u32(1), full_box('url ', 0, 1)))
+        minf = box('minf', media_header, dinf, self.stbl(sample_entry, co64))
+        return box('trak', tkhd, box('mdia', mdhd, hdlr, minf))
+
+
+def write(name, file_index, video, audio, audio_rate, moov_first, co64):
+    ftyp = box('ftyp', b'mp42', u32(0), b'isommp42')
+    video_chunks = list(video.samples(file_index))
+    audio_chunks = list(audio.samples(file_index))
+    # Interleave one video and one audio chunk at a time, like MPEG4Writer
+    order = []
+    for i in range(max(len(video_chunks), len(audio_chunks))):
+        if i < len(video_chunks):
+            order.append((video, video_chunks[i]))
+        if i < len(audio_chunks):
+            order.append((audio, audio_chunks[i]))
+
+    def moov():
+        duration = max(video.duration() * MOVIE_TIMESCALE // video.timescale,
+                       audio.duration() * MOVIE_TIMESCALE // audio.timescale)
+        mvhd = full_box('mvhd', 0, 0, u32(0, 0, MOVIE_TIMESCALE, duration, 0x10000), struct.pack('>H', 0x100),
+                        bytes(10), matrix(), bytes(24), u32(3))
+        return box('moov', mvhd, video.trak(avc1(), co64), audio.trak(mp4a(audio_rate), co64))
+
+    def layout(mdat_start):
+        video.offsets = []
+        audio.offsets = []
+        position = mdat_start + 8
+        for track, data in order:
+            track.offsets.append(position)
+            position += len(data)
+
+    mdat = box('mdat', *[data for _, data in order])
+    if moov_first:
+        # The offsets do not change the moov size, so lay out twice to know where mdat starts
+        layout(0)
+        layout(len(ftyp) + len(moov()))
+        content = ftyp + moov() + mdat
+    else:
+        layout(len(ftyp))
+        content = ftyp + mdat + moov()
+    with open(name, 'wb') as output:
+        output.write(content)
+
+
+def video_track(count, sync, with_ctts, seed):
+    sizes = [300 if i + 1 in sync else 24 + (i * 37 + seed) % 150 for i in range(count)]
+    chunks = [4] * (count // 4) + ([count % 4] if count % 4 else [])
+    ctts = [(i % 3) * VIDEO_DELTA for i in range(count)] if with_ctts else None
+    return Track(1, 'vide', VIDEO_TIMESCALE, VIDEO_DELTA, sizes, chunks, ctts, sync)
+
+
+def audio_track(count, rate, constant, seed):
+    sizes = [24] * count if constant else [16 + (i * 13 + seed) % 40 for i in range(count)]
+    chunks = [8] * (count // 8) + ([count % 8] if count % 8 else [])
+    return Track(2, 'soun', rate, AUDIO_DELTA, sizes, chunks, constant_size=constant)
+
+
+def main():
+    write('a.mp4', 1, video_track(30, [1, 16], True, 0), audio_track(44, 44100, False, 0), 44100, False, False)
+    write('b.mp4', 2, video_track(20, [1, 11], True, 5), audio_track(30, 44100, False, 7), 44100, True, True)
+    write('c.mp4', 3, video_track(10, [1], False, 9), audio_track(15, 44100, True, 0), 44100, False, False)
+    write('d48k.mp4', 4, video_track(10, [1], False, 9), audio_track(15, 48000, True, 0), 48000, False, False)
+
+
+if __name__ == '__main__':
+    main()
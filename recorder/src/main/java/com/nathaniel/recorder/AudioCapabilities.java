@@ -0,0 +1,83 @@
+package com.nathaniel.recorder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.util.Log;
+
+import com.nathaniel.recorder.audio.AudioConfig;
+import com.nathaniel.recorder.audio.AudioNegotiator;
+
+/**
+ * Negotiates the microphone format with {@link AudioNegotiator}, probing candidates through
+ * {@link AudioRecord#getMinBufferSize}, and persists the result in app-private preferences keyed by the
+ * device fingerprint and API level like {@link CapabilitiesStore}. The probe runs once per device, later takes
+ * and processes read the cached config.
+ *
+ * @author nathaniel
+ */
+final class AudioCapabilities {
+
+    private static final String TAG = AudioCapabilities.class.getSimpleName();
+    private static final String PREFS_NAME = "recorder_audio_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_CONFIG = "config";
+    /**
+     * MediaRecorder 一直按双声道录制，优先保持
+     */
+    private static final int PREFERRED_CHANNELS = 2;
+    private static final int MAX_SAMPLE_RATE = 48000;
+    private static final AudioNegotiator.Probe PROBE = new AudioNegotiator.Probe() {
+        @Override
+        public boolean isSupported(int sampleRate, int channelCount) {
+            int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+            return AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT) > 0;
+        }
+    };
+    private static Context appContext;
+    private static AudioConfig config;
+
+    private AudioCapabilities() {
+    }
+
+    /**
+     * 记下用于持久化的 Context，不读取缓存也不探测
+     */
+    static synchronized void init(Context context) {
+        if (appContext == null) {
+            appContext = context.getApplicationContext();
+        }
+    }
+
+    /**
+     * 取得协商好的录音参数，第一次调用时读取缓存，设备指纹或系统版本变化时重新探测，可能读写磁盘，不要在主线程第一次调用
+     *
+     * @return 录音参数
+     */
+    static synchronized AudioConfig get() {
+        if (config != null) {
+            return config;
+        }
+        SharedPreferences prefs = appContext == null ? null
+                : appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String deviceKey = CapabilitiesStore.deviceKey();
+        if (prefs != null && deviceKey.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            config = AudioConfig.unflatten(prefs.getString(KEY_CONFIG, null));
+            if (config != null) {
+                Log.i(TAG, "Loaded audio config " + config + " from cache");
+                return config;
+            }
+        }
+        long begin = System.nanoTime();
+        config = AudioNegotiator.negotiate(PROBE, PREFERRED_CHANNELS, MAX_SAMPLE_RATE);
+        Log.i(TAG, "Probed audio config " + config + " in " + (System.nanoTime() - begin) / 1000000 + "ms");
+        if (prefs != null) {
+            prefs.edit()
+                    .putString(KEY_FINGERPRINT, deviceKey)
+                    .putString(KEY_CONFIG, config.flatten())
+                    .apply();
+        }
+        return config;
+    }
+}
@@ -0,0 +1,410 @@
+package com.nathaniel.recorder;
+
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nathaniel.recorder.audio.LevelMeter;
+import com.nathaniel.recorder.audio.PcmRing;
+import com.nathaniel.recorder.mp4.FragmentedMp4Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Records microphone audio alone into a fragmented AAC file, see {@link FragmentedMp4Writer}, without
+ * touching the camera.
+ * <p>
+ * A capture thread reads {@link AudioRecord} straight into the slots of a {@link PcmRing} and meters every
+ * read in place with a {@link LevelMeter}; an encoder thread feeds the slots into the AAC encoder and writes
+ * its output. The ring and the encoder buffers are allocated once, nothing is allocated per read. {@link #start}
+ * and {@link #stop()} must be called from one thread.
+ *
+ * @author nathaniel
+ */
+final class AudioRecorder {
+
+    private static final String TAG = AudioRecorder.class.getSimpleName();
+    private static final String CAPTURE_THREAD_NAME = "AudioCapture";
+    private static final String ENCODER_THREAD_NAME = "AudioEncoder";
+    /**
+     * 环形缓冲的槽位数，每个槽位是一次读取，约 40 毫秒
+     */
+    private static final int RING_SLOTS = 32;
+    private static final long LEVEL_INTERVAL_MS = 50;
+    private static final long TIMEOUT_US = 10000;
+    private static final long STOP_TIMEOUT_MS = 3000;
+    private static final long NANOS_PER_MICRO = 1000L;
+    private static final long MICROS_PER_SECOND = 1000000L;
+
+    private final LevelMeter levelMeter = new LevelMeter(LEVEL_INTERVAL_MS);
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private final Runnable onLevel;
+    private PcmRing ring;
+    private AudioRecord audioRecord;
+    private MediaCodec encoder;
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+    private RandomAccessFile outputFile;
+    private FragmentedMp4Writer writer;
+    private File file;
+    private Thread captureThread;
+    private Thread encoderThread;
+    private int sampleRate;
+    private int channelCount;
+    private int bitRate;
+    private int track = -1;
+    private long lastTimeUs = -1;
+    private volatile boolean recording;
+    private volatile boolean paused;
+    /**
+     * 结束录音超时后为 true，编码线程不再等待结束标记，写完已经编码的分片后退出
+     */
+    private volatile boolean abandoned;
+    private volatile long pausedUs;
+    private long pauseStartUs;
+
+    /**
+     * @param onLevel 每次 {@link #getLevelMeter()} 发布新的音量时在采集线程调用，可以为空
+     */
+    AudioRecorder(Runnable onLevel) {
+        this.onLevel = onLevel;
+    }
+
+    /**
+     * 开始录音
+     *
+     * @param file               输出文件
+     * @param sampleRate         采样率
+     * @param channelCount       声道数
+     * @param bitRate            码率，单位为 b/s
+     * @param fragmentDurationUs 分片时长，单位微秒
+     * @return true 开始成功
+     */
+    boolean start(File file, int sampleRate, int channelCount, int bitRate, long fragmentDurationUs) {
+        if (recording) {
+            Log.w(TAG, "start() while recording");
+            return false;
+        }
+        int slotSize = CodecFactory.getAudioBufferSize(sampleRate, channelCount);
+        if (ring == null || ring.getSlotSize() != slotSize) {
+            ring = new PcmRing(RING_SLOTS, slotSize);
+        } else {
+            ring.reset();
+        }
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitRate = bitRate;
+        try {
+            if (file.exists()) {
+                boolean flag = file.delete();
+                Log.e(TAG, " delete file " + file.getName() + " success is " + flag);
+            }
+            audioRecord = CodecFactory.newAudioRecord(sampleRate, channelCount);
+            if (audioRecord == null) {
+                Log.e(TAG, "no audio record, check the RECORD_AUDIO permission");
+                return false;
+            }
+            outputFile = new RandomAccessFile(file, "rw");
+            writer = new FragmentedMp4Writer(outputFile.getChannel(), fragmentDurationUs);
+            encoder = CodecFactory.newAudioEncoder(sampleRate, channelCount, bitRate);
+            encoder.start();
+            inputBuffers = encoder.getInputBuffers();
+            outputBuffers = encoder.getOutputBuffers();
+            audioRecord.startRecording();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "start audio recorder failed", e);
+            release();
+            return false;
+        }
+        track = -1;
+        lastTimeUs = -1;
+        pausedUs = 0;
+        paused = false;
+        levelMeter.reset();
+        abandoned = false;
+        recording = true;
+
+        captureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                captureLoop();
+            }
+        }, CAPTURE_THREAD_NAME);
+        encoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, ENCODER_THREAD_NAME);
+        encoderThread.start();
+        captureThread.start();
+        Log.i(TAG, "recording audio " + sampleRate + "Hz x" + channelCount + " into " + file);
+        return true;
+    }
+
+    /**
+     * 采集线程：把声音直接读入环形缓冲的槽位，计算音量后交给编码线程，直到录音结束
+     */
+    private void captureLoop() {
+        PcmRing ring = this.ring;
+        int bytesPerFrame = 2 * channelCount;
+        while (recording) {
+            ByteBuffer slot = ring.beginWrite();
+            int length = audioRecord.read(slot, slot.capacity());
+            if (length < 0) {
+                Log.e(TAG, "read audio failed " + length);
+                break;
+            }
+            long nowNanos = System.nanoTime();
+            slot.limit(length);
+            if (levelMeter.update(slot, nowNanos) && onLevel != null) {
+                onLevel.run();
+            }
+            if (length == 0 || paused) {
+                // 暂停时照常读取与计算音量，不提交这一段，下次读取覆盖同一个槽位
+                continue;
+            }
+            // 时间戳取这段 PCM 第一个采样的时间
+            long timeUs = nowNanos / NANOS_PER_MICRO - pausedUs
+                    - length / bytesPerFrame * MICROS_PER_SECOND / sampleRate;
+            ring.endWrite(length, timeUs);
+        }
+        ring.close();
+    }
+
+    /**
+     * 编码线程：把环形缓冲中的 PCM 送入编码器，取出编码输出写入文件，直到编码器输出结束标记
+     */
+    private void encodeLoop() {
+        PcmRing ring = this.ring;
+        ByteBuffer pending = null;
+        long pendingTimeUs = 0;
+        boolean inputDone = false;
+        try {
+            while (!abandoned) {
+                if (!inputDone) {
+                    if (pending == null) {
+                        pending = ring.beginRead(TIMEOUT_US / 1000);
+                        if (pending != null) {
+                            pendingTimeUs = ring.getReadTimeUs();
+                        }
+                    }
+                    if (pending != null) {
+                        if (feed(pending, pendingTimeUs)) {
+                            ring.endRead();
+                            pending = null;
+                        }
+                    } else if (ring.isDrained()) {
+                        inputDone = queueEndOfStream();
+                    }
+                }
+                if (drain()) {
+                    break;
+                }
+            }
+            if (abandoned) {
+                Log.e(TAG, "encoder did not finish in " + STOP_TIMEOUT_MS + "ms, keeping what was encoded");
+            }
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "encode audio failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 把一个槽位的 PCM 送入编码器，编码器输入缓冲不够时分多次送入
+     *
+     * @param pcm        槽位，position 为还没有送入的位置
+     * @param slotTimeUs 槽位第一个采样的时间
+     * @return true 整个槽位已经送入
+     */
+    private boolean feed(ByteBuffer pcm, long slotTimeUs) {
+        while (pcm.hasRemaining()) {
+            int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {
+                return false;
+            }
+            ByteBuffer input = inputBuffers[index];
+            input.clear();
+            int length = Math.min(pcm.remaining(), input.remaining());
+            long timeUs = slotTimeUs + pcm.position() / (2 * channelCount) * MICROS_PER_SECOND / sampleRate;
+            timeUs = Math.max(timeUs, lastTimeUs + 1);
+            lastTimeUs = timeUs;
+            int limit = pcm.limit();
+            pcm.limit(pcm.position() + length);
+            input.put(pcm);
+            pcm.limit(limit);
+            encoder.queueInputBuffer(index, 0, length, timeUs, 0);
+        }
+        return true;
+    }
+
+    private boolean queueEndOfStream() {
+        int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0) {
+            return false;
+        }
+        encoder.queueInputBuffer(index, 0, 0, Math.max(0, lastTimeUs + 1), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        return true;
+    }
+
+    /**
+     * 取出编码器的全部可用输出
+     *
+     * @return true 编码器已经输出结束标记
+     */
+    @SuppressWarnings("deprecation")
+    private boolean drain() throws IOException {
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(bufferInfo, 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return false;
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = encoder.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat format = encoder.getOutputFormat();
+                ByteBuffer csd0 = format.getByteBuffer("csd-0");
+                byte[] config = new byte[csd0.remaining()];
+                csd0.duplicate().get(config);
+                track = writer.addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), bitRate, config);
+                writer.start();
+            } else if (index >= 0) {
+                ByteBuffer output = outputBuffers[index];
+                boolean config = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (!config && bufferInfo.size > 0 && track >= 0) {
+                    output.position(bufferInfo.offset);
+                    output.limit(bufferInfo.offset + bufferInfo.size);
+                    writer.writeSample(track, output, bufferInfo.presentationTimeUs, true);
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 暂停时照常采集并计算音量，声音不写入文件，暂停时间不计入时间轴
+     */
+    void pause() {
+        if (recording && !paused) {
+            pauseStartUs = System.nanoTime() / NANOS_PER_MICRO;
+            paused = true;
+        }
+    }
+
+    void resume() {
+        if (recording && paused) {
+            pausedUs += System.nanoTime() / NANOS_PER_MICRO - pauseStartUs;
+            paused = false;
+        }
+    }
+
+    /**
+     * 结束录音，写入最后一个分片。采集与编码线程都退出之后才释放录音、编码器与文件
+     *
+     * @return 录音的文件，写完至少一个分片时返回；一个分片都没有时返回 null
+     */
+    File stop() {
+        if (!recording) {
+            return null;
+        }
+        recording = false;
+        long deadline = SystemClock.uptimeMillis() + STOP_TIMEOUT_MS;
+        boolean interrupted = join(captureThread, deadline);
+        interrupted |= join(encoderThread, deadline);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        int fragments = writer.getFragmentCount();
+        Log.i(TAG, "recorded " + fragments + " fragments, " + writer.getBytesWritten()
+                + " bytes, dropped " + ring.getOverrunCount() + " reads");
+        release();
+        return fragments > 0 ? file : null;
+    }
+
+    /**
+     * 等待线程退出。超过期限后停止录音让阻塞的读取返回，并让编码线程放弃剩余的输出，然后继续等待
+     *
+     * @return true 等待时当前线程被中断
+     */
+    private boolean join(Thread thread, long deadline) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0 && !abandoned) {
+                Log.e(TAG, thread.getName() + " did not finish in " + STOP_TIMEOUT_MS + "ms");
+                abandoned = true;
+                try {
+                    audioRecord.stop();
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "stop audio record failed", e);
+                }
+            }
+            try {
+                thread.join(Math.max(remaining, 0));
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * 只在没有采集与编码线程时调用：开始失败时线程还没有创建，结束录音时线程都已经退出
+     */
+    private void release() {
+        recording = false;
+        if (audioRecord != null) {
+            try {
+                audioRecord.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "stop audio record failed", e);
+            }
+            audioRecord.release();
+            audioRecord = null;
+        }
+        if (encoder != null) {
+            try {
+                encoder.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "stop audio encoder failed", e);
+            }
+            encoder.release();
+            encoder = null;
+        }
+        if (outputFile != null) {
+            try {
+                outputFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close output failed", e);
+            }
+            outputFile = null;
+        }
+        inputBuffers = null;
+        outputBuffers = null;
+    }
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @return 当前录音的音量，采集线程按 {@link #LEVEL_INTERVAL_MS} 的间隔更新
+     */
+    LevelMeter getLevelMeter() {
+        return levelMeter;
+    }
+}
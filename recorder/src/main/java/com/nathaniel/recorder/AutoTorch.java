@@ -0,0 +1,86 @@
+package com.nathaniel.recorder;
+
+import android.util.Log;
+
+import com.nathaniel.recorder.frame.BrightnessEstimator;
+
+/**
+ * {@link FrontLightMode#AUTO} 的实现：每隔几帧对预览帧亮度平面稀疏采样，取直方图中位数估计环境亮度，
+ * 连续几次偏暗时打开闪光灯，连续几次偏亮时关闭。
+ * <p>
+ * 闪光灯打开后画面本身会变亮，直接比较会让闪光灯反复开关，因此打开后第一次稳定的采样记下闪光灯带来的亮度增量，
+ * 之后用减去增量的亮度判断是否关闭；每次切换后等待自动曝光收敛再继续采样。
+ * 开关请求交给 {@link CameraManager#requestTorch} 合并到一次参数设置中，分析线程不会等待相机
+ *
+ * @author nathaniel
+ */
+final class AutoTorch implements FrameAnalyzer {
+    private static final String TAG = AutoTorch.class.getSimpleName();
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final int SAMPLE_STEP = 16;
+    /**
+     * 每隔多少帧采样一次，30 fps 下约每秒 3 次
+     */
+    private static final int FRAME_INTERVAL = 10;
+    /**
+     * 中位数亮度低于此值认为环境偏暗
+     */
+    private static final int DARK_LUMA = 40;
+    /**
+     * 扣除闪光灯增量后的亮度高于此值认为环境足够亮，与 DARK_LUMA 之间的差距即滞回区间
+     */
+    private static final int BRIGHT_LUMA = 90;
+    private static final int CONFIRM_SAMPLES = 3;
+    private static final long SETTLE_MILLIS = 1500;
+
+    private final CameraManager cameraManager;
+    private final BrightnessEstimator estimator = new BrightnessEstimator(SAMPLE_STEP);
+    // 以下字段只在分析线程中使用
+    private int frames;
+    private int confirmations;
+    private boolean torchOn;
+    private long settleUntilNanos;
+    private int lumaBeforeTorch;
+    /**
+     * 闪光灯带来的亮度增量，-1 表示还没有测量
+     */
+    private int torchBoost = -1;
+
+    AutoTorch(CameraManager cameraManager) {
+        this.cameraManager = cameraManager;
+    }
+
+    @Override
+    public void analyze(PreviewFrame frame) {
+        if (++frames % FRAME_INTERVAL != 0 || frame.getTimestampNanos() < settleUntilNanos) {
+            return;
+        }
+        estimator.sample(frame.getData(), frame.getWidth(), frame.getHeight());
+        int luma = estimator.percentile(0.5f);
+        if (!torchOn) {
+            confirmations = luma < DARK_LUMA ? confirmations + 1 : 0;
+            if (confirmations >= CONFIRM_SAMPLES) {
+                lumaBeforeTorch = luma;
+                torchBoost = -1;
+                toggle(true, frame, luma);
+            }
+            return;
+        }
+        if (torchBoost < 0) {
+            torchBoost = Math.max(0, luma - lumaBeforeTorch);
+            return;
+        }
+        confirmations = luma - torchBoost > BRIGHT_LUMA ? confirmations + 1 : 0;
+        if (confirmations >= CONFIRM_SAMPLES) {
+            toggle(false, frame, luma);
+        }
+    }
+
+    private void toggle(boolean on, PreviewFrame frame, int luma) {
+        torchOn = on;
+        confirmations = 0;
+        settleUntilNanos = frame.getTimestampNanos() + SETTLE_MILLIS * NANOS_PER_MILLI;
+        Log.i(TAG, "luma " + luma + (on ? ", torch on" : ", torch boost " + torchBoost + ", torch off"));
+        cameraManager.requestTorch(on);
+    }
+}
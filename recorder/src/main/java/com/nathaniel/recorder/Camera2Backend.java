@@ -0,0 +1,674 @@
+package com.nathaniel.recorder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaCodec;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import androidx.annotation.Nullable;
+
+import com.nathaniel.recorder.policy.SizeSelector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * camera2 相机后端。预览与录制的 Surface 放在同一个 {@link CameraCaptureSession} 中，开始与结束录制只修改
+ * 重复请求的输出目标：Android 6.0 及以上录制器使用 {@link MediaCodec#createPersistentInputSurface()}，
+ * 这个 Surface 在打开相机时就加入会话，开始录制不需要重建会话；Android 5.x 开始与结束录制时各重建一次会话。
+ * <p>
+ * 与 {@link CameraManager} 共用相机线程，camera2 的回调也在这个线程中执行。预览帧分析器、自动闪光灯与分片 MP4
+ * 依赖 {@link android.hardware.Camera} 的预览回调，只在 {@link CameraManager} 中可用
+ *
+ * @author nathaniel
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class Camera2Backend implements CameraBackend {
+
+    private static final String TAG = Camera2Backend.class.getSimpleName();
+    private static final int DEFAULT_WIDTH = 1920;
+    private static final int DEFAULT_HEIGHT = 1080;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final String SURFACE_PROBE_FILE = "camera2_surface_probe.mp4";
+    private final Context context;
+    private final CameraManager cameraManager;
+    private final android.hardware.camera2.CameraManager systemCameraManager;
+    private final Handler mainHandler;
+    /**
+     * 等待第一帧时接收拍摄结果，见 {@link RecorderMetrics.Stage#FIRST_FRAME}
+     */
+    private final CameraCaptureSession.CaptureCallback firstFrameCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+            cameraManager.getMetrics().onPreviewFrame();
+        }
+    };
+    private CameraFacing cameraFacing = CameraFacing.BACK;
+    private Point requestedVideoSize;
+    private int constantFrameRate;
+    private SizeSelector.Cost requestedSizeCost;
+    /**
+     * 以下字段只在相机线程中访问
+     */
+    private CameraDevice cameraDevice;
+    private CameraCaptureSession captureSession;
+    /**
+     * 尺寸已经变为 {@link #previewSize} 的预览 Surface，之前为 null
+     */
+    private Surface previewSurface;
+    /**
+     * 相机已经打开、等待预览 Surface 变为选定尺寸后再创建会话时的打开回调
+     */
+    private OnCameraListener pendingOpenListener;
+    private boolean sessionPending;
+    /**
+     * 录制器的输入 Surface，Android 6.0 及以上为打开相机时创建的持久 Surface
+     */
+    private Surface recorderSurface;
+    private boolean persistentSurface;
+    private boolean recording;
+    private boolean flashAvailable;
+    private List<int[]> fpsRanges;
+    /**
+     * 关闭相机或者重建会话之后，旧会话的回调按这个序号丢弃
+     */
+    private int sessionSerial;
+    private volatile RecorderCamera openCamera;
+    private volatile Point previewSize;
+    private volatile Point videoSize;
+    private volatile int[] previewFpsRange;
+    private volatile boolean torch;
+
+    Camera2Backend(Context context, CameraManager cameraManager) {
+        this.context = context;
+        this.cameraManager = cameraManager;
+        this.systemCameraManager = (android.hardware.camera2.CameraManager)
+                context.getSystemService(Context.CAMERA_SERVICE);
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * @return 当前系统是否可以使用 camera2
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        cameraManager.execute(task);
+    }
+
+    @Override
+    public void openAsync(final SurfaceHolder holder, final CameraFacing cameraFacing, final OnCameraListener listener) {
+        synchronized (this) {
+            this.cameraFacing = cameraFacing;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                try {
+                    openCamera(holder, cameraFacing, listener);
+                } catch (CameraAccessException | RuntimeException e) {
+                    Log.e(TAG, "open camera " + cameraFacing + " failed", e);
+                    closeCamera();
+                    notifyError(listener, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void closeAsync(final OnCameraListener listener) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                if (listener != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onCameraClosed();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    @Override
+    public CameraFacing flipAsync(SurfaceHolder holder, OnCameraListener listener) {
+        CameraFacing target;
+        synchronized (this) {
+            target = cameraFacing == CameraFacing.FRONT ? CameraFacing.BACK : CameraFacing.FRONT;
+        }
+        openAsync(holder, target, listener);
+        return target;
+    }
+
+    /**
+     * 选择尺寸并打开相机，会话在相机打开之后创建，只在相机线程调用
+     */
+    private void openCamera(final SurfaceHolder holder, CameraFacing cameraFacing, final OnCameraListener listener)
+            throws CameraAccessException {
+        String[] cameraIds = systemCameraManager.getCameraIdList();
+        if (cameraIds.length == 0) {
+            throw new CameraAccessException(CameraAccessException.CAMERA_ERROR, "No cameras");
+        }
+        int index = findCameraIndex(cameraIds, cameraFacing);
+        CameraCharacteristics characteristics = systemCameraManager.getCameraCharacteristics(cameraIds[index]);
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            throw new CameraAccessException(CameraAccessException.CAMERA_ERROR, "No stream configuration");
+        }
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        final RecorderCamera theCamera = new RecorderCamera(index, null,
+                facing != null && facing == CameraMetadata.LENS_FACING_FRONT ? CameraFacing.FRONT : CameraFacing.BACK,
+                orientation == null ? 0 : orientation);
+        flashAvailable = Boolean.TRUE.equals(characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE));
+        fpsRanges = toList(characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+
+        Point requested;
+        int fps;
+        SizeSelector.Cost cost;
+        synchronized (this) {
+            requested = requestedVideoSize != null ? requestedVideoSize : new Point(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+            fps = constantFrameRate;
+            cost = requestedSizeCost != null ? requestedSizeCost : cameraManager.getDefaultSizeCost();
+        }
+        SizeSelector selector = new SizeSelector(toArray(map.getOutputSizes(SurfaceHolder.class)),
+                toArray(map.getOutputSizes(MediaRecorder.class)), cost);
+        int[] video = selector.selectVideoSize(requested.x, requested.y);
+        int[] preview = selector.selectPreviewSize(requested.x, requested.y, video);
+        if (video == null || preview == null) {
+            throw new CameraAccessException(CameraAccessException.CAMERA_ERROR, "No output sizes");
+        }
+        videoSize = new Point(video[0], video[1]);
+        final Point thePreviewSize = new Point(preview[0], preview[1]);
+        previewSize = thePreviewSize;
+        previewFpsRange = fps > 0 ? CameraUtils.findConstantFpsRange(fpsRanges, fps) : null;
+        Log.i(TAG, theCamera + " preview " + thePreviewSize + ", video " + videoSize
+                + ", fps range " + Arrays.toString(previewFpsRange));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            recorderSurface = createPersistentSurface(videoSize,
+                    RecorderFactory.findCloseFrameRate(fpsRanges, fps > 0 ? fps : DEFAULT_FRAME_RATE));
+            persistentSurface = recorderSurface != null;
+        }
+
+        final int serial = ++sessionSerial;
+        // SurfaceView 的 Surface 尺寸必须是相机支持的预览尺寸，只能在主线程设置，新尺寸生效之后才创建会话
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                new PreviewSurfaceWaiter(holder, thePreviewSize, serial).start();
+            }
+        });
+        final long openBegin = SystemClock.elapsedRealtimeNanos();
+        systemCameraManager.openCamera(cameraIds[index], new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice camera) {
+                if (serial != sessionSerial) {
+                    camera.close();
+                    return;
+                }
+                cameraManager.getMetrics().record(RecorderMetrics.Stage.CAMERA_OPEN,
+                        SystemClock.elapsedRealtimeNanos() - openBegin);
+                cameraDevice = camera;
+                openCamera = theCamera;
+                if (previewSurface != null) {
+                    createSession(listener);
+                } else {
+                    pendingOpenListener = listener;
+                    sessionPending = true;
+                }
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice camera) {
+                Log.w(TAG, "camera disconnected");
+                camera.close();
+                if (cameraDevice == camera) {
+                    closeCamera();
+                }
+            }
+
+            @Override
+            public void onError(CameraDevice camera, int error) {
+                Log.e(TAG, "camera error " + error);
+                camera.close();
+                if (cameraDevice == camera || serial == sessionSerial) {
+                    closeCamera();
+                    notifyError(listener, new CameraAccessException(CameraAccessException.CAMERA_ERROR,
+                            "Camera device error " + error));
+                }
+            }
+        }, cameraManager.getCameraHandler());
+    }
+
+    private int findCameraIndex(String[] cameraIds, CameraFacing cameraFacing) throws CameraAccessException {
+        int wanted = cameraFacing == CameraFacing.FRONT
+                ? CameraMetadata.LENS_FACING_FRONT : CameraMetadata.LENS_FACING_BACK;
+        for (int i = 0; i < cameraIds.length; i++) {
+            Integer facing = systemCameraManager.getCameraCharacteristics(cameraIds[i])
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == wanted) {
+                return i;
+            }
+        }
+        Log.i(TAG, "No camera facing " + cameraFacing + "; using camera #0");
+        return 0;
+    }
+
+    /**
+     * 预览 Surface 已经变为选定的尺寸，相机已经打开时创建会话，只在相机线程调用
+     */
+    private void onPreviewSurfaceReady(int serial, Surface surface) {
+        if (serial != sessionSerial) {
+            return;
+        }
+        previewSurface = surface;
+        if (sessionPending) {
+            OnCameraListener listener = pendingOpenListener;
+            pendingOpenListener = null;
+            sessionPending = false;
+            createSession(listener);
+        }
+    }
+
+    /**
+     * 持久 Surface 在第一次被录制器 prepare 之后才有确定的尺寸，这里先用同样的参数 prepare 一次，
+     * 之后它可以直接加入会话
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private Surface createPersistentSurface(Point size, int frameRate) {
+        Surface surface = MediaCodec.createPersistentInputSurface();
+        if (surface == null) {
+            Log.w(TAG, "no persistent surface, recording will rebuild the session");
+            return null;
+        }
+        File probe = new File(context.getCacheDir(), SURFACE_PROBE_FILE);
+        MediaRecorder recorder = new MediaRecorder();
+        try {
+            RecorderFactory.configureSurfaceSource(recorder, size, frameRate, CodecFactory.AUDIO_BIT_RATE);
+            recorder.setInputSurface(surface);
+            recorder.setOutputFile(probe.getAbsolutePath());
+            recorder.prepare();
+            return surface;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "persistent surface not usable, recording will rebuild the session", e);
+            surface.release();
+            return null;
+        } finally {
+            recorder.release();
+            if (probe.exists() && !probe.delete()) {
+                Log.w(TAG, "delete " + probe.getName() + " failed");
+            }
+        }
+    }
+
+    /**
+     * 创建包含预览与录制 Surface 的会话，只在相机线程调用
+     *
+     * @param listener 第一次创建会话时的打开回调，重建会话时为空
+     */
+    private void createSession(@Nullable final OnCameraListener listener) {
+        List<Surface> outputs = new ArrayList<>(2);
+        outputs.add(previewSurface);
+        if (recorderSurface != null) {
+            outputs.add(recorderSurface);
+        }
+        final int serial = sessionSerial;
+        final long sessionBegin = SystemClock.elapsedRealtimeNanos();
+        try {
+            cameraDevice.createCaptureSession(outputs, new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession session) {
+                    if (serial != sessionSerial) {
+                        session.close();
+                        return;
+                    }
+                    RecorderMetrics metrics = cameraManager.getMetrics();
+                    metrics.record(RecorderMetrics.Stage.START_PREVIEW, SystemClock.elapsedRealtimeNanos() - sessionBegin);
+                    metrics.onPreviewStarted();
+                    captureSession = session;
+                    updateRepeatingRequest();
+                    if (listener != null) {
+                        notifyOpened(listener, openCamera);
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession session) {
+                    if (serial != sessionSerial) {
+                        return;
+                    }
+                    Log.e(TAG, "configure session failed");
+                    closeCamera();
+                    notifyError(listener, new CameraAccessException(CameraAccessException.CAMERA_ERROR,
+                            "Configure session failed"));
+                }
+            }, cameraManager.getCameraHandler());
+        } catch (CameraAccessException | RuntimeException e) {
+            Log.e(TAG, "create session failed", e);
+            closeCamera();
+            notifyError(listener, e);
+        }
+    }
+
+    /**
+     * 按当前的录制状态与闪光灯设置重新提交重复请求，只在相机线程调用
+     */
+    private void updateRepeatingRequest() {
+        if (captureSession == null) {
+            return;
+        }
+        boolean toRecorder = recording && recorderSurface != null;
+        try {
+            CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(
+                    toRecorder ? CameraDevice.TEMPLATE_RECORD : CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(previewSurface);
+            if (toRecorder) {
+                builder.addTarget(recorderSurface);
+            }
+            builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+            int[] range = previewFpsRange;
+            if (range != null) {
+                builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<>(range[0] / 1000, range[1] / 1000));
+            }
+            if (flashAvailable) {
+                builder.set(CaptureRequest.FLASH_MODE,
+                        torch ? CameraMetadata.FLASH_MODE_TORCH : CameraMetadata.FLASH_MODE_OFF);
+            }
+            RecorderMetrics metrics = cameraManager.getMetrics();
+            long begin = metrics.begin(RecorderMetrics.Stage.SET_PARAMETERS);
+            try {
+                // 只在等待第一帧时接收拍摄结果
+                captureSession.setRepeatingRequest(builder.build(),
+                        metrics.isFirstFramePending() ? firstFrameCallback : null, cameraManager.getCameraHandler());
+            } finally {
+                metrics.end(RecorderMetrics.Stage.SET_PARAMETERS, begin);
+            }
+        } catch (CameraAccessException | RuntimeException e) {
+            Log.e(TAG, "set repeating request failed", e);
+        }
+    }
+
+    /**
+     * 相机开始向录制器输出，只在相机线程调用
+     *
+     * @param surface 录制器的输入 Surface，使用持久 Surface 时就是 {@link #getPersistentSurface()}
+     * @return true 相机已经打开
+     */
+    boolean startRecording(Surface surface) {
+        if (cameraDevice == null) {
+            return false;
+        }
+        recording = true;
+        if (persistentSurface) {
+            updateRepeatingRequest();
+        } else {
+            recorderSurface = surface;
+            rebuildSession();
+        }
+        return true;
+    }
+
+    /**
+     * 相机停止向录制器输出，只在相机线程调用
+     */
+    void stopRecording() {
+        if (!recording) {
+            return;
+        }
+        recording = false;
+        if (persistentSurface) {
+            updateRepeatingRequest();
+        } else {
+            recorderSurface = null;
+            if (cameraDevice != null) {
+                rebuildSession();
+            }
+        }
+    }
+
+    private void rebuildSession() {
+        sessionSerial++;
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        createSession(null);
+    }
+
+    /**
+     * 关闭会话与相机，只在相机线程调用
+     */
+    private void closeCamera() {
+        sessionSerial++;
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        if (persistentSurface && recorderSurface != null) {
+            recorderSurface.release();
+        }
+        recorderSurface = null;
+        persistentSurface = false;
+        recording = false;
+        torch = false;
+        previewSurface = null;
+        pendingOpenListener = null;
+        sessionPending = false;
+        openCamera = null;
+    }
+
+    /**
+     * @return 打开相机时创建的持久 Surface，录制器需要通过 {@link MediaRecorder#setInputSurface} 使用它，
+     * Android 6.0 以下或者创建失败时为 null
+     */
+    @Nullable
+    Surface getPersistentSurface() {
+        return persistentSurface ? recorderSurface : null;
+    }
+
+    /**
+     * @return 为目标分辨率选定的录制尺寸，相机还没有打开时为 null
+     */
+    Point getVideoSize() {
+        return videoSize;
+    }
+
+    /**
+     * @param frameRate 目标帧数
+     * @return 当前相机支持的最接近的帧数
+     */
+    int findCloseFrameRate(int frameRate) {
+        return RecorderFactory.findCloseFrameRate(fpsRanges, frameRate);
+    }
+
+    private void notifyOpened(final OnCameraListener listener, final RecorderCamera camera) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraOpened(camera);
+            }
+        });
+    }
+
+    private void notifyError(final OnCameraListener listener, final Exception e) {
+        if (listener == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraError(e);
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen() {
+        return openCamera != null;
+    }
+
+    @Override
+    public RecorderCamera getOpenCamera() {
+        return openCamera;
+    }
+
+    @Override
+    public Point getCameraResolution() {
+        return previewSize;
+    }
+
+    @Override
+    public int[] getPreviewFpsRange() {
+        int[] range = previewFpsRange;
+        return range == null ? null : range.clone();
+    }
+
+    @Override
+    public synchronized void setRequestedVideoSize(int width, int height) {
+        requestedVideoSize = new Point(width, height);
+    }
+
+    @Override
+    public synchronized void setConstantFrameRate(int fps) {
+        constantFrameRate = fps;
+    }
+
+    @Override
+    public synchronized void setSizeCost(SizeSelector.Cost cost) {
+        requestedSizeCost = cost;
+    }
+
+    @Override
+    public void setTorch(boolean on) {
+        torch = on;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                updateRepeatingRequest();
+            }
+        });
+    }
+
+    @Override
+    public boolean getTorchState() {
+        return torch && openCamera != null;
+    }
+
+    /**
+     * 在主线程设置 SurfaceView 的固定尺寸，等到 Surface 变为这个尺寸后通知相机线程。
+     * 尺寸不变时 SurfaceView 不会回调 surfaceChanged，这时直接按当前的 Surface 通知
+     */
+    private final class PreviewSurfaceWaiter implements SurfaceHolder.Callback {
+        private final SurfaceHolder holder;
+        private final Point size;
+        private final int serial;
+        private boolean done;
+
+        PreviewSurfaceWaiter(SurfaceHolder holder, Point size, int serial) {
+            this.holder = holder;
+            this.size = size;
+            this.serial = serial;
+        }
+
+        void start() {
+            holder.addCallback(this);
+            holder.setFixedSize(size.x, size.y);
+            Rect frame = holder.getSurfaceFrame();
+            if (frame != null && frame.width() == size.x && frame.height() == size.y
+                    && holder.getSurface().isValid()) {
+                ready();
+            }
+        }
+
+        private void ready() {
+            if (done) {
+                return;
+            }
+            done = true;
+            holder.removeCallback(this);
+            final Surface surface = holder.getSurface();
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    onPreviewSurfaceReady(serial, surface);
+                }
+            });
+        }
+
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            if (width == size.x && height == size.y) {
+                ready();
+            }
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+            done = true;
+            holder.removeCallback(this);
+        }
+    }
+
+    private static int[][] toArray(Size[] sizes) {
+        if (sizes == null) {
+            return null;
+        }
+        int[][] result = new int[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            result[i] = new int[]{sizes[i].getWidth(), sizes[i].getHeight()};
+        }
+        return result;
+    }
+
+    /**
+     * 转换为与 {@link android.hardware.Camera.Parameters#getSupportedPreviewFpsRange()} 相同的单位，帧数*1000
+     */
+    private static List<int[]> toList(Range<Integer>[] ranges) {
+        List<int[]> result = new ArrayList<>();
+        if (ranges != null) {
+            for (Range<Integer> range : ranges) {
+                result.add(new int[]{range.getLower() * 1000, range.getUpper() * 1000});
+            }
+        }
+        return result;
+    }
+}
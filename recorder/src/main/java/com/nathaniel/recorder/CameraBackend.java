@@ -0,0 +1,102 @@
+package com.nathaniel.recorder;
+
+import android.graphics.Point;
+import android.view.SurfaceHolder;
+
+import com.nathaniel.recorder.policy.SizeSelector;
+
+/**
+ * 相机后端：打开、关闭、切换相机与闪光灯等与具体相机 API 无关的操作。{@link CameraManager} 使用
+ * {@link android.hardware.Camera}，{@link Camera2Backend} 使用 camera2，两者共用 {@link CameraManager}
+ * 的相机线程，所有相机调用都在这个线程中串行执行
+ *
+ * @author nathaniel
+ */
+public interface CameraBackend {
+
+    /**
+     * 异步打开相机并开始预览，如果已经打开了相机会先关闭
+     *
+     * @param holder       预览 Surface
+     * @param cameraFacing 相机方向
+     * @param listener     结果回调，在主线程回调，可以为空
+     */
+    void openAsync(SurfaceHolder holder, CameraFacing cameraFacing, OnCameraListener listener);
+
+    /**
+     * 异步关闭相机
+     *
+     * @param listener 结果回调，在主线程回调，可以为空
+     */
+    void closeAsync(OnCameraListener listener);
+
+    /**
+     * 异步切换前后置相机
+     *
+     * @param holder   预览 Surface
+     * @param listener 结果回调，在主线程回调，可以为空
+     * @return 切换后的相机方向
+     */
+    CameraFacing flipAsync(SurfaceHolder holder, OnCameraListener listener);
+
+    /**
+     * 在相机线程中执行任务
+     *
+     * @param task 任务
+     */
+    void execute(Runnable task);
+
+    /**
+     * @return 相机是否已经打开
+     */
+    boolean isOpen();
+
+    /**
+     * @return 当前相机，未打开时为 null
+     */
+    RecorderCamera getOpenCamera();
+
+    /**
+     * @return 当前预览分辨率，相机还没有打开时为 null
+     */
+    Point getCameraResolution();
+
+    /**
+     * @return 相机实际使用的帧率范围 {min, max}，单位为 帧数*1000，相机还没有打开时为 null
+     */
+    int[] getPreviewFpsRange();
+
+    /**
+     * 设置录制的目标分辨率，下一次打开相机时生效
+     *
+     * @param width  目标宽度
+     * @param height 目标高度
+     */
+    void setRequestedVideoSize(int width, int height);
+
+    /**
+     * 锁定帧率，下一次打开相机时生效
+     *
+     * @param fps 目标帧数，0 表示使用相机默认的帧率范围
+     */
+    void setConstantFrameRate(int fps);
+
+    /**
+     * 设置选择预览与视频尺寸的代价函数，下一次打开相机时生效
+     *
+     * @param cost 代价函数，null 表示使用默认代价与编码器的尺寸上限
+     */
+    void setSizeCost(SizeSelector.Cost cost);
+
+    /**
+     * 设置是否打开闪光灯
+     *
+     * @param on true 打开
+     */
+    void setTorch(boolean on);
+
+    /**
+     * @return true 闪光灯打开中
+     */
+    boolean getTorchState();
+}
@@ -0,0 +1,486 @@
+package com.nathaniel.recorder;
+
+import com.nathaniel.recorder.policy.SizeSelector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of what one camera supports: facing, orientation, preview/video sizes, fps ranges, focus and
+ * flash modes, zoom ratios, plus the sizes that were chosen for it last time.
+ * <p>
+ * It is parsed once from {@code Camera.Parameters#flatten()} and can be flattened back into the same
+ * {@code key=value;key=value} form, so it can be persisted and reloaded without touching the camera HAL.
+ * This class has no Android dependency on purpose.
+ *
+ * @author nathaniel
+ */
+public final class CameraCapabilities {
+
+    private static final String KEY_ID = "camera-id";
+    private static final String KEY_FACING = "camera-facing";
+    private static final String KEY_ORIENTATION = "camera-orientation";
+    private static final String KEY_PREVIEW_SIZE = "preview-size";
+    private static final String KEY_PREVIEW_SIZES = "preview-size-values";
+    private static final String KEY_VIDEO_SIZES = "video-size-values";
+    private static final String KEY_FPS_RANGES = "preview-fps-range-values";
+    private static final String KEY_FOCUS_MODES = "focus-mode-values";
+    private static final String KEY_FLASH_MODES = "flash-mode-values";
+    private static final String KEY_ZOOM_SUPPORTED = "zoom-supported";
+    private static final String KEY_ZOOM_RATIOS = "zoom-ratios";
+    private static final String KEY_CHOSEN_PREVIEW = "chosen-preview-size";
+    private static final String KEY_CHOSEN_PREVIEW_SCREEN = "chosen-preview-screen";
+    private static final String KEY_CHOSEN_PREVIEW_VIDEO = "chosen-preview-video";
+    private static final String KEY_CHOSEN_VIDEO = "chosen-video-size";
+    private static final String KEY_CHOSEN_VIDEO_TARGET = "chosen-video-target";
+    private static final String KEY_SIZE_RULE = "size-rule";
+    private static final String KEY_SIZE_COST = "size-cost";
+    /**
+     * 选择尺寸的规则版本，规则变化后之前记录的尺寸不再使用
+     */
+    private static final String SIZE_RULE = "cost-1";
+    private static final int[][] NO_SIZES = new int[0][];
+    private static final int[] NO_RATIOS = new int[0];
+
+    private final int cameraId;
+    private final CameraFacing facing;
+    private final int orientation;
+    private final boolean hasParameters;
+    private final int[] defaultPreviewSize;
+    private final int[][] previewSizes;
+    private final int[][] videoSizes;
+    private final int[][] fpsRanges;
+    private final List<String> focusModes;
+    private final List<String> flashModes;
+    private final int[] zoomRatios;
+    private int[] chosenPreviewSize;
+    private int[] chosenPreviewScreen;
+    private int[] chosenPreviewVideo;
+    private int[] chosenVideoSize;
+    private int[] chosenVideoTarget;
+    /**
+     * 选定尺寸时使用的代价函数 {@link SizeSelector.Cost#flatten()}，与尺寸一起持久化
+     */
+    private String chosenSizeCost;
+    private SizeSelector.Cost sizeCost;
+    private SizeSelector sizeSelector;
+
+    private CameraCapabilities(int cameraId, CameraFacing facing, int orientation, String flattened) {
+        this.cameraId = cameraId;
+        this.facing = facing;
+        this.orientation = orientation;
+        this.hasParameters = flattened != null && flattened.contains(KEY_PREVIEW_SIZES);
+        this.defaultPreviewSize = parseSize(get(flattened, KEY_PREVIEW_SIZE));
+        this.previewSizes = parseSizes(get(flattened, KEY_PREVIEW_SIZES));
+        int[][] sizes = parseSizes(get(flattened, KEY_VIDEO_SIZES));
+        // 没有单独的视频尺寸时，视频与预览共用尺寸
+        this.videoSizes = sizes.length == 0 ? previewSizes : sizes;
+        this.fpsRanges = parseRanges(get(flattened, KEY_FPS_RANGES));
+        this.focusModes = parseStrings(get(flattened, KEY_FOCUS_MODES));
+        this.flashModes = parseStrings(get(flattened, KEY_FLASH_MODES));
+        this.zoomRatios = "true".equals(get(flattened, KEY_ZOOM_SUPPORTED))
+                ? parseInts(get(flattened, KEY_ZOOM_RATIOS))
+                : NO_RATIOS;
+        if (SIZE_RULE.equals(get(flattened, KEY_SIZE_RULE))) {
+            this.chosenPreviewSize = parseSize(get(flattened, KEY_CHOSEN_PREVIEW));
+            this.chosenPreviewScreen = parseSize(get(flattened, KEY_CHOSEN_PREVIEW_SCREEN));
+            this.chosenPreviewVideo = parseSize(get(flattened, KEY_CHOSEN_PREVIEW_VIDEO));
+            this.chosenVideoSize = parseSize(get(flattened, KEY_CHOSEN_VIDEO));
+            this.chosenVideoTarget = parseSize(get(flattened, KEY_CHOSEN_VIDEO_TARGET));
+            this.chosenSizeCost = get(flattened, KEY_SIZE_COST);
+        }
+    }
+
+    /**
+     * 由相机参数生成能力快照
+     *
+     * @param cameraId            相机 id
+     * @param facing              相机方向
+     * @param orientation         相机安装角度
+     * @param flattenedParameters {@code Camera.Parameters#flatten()} 的结果，为空时只记录方向信息
+     * @return 能力快照
+     */
+    public static CameraCapabilities parse(int cameraId, CameraFacing facing, int orientation, String flattenedParameters) {
+        return new CameraCapabilities(cameraId, facing, orientation, flattenedParameters);
+    }
+
+    /**
+     * 从 {@link #flatten()} 的结果中恢复
+     *
+     * @param flattened 持久化的字符串
+     * @return 能力快照，格式错误时返回 null
+     */
+    public static CameraCapabilities unflatten(String flattened) {
+        String id = get(flattened, KEY_ID);
+        String facing = get(flattened, KEY_FACING);
+        String orientation = get(flattened, KEY_ORIENTATION);
+        if (id == null || facing == null || orientation == null) {
+            return null;
+        }
+        try {
+            return new CameraCapabilities(Integer.parseInt(id), CameraFacing.valueOf(facing),
+                    Integer.parseInt(orientation), flattened);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 序列化为 {@code key=value;key=value} 形式
+     *
+     * @return 序列化结果
+     */
+    public synchronized String flatten() {
+        StringBuilder builder = new StringBuilder(256);
+        append(builder, KEY_ID, String.valueOf(cameraId));
+        append(builder, KEY_FACING, facing.name());
+        append(builder, KEY_ORIENTATION, String.valueOf(orientation));
+        if (hasParameters) {
+            append(builder, KEY_PREVIEW_SIZE, formatSize(defaultPreviewSize));
+            append(builder, KEY_PREVIEW_SIZES, formatSizes(previewSizes));
+            if (videoSizes != previewSizes) {
+                append(builder, KEY_VIDEO_SIZES, formatSizes(videoSizes));
+            }
+            append(builder, KEY_FPS_RANGES, formatRanges(fpsRanges));
+            append(builder, KEY_FOCUS_MODES, formatStrings(focusModes));
+            append(builder, KEY_FLASH_MODES, formatStrings(flashModes));
+            append(builder, KEY_ZOOM_SUPPORTED, String.valueOf(zoomRatios.length > 0));
+            append(builder, KEY_ZOOM_RATIOS, formatInts(zoomRatios));
+        }
+        append(builder, KEY_SIZE_RULE, SIZE_RULE);
+        append(builder, KEY_CHOSEN_PREVIEW, formatSize(chosenPreviewSize));
+        append(builder, KEY_CHOSEN_PREVIEW_SCREEN, formatSize(chosenPreviewScreen));
+        append(builder, KEY_CHOSEN_PREVIEW_VIDEO, formatSize(chosenPreviewVideo));
+        append(builder, KEY_CHOSEN_VIDEO, formatSize(chosenVideoSize));
+        append(builder, KEY_CHOSEN_VIDEO_TARGET, formatSize(chosenVideoTarget));
+        append(builder, KEY_SIZE_COST, chosenSizeCost);
+        return builder.toString();
+    }
+
+    public int getCameraId() {
+        return cameraId;
+    }
+
+    public CameraFacing getFacing() {
+        return facing;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * 是否已经包含相机参数，只有打开过一次的相机才有参数
+     *
+     * @return true 包含参数
+     */
+    public boolean hasParameters() {
+        return hasParameters;
+    }
+
+    /**
+     * @return 默认预览尺寸 {width, height}，可能为空
+     */
+    public int[] getDefaultPreviewSize() {
+        return defaultPreviewSize;
+    }
+
+    /**
+     * @return 支持的预览尺寸，每一项为 {width, height}
+     */
+    public int[][] getPreviewSizes() {
+        return previewSizes;
+    }
+
+    /**
+     * @return 支持的视频尺寸，每一项为 {width, height}
+     */
+    public int[][] getVideoSizes() {
+        return videoSizes;
+    }
+
+    /**
+     * @return 支持的预览帧率范围，每一项为 {min, max}，单位为 帧数*1000
+     */
+    public int[][] getFpsRanges() {
+        return fpsRanges;
+    }
+
+    public List<String> getFocusModes() {
+        return focusModes;
+    }
+
+    public List<String> getFlashModes() {
+        return flashModes;
+    }
+
+    /**
+     * @return 变焦倍数*100，不支持变焦时为空数组
+     */
+    public int[] getZoomRatios() {
+        return zoomRatios;
+    }
+
+    /**
+     * 获取尺寸选择器，索引在第一次使用时建立，之后同一个相机的查询不再排序
+     *
+     * @return 使用当前代价函数的尺寸选择器
+     */
+    public synchronized SizeSelector getSizeSelector() {
+        if (sizeSelector == null) {
+            sizeSelector = new SizeSelector(previewSizes, videoSizes, currentCost());
+        }
+        return sizeSelector;
+    }
+
+    /**
+     * 设置选择尺寸的代价函数。已经选定的尺寸与选定时的代价函数一起持久化，只有代价函数的取值变化时才清除，
+     * 从缓存恢复的能力在相同的代价下继续使用之前选定的尺寸
+     *
+     * @param cost 代价函数，null 表示使用 {@link SizeSelector.Cost#DEFAULT}
+     */
+    public synchronized void setSizeCost(SizeSelector.Cost cost) {
+        SizeSelector.Cost theCost = cost != null ? cost : SizeSelector.Cost.DEFAULT;
+        if (theCost.equals(sizeCost)) {
+            return;
+        }
+        sizeCost = theCost;
+        sizeSelector = null;
+        String flattened = theCost.flatten();
+        if (flattened.equals(chosenSizeCost)) {
+            return;
+        }
+        chosenSizeCost = flattened;
+        chosenPreviewSize = null;
+        chosenPreviewScreen = null;
+        chosenPreviewVideo = null;
+        chosenVideoSize = null;
+        chosenVideoTarget = null;
+    }
+
+    private SizeSelector.Cost currentCost() {
+        return sizeCost != null ? sizeCost : SizeSelector.Cost.DEFAULT;
+    }
+
+    /**
+     * 获取上次为该屏幕分辨率与视频尺寸选定的预览尺寸
+     *
+     * @param videoSize 视频尺寸 {width, height}，可以为空
+     * @return {width, height}，屏幕分辨率或视频尺寸不同、没有记录时返回 null
+     */
+    public synchronized int[] getChosenPreviewSize(int screenWidth, int screenHeight, int[] videoSize) {
+        boolean sameVideo = videoSize == null ? chosenPreviewVideo == null
+                : matches(chosenPreviewVideo, videoSize[0], videoSize[1]);
+        return sameVideo && matches(chosenPreviewScreen, screenWidth, screenHeight) ? chosenPreviewSize : null;
+    }
+
+    public synchronized void setChosenPreviewSize(int screenWidth, int screenHeight, int[] videoSize, int width, int height) {
+        chosenPreviewScreen = new int[]{screenWidth, screenHeight};
+        chosenPreviewVideo = videoSize == null ? null : new int[]{videoSize[0], videoSize[1]};
+        chosenPreviewSize = new int[]{width, height};
+        chosenSizeCost = currentCost().flatten();
+    }
+
+    /**
+     * 获取上次为该目标分辨率选定的视频尺寸
+     *
+     * @return {width, height}，目标分辨率不同或没有记录时返回 null
+     */
+    public synchronized int[] getChosenVideoSize(int targetWidth, int targetHeight) {
+        return matches(chosenVideoTarget, targetWidth, targetHeight) ? chosenVideoSize : null;
+    }
+
+    public synchronized void setChosenVideoSize(int targetWidth, int targetHeight, int width, int height) {
+        chosenVideoTarget = new int[]{targetWidth, targetHeight};
+        chosenVideoSize = new int[]{width, height};
+        chosenSizeCost = currentCost().flatten();
+    }
+
+    @Override
+    public String toString() {
+        return "CameraCapabilities #" + cameraId + " : " + facing + ',' + orientation
+                + ", preview " + formatSizes(previewSizes) + ", fps " + formatRanges(fpsRanges);
+    }
+
+    private static boolean matches(int[] size, int width, int height) {
+        return size != null && size[0] == width && size[1] == height;
+    }
+
+    /**
+     * 在 {@code key=value;key=value} 字符串中查找 key 对应的值，不使用正则以免在打开相机时产生额外开销
+     */
+    static String get(String flattened, String key) {
+        if (flattened == null) {
+            return null;
+        }
+        int from = 0;
+        int length = flattened.length();
+        while (from < length) {
+            int end = flattened.indexOf(';', from);
+            if (end < 0) {
+                end = length;
+            }
+            int keyEnd = from + key.length();
+            if (keyEnd < end && flattened.charAt(keyEnd) == '=' && flattened.startsWith(key, from)) {
+                return flattened.substring(keyEnd + 1, end);
+            }
+            from = end + 1;
+        }
+        return null;
+    }
+
+    static int[] parseSize(String value) {
+        if (value == null) {
+            return null;
+        }
+        int x = value.indexOf('x');
+        if (x <= 0) {
+            return null;
+        }
+        try {
+            return new int[]{Integer.parseInt(value.substring(0, x).trim()), Integer.parseInt(value.substring(x + 1).trim())};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static int[][] parseSizes(String value) {
+        if (value == null || value.isEmpty()) {
+            return NO_SIZES;
+        }
+        List<int[]> sizes = new ArrayList<>();
+        int from = 0;
+        while (from < value.length()) {
+            int end = value.indexOf(',', from);
+            if (end < 0) {
+                end = value.length();
+            }
+            int[] size = parseSize(value.substring(from, end));
+            if (size != null) {
+                sizes.add(size);
+            }
+            from = end + 1;
+        }
+        return sizes.toArray(new int[sizes.size()][]);
+    }
+
+    static int[][] parseRanges(String value) {
+        if (value == null || value.isEmpty()) {
+            return NO_SIZES;
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int from = value.indexOf('(');
+        while (from >= 0) {
+            int comma = value.indexOf(',', from);
+            int end = value.indexOf(')', from);
+            if (comma < 0 || end < 0 || comma > end) {
+                break;
+            }
+            try {
+                ranges.add(new int[]{Integer.parseInt(value.substring(from + 1, comma).trim()),
+                        Integer.parseInt(value.substring(comma + 1, end).trim())});
+            } catch (NumberFormatException e) {
+                // skip malformed range
+            }
+            from = value.indexOf('(', end);
+        }
+        return ranges.toArray(new int[ranges.size()][]);
+    }
+
+    static int[] parseInts(String value) {
+        if (value == null || value.isEmpty()) {
+            return NO_RATIOS;
+        }
+        List<String> items = parseStrings(value);
+        int[] result = new int[items.size()];
+        int count = 0;
+        for (String item : items) {
+            try {
+                result[count] = Integer.parseInt(item.trim());
+                count++;
+            } catch (NumberFormatException e) {
+                // skip malformed value
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    static List<String> parseStrings(String value) {
+        if (value == null || value.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> items = new ArrayList<>();
+        int from = 0;
+        while (from <= value.length()) {
+            int end = value.indexOf(',', from);
+            if (end < 0) {
+                end = value.length();
+            }
+            if (end > from) {
+                items.add(value.substring(from, end));
+            }
+            from = end + 1;
+        }
+        return Collections.unmodifiableList(items);
+    }
+
+    private static void append(StringBuilder builder, String key, String value) {
+        if (value == null) {
+            return;
+        }
+        if (builder.length() > 0) {
+            builder.append(';');
+        }
+        builder.append(key).append('=').append(value);
+    }
+
+    private static String formatSize(int[] size) {
+        return size == null ? null : size[0] + "x" + size[1];
+    }
+
+    private static String formatSizes(int[][] sizes) {
+        StringBuilder builder = new StringBuilder();
+        for (int[] size : sizes) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(size[0]).append('x').append(size[1]);
+        }
+        return builder.toString();
+    }
+
+    private static String formatRanges(int[][] ranges) {
+        StringBuilder builder = new StringBuilder();
+        for (int[] range : ranges) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append('(').append(range[0]).append(',').append(range[1]).append(')');
+        }
+        return builder.toString();
+    }
+
+    private static String formatStrings(List<String> values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    private static String formatInts(int[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int value : values) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -63,4 +63,38 @@ public final class CameraInterface {
         return new RecorderCamera(cameraId, camera, CameraFacing.values()[cameraInfo.facing], cameraInfo.orientation);
     }
 
+    /**
+     * Same as {@link #open(int, CameraFacing)}, but looks camera ids, facing and orientation up in the
+     * capabilities cache instead of querying {@link Camera#getCameraInfo} for every camera.
+     *
+     * @param store        capabilities cache
+     * @param cameraId     camera ID of the camera to use, a negative value means "no preference"
+     * @param cameraFacing facing of the camera to use when there is no preference
+     * @return handle to {@link RecorderCamera} that was opened
+     */
+    static RecorderCamera open(CapabilitiesStore store, int cameraId, CameraFacing cameraFacing) {
+        int numCameras = store.getNumberOfCameras();
+        if (numCameras == 0) {
+            Log.w(TAG, "No cameras!");
+            return null;
+        }
+        if (cameraId >= numCameras) {
+            Log.w(TAG, "Requested camera does not exist: " + cameraId);
+            return null;
+        }
+        if (cameraId <= NO_REQUESTED_CAMERA) {
+            cameraId = store.findCameraId(cameraFacing);
+            if (cameraId == NO_REQUESTED_CAMERA) {
+                Log.i(TAG, "No camera facing " + cameraFacing + "; returning camera #0");
+                cameraId = 0;
+            }
+        }
+
+        Log.i(TAG, "Opening camera #" + cameraId);
+        CameraCapabilities capabilities = store.get(cameraId);
+        Camera camera = Camera.open(cameraId);
+        camera.setDisplayOrientation(0);
+        return new RecorderCamera(cameraId, camera, capabilities.getFacing(), capabilities.getOrientation());
+    }
+
 }
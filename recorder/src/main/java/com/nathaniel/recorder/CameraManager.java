@@ -4,37 +4,126 @@ import android.content.Context;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.hardware.Camera;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
+import com.nathaniel.recorder.policy.SizeSelector;
+
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * This object wraps the Camera service object and expects to be the only one talking to it. The
  * implementation encapsulates the steps needed to take preview-sized images, which are used for
  * both preview and decoding.
+ * <p>
+ * All {@link Camera} calls are serialized on a single camera thread owned by this manager. Use
+ * {@link #openAsync}, {@link #closeAsync}, {@link #flipAsync} and {@link #execute} from the UI thread
+ * so that it never blocks on the camera HAL.
  *
  * @author dswitkin@google.com (Daniel Switkin)
  */
-public final class CameraManager {
+public final class CameraManager implements CameraBackend {
 
     private static final String TAG = CameraManager.class.getSimpleName();
+    private static final String THREAD_NAME = "CameraThread";
     private final Context context;
     private final ConfigManager configManager;
-    private RecorderCamera recorderCamera;
+    private final CapabilitiesStore capabilitiesStore;
+    private final Handler mainHandler;
+    private final RecorderMetrics metrics = new RecorderMetrics();
+    private final PreviewDispatcher previewDispatcher = new PreviewDispatcher(metrics);
+    /**
+     * 没有安装预览回调时只为测量第一帧接收一次预览
+     */
+    private final Camera.PreviewCallback firstFrameCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            metrics.onPreviewFrame();
+        }
+    };
+    /**
+     * 在 {@link #threadLock} 中写入，读取不加锁，{@link #execute} 与 {@link #isOpen()} 在录制的每个操作中调用
+     */
+    private volatile HandlerThread cameraThread;
+    private volatile Handler cameraHandler;
+    /**
+     * 只保护相机线程的创建与结束。相机线程在打开相机、设置参数、开始预览时持有 this，
+     * 主线程调用的方法都不能等待 this，否则会被相机 HAL 阻塞
+     */
+    private final Object threadLock = new Object();
+    private volatile CameraFacing cameraFacing = CameraFacing.BACK;
+    private volatile RecorderCamera recorderCamera;
+    private volatile CameraCapabilities capabilities;
     private FocusedManager focusedManager;
     private Rect framingRect;
     private boolean initialized;
     private boolean previewing;
-    private int requestedCameraId = CameraInterface.NO_REQUESTED_CAMERA;
+    private volatile int requestedCameraId = CameraInterface.NO_REQUESTED_CAMERA;
     private int requestedFramingRectWidth;
     private int requestedFramingRectHeight;
+    /**
+     * 录制的目标分辨率，预览尺寸按照为它选定的视频尺寸选择，为空时按屏幕选择
+     */
+    private volatile Point requestedVideoSize;
+    /**
+     * 选择尺寸的代价函数，为空时使用默认代价与编码器的尺寸上限
+     */
+    private volatile SizeSelector.Cost requestedSizeCost;
+    private static SizeSelector.Cost defaultSizeCost;
+    /**
+     * 请求锁定的帧数，0 表示使用相机默认的帧率范围，打开相机时读取一次
+     */
+    private volatile int constantFrameRate;
+    /**
+     * 当前相机打开时使用的锁定帧数，只在相机线程中使用
+     */
+    private int openFrameRate;
+    /**
+     * 相机实际使用的帧率范围，打开相机后更新
+     */
+    private volatile int[] previewFpsRange;
+    /**
+     * 闪光灯状态，手动开关时立即更新，{@link #getTorchState()} 不需要读取相机参数
+     */
+    private volatile boolean torchState;
+    /**
+     * 相机参数中闪光灯的实际状态，只在相机线程中使用
+     */
+    private boolean torchApplied;
+    /**
+     * {@link FrontLightMode#AUTO} 下的自动闪光灯，每次开始预览时创建
+     */
+    private AutoTorch autoTorch;
+    private volatile boolean requestedTorch;
+    private final AtomicBoolean torchUpdatePending = new AtomicBoolean();
+    private final Runnable applyTorchTask = new Runnable() {
+        @Override
+        public void run() {
+            torchUpdatePending.set(false);
+            applyRequestedTorch();
+        }
+    };
+    private final Runnable updatePreviewDispatcherTask = new Runnable() {
+        @Override
+        public void run() {
+            previewDispatcher.update();
+        }
+    };
 
 
     public CameraManager(Context context) {
         this.context = context;
         this.configManager = new ConfigManager(context);
+        this.capabilitiesStore = CapabilitiesStore.get(context);
+        AudioCapabilities.init(context);
+        this.mainHandler = new Handler(Looper.getMainLooper());
     }
 
     private static int findDesiredDimensionInRange(int resolution, int hardMin, int hardMax) {
@@ -47,7 +136,193 @@ public final class CameraManager {
     }
 
     /**
-     * Opens the camera driver and initializes the hardware parameters.
+     * 获取相机线程的 Handler，线程在第一次使用或者 {@link #release()} 之后按需创建。
+     * {@link Camera2Backend} 的回调也在这个线程中执行
+     *
+     * @return 相机线程 Handler
+     */
+    Handler getCameraHandler() {
+        Handler handler = cameraHandler;
+        if (handler != null) {
+            return handler;
+        }
+        synchronized (threadLock) {
+            if (cameraHandler == null) {
+                HandlerThread thread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_DISPLAY);
+                thread.start();
+                cameraThread = thread;
+                cameraHandler = new Handler(thread.getLooper());
+            }
+            return cameraHandler;
+        }
+    }
+
+    /**
+     * 判断当前是否运行在相机线程
+     *
+     * @return true 当前线程为相机线程
+     */
+    public boolean isCameraThread() {
+        HandlerThread thread = cameraThread;
+        return thread != null && Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在相机线程中执行任务，所有涉及 {@link Camera} 的操作都应该通过此方法串行执行
+     *
+     * @param task 任务
+     */
+    @Override
+    public void execute(Runnable task) {
+        getCameraHandler().post(task);
+    }
+
+    /**
+     * 延迟在相机线程中执行任务
+     *
+     * @param task        任务
+     * @param delayMillis 延迟，单位毫秒
+     */
+    public void executeDelayed(Runnable task, long delayMillis) {
+        getCameraHandler().postDelayed(task, delayMillis);
+    }
+
+    /**
+     * 取消还没有执行的任务
+     *
+     * @param task 任务
+     */
+    public void cancel(Runnable task) {
+        getCameraHandler().removeCallbacks(task);
+    }
+
+    /**
+     * 异步打开相机并开始预览，如果已经打开了相机会先关闭
+     *
+     * @param holder       预览 Surface
+     * @param cameraFacing 相机方向
+     * @param listener     结果回调，在主线程回调，可以为空
+     */
+    @Override
+    public void openAsync(final SurfaceHolder holder, final CameraFacing cameraFacing, final OnCameraListener listener) {
+        this.cameraFacing = cameraFacing;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stopPreview();
+                    closeDriver();
+                    openDriver(holder, cameraFacing);
+                    startPreview();
+                    notifyOpened(listener, getOpenCamera());
+                } catch (Exception e) {
+                    Log.e(TAG, "open camera " + cameraFacing + " failed", e);
+                    closeDriver();
+                    notifyError(listener, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 异步关闭相机
+     *
+     * @param listener 结果回调，在主线程回调，可以为空
+     */
+    @Override
+    public void closeAsync(final OnCameraListener listener) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                stopPreview();
+                closeDriver();
+                if (listener != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onCameraClosed();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * 异步切换前后置相机
+     *
+     * @param holder   预览 Surface
+     * @param listener 结果回调，在主线程回调，可以为空
+     * @return 切换后的相机方向
+     */
+    @Override
+    public CameraFacing flipAsync(SurfaceHolder holder, OnCameraListener listener) {
+        CameraFacing target = cameraFacing == CameraFacing.FRONT ? CameraFacing.BACK : CameraFacing.FRONT;
+        openAsync(holder, target, listener);
+        return target;
+    }
+
+    /**
+     * 关闭相机并结束相机线程，之后再次调用异步方法会重新创建线程
+     */
+    public void release() {
+        final HandlerThread thread;
+        synchronized (threadLock) {
+            thread = cameraThread;
+            cameraThread = null;
+            cameraHandler = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        Handler handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopPreview();
+                closeDriver();
+                previewDispatcher.shutdown();
+            }
+        });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            thread.quitSafely();
+        } else {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    thread.quit();
+                }
+            });
+        }
+    }
+
+    private void notifyOpened(final OnCameraListener listener, final RecorderCamera camera) {
+        if (listener == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraOpened(camera);
+            }
+        });
+    }
+
+    private void notifyError(final OnCameraListener listener, final Exception e) {
+        if (listener == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraError(e);
+            }
+        });
+    }
+
+    /**
+     * Opens the camera driver and initializes the hardware parameters. It blocks on the camera HAL,
+     * so only call it on the camera thread, see {@link #openAsync}.
      *
      * @param holder The surface object which the camera will draw preview frames into.
      * @throws IOException Indicates the camera driver failed to open.
@@ -55,45 +330,85 @@ public final class CameraManager {
     public synchronized Camera openDriver(SurfaceHolder holder, CameraFacing cameraFacing) throws IOException {
         RecorderCamera theCamera = recorderCamera;
         if (theCamera == null) {
-            theCamera = CameraInterface.open(requestedCameraId, cameraFacing);
+            long begin = metrics.begin(RecorderMetrics.Stage.CAMERA_OPEN);
+            try {
+                theCamera = CameraInterface.open(capabilitiesStore, requestedCameraId, cameraFacing);
+            } catch (RuntimeException re) {
+                // Usually the camera is busy or disabled; only entries that no longer match the camera
+                // service are probed again
+                capabilitiesStore.reconcile();
+                throw new IOException("Camera.open() failed", re);
+            } finally {
+                metrics.end(RecorderMetrics.Stage.CAMERA_OPEN, begin);
+            }
             if (theCamera == null) {
+                // The cached camera count may be stale
+                capabilitiesStore.reconcile();
                 throw new IOException("Camera.open() failed to return object from driver");
             }
             recorderCamera = theCamera;
         }
 
+        Camera cameraObject = theCamera.getCamera();
+        // Only query and flatten the parameters when the cached capabilities miss them; on a cache hit the
+        // HAL round trip is skipped entirely
+        String parametersFlattened = null;
+        CameraCapabilities theCapabilities = capabilitiesStore.get(theCamera.getIndex());
+        if (theCapabilities == null || !theCapabilities.hasParameters()) {
+            Camera.Parameters parameters = cameraObject.getParameters();
+            parametersFlattened = parameters == null ? null : parameters.flatten();
+            theCapabilities = CameraCapabilities.parse(theCamera.getIndex(), theCamera.getCameraFacing(),
+                    theCamera.getOrientation(), parametersFlattened);
+            capabilitiesStore.update(theCapabilities);
+        }
+        capabilities = theCapabilities;
+        // 主线程随时可能修改请求，这里读取一次，本次打开只使用这份快照
+        Point requestedSize = requestedVideoSize;
+        openFrameRate = constantFrameRate;
+        configManager.setConstantFrameRate(openFrameRate);
+        theCapabilities.setSizeCost(getSizeCost());
+        Point videoSize = requestedSize == null ? null
+                : RecorderFactory.findCloseSizeValue(theCapabilities, requestedSize);
+        // Rotation and preview size depend on the camera, so they are computed on every open; the
+        // chosen preview size is cached in the capabilities and only persisted when it changes.
+        if (configManager.initFromCameraParameters(theCamera, theCapabilities, videoSize)) {
+            capabilitiesStore.update(theCapabilities);
+        }
         if (!initialized) {
             initialized = true;
-            configManager.initFromCameraParameters(theCamera);
             if (requestedFramingRectWidth > 0 && requestedFramingRectHeight > 0) {
-                setManualFramingRect(requestedFramingRectWidth, requestedFramingRectHeight);
+                applyManualFramingRect(requestedFramingRectWidth, requestedFramingRectHeight);
                 requestedFramingRectWidth = 0;
                 requestedFramingRectHeight = 0;
             }
         }
-
-        Camera cameraObject = theCamera.getCamera();
-        Camera.Parameters parameters = cameraObject.getParameters();
-        String parametersFlattened = parameters == null ? null : parameters.flatten();
+        long begin = metrics.begin(RecorderMetrics.Stage.SET_PARAMETERS);
         try {
             configManager.setDesiredCameraParameters(theCamera, false);
         } catch (RuntimeException re) {
             // Driver failed
             Log.w(TAG, "Camera rejected parameters. Setting only minimal safe-mode parameters");
-            Log.i(TAG, "Resetting to saved camera params: " + parametersFlattened);
-            // Reset:
-            if (parametersFlattened != null) {
-                parameters = cameraObject.getParameters();
-                parameters.unflatten(parametersFlattened);
-                try {
+            // A rejected setParameters leaves the driver on its previous parameters, so they only need to be
+            // restored explicitly when they were fetched above
+            try {
+                if (parametersFlattened != null) {
+                    Log.i(TAG, "Resetting to saved camera params: " + parametersFlattened);
+                    Camera.Parameters parameters = cameraObject.getParameters();
+                    parameters.unflatten(parametersFlattened);
                     cameraObject.setParameters(parameters);
-                    configManager.setDesiredCameraParameters(theCamera, true);
-                } catch (RuntimeException re2) {
-                    // Well, darn. Give up
-                    Log.w(TAG, "Camera rejected even safe-mode parameters! No configuration");
                 }
+                configManager.setDesiredCameraParameters(theCamera, true);
+            } catch (RuntimeException re2) {
+                // Well, darn. Give up
+                Log.w(TAG, "Camera rejected even safe-mode parameters! No configuration");
             }
+        } finally {
+            metrics.end(RecorderMetrics.Stage.SET_PARAMETERS, begin);
         }
+        previewFpsRange = configManager.getPreviewFpsRange();
+        // 参数按 FrontLightMode 设置了闪光灯，AUTO 先关闭
+        torchApplied = configManager.getFrontLightMode() == FrontLightMode.ON;
+        torchState = torchApplied;
         //  cameraObject.cancelAutoFocus();
         cameraObject.setPreviewDisplay(holder);
 
@@ -105,6 +420,7 @@ public final class CameraManager {
      *
      * @return
      */
+    @Override
     public Point getCameraResolution() {
         return configManager.getCameraResolution();
     }
@@ -114,8 +430,9 @@ public final class CameraManager {
      *
      * @return
      */
-    public synchronized Camera getRecorderCamera() {
-        return recorderCamera == null ? null : recorderCamera.getCamera();
+    public Camera getRecorderCamera() {
+        RecorderCamera theCamera = recorderCamera;
+        return theCamera == null ? null : theCamera.getCamera();
     }
 
     /**
@@ -123,11 +440,22 @@ public final class CameraManager {
      *
      * @return
      */
-    public synchronized RecorderCamera getOpenCamera() {
+    @Override
+    public RecorderCamera getOpenCamera() {
         return recorderCamera;
     }
 
-    public synchronized boolean isOpen() {
+    /**
+     * 获取当前相机的能力快照
+     *
+     * @return 相机能力，相机未打开时为 null
+     */
+    public CameraCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public boolean isOpen() {
         return recorderCamera != null;
     }
 
@@ -136,9 +464,18 @@ public final class CameraManager {
      */
     public synchronized void closeDriver() {
         if (recorderCamera != null) {
+            previewDispatcher.detach();
             recorderCamera.getCamera().setPreviewCallback(null);
             recorderCamera.getCamera().release();
             recorderCamera = null;
+            previewFpsRange = null;
+            torchApplied = false;
+            torchState = false;
+            // Persist sizes chosen while the camera was open
+            if (capabilities != null) {
+                capabilitiesStore.update(capabilities);
+                capabilities = null;
+            }
             // Make sure to clear these each time we close the camera, so that any scanning rect
             // requested by intent is forgotten.
             framingRect = null;
@@ -151,12 +488,38 @@ public final class CameraManager {
     public synchronized void startPreview() {
         RecorderCamera theCamera = recorderCamera;
         if (theCamera != null && !previewing) {
-            theCamera.getCamera().startPreview();
+            long begin = metrics.begin(RecorderMetrics.Stage.START_PREVIEW);
+            try {
+                theCamera.getCamera().startPreview();
+            } finally {
+                metrics.end(RecorderMetrics.Stage.START_PREVIEW, begin);
+            }
+            metrics.onPreviewStarted();
             previewing = true;
             focusedManager = new FocusedManager(context, theCamera.getCamera());
+            if (configManager.getFrontLightMode() == FrontLightMode.AUTO) {
+                // 相机打开时闪光灯关闭，由预览帧亮度决定是否打开
+                autoTorch = new AutoTorch(this);
+                previewDispatcher.addAnalyzer(autoTorch);
+            }
+            attachPreviewDispatcher(theCamera);
+            if (!previewDispatcher.isInstalled()) {
+                theCamera.getCamera().setOneShotPreviewCallback(firstFrameCallback);
+            }
         }
     }
 
+    private void attachPreviewDispatcher(RecorderCamera theCamera) {
+        Point resolution = configManager.getCameraResolution();
+        if (resolution == null) {
+            return;
+        }
+        int format = theCamera.getCamera().getParameters().getPreviewFormat();
+        // 锁定帧率时测量实际输出的帧率，确认 HAL 是否遵守
+        previewDispatcher.setMetering(openFrameRate > 0);
+        previewDispatcher.attach(theCamera.getCamera(), resolution.x, resolution.y, format, theCamera.getOrientation());
+    }
+
     /**
      * Tells the camera to stop drawing preview frames.
      */
@@ -165,45 +528,235 @@ public final class CameraManager {
             focusedManager.stop();
             focusedManager = null;
         }
+        stopAutoTorch();
         if (recorderCamera != null && previewing) {
             recorderCamera.getCamera().stopPreview();
-            recorderCamera.getCamera().setPreviewCallback(null);
+            previewDispatcher.detach();
             previewing = false;
         }
     }
 
     /**
-     * 设置是否打开闪光灯
+     * 注册预览帧分析器，可以在任意线程调用。预览帧来自固定的缓冲池，在分析线程中回调，
+     * 分析来不及时丢弃最旧的帧。使用 MediaRecorder 录制期间相机不会回调预览帧
+     *
+     * @param analyzer 分析器
+     */
+    public void addFrameAnalyzer(FrameAnalyzer analyzer) {
+        previewDispatcher.addAnalyzer(analyzer);
+        execute(updatePreviewDispatcherTask);
+    }
+
+    /**
+     * 移除预览帧分析器，可以在任意线程调用，正在进行的一次分析不会被打断
+     *
+     * @param analyzer 分析器
+     */
+    public void removeFrameAnalyzer(FrameAnalyzer analyzer) {
+        previewDispatcher.removeAnalyzer(analyzer);
+        execute(updatePreviewDispatcherTask);
+    }
+
+    /**
+     * @return 分析来不及而被丢弃的预览帧数
+     */
+    public long getDroppedFrameCount() {
+        return previewDispatcher.getDroppedFrameCount();
+    }
+
+    /**
+     * @return 已交给分析器的预览帧数
+     */
+    public long getAnalyzedFrameCount() {
+        return previewDispatcher.getAnalyzedFrameCount();
+    }
+
+    /**
+     * @return 预览帧分发器，{@link FakeCamera} 把合成的预览帧交给它，与真实相机共用分析器与处理者
+     */
+    PreviewDispatcher getPreviewDispatcher() {
+        return previewDispatcher;
+    }
+
+    /**
+     * 设置在相机线程中同步处理预览帧的处理者，只在相机线程中调用
+     *
+     * @param consumer 处理者，null 表示移除
+     */
+    void setPreviewConsumer(PreviewDispatcher.Consumer consumer) {
+        previewDispatcher.setConsumer(consumer);
+    }
+
+    /**
+     * 相机被 MediaRecorder 使用之后重新安装预览回调，只在相机线程中调用
+     */
+    void restorePreviewCallback() {
+        previewDispatcher.reinstall();
+    }
+
+    /**
+     * 设置是否打开闪光灯，可以在任意线程调用，在相机线程中修改相机参数，{@link #getTorchState()} 立即返回新的状态
      *
      * @param newSetting if {@code true}, light should be turned on if currently off. And vice versa.
      */
-    public synchronized void setTorch(boolean newSetting) {
+    @Override
+    public void setTorch(final boolean newSetting) {
+        torchState = newSetting;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                // 手动设置后本次预览不再自动开关
+                stopAutoTorch();
+                applyTorch(newSetting, false);
+            }
+        });
+    }
+
+    /**
+     * 请求开关闪光灯，可以在任意线程调用。在相机线程中执行，还没执行时的多次请求合并为最后一次，
+     * 闪光灯与曝光补偿在同一次参数设置中修改
+     *
+     * @param on true 打开
+     */
+    void requestTorch(boolean on) {
+        requestedTorch = on;
+        if (torchUpdatePending.compareAndSet(false, true)) {
+            execute(applyTorchTask);
+        }
+    }
+
+    private synchronized void applyRequestedTorch() {
+        // 预览已经停止或者已经手动设置过时忽略
+        if (autoTorch != null) {
+            applyTorch(requestedTorch, true);
+        }
+    }
+
+    private synchronized void stopAutoTorch() {
+        if (autoTorch != null) {
+            previewDispatcher.removeAnalyzer(autoTorch);
+            autoTorch = null;
+        }
+    }
+
+    /**
+     * @param adjustExposure 是否同时调整曝光补偿，否则按 {@link RecorderConfig#KEY_DISABLE_EXPOSURE} 设置
+     */
+    private synchronized void applyTorch(boolean newSetting, boolean adjustExposure) {
         RecorderCamera theCamera = recorderCamera;
-        if (theCamera != null && newSetting != configManager.getTorchState(theCamera.getCamera())) {
+        if (theCamera != null && newSetting != torchApplied) {
             boolean wasAutoFocusManager = focusedManager != null;
             if (wasAutoFocusManager) {
                 focusedManager.stop();
                 focusedManager = null;
             }
-            configManager.setTorch(theCamera.getCamera(), newSetting);
+            try {
+                configManager.setTorch(theCamera.getCamera(), newSetting, adjustExposure);
+                torchApplied = newSetting;
+            } catch (RuntimeException e) {
+                // 录制中相机被 MediaRecorder 占用时不能修改参数
+                Log.w(TAG, "set torch " + newSetting + " failed", e);
+            }
             if (wasAutoFocusManager) {
                 focusedManager = new FocusedManager(context, theCamera.getCamera());
                 focusedManager.start();
             }
         }
+        if (theCamera != null) {
+            // 设置失败时恢复为实际状态
+            torchState = torchApplied;
+        }
     }
 
     /**
-     * 获取闪光灯状态
+     * 获取闪光灯状态，不读取相机参数，可以在主线程调用
      *
      * @return true 打开中，false 关闭
      */
-    public synchronized boolean getTorchState() {
-        RecorderCamera theCamera = recorderCamera;
-        if (theCamera != null) {
-            return configManager.getTorchState(theCamera.getCamera());
+    @Override
+    public boolean getTorchState() {
+        return torchState && recorderCamera != null;
+    }
+
+    /**
+     * 设置录制的目标分辨率，下一次打开相机时预览尺寸选择与之匹配的宽高比与尺寸，避免预览与录制之间缩放或裁剪
+     *
+     * @param width  目标宽度
+     * @param height 目标高度
+     */
+    @Override
+    public void setRequestedVideoSize(int width, int height) {
+        requestedVideoSize = new Point(width, height);
+    }
+
+    /**
+     * 锁定帧率：打开相机时设置与目标帧数最接近的固定帧率范围（min == max），暗光下帧率不再随曝光时间下降，
+     * 编码器每帧得到的码率保持稳定。设置后读回相机参数确认，并按预览回调时间测量实际输出的帧率。
+     * 下一次打开相机时生效
+     *
+     * @param fps 目标帧数，0 表示使用相机默认的帧率范围
+     */
+    @Override
+    public void setConstantFrameRate(int fps) {
+        constantFrameRate = fps;
+    }
+
+    /**
+     * @return 相机实际使用的帧率范围 {min, max}，单位为 帧数*1000，相机还没有打开时为 null
+     */
+    @Override
+    public int[] getPreviewFpsRange() {
+        int[] range = previewFpsRange;
+        return range == null ? null : range.clone();
+    }
+
+    /**
+     * @return 打开相机与录制各阶段的耗时统计，camera2 后端共用
+     */
+    public RecorderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return 最近约 1 秒相机实际输出的帧率，只在锁定帧率、有预览处理者或分析器时测量，否则为 0
+     */
+    public float getDeliveredFrameRate() {
+        return previewDispatcher.getFrameRateMeter().getFramesPerSecond();
+    }
+
+    /**
+     * @return 本次预览中最低的实际帧率，测量条件同 {@link #getDeliveredFrameRate()}
+     */
+    public float getMinDeliveredFrameRate() {
+        return previewDispatcher.getFrameRateMeter().getMinFramesPerSecond();
+    }
+
+    /**
+     * 设置选择预览与视频尺寸的代价函数，下一次打开相机时生效
+     *
+     * @param cost 代价函数，null 表示使用默认代价与编码器的尺寸上限
+     */
+    @Override
+    public void setSizeCost(SizeSelector.Cost cost) {
+        requestedSizeCost = cost;
+    }
+
+    private SizeSelector.Cost getSizeCost() {
+        return requestedSizeCost != null ? requestedSizeCost : getDefaultSizeCost();
+    }
+
+    /**
+     * @return 默认代价加上编码器支持的尺寸上限，上限取自 {@link CapabilitiesStore} 的缓存
+     */
+    SizeSelector.Cost getDefaultSizeCost() {
+        synchronized (CameraManager.class) {
+            if (defaultSizeCost == null) {
+                int[] limit = capabilitiesStore.getVideoEncoderLimit();
+                defaultSizeCost = limit == null ? SizeSelector.Cost.DEFAULT
+                        : SizeSelector.Cost.DEFAULT.withEncoderLimit(limit[0], limit[1]);
+            }
+            return defaultSizeCost;
         }
-        return false;
     }
 
     /**
@@ -212,7 +765,7 @@ public final class CameraManager {
      *
      * @param cameraId camera ID of the camera to use. A negative value means "no preference".
      */
-    public synchronized void setManualCameraId(int cameraId) {
+    public void setManualCameraId(int cameraId) {
         requestedCameraId = cameraId;
     }
 
@@ -223,7 +776,16 @@ public final class CameraManager {
      * @param width  The width in pixels to scan.
      * @param height The height in pixels to scan.
      */
-    public synchronized void setManualFramingRect(int width, int height) {
+    public void setManualFramingRect(final int width, final int height) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                applyManualFramingRect(width, height);
+            }
+        });
+    }
+
+    private synchronized void applyManualFramingRect(int width, int height) {
         if (initialized) {
             Point screenResolution = configManager.getScreenResolution();
             if (width > screenResolution.x) {
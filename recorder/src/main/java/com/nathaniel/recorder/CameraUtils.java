@@ -6,6 +6,9 @@ import android.hardware.Camera;
 import android.os.Build;
 import android.util.Log;
 
+import com.nathaniel.recorder.policy.FrameRateSelector;
+import com.nathaniel.recorder.policy.SizeSelector;
+
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -19,10 +22,8 @@ import java.util.regex.Pattern;
 public final class CameraUtils {
     private static final String TAG = CameraUtils.class.getSimpleName();
     private static final Pattern SEMICOLON = Pattern.compile(";");
-    private static final int MIN_PREVIEW_PIXELS = 480 * 320;
     private static final float MAX_EXPOSURE_COMPENSATION = 1.5f;
     private static final float MIN_EXPOSURE_COMPENSATION = 0.0f;
-    private static final double MAX_ASPECT_DISTORTION = 0.15;
     private static final int MIN_FPS = 10;
     private static final int MAX_FPS = 20;
     private static final int AREA_PER_1000 = 400;
@@ -131,6 +132,36 @@ public final class CameraUtils {
         }
     }
 
+    /**
+     * 锁定帧率：选择并设置最接近目标帧数的固定范围（min == max），避免暗光下自动曝光把帧率降到范围下限。
+     * 没有固定范围时退而选择包含目标帧数、下限最高的范围
+     *
+     * @param parameters 相机参数
+     * @param fps        目标帧数
+     * @return 设置的范围 {min, max}，单位为 帧数*1000，没有合适的范围时返回 null
+     */
+    public static int[] setConstantPreviewFPS(Camera.Parameters parameters, int fps) {
+        List<int[]> supportedPreviewFpsRanges = parameters.getSupportedPreviewFpsRange();
+        Log.i(TAG, "Supported FPS ranges: " + toString(supportedPreviewFpsRanges));
+        int[] range = findConstantFpsRange(supportedPreviewFpsRanges, fps);
+        if (range == null) {
+            Log.i(TAG, "No FPS range for " + fps + " fps");
+            return null;
+        }
+        int min = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+        int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        if (min != max) {
+            Log.w(TAG, "No fixed FPS range near " + fps + " fps, using " + Arrays.toString(range));
+        }
+        Log.i(TAG, "Setting FPS range to " + Arrays.toString(range));
+        parameters.setPreviewFpsRange(min, max);
+        return range;
+    }
+
+    static int[] findConstantFpsRange(List<int[]> ranges, int fps) {
+        return FrameRateSelector.findConstantRange(ranges, fps);
+    }
+
     public static void setFocusArea(Camera.Parameters parameters) {
         if (parameters.getMaxNumFocusAreas() > 0) {
             Log.i(TAG, "Old focus areas: " + toString(parameters.getFocusAreas()));
@@ -237,78 +268,40 @@ public final class CameraUtils {
     }
 
     public static Point findBestPreviewSizeValue(Camera.Parameters parameters, Point screenResolution) {
-        List<Camera.Size> rawSupportedSizes = parameters.getSupportedPreviewSizes();
-        if (rawSupportedSizes == null) {
-            Log.w(TAG, "Device returned no supported preview sizes; using default");
-            Camera.Size defaultSize = parameters.getPreviewSize();
-            if (defaultSize == null) {
-                throw new IllegalStateException("Parameters contained no preview size!");
-            }
-            return new Point(defaultSize.width, defaultSize.height);
-        }
-
-        if (Log.isLoggable(TAG, Log.INFO)) {
-            StringBuilder previewSizesString = new StringBuilder();
-            for (Camera.Size size : rawSupportedSizes) {
-                previewSizesString.append(size.width).append('x').append(size.height).append(' ');
-            }
-            Log.i(TAG, "Supported preview sizes: " + previewSizesString);
-        }
-
-        double screenAspectRatio = screenResolution.x > screenResolution.y
-                ? (screenResolution.x / (double) screenResolution.y)
-                : (screenResolution.y / (double) screenResolution.x);
-
-        // Find a suitable size, with max resolution
-        int maxResolution = 0;
-        Camera.Size maxResPreviewSize = null;
-        for (Camera.Size size : rawSupportedSizes) {
-            int realWidth = size.width;
-            int realHeight = size.height;
-            int resolution = realWidth * realHeight;
-            if (resolution < MIN_PREVIEW_PIXELS) {
-                continue;
-            }
-
-            boolean isCandidatePortrait = realWidth < realHeight;
-            int maybeFlippedWidth = isCandidatePortrait ? realHeight : realWidth;
-            int maybeFlippedHeight = isCandidatePortrait ? realWidth : realHeight;
-            double aspectRatio = maybeFlippedWidth / (double) maybeFlippedHeight;
-            double distortion = Math.abs(aspectRatio - screenAspectRatio);
-            if (distortion > MAX_ASPECT_DISTORTION) {
-                continue;
-            }
-
-            if (maybeFlippedWidth == screenResolution.x && maybeFlippedHeight == screenResolution.y) {
-                Point exactPoint = new Point(realWidth, realHeight);
-                Log.i(TAG, "Found preview size exactly matching screen size: " + exactPoint);
-                return exactPoint;
-            }
+        Camera.Size defaultPreview = parameters.getPreviewSize();
+        int[] defaultSize = defaultPreview == null ? null : new int[]{defaultPreview.width, defaultPreview.height};
+        SizeSelector selector = new SizeSelector(toArray(parameters.getSupportedPreviewSizes()), null);
+        return RecorderFactory.toPoint(selector.selectPreviewSize(screenResolution.x, screenResolution.y, null), defaultSize);
+    }
 
-            // Resolution is suitable; record the one with max resolution
-            if (resolution > maxResolution) {
-                maxResolution = resolution;
-                maxResPreviewSize = size;
-            }
-        }
+    /**
+     * Chooses the preview size with the same cost function as the video size, see {@link SizeSelector}.
+     *
+     * @param capabilities     cached capabilities of the open camera
+     * @param screenResolution screen size, the target when there is no video size
+     * @param videoSize        chosen video size, may be null; the preview then aims at its aspect ratio and size
+     */
+    public static Point findBestPreviewSizeValue(CameraCapabilities capabilities, Point screenResolution, Point videoSize) {
+        int[] video = videoSize == null ? null : new int[]{videoSize.x, videoSize.y};
+        int[] size = capabilities.getSizeSelector().selectPreviewSize(screenResolution.x, screenResolution.y, video);
+        Point point = RecorderFactory.toPoint(size, capabilities.getDefaultPreviewSize());
+        Log.i(TAG, "Preview size for screen " + screenResolution + ", video " + videoSize + ": " + point);
+        return point;
+    }
 
-        // If no exact match, use largest preview size. This was not a great idea on older devices because
-        // of the additional computation needed. We're likely to get here on newer Android 4+ devices, where
-        // the CPU is much more powerful.
-        if (maxResPreviewSize != null) {
-            Point largestSize = new Point(maxResPreviewSize.width, maxResPreviewSize.height);
-            Log.i(TAG, "Using largest suitable preview size: " + largestSize);
-            return largestSize;
+    /**
+     * 将相机尺寸列表转换为 {width, height} 数组
+     */
+    static int[][] toArray(List<Camera.Size> sizes) {
+        if (sizes == null) {
+            return null;
         }
-
-        // If there is nothing at all suitable, return current preview size
-        Camera.Size defaultPreview = parameters.getPreviewSize();
-        if (defaultPreview == null) {
-            throw new IllegalStateException("Parameters contained no preview size!");
+        int[][] result = new int[sizes.size()][];
+        for (int i = 0; i < result.length; i++) {
+            Camera.Size size = sizes.get(i);
+            result[i] = new int[]{size.width, size.height};
         }
-        Point defaultSize = new Point(defaultPreview.width, defaultPreview.height);
-        Log.i(TAG, "No suitable preview sizes, using default: " + defaultSize);
-        return defaultSize;
+        return result;
     }
 
     private static String findSettableValue(String name,
@@ -0,0 +1,193 @@
+package com.nathaniel.recorder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Persists one {@link CameraCapabilities} per camera id in app-private preferences, keyed by the device
+ * fingerprint and API level. It is loaded lazily once per process, so facing to id lookups and size
+ * negotiation on the open path do not have to query the camera service again.
+ *
+ * @author nathaniel
+ */
+final class CapabilitiesStore {
+
+    private static final String TAG = CapabilitiesStore.class.getSimpleName();
+    private static final String PREFS_NAME = "recorder_camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_CAMERA_COUNT = "camera_count";
+    private static final String KEY_CAMERA_PREFIX = "camera_";
+    private static final String KEY_ENCODER_LIMIT = "video_encoder_limit";
+    private static CapabilitiesStore instance;
+
+    private final SharedPreferences prefs;
+    private SparseArray<CameraCapabilities> cameras;
+    private int numberOfCameras;
+
+    CapabilitiesStore(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    static synchronized CapabilitiesStore get(Context context) {
+        if (instance == null) {
+            instance = new CapabilitiesStore(context);
+        }
+        return instance;
+    }
+
+    /**
+     * @return 设备指纹与系统版本，任一变化时缓存的能力不再可信
+     */
+    static String deviceKey() {
+        return Build.FINGERPRINT + '/' + Build.VERSION.SDK_INT;
+    }
+
+    /**
+     * 读取缓存，设备指纹或系统版本变化时重新探测
+     */
+    private void ensureLoaded() {
+        if (cameras != null) {
+            return;
+        }
+        cameras = new SparseArray<>();
+        if (deviceKey().equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            numberOfCameras = prefs.getInt(KEY_CAMERA_COUNT, 0);
+            for (int i = 0; i < numberOfCameras; i++) {
+                CameraCapabilities capabilities = CameraCapabilities.unflatten(prefs.getString(KEY_CAMERA_PREFIX + i, null));
+                if (capabilities == null) {
+                    Log.w(TAG, "Capabilities cache of camera #" + i + " is broken, probing again");
+                    probe();
+                    return;
+                }
+                cameras.put(i, capabilities);
+            }
+            Log.i(TAG, "Loaded capabilities of " + numberOfCameras + " cameras from cache");
+        } else {
+            probe();
+        }
+    }
+
+    /**
+     * 探测所有相机的方向信息，相机参数在第一次打开之后通过 {@link #update} 补充
+     */
+    private void probe() {
+        cameras.clear();
+        numberOfCameras = Camera.getNumberOfCameras();
+        SharedPreferences.Editor editor = prefs.edit().clear();
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        for (int i = 0; i < numberOfCameras; i++) {
+            Camera.getCameraInfo(i, cameraInfo);
+            CameraCapabilities capabilities = CameraCapabilities.parse(i, CameraFacing.values()[cameraInfo.facing],
+                    cameraInfo.orientation, null);
+            cameras.put(i, capabilities);
+            editor.putString(KEY_CAMERA_PREFIX + i, capabilities.flatten());
+        }
+        editor.putString(KEY_FINGERPRINT, deviceKey())
+                .putInt(KEY_CAMERA_COUNT, numberOfCameras)
+                .apply();
+        Log.i(TAG, "Probed " + numberOfCameras + " cameras");
+    }
+
+    /**
+     * H.264 编码器的尺寸上限只随系统变化，与相机能力一起按设备指纹缓存，冷启动打开相机时不再遍历编码器列表
+     *
+     * @return {maxWidth, maxHeight}，没有上限时返回 null
+     */
+    synchronized int[] getVideoEncoderLimit() {
+        ensureLoaded();
+        String cached = prefs.getString(KEY_ENCODER_LIMIT, null);
+        if (cached != null) {
+            return CameraCapabilities.parseSize(cached);
+        }
+        int[] limit = CodecFactory.getVideoEncoderLimit();
+        prefs.edit().putString(KEY_ENCODER_LIMIT, limit == null ? "" : limit[0] + "x" + limit[1]).apply();
+        return limit;
+    }
+
+    synchronized int getNumberOfCameras() {
+        ensureLoaded();
+        return numberOfCameras;
+    }
+
+    synchronized CameraCapabilities get(int cameraId) {
+        ensureLoaded();
+        return cameras.get(cameraId);
+    }
+
+    /**
+     * 查找指定方向的相机
+     *
+     * @param facing 相机方向
+     * @return 相机 id，没有时返回 {@link CameraInterface#NO_REQUESTED_CAMERA}
+     */
+    synchronized int findCameraId(CameraFacing facing) {
+        ensureLoaded();
+        for (int i = 0; i < numberOfCameras; i++) {
+            if (cameras.get(i).getFacing() == facing) {
+                return i;
+            }
+        }
+        return CameraInterface.NO_REQUESTED_CAMERA;
+    }
+
+    /**
+     * 更新并异步持久化某个相机的能力
+     *
+     * @param capabilities 相机能力
+     */
+    synchronized void update(CameraCapabilities capabilities) {
+        ensureLoaded();
+        cameras.put(capabilities.getCameraId(), capabilities);
+        String key = KEY_CAMERA_PREFIX + capabilities.getCameraId();
+        String flattened = capabilities.flatten();
+        if (!flattened.equals(prefs.getString(key, null))) {
+            prefs.edit().putString(key, flattened).apply();
+        }
+    }
+
+    /**
+     * 打开相机失败后与相机服务核对缓存：相机数量、方向或安装角度不符的条目换成重新探测的结果，其余条目与
+     * 之前选定的尺寸保持不变。相机被占用或被策略禁用时缓存仍然一致，不做任何修改
+     *
+     * @return true 有条目被替换或删除
+     */
+    synchronized boolean reconcile() {
+        ensureLoaded();
+        int actualCount = Camera.getNumberOfCameras();
+        SharedPreferences.Editor editor = prefs.edit();
+        boolean changed = false;
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        for (int i = 0; i < actualCount; i++) {
+            Camera.getCameraInfo(i, cameraInfo);
+            CameraFacing facing = CameraFacing.values()[cameraInfo.facing];
+            CameraCapabilities cached = cameras.get(i);
+            if (cached != null && cached.getFacing() == facing && cached.getOrientation() == cameraInfo.orientation) {
+                continue;
+            }
+            CameraCapabilities capabilities = CameraCapabilities.parse(i, facing, cameraInfo.orientation, null);
+            cameras.put(i, capabilities);
+            editor.putString(KEY_CAMERA_PREFIX + i, capabilities.flatten());
+            changed = true;
+            Log.w(TAG, "Capabilities cache of camera #" + i + " is stale, probed again");
+        }
+        for (int i = actualCount; i < numberOfCameras; i++) {
+            cameras.remove(i);
+            editor.remove(KEY_CAMERA_PREFIX + i);
+            changed = true;
+            Log.w(TAG, "Camera #" + i + " is gone, dropped from the capabilities cache");
+        }
+        if (actualCount != numberOfCameras) {
+            numberOfCameras = actualCount;
+            editor.putInt(KEY_CAMERA_COUNT, actualCount);
+            changed = true;
+        }
+        if (changed) {
+            editor.apply();
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,237 @@
+package com.nathaniel.recorder;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * 创建 MediaCodec 编码器与 AudioRecord，对应 {@link RecorderFactory} 之于 MediaRecorder
+ *
+ * @author nathaniel
+ */
+public final class CodecFactory {
+    public static final String VIDEO_MIME_TYPE = "video/avc";
+    public static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+    /**
+     * 默认音频采样率
+     */
+    public static final int AUDIO_SAMPLE_RATE = 44100;
+    /**
+     * 默认音频声道数
+     */
+    public static final int AUDIO_CHANNEL_COUNT = 1;
+    /**
+     * 默认音频码率，单位为 b/s
+     */
+    public static final int AUDIO_BIT_RATE = 64000;
+    private static final String TAG = CodecFactory.class.getSimpleName();
+    /**
+     * 关键帧间隔，单位秒，也是分片时长的下限
+     */
+    private static final int I_FRAME_INTERVAL = 1;
+    private static final int[] NO_LIMIT = new int[0];
+    private static int[] videoEncoderLimit;
+
+    private CodecFactory() {
+    }
+
+    /**
+     * 查找指定类型的编码器
+     *
+     * @param mimeType 编码类型
+     * @return 编码器信息，没有时返回 null
+     */
+    public static MediaCodecInfo findEncoder(String mimeType) {
+        int count = MediaCodecList.getCodecCount();
+        for (int i = 0; i < count; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    return codecInfo;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 查询 H.264 编码器支持的最大宽高，结果在第一次查询后缓存
+     *
+     * @return {maxWidth, maxHeight}，Android 5.0 以下或没有编码器时返回 null
+     */
+    public static synchronized int[] getVideoEncoderLimit() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        if (videoEncoderLimit == null) {
+            MediaCodecInfo codecInfo = findEncoder(VIDEO_MIME_TYPE);
+            videoEncoderLimit = codecInfo == null ? NO_LIMIT : getVideoEncoderLimit(codecInfo);
+        }
+        return videoEncoderLimit == NO_LIMIT ? null : videoEncoderLimit;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int[] getVideoEncoderLimit(MediaCodecInfo codecInfo) {
+        MediaCodecInfo.VideoCapabilities capabilities = codecInfo.getCapabilitiesForType(VIDEO_MIME_TYPE).getVideoCapabilities();
+        if (capabilities == null) {
+            return NO_LIMIT;
+        }
+        return new int[]{capabilities.getSupportedWidths().getUpper(), capabilities.getSupportedHeights().getUpper()};
+    }
+
+    /**
+     * 选择编码器支持的 YUV420 输入格式，优先使用与 NV21 排列最接近的 semi-planar
+     *
+     * @param codecInfo 编码器信息
+     * @param mimeType  编码类型
+     * @return {@link MediaCodecInfo.CodecCapabilities#COLOR_FormatYUV420SemiPlanar} 或
+     * {@link MediaCodecInfo.CodecCapabilities#COLOR_FormatYUV420Planar}，都不支持时返回 -1
+     */
+    public static int findYuvColorFormat(MediaCodecInfo codecInfo, String mimeType) {
+        int[] colorFormats = codecInfo.getCapabilitiesForType(mimeType).colorFormats;
+        int result = -1;
+        for (int colorFormat : colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                return colorFormat;
+            }
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+                result = colorFormat;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 创建并配置 H.264 编码器，输入为 YUV420 ByteBuffer
+     *
+     * @param codecInfo   编码器信息
+     * @param colorFormat 输入格式
+     * @param width       视频宽度
+     * @param height      视频高度
+     * @param frameRate   帧数
+     * @param bitRate     码率，单位为 b/s
+     * @return 已配置的编码器
+     * @throws IOException 编码器创建失败
+     */
+    public static MediaCodec newVideoEncoder(MediaCodecInfo codecInfo, int colorFormat, int width, int height, int frameRate, int bitRate) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        Log.e(TAG, "video encoder " + codecInfo.getName() + " format " + format);
+        MediaCodec codec = MediaCodec.createByCodecName(codecInfo.getName());
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (RuntimeException e) {
+            codec.release();
+            throw new IOException("configure video encoder failed", e);
+        }
+        return codec;
+    }
+
+    /**
+     * 创建并配置输入为 Surface 的 H.264 编码器，配置之后通过 {@link MediaCodec#createInputSurface()} 或者
+     * {@link MediaCodec#setInputSurface} 取得输入
+     *
+     * @param width            视频宽度
+     * @param height           视频高度
+     * @param frameRate        帧数
+     * @param bitRate          码率，单位为 b/s
+     * @param keyFrameInterval 关键帧间隔，单位秒
+     * @param maxBFrames       B 帧数上限，Android 10 及以上生效，0 表示不使用 B 帧
+     * @return 已配置的编码器
+     * @throws IOException 编码器创建失败
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public static MediaCodec newSurfaceVideoEncoder(int width, int height, int frameRate, int bitRate,
+                                                    int keyFrameInterval, int maxBFrames) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameInterval);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, maxBFrames);
+        }
+        Log.e(TAG, "surface video encoder format " + format);
+        MediaCodec codec = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (RuntimeException e) {
+            codec.release();
+            throw new IOException("configure video encoder failed", e);
+        }
+        return codec;
+    }
+
+    /**
+     * 创建并配置 AAC LC 编码器
+     *
+     * @param sampleRate   采样率
+     * @param channelCount 声道数
+     * @param bitRate      码率，单位为 b/s
+     * @return 已配置的编码器
+     * @throws IOException 编码器创建失败
+     */
+    public static MediaCodec newAudioEncoder(int sampleRate, int channelCount, int bitRate) throws IOException {
+        MediaFormat format = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, getAudioBufferSize(sampleRate, channelCount));
+        MediaCodec codec = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (RuntimeException e) {
+            codec.release();
+            throw new IOException("configure audio encoder failed", e);
+        }
+        return codec;
+    }
+
+    /**
+     * 创建麦克风录音，16 位 PCM
+     *
+     * @param sampleRate   采样率
+     * @param channelCount 声道数
+     * @return 已初始化的 AudioRecord，没有录音权限或设备不支持时返回 null
+     */
+    public static AudioRecord newAudioRecord(int sampleRate, int channelCount) {
+        int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        AudioRecord audioRecord;
+        try {
+            audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT, getAudioBufferSize(sampleRate, channelCount) * 2);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "create audio record failed", e);
+            return null;
+        }
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "audio record not initialized");
+            audioRecord.release();
+            return null;
+        }
+        return audioRecord;
+    }
+
+    /**
+     * @return 一次读取的 PCM 字节数，不小于系统最小缓冲，也不小于一个 AAC 帧（1024 个采样）
+     */
+    public static int getAudioBufferSize(int sampleRate, int channelCount) {
+        int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int minSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        return Math.max(minSize, 1024 * 2 * channelCount);
+    }
+}
@@ -0,0 +1,725 @@
+package com.nathaniel.recorder;
+
+import android.annotation.TargetApi;
+import android.graphics.Point;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Records the camera2 session through surface-input {@link MediaCodec} for video and {@link AudioRecord} plus an
+ * AAC {@link MediaCodec} for audio into a regular MP4 written by {@link MediaMuxer}.
+ * <p>
+ * Each encoder is drained on its own thread, which copies every encoded sample into a pooled buffer and puts it
+ * into a bounded per-stream queue; a dedicated muxer thread interleaves the two queues by timestamp and writes
+ * the file. When storage falls behind the queues fill up and the drain threads wait, so memory stays bounded and
+ * the encoder, not the file, drops frames. Encoded bytes per second and queue depths are kept per stream, see
+ * {@link #getStats()}. {@link #start}, {@link #pause()}, {@link #resume()} and {@link #stop()} must be called on
+ * the camera thread.
+ *
+ * @author nathaniel
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class CodecRecorder {
+
+    private static final String TAG = CodecRecorder.class.getSimpleName();
+    private static final String VIDEO_THREAD_NAME = "CodecRecorderVideo";
+    private static final String AUDIO_THREAD_NAME = "CodecRecorderAudio";
+    private static final String MUXER_THREAD_NAME = "CodecRecorderMuxer";
+    /**
+     * 约 2 秒的 30 帧视频与 AAC 音频
+     */
+    private static final int VIDEO_QUEUE_CAPACITY = 60;
+    private static final int AUDIO_QUEUE_CAPACITY = 90;
+    private static final long TIMEOUT_US = 10000;
+    private static final long STOP_TIMEOUT_MS = 3000;
+    private static final long POLL_MS = 10;
+    private static final long NANOS_PER_MICRO = 1000L;
+    private static final long MICROS_PER_SECOND = 1000000L;
+    /**
+     * 画面时间戳与 {@link System#nanoTime()} 相差超过这个值时认为相机使用了另一个时钟
+     */
+    private static final long CLOCK_MISMATCH_US = MICROS_PER_SECOND;
+
+    private final Camera2Backend backend;
+    private final Stream video = new Stream(true, VIDEO_QUEUE_CAPACITY);
+    private final Stream audio = new Stream(false, AUDIO_QUEUE_CAPACITY);
+    /**
+     * 两个队列中的样本总数，写文件线程据此等待
+     */
+    private final Semaphore available = new Semaphore(0);
+    private int keyFrameInterval = 1;
+    private int maxBFrames;
+    private volatile OnEncodedSampleListener sampleListener;
+    private MediaMuxer muxer;
+    private AudioRecord audioRecord;
+    private Surface inputSurface;
+    private boolean persistentInput;
+    private File file;
+    private byte[] pcm;
+    private Thread videoThread;
+    private Thread audioThread;
+    private Thread muxerThread;
+    private volatile boolean recording;
+    private volatile boolean paused;
+    /**
+     * 结束录制超时后为 true，编码线程不再等待结束标记，写文件线程写完已经取出的样本后结束文件
+     */
+    private volatile boolean abandoned;
+    private volatile long pausedUs;
+    private long pauseStartUs;
+    private volatile long videoClockOffsetUs;
+    /**
+     * 第一帧画面的时间，两路样本的时间都从这里开始，之前的声音丢弃
+     */
+    private volatile long startUs = -1;
+    private long lastAudioTimeUs = -1;
+    private boolean muxerStarted;
+    private boolean muxerFailed;
+    private long samplesWritten;
+
+    CodecRecorder(Camera2Backend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * 下一次 {@link #start} 时生效
+     *
+     * @param keyFrameInterval 关键帧间隔，单位秒
+     * @param maxBFrames       B 帧数上限，Android 10 及以上生效
+     */
+    void setEncoderOptions(int keyFrameInterval, int maxBFrames) {
+        this.keyFrameInterval = keyFrameInterval;
+        this.maxBFrames = maxBFrames;
+    }
+
+    void setOnEncodedSampleListener(OnEncodedSampleListener listener) {
+        sampleListener = listener;
+    }
+
+    /**
+     * 开始录制
+     *
+     * @param file      输出文件
+     * @param frameRate 帧数
+     * @param bitRate   码率，单位为 b/s
+     * @return true 开始成功
+     */
+    boolean start(File file, int frameRate, int bitRate) {
+        if (recording) {
+            Log.w(TAG, "start() while recording");
+            return false;
+        }
+        RecorderCamera openCamera = backend.getOpenCamera();
+        Point size = backend.getVideoSize();
+        if (openCamera == null || size == null) {
+            Log.e(TAG, "open camera first ");
+            return false;
+        }
+        this.file = file;
+        video.reset();
+        audio.reset();
+        available.drainPermits();
+        try {
+            if (file.exists()) {
+                boolean flag = file.delete();
+                Log.e(TAG, " delete file " + file.getName() + " success is " + flag);
+            }
+            muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxer.setOrientationHint(openCamera.getOrientation());
+            video.encoder = CodecFactory.newSurfaceVideoEncoder(size.x, size.y, backend.findCloseFrameRate(frameRate),
+                    bitRate, keyFrameInterval, maxBFrames);
+            Surface persistent = backend.getPersistentSurface();
+            if (persistent != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                setInputSurface(video.encoder, persistent);
+                inputSurface = persistent;
+                persistentInput = true;
+            } else {
+                inputSurface = video.encoder.createInputSurface();
+                persistentInput = false;
+            }
+            audioRecord = CodecFactory.newAudioRecord(CodecFactory.AUDIO_SAMPLE_RATE, CodecFactory.AUDIO_CHANNEL_COUNT);
+            if (audioRecord != null) {
+                audio.encoder = CodecFactory.newAudioEncoder(CodecFactory.AUDIO_SAMPLE_RATE,
+                        CodecFactory.AUDIO_CHANNEL_COUNT, CodecFactory.AUDIO_BIT_RATE);
+            } else {
+                Log.w(TAG, "recording without audio");
+            }
+            video.encoder.start();
+            if (audio.encoder != null) {
+                audio.encoder.start();
+                pcm = new byte[CodecFactory.getAudioBufferSize(CodecFactory.AUDIO_SAMPLE_RATE, CodecFactory.AUDIO_CHANNEL_COUNT)];
+                audioRecord.startRecording();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "start codec recorder failed", e);
+            release();
+            return false;
+        }
+        pausedUs = 0;
+        paused = false;
+        videoClockOffsetUs = 0;
+        startUs = -1;
+        lastAudioTimeUs = -1;
+        muxerStarted = false;
+        muxerFailed = false;
+        samplesWritten = 0;
+        abandoned = false;
+        recording = true;
+
+        videoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                videoLoop();
+            }
+        }, VIDEO_THREAD_NAME);
+        muxerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                muxLoop();
+            }
+        }, MUXER_THREAD_NAME);
+        videoThread.start();
+        muxerThread.start();
+        if (audio.encoder != null) {
+            audioThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    audioLoop();
+                }
+            }, AUDIO_THREAD_NAME);
+            audioThread.start();
+        }
+        if (!backend.startRecording(inputSurface)) {
+            Log.e(TAG, "camera closed");
+            stop();
+            return false;
+        }
+        Log.i(TAG, "recording " + size.x + "x" + size.y + " into " + file);
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void setInputSurface(MediaCodec encoder, Surface surface) {
+        encoder.setInputSurface(surface);
+    }
+
+    private static long nowUs() {
+        return System.nanoTime() / NANOS_PER_MICRO;
+    }
+
+    /**
+     * 暂停时相机不再向编码器输出，声音照常读取后丢弃，暂停的时间不计入时间轴
+     */
+    void pause() {
+        if (recording && !paused) {
+            backend.stopRecording();
+            pauseStartUs = nowUs();
+            paused = true;
+        }
+    }
+
+    void resume() {
+        if (recording && paused) {
+            pausedUs += nowUs() - pauseStartUs;
+            paused = false;
+            backend.startRecording(inputSurface);
+        }
+    }
+
+    /**
+     * 视频编码输出线程
+     */
+    private void videoLoop() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            while (!drain(video, info) && !abandoned) {
+                // 继续取出编码输出，直到结束标记
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "drain video encoder failed", e);
+        } finally {
+            putEnd(video);
+        }
+    }
+
+    /**
+     * 音频线程：采集声音送入编码器，并取出编码输出
+     */
+    private void audioLoop() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean endQueued = false;
+        try {
+            while (!abandoned) {
+                if (!endQueued) {
+                    endQueued = feedAudio(!recording);
+                }
+                if (drain(audio, info)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "drain audio encoder failed", e);
+        } finally {
+            putEnd(audio);
+        }
+    }
+
+    /**
+     * 读取一段 PCM 送入音频编码器
+     *
+     * @param end true 送入结束标记
+     * @return true 已经送入结束标记
+     */
+    private boolean feedAudio(boolean end) {
+        MediaCodec encoder = audio.encoder;
+        if (end) {
+            int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {
+                return false;
+            }
+            encoder.queueInputBuffer(index, 0, 0, Math.max(0, lastAudioTimeUs + 1), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        int length = audioRecord.read(pcm, 0, pcm.length);
+        if (length <= 0 || paused) {
+            return false;
+        }
+        int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0) {
+            Log.w(TAG, "audio encoder busy, dropped " + length + " bytes");
+            return false;
+        }
+        ByteBuffer input = encoder.getInputBuffer(index);
+        input.clear();
+        length = Math.min(length, input.remaining());
+        input.put(pcm, 0, length);
+        // 时间戳取这段 PCM 第一个采样的时间
+        int samples = length / (2 * CodecFactory.AUDIO_CHANNEL_COUNT);
+        long timeUs = nowUs() - samples * MICROS_PER_SECOND / CodecFactory.AUDIO_SAMPLE_RATE;
+        timeUs = Math.max(timeUs, lastAudioTimeUs + 1);
+        lastAudioTimeUs = timeUs;
+        encoder.queueInputBuffer(index, 0, length, timeUs, 0);
+        return false;
+    }
+
+    /**
+     * 取出编码器当前可用的输出，复制后放入队列
+     *
+     * @return true 编码器已经输出结束标记
+     */
+    private boolean drain(Stream stream, MediaCodec.BufferInfo info) throws InterruptedException {
+        MediaCodec encoder = stream.encoder;
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(info, stream.video ? TIMEOUT_US : TIMEOUT_US / 10);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return false;
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                Sample sample = stream.obtain();
+                sample.format = encoder.getOutputFormat();
+                put(stream, sample);
+            } else if (index >= 0) {
+                boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                long timeUs = config || info.size == 0 ? -1 : toTimelineUs(stream, info.presentationTimeUs);
+                if (timeUs >= 0) {
+                    ByteBuffer output = encoder.getOutputBuffer(index);
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    Sample sample = stream.obtain();
+                    sample.copy(output);
+                    sample.timeUs = timeUs;
+                    sample.flags = info.flags;
+                    stream.onEncoded(info.size);
+                    put(stream, sample);
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 换算到从第一帧画面开始、不含暂停的时间
+     *
+     * @return 样本时间，单位微秒，在第一帧画面之前的声音返回 -1
+     */
+    private long toTimelineUs(Stream stream, long presentationTimeUs) {
+        if (stream.video) {
+            if (startUs < 0) {
+                long offset = presentationTimeUs - nowUs();
+                // 画面时间戳来自相机，部分设备使用包含休眠时间的时钟
+                videoClockOffsetUs = Math.abs(offset) > CLOCK_MISMATCH_US ? offset : 0;
+                startUs = presentationTimeUs - videoClockOffsetUs - pausedUs;
+            }
+            return Math.max(0, presentationTimeUs - videoClockOffsetUs - pausedUs - startUs);
+        }
+        long start = startUs;
+        if (start < 0) {
+            return -1;
+        }
+        long timeUs = presentationTimeUs - pausedUs - start;
+        return timeUs < 0 ? -1 : timeUs;
+    }
+
+    /**
+     * 放入队列，队列已满时等待写文件线程
+     */
+    private void put(Stream stream, Sample sample) throws InterruptedException {
+        if (!stream.queue.offer(sample)) {
+            stream.stalls++;
+            stream.queue.put(sample);
+        }
+        int depth = stream.queue.size();
+        if (depth > stream.maxDepth) {
+            stream.maxDepth = depth;
+        }
+        available.release();
+    }
+
+    private void putEnd(Stream stream) {
+        Sample sample = stream.obtain();
+        sample.end = true;
+        try {
+            put(stream, sample);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 写文件线程：按时间交错两路样本写入文件，直到两路都结束
+     */
+    private void muxLoop() {
+        boolean videoEnded = false;
+        boolean audioEnded = audio.encoder == null;
+        try {
+            while (!videoEnded || !audioEnded) {
+                available.acquire();
+                Stream stream = pick(videoEnded, audioEnded);
+                if (stream == null) {
+                    // 还在等待另一路的格式
+                    available.release();
+                    Thread.sleep(POLL_MS);
+                    continue;
+                }
+                Sample sample = stream.queue.poll();
+                if (sample.end) {
+                    if (stream.video) {
+                        videoEnded = true;
+                    } else {
+                        audioEnded = true;
+                    }
+                } else if (sample.format != null) {
+                    addTrack(stream, sample.format);
+                } else {
+                    writeSample(stream, sample);
+                }
+                stream.recycle(sample);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (muxerStarted) {
+            try {
+                muxer.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "stop muxer failed", e);
+                muxerFailed = true;
+            }
+        }
+    }
+
+    /**
+     * @return 下一个要处理的样本所在的队列，还不能写入时返回 null
+     */
+    private Stream pick(boolean videoEnded, boolean audioEnded) {
+        Sample videoHead = video.queue.peek();
+        Sample audioHead = audio.queue.peek();
+        if (videoHead != null && (videoHead.end || videoHead.format != null)) {
+            return video;
+        }
+        if (audioHead != null && (audioHead.end || audioHead.format != null)) {
+            return audio;
+        }
+        if (!muxerStarted && !muxerFailed) {
+            startMuxer(videoEnded, audioEnded);
+            if (!muxerStarted && !muxerFailed) {
+                return null;
+            }
+        }
+        if (videoHead != null && audioHead != null) {
+            return videoHead.timeUs <= audioHead.timeUs ? video : audio;
+        }
+        return videoHead != null ? video : audioHead != null ? audio : null;
+    }
+
+    private void addTrack(Stream stream, MediaFormat format) {
+        if (muxerStarted) {
+            Log.w(TAG, "format changed after muxer started: " + format);
+            return;
+        }
+        try {
+            stream.track = muxer.addTrack(format);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "add track failed: " + format, e);
+            muxerFailed = true;
+        }
+    }
+
+    /**
+     * 所有还没有结束的流都有了轨道之后写入文件头，没有画面时放弃写入，之后的样本只取出不写入
+     */
+    private void startMuxer(boolean videoEnded, boolean audioEnded) {
+        if (video.track < 0) {
+            muxerFailed = videoEnded;
+            return;
+        }
+        if (audio.track < 0 && !audioEnded) {
+            return;
+        }
+        try {
+            muxer.start();
+            muxerStarted = true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "start muxer failed", e);
+            muxerFailed = true;
+        }
+    }
+
+    private void writeSample(Stream stream, Sample sample) {
+        if (stream.track < 0 || muxerFailed) {
+            return;
+        }
+        boolean keyFrame = !stream.video || (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        OnEncodedSampleListener listener = sampleListener;
+        if (listener != null) {
+            listener.onEncodedSample(stream.video, sample.data.asReadOnlyBuffer(), sample.timeUs, keyFrame);
+        }
+        stream.info.set(0, sample.data.remaining(), sample.timeUs, sample.flags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        try {
+            muxer.writeSampleData(stream.track, sample.data, stream.info);
+            samplesWritten++;
+        } catch (RuntimeException e) {
+            // 写入失败之后继续取出样本，编码线程不会被队列阻塞
+            Log.e(TAG, "write sample failed", e);
+            muxerFailed = true;
+        }
+    }
+
+    /**
+     * 结束录制。编码线程取完结束标记后退出，写文件线程写完队列中的样本后自己结束文件，
+     * 三个线程都退出之后才释放编码器与封装器
+     *
+     * @return 录制完成的文件，录制失败时返回 null
+     */
+    File stop() {
+        if (!recording) {
+            return null;
+        }
+        backend.stopRecording();
+        recording = false;
+        try {
+            video.encoder.signalEndOfInputStream();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "signal end of stream failed", e);
+        }
+        long deadline = SystemClock.uptimeMillis() + STOP_TIMEOUT_MS;
+        boolean interrupted = join(videoThread, deadline);
+        interrupted |= join(audioThread, deadline);
+        interrupted |= join(muxerThread, deadline);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        boolean written = muxerStarted && !muxerFailed && samplesWritten > 0;
+        Log.i(TAG, "recorded " + samplesWritten + " samples, " + getStats());
+        release();
+        return written ? file : null;
+    }
+
+    /**
+     * 等待线程退出。超过期限后让编码线程放弃剩余的输出，然后继续等待：编码线程中的调用都有超时，
+     * 写文件线程在两路结束标记之后退出，中断线程会让结束标记放不进队列，所以不中断
+     *
+     * @return true 等待时当前线程被中断
+     */
+    private boolean join(Thread thread, long deadline) {
+        boolean interrupted = false;
+        while (thread != null && thread.isAlive()) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0 && !abandoned) {
+                Log.e(TAG, thread.getName() + " did not finish in " + STOP_TIMEOUT_MS + "ms, dropping the rest");
+                abandoned = true;
+            }
+            try {
+                thread.join(Math.max(remaining, 0));
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * 只在没有编码与写文件线程时调用：开始失败时线程还没有创建，结束录制时线程都已经退出
+     */
+    private void release() {
+        recording = false;
+        if (audioRecord != null) {
+            try {
+                audioRecord.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "stop audio record failed", e);
+            }
+            audioRecord.release();
+            audioRecord = null;
+        }
+        video.encoder = releaseCodec(video.encoder);
+        audio.encoder = releaseCodec(audio.encoder);
+        if (inputSurface != null && !persistentInput) {
+            inputSurface.release();
+        }
+        inputSurface = null;
+        if (muxer != null) {
+            try {
+                muxer.release();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "release muxer failed", e);
+            }
+            muxer = null;
+        }
+        videoThread = null;
+        audioThread = null;
+        muxerThread = null;
+    }
+
+    private static MediaCodec releaseCodec(MediaCodec codec) {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "stop codec failed", e);
+            }
+            codec.release();
+        }
+        return null;
+    }
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    File getOutputFile() {
+        return file;
+    }
+
+    /**
+     * @return 当前或者最近一次录制的统计，可以在任意线程调用
+     */
+    EncoderStats getStats() {
+        return new EncoderStats(video.bytes, audio.bytes, video.bytesPerSecond, audio.bytesPerSecond,
+                video.queue.size(), audio.queue.size(), video.maxDepth, audio.maxDepth, video.stalls, audio.stalls);
+    }
+
+    /**
+     * 一路编码输出：有界队列、回收的样本与统计
+     */
+    private static final class Stream {
+        private static final long WINDOW_NANOS = 1000000000L;
+        final boolean video;
+        final ArrayBlockingQueue<Sample> queue;
+        /**
+         * 写入后回收的样本，复用其中的直接缓冲
+         */
+        final ArrayBlockingQueue<Sample> pool;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaCodec encoder;
+        int track = -1;
+        volatile long bytes;
+        volatile float bytesPerSecond;
+        volatile int maxDepth;
+        volatile long stalls;
+        private long windowStartNanos;
+        private long windowBytes;
+
+        Stream(boolean video, int capacity) {
+            this.video = video;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.pool = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void reset() {
+            queue.clear();
+            track = -1;
+            bytes = 0;
+            bytesPerSecond = 0;
+            maxDepth = 0;
+            stalls = 0;
+            windowStartNanos = 0;
+            windowBytes = 0;
+        }
+
+        Sample obtain() {
+            Sample sample = pool.poll();
+            return sample != null ? sample : new Sample();
+        }
+
+        void recycle(Sample sample) {
+            sample.format = null;
+            sample.end = false;
+            pool.offer(sample);
+        }
+
+        /**
+         * 只在这一路的编码线程调用
+         */
+        void onEncoded(int size) {
+            long now = System.nanoTime();
+            if (windowStartNanos == 0) {
+                windowStartNanos = now;
+            }
+            bytes += size;
+            windowBytes += size;
+            long elapsed = now - windowStartNanos;
+            if (elapsed >= WINDOW_NANOS) {
+                bytesPerSecond = windowBytes * (float) WINDOW_NANOS / elapsed;
+                windowStartNanos = now;
+                windowBytes = 0;
+            }
+        }
+    }
+
+    private static final class Sample {
+        ByteBuffer data;
+        long timeUs;
+        int flags;
+        MediaFormat format;
+        boolean end;
+
+        void copy(ByteBuffer source) {
+            int size = source.remaining();
+            if (data == null || data.capacity() < size) {
+                data = ByteBuffer.allocateDirect(size);
+            }
+            data.clear();
+            data.put(source);
+            data.flip();
+        }
+    }
+}
@@ -26,6 +26,8 @@ import android.view.Display;
 import android.view.Surface;
 import android.view.WindowManager;
 
+import java.util.Arrays;
+
 /**
  * A class which deals with reading, parsing, and setting the camera parameters which are used to
  * configure the camera hardware.
@@ -42,16 +44,27 @@ final class ConfigManager {
     private Point cameraResolution;
     private Point bestPreviewSize;
     private Point previewSizeOnScreen;
+    /**
+     * 锁定帧率时的目标帧数，0 表示使用相机默认的帧率范围
+     */
+    private int constantFrameRate;
+    /**
+     * 设置参数后相机实际使用的帧率范围 {min, max}，单位为 帧数*1000
+     */
+    private int[] previewFpsRange;
 
     ConfigManager(Context context) {
         this.context = context;
     }
 
     /**
-     * Reads, one time, values from the camera that are needed by the app.
+     * Reads values from the camera that are needed by the app. Sizes come from the cached capabilities,
+     * so this does not query or re-parse the camera parameters.
+     *
+     * @param videoSize video size chosen for the recording, may be null; the preview size is matched to it
+     * @return true if a new preview size was chosen and stored into the capabilities
      */
-    void initFromCameraParameters(RecorderCamera camera) {
-        Camera.Parameters parameters = camera.getCamera().getParameters();
+    boolean initFromCameraParameters(RecorderCamera camera, CameraCapabilities capabilities, Point videoSize) {
         WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         Display display = manager.getDefaultDisplay();
 
@@ -104,9 +117,18 @@ final class ConfigManager {
         display.getSize(theScreenResolution);
         screenResolution = theScreenResolution;
         Log.i(TAG, "Screen resolution in current orientation: " + screenResolution);
-        cameraResolution = CameraUtils.findBestPreviewSizeValue(parameters, screenResolution);
+        boolean chosen = false;
+        int[] video = videoSize == null ? null : new int[]{videoSize.x, videoSize.y};
+        int[] cachedSize = capabilities.getChosenPreviewSize(screenResolution.x, screenResolution.y, video);
+        if (cachedSize != null) {
+            bestPreviewSize = new Point(cachedSize[0], cachedSize[1]);
+        } else {
+            bestPreviewSize = CameraUtils.findBestPreviewSizeValue(capabilities, screenResolution, videoSize);
+            capabilities.setChosenPreviewSize(screenResolution.x, screenResolution.y, video, bestPreviewSize.x, bestPreviewSize.y);
+            chosen = true;
+        }
+        cameraResolution = new Point(bestPreviewSize);
         Log.i(TAG, "Camera resolution: " + cameraResolution);
-        bestPreviewSize = CameraUtils.findBestPreviewSizeValue(parameters, screenResolution);
         Log.i(TAG, "Best available preview size: " + bestPreviewSize);
 
         boolean isScreenPortrait = screenResolution.x < screenResolution.y;
@@ -118,6 +140,7 @@ final class ConfigManager {
             previewSizeOnScreen = new Point(bestPreviewSize.y, bestPreviewSize.x);
         }
         Log.i(TAG, "Preview size on screen: " + previewSizeOnScreen);
+        return chosen;
     }
 
     void setDesiredCameraParameters(RecorderCamera camera, boolean safeMode) {
@@ -167,6 +190,11 @@ final class ConfigManager {
 
         }
 
+        int[] fpsRange = null;
+        if (!safeMode && constantFrameRate > 0) {
+            fpsRange = CameraUtils.setConstantPreviewFPS(parameters, constantFrameRate);
+        }
+
         parameters.setPreviewSize(bestPreviewSize.x, bestPreviewSize.y);
 
         theCamera.setParameters(parameters);
@@ -181,6 +209,29 @@ final class ConfigManager {
             bestPreviewSize.x = afterSize.width;
             bestPreviewSize.y = afterSize.height;
         }
+        int[] afterFpsRange = new int[2];
+        afterParameters.getPreviewFpsRange(afterFpsRange);
+        if (fpsRange != null && !Arrays.equals(fpsRange, afterFpsRange)) {
+            Log.w(TAG, "Camera said it supported FPS range " + Arrays.toString(fpsRange) +
+                    ", but after setting it, FPS range is " + Arrays.toString(afterFpsRange));
+        }
+        previewFpsRange = afterFpsRange;
+    }
+
+    /**
+     * 设置锁定的帧数，下一次设置相机参数时生效
+     *
+     * @param constantFrameRate 目标帧数，0 表示不锁定
+     */
+    void setConstantFrameRate(int constantFrameRate) {
+        this.constantFrameRate = constantFrameRate;
+    }
+
+    /**
+     * @return 相机实际使用的帧率范围 {min, max}，单位为 帧数*1000，还没有设置参数时为 null
+     */
+    int[] getPreviewFpsRange() {
+        return previewFpsRange;
     }
 
     Point getBestPreviewSize() {
@@ -216,21 +267,31 @@ final class ConfigManager {
         return false;
     }
 
-    void setTorch(Camera camera, boolean newSetting) {
+    /**
+     * 在一次参数设置中修改闪光灯与曝光补偿
+     *
+     * @param adjustExposure 是否总是调整曝光补偿，否则按 {@link RecorderConfig#KEY_DISABLE_EXPOSURE} 设置
+     */
+    void setTorch(Camera camera, boolean newSetting, boolean adjustExposure) {
         Camera.Parameters parameters = camera.getParameters();
-        doSetTorch(parameters, newSetting, false);
+        doSetTorch(parameters, newSetting, false, adjustExposure);
         camera.setParameters(parameters);
     }
 
+    FrontLightMode getFrontLightMode() {
+        return FrontLightMode.readPref(PreferenceManager.getDefaultSharedPreferences(context));
+    }
+
     private void initializeTorch(Camera.Parameters parameters, SharedPreferences prefs, boolean safeMode) {
+        // AUTO 先关闭，开始预览后根据画面亮度决定，见 AutoTorch
         boolean currentSetting = FrontLightMode.readPref(prefs) == FrontLightMode.ON;
-        doSetTorch(parameters, currentSetting, safeMode);
+        doSetTorch(parameters, currentSetting, safeMode, false);
     }
 
-    private void doSetTorch(Camera.Parameters parameters, boolean newSetting, boolean safeMode) {
+    private void doSetTorch(Camera.Parameters parameters, boolean newSetting, boolean safeMode, boolean adjustExposure) {
         CameraUtils.setTorch(parameters, newSetting);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        if (!safeMode && !prefs.getBoolean(RecorderConfig.KEY_DISABLE_EXPOSURE, true)) {
+        if (!safeMode && (adjustExposure || !prefs.getBoolean(RecorderConfig.KEY_DISABLE_EXPOSURE, true))) {
             CameraUtils.setBestExposure(parameters, newSetting);
         }
     }
@@ -3,7 +3,6 @@ package com.nathaniel.recorder;
 import android.content.Context;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.AttributeSet;
@@ -19,6 +18,10 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
 /**
  * @author nathaniel
  */
@@ -40,6 +43,33 @@ public class ControllerView extends FrameLayout implements View.OnClickListener,
     private OnRecorderListener onRecorderListener;
     private ProgressBar progressBar;
     private long realDuration;
+    /**
+     * 正在写入的录制文件，完成之前显示保存中
+     */
+    private FinalizeFuture saving;
+    private final Executor mainExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mainHandler.post(command);
+        }
+    };
+    /**
+     * 录制没有开始或者出错时恢复控件
+     */
+    private final RecorderStateMachine.OnStateChangeListener stateListener = new RecorderStateMachine.OnStateChangeListener() {
+        @Override
+        public void onStateChanged(RecorderState previous, RecorderState current) {
+            if (previous == RecorderState.PREPARING && (current == RecorderState.PREVIEWING || current == RecorderState.IDLE)
+                    || current == RecorderState.ERROR && previous.isRecording()) {
+                resetControls();
+            }
+        }
+
+        @Override
+        public void onTransitionRejected(RecorderState current, RecorderState requested) {
+            Log.w(TAG, "request " + requested + " rejected in state " + current);
+        }
+    };
 
     private Runnable durationCounter = new Runnable() {
         @Override
@@ -89,14 +119,16 @@ public class ControllerView extends FrameLayout implements View.OnClickListener,
     }
 
     private void cancelRecorder() {
-        Log.e(TAG, "cancel: last recorder status " + recorderView.getRecorderStatus().name());
-        if (recorderView.getRecorderStatus() == RecorderStatus.PREPARED) {
+        Log.e(TAG, "cancel: last recorder state " + recorderView.getRecorderState());
+        if (!recorderView.cancelRecorder()) {
             return;
         }
-        recorderView.setRecorderStatus(RecorderStatus.PREPARED);
-        recorderStart.setImageResource(R.drawable.icon_start_record);
         startTime = System.currentTimeMillis();
-        recorderView.cancelRecorder();
+        resetControls();
+    }
+
+    private void resetControls() {
+        recorderStart.setImageResource(R.drawable.icon_start_record);
         mainHandler.removeCallbacks(durationCounter);
         progressBar.setProgress(0);
         progressBar.setVisibility(View.GONE);
@@ -111,6 +143,7 @@ public class ControllerView extends FrameLayout implements View.OnClickListener,
         }
         this.recorderView = recorderView;
         recorderView.setVideoPath(parentPath, videoName);
+        recorderView.getStateMachine().addOnStateChangeListener(stateListener, mainExecutor);
     }
 
     public void setDuration(int minDuration, int maxDuration) {
@@ -149,69 +182,120 @@ public class ControllerView extends FrameLayout implements View.OnClickListener,
     }
 
     private void startRecorder() {
-        Log.e(TAG, "recorder status is " + recorderView.getRecorderStatus().name());
+        RecorderState state = recorderView.getRecorderState();
+        Log.e(TAG, "recorder state is " + state);
         if (onRecorderListener == null) {
             throw new RuntimeException(" onRecorderListener is null");
         } else {
             onRecorderListener.onRecorderStart();
         }
-        if (recorderView.getRecorderStatus() == RecorderStatus.RECORDING) {
+        // 状态在请求被接受时已经转换，被拒绝时控件保持不变
+        if (state == RecorderState.RECORDING) {
             // 从录制状态转换到暂停状态
+            if (!recorderView.pauseRecord()) {
+                return;
+            }
             pausedTime = System.currentTimeMillis();
             recorderStart.setImageResource(R.drawable.icon_start_record);
             long duration = System.currentTimeMillis() - startTime;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                recorderView.setRecorderStatus(RecorderStatus.PAUSING);
-                videoCancel.setVisibility(duration >= 2000 ? View.VISIBLE : View.GONE);
-                videoFinish.setVisibility(duration > 3000 ? View.VISIBLE : View.GONE);
-                recorderView.pauseRecord();
-            } else {
-                recorderView.stopRecorder();
-                recorderView.setRecorderStatus(RecorderStatus.PREPARED);
-            }
+            videoCancel.setVisibility(duration >= 2000 ? View.VISIBLE : View.GONE);
+            videoFinish.setVisibility(duration > 3000 ? View.VISIBLE : View.GONE);
             mainHandler.removeCallbacks(durationCounter);
-        } else if (recorderView.getRecorderStatus() == RecorderStatus.PAUSING) {
+        } else if (state == RecorderState.PAUSED) {
             // 暂停状态到录制状态
+            if (!recorderView.resumeRecord()) {
+                return;
+            }
             pauseDuration += System.currentTimeMillis() - pausedTime;
             Log.e(TAG, String.format("暂停时长:%s", formatTime(pauseDuration)));
             recorderStart.setImageResource(R.drawable.icon_stop_record);
-            recorderView.setRecorderStatus(RecorderStatus.RECORDING);
             mainHandler.post(durationCounter);
-            recorderView.resumeRecord();
             videoFinish.setVisibility(View.GONE);
             videoCancel.setVisibility(View.GONE);
         } else {
-            // 从未录制到录制状态
+            // 从未录制到录制状态，上一个文件可以继续在后台写入
+            if (!recorderView.startRecorder()) {
+                return;
+            }
+            hideSaving();
             recorderStart.setImageResource(R.drawable.icon_stop_record);
-            recorderView.setRecorderStatus(RecorderStatus.RECORDING);
             startTime = System.currentTimeMillis();
+            pauseDuration = 0;
             mainHandler.removeCallbacks(durationCounter);
-            recorderView.startRecorder();
             mainHandler.post(durationCounter);
         }
     }
 
     private void stopRecorder() {
-        if (recorderView.getRecorderStatus() == RecorderStatus.PREPARED) {
+        if (!recorderView.getRecorderState().isRecording()) {
             return;
         }
         realDuration = System.currentTimeMillis() - startTime - pauseDuration;
         if (minDuration > 0 && (realDuration < minDuration * 3000)) {
-            recorderView.cancelRecorder();
+            cancelRecorder();
             Toast.makeText(getContext(), getContext().getString(R.string.record_min_duration_hint, minDuration), Toast.LENGTH_SHORT).show();
             recorderStart.setVisibility(View.VISIBLE);
             return;
         }
+        // 录制器在相机线程中结束，立即返回，文件写入完成之后再扫描
+        final FinalizeFuture future = recorderView.resetRecorder();
+        if (future == null) {
+            return;
+        }
         recorderStart.setImageResource(R.drawable.icon_start_record);
-        recorderView.setRecorderStatus(RecorderStatus.PREPARED);
         Log.e(TAG, String.format("结束录制，时长: %s", formatTime(realDuration)));
-        recorderTime.setText(formatTime(realDuration));
         mainHandler.removeCallbacks(durationCounter);
-        recorderView.resetRecorder();
-        videoCamera.setClickable(recorderView.getRecorderStatus() != RecorderStatus.RECORDING);
+        videoCamera.setClickable(true);
         recorderFlash.setVisibility(recorderView.getTorchEnable() ? View.VISIBLE : View.GONE);
         recorderStart.setVisibility(View.VISIBLE);
-        MediaScannerConnection.scanFile(getContext(), new String[]{recorderView.getVideoPath()}, null, this);
+        videoCancel.setVisibility(View.GONE);
+        videoFinish.setVisibility(View.GONE);
+        showSaving(future);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                onFinalized(future);
+            }
+        }, mainExecutor);
+    }
+
+    /**
+     * 文件写入期间进度条显示为不确定进度
+     */
+    private void showSaving(FinalizeFuture future) {
+        saving = future;
+        recorderTime.setText(R.string.record_saving);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisibility(View.VISIBLE);
+    }
+
+    private void hideSaving() {
+        if (saving == null) {
+            return;
+        }
+        saving = null;
+        progressBar.setIndeterminate(false);
+        progressBar.setProgress(0);
+    }
+
+    private void onFinalized(FinalizeFuture future) {
+        File file;
+        try {
+            file = future.get();
+        } catch (ExecutionException | InterruptedException e) {
+            Log.e(TAG, "save video failed", e);
+            file = null;
+        }
+        if (saving == future) {
+            hideSaving();
+            progressBar.setVisibility(View.GONE);
+            recorderTime.setText(formatTime(realDuration));
+        }
+        if (file == null) {
+            Toast.makeText(getContext(), R.string.record_save_error, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        MediaScannerConnection.scanFile(getContext(), new String[]{file.getAbsolutePath()}, null, this);
     }
 
 
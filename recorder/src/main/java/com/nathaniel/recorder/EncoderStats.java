@@ -0,0 +1,104 @@
+package com.nathaniel.recorder;
+
+/**
+ * MediaCodec 录制管线的统计快照，见 {@link RecorderView#getEncoderStats()}
+ *
+ * @author nathaniel
+ */
+public final class EncoderStats {
+
+    private final long videoBytes;
+    private final long audioBytes;
+    private final float videoBytesPerSecond;
+    private final float audioBytesPerSecond;
+    private final int videoQueueDepth;
+    private final int audioQueueDepth;
+    private final int maxVideoQueueDepth;
+    private final int maxAudioQueueDepth;
+    private final long videoQueueStalls;
+    private final long audioQueueStalls;
+
+    EncoderStats(long videoBytes, long audioBytes, float videoBytesPerSecond, float audioBytesPerSecond,
+                 int videoQueueDepth, int audioQueueDepth, int maxVideoQueueDepth, int maxAudioQueueDepth,
+                 long videoQueueStalls, long audioQueueStalls) {
+        this.videoBytes = videoBytes;
+        this.audioBytes = audioBytes;
+        this.videoBytesPerSecond = videoBytesPerSecond;
+        this.audioBytesPerSecond = audioBytesPerSecond;
+        this.videoQueueDepth = videoQueueDepth;
+        this.audioQueueDepth = audioQueueDepth;
+        this.maxVideoQueueDepth = maxVideoQueueDepth;
+        this.maxAudioQueueDepth = maxAudioQueueDepth;
+        this.videoQueueStalls = videoQueueStalls;
+        this.audioQueueStalls = audioQueueStalls;
+    }
+
+    /**
+     * @return 本次录制视频编码器输出的字节数
+     */
+    public long getVideoBytes() {
+        return videoBytes;
+    }
+
+    /**
+     * @return 本次录制音频编码器输出的字节数
+     */
+    public long getAudioBytes() {
+        return audioBytes;
+    }
+
+    /**
+     * @return 最近约 1 秒视频编码器每秒输出的字节数
+     */
+    public float getVideoBytesPerSecond() {
+        return videoBytesPerSecond;
+    }
+
+    /**
+     * @return 最近约 1 秒音频编码器每秒输出的字节数
+     */
+    public float getAudioBytesPerSecond() {
+        return audioBytesPerSecond;
+    }
+
+    /**
+     * @return 等待写入文件的视频帧数
+     */
+    public int getVideoQueueDepth() {
+        return videoQueueDepth;
+    }
+
+    /**
+     * @return 等待写入文件的音频帧数
+     */
+    public int getAudioQueueDepth() {
+        return audioQueueDepth;
+    }
+
+    public int getMaxVideoQueueDepth() {
+        return maxVideoQueueDepth;
+    }
+
+    public int getMaxAudioQueueDepth() {
+        return maxAudioQueueDepth;
+    }
+
+    /**
+     * @return 视频队列已满、编码输出等待写入的次数，持续增长说明存储写入跟不上码率
+     */
+    public long getVideoQueueStalls() {
+        return videoQueueStalls;
+    }
+
+    public long getAudioQueueStalls() {
+        return audioQueueStalls;
+    }
+
+    @Override
+    public String toString() {
+        return "video " + videoBytes + " bytes, " + videoBytesPerSecond + " B/s, queue " + videoQueueDepth + "/"
+                + maxVideoQueueDepth + ", stalls " + videoQueueStalls + "; audio " + audioBytes + " bytes, "
+                + audioBytesPerSecond + " B/s, queue " + audioQueueDepth + "/" + maxAudioQueueDepth
+                + ", stalls " + audioQueueStalls;
+    }
+}
@@ -0,0 +1,572 @@
+package com.nathaniel.recorder;
+
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import com.nathaniel.recorder.frame.TestPattern;
+import com.nathaniel.recorder.policy.FrameRateSelector;
+import com.nathaniel.recorder.policy.SizeSelector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 不需要相机硬件的合成相机后端，用于在 CI 或 Robolectric 中对录制流程做压测与延迟测试。
+ * <p>
+ * 与 {@link CameraManager} 的相机一样协商预览尺寸与帧率，在相机线程中按设置的耗时阻塞以模拟 HAL 打开、设置参数与开始预览，
+ * 然后在单独的 HAL 线程中按帧率生成 {@link TestPattern} 的 NV21 画面，交给 {@link CameraManager} 的预览帧分发器。
+ * 因此预览帧分析器、运动触发、分片 MP4 录制与 {@link RecorderMetrics} 都与真实相机走同一条路径；
+ * 分发器没有交还缓冲时这一帧被跳过，与相机 HAL 丢帧一致。画面只由帧序号与种子决定，同样的设置每次运行得到相同的帧。
+ * <p>
+ * 帧时间按 {@link SystemClock#uptimeMillis()} 安排，模拟的耗时使用 {@link SystemClock#sleep}，
+ * 在 Robolectric 中由测试推进时钟，结果不受机器快慢影响。预览不会画到 Surface 上。
+ * 设置方法可以在任意线程调用，下一次打开相机时生效
+ *
+ * @author nathaniel
+ */
+public final class FakeCamera implements CameraBackend {
+
+    private static final String TAG = FakeCamera.class.getSimpleName();
+    private static final String THREAD_NAME = "FakeCameraHal";
+    private static final int DEFAULT_WIDTH = 1920;
+    private static final int DEFAULT_HEIGHT = 1080;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int BACK_ORIENTATION = 90;
+    private static final int FRONT_ORIENTATION = 270;
+    /**
+     * 默认耗时，取自中端设备上 camera1 的常见值，单位毫秒
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 300;
+    public static final long DEFAULT_PARAMETERS_MILLIS = 40;
+    public static final long DEFAULT_START_PREVIEW_MILLIS = 150;
+    public static final long DEFAULT_FIRST_FRAME_MILLIS = 200;
+    public static final long DEFAULT_CLOSE_MILLIS = 100;
+    public static final int DEFAULT_JITTER_MILLIS = 2;
+    private static final int[][] DEFAULT_SIZES = {
+            {1920, 1080}, {1440, 1080}, {1280, 720}, {960, 720}, {960, 540}, {640, 480}, {352, 288}, {320, 240}
+    };
+    private static final int[][] DEFAULT_FPS_RANGES = {
+            {15000, 15000}, {24000, 24000}, {7000, 30000}, {30000, 30000}
+    };
+
+    private final CameraManager cameraManager;
+    private final Handler mainHandler;
+    /**
+     * 来自分发器的空闲缓冲与等待交给分发器的帧，都由 buffers 保护
+     */
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> ready = new ArrayDeque<>();
+    private final PreviewDispatcher.BufferSource previewSource = new PreviewDispatcher.BufferSource() {
+        @Override
+        public void addCallbackBuffer(byte[] buffer) {
+            synchronized (buffers) {
+                buffers.addLast(buffer);
+            }
+        }
+
+        @Override
+        public void setPreviewCallbackWithBuffer(PreviewDispatcher dispatcher) {
+            synchronized (buffers) {
+                callback = dispatcher;
+                if (dispatcher == null) {
+                    buffers.clear();
+                    ready.clear();
+                }
+            }
+        }
+    };
+    private final Runnable produceTask = new Runnable() {
+        @Override
+        public void run() {
+            produceFrame();
+        }
+    };
+    private final Runnable deliverTask = new Runnable() {
+        @Override
+        public void run() {
+            deliverFrames();
+        }
+    };
+    // 以下设置由 this 保护
+    private CameraFacing cameraFacing = CameraFacing.BACK;
+    private Point requestedVideoSize;
+    private int constantFrameRate;
+    private SizeSelector.Cost requestedSizeCost;
+    private TestPattern.Type patternType = TestPattern.Type.MOVING_BOX;
+    private long seed;
+    private int patternPeriod = TestPattern.DEFAULT_PERIOD;
+    private int[][] supportedSizes = DEFAULT_SIZES;
+    private int[][] fpsRanges = DEFAULT_FPS_RANGES;
+    private int frameRate = DEFAULT_FRAME_RATE;
+    private long openMillis = DEFAULT_OPEN_MILLIS;
+    private long parametersMillis = DEFAULT_PARAMETERS_MILLIS;
+    private long startPreviewMillis = DEFAULT_START_PREVIEW_MILLIS;
+    private long firstFrameMillis = DEFAULT_FIRST_FRAME_MILLIS;
+    private long closeMillis = DEFAULT_CLOSE_MILLIS;
+    private int jitterMillis = DEFAULT_JITTER_MILLIS;
+    // 以下字段只在相机线程中修改
+    private HandlerThread halThread;
+    private Handler halHandler;
+    // 以下字段由 buffers 保护
+    private PreviewDispatcher callback;
+    private boolean producing;
+    // 以下字段只在 HAL 线程中使用
+    private Handler producerHandler;
+    private TestPattern pattern;
+    private long frameIndex;
+    private long firstFrameUptime;
+    private int deliveredFrameRate;
+    private int frameJitter;
+    private long frameSeed;
+    private volatile RecorderCamera openCamera;
+    private volatile Point previewSize;
+    private volatile int[] previewFpsRange;
+    private volatile boolean torch;
+    private volatile long producedFrames;
+    private volatile long skippedFrames;
+
+    /**
+     * @param cameraManager 提供相机线程、预览帧分发器与耗时统计
+     */
+    public FakeCamera(CameraManager cameraManager) {
+        this.cameraManager = cameraManager;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * 设置画面内容
+     *
+     * @param type   画面类型
+     * @param seed   随机画面的种子
+     * @param period 方块往返一次或亮度变化一个周期的帧数
+     */
+    public synchronized void setPattern(TestPattern.Type type, long seed, int period) {
+        if (type == null || period < 2) {
+            throw new IllegalArgumentException("type must not be null and period must be at least 2 frames");
+        }
+        this.patternType = type;
+        this.seed = seed;
+        this.patternPeriod = period;
+    }
+
+    /**
+     * 设置相机支持的预览与视频尺寸，预览与录制按 {@link SizeSelector} 在其中协商
+     *
+     * @param sizes {width, height} 数组，宽高必须为偶数
+     */
+    public synchronized void setSupportedSizes(int[][] sizes) {
+        if (sizes == null || sizes.length == 0) {
+            throw new IllegalArgumentException("sizes must not be empty");
+        }
+        for (int[] size : sizes) {
+            if (size[0] <= 0 || size[1] <= 0 || (size[0] & 1) != 0 || (size[1] & 1) != 0) {
+                throw new IllegalArgumentException("Bad size " + Arrays.toString(size));
+            }
+        }
+        this.supportedSizes = sizes.clone();
+    }
+
+    /**
+     * 设置相机支持的帧率范围，锁定帧率时在其中选择
+     *
+     * @param ranges {min, max} 数组，单位为 帧数*1000
+     */
+    public synchronized void setFpsRanges(int[][] ranges) {
+        if (ranges == null || ranges.length == 0) {
+            throw new IllegalArgumentException("ranges must not be empty");
+        }
+        this.fpsRanges = ranges.clone();
+    }
+
+    /**
+     * 设置没有锁定帧率时输出的帧数
+     *
+     * @param fps 帧数
+     */
+    public synchronized void setFrameRate(int fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("fps must be positive");
+        }
+        this.frameRate = fps;
+    }
+
+    /**
+     * 设置模拟的 HAL 耗时，单位毫秒，0 表示不等待
+     *
+     * @param openMillis         打开相机
+     * @param parametersMillis   设置参数
+     * @param startPreviewMillis 开始预览
+     * @param firstFrameMillis   开始预览到第一帧
+     * @param closeMillis        关闭相机
+     */
+    public synchronized void setLatencies(long openMillis, long parametersMillis, long startPreviewMillis,
+                                          long firstFrameMillis, long closeMillis) {
+        if (openMillis < 0 || parametersMillis < 0 || startPreviewMillis < 0 || firstFrameMillis < 0 || closeMillis < 0) {
+            throw new IllegalArgumentException("latencies must not be negative");
+        }
+        this.openMillis = openMillis;
+        this.parametersMillis = parametersMillis;
+        this.startPreviewMillis = startPreviewMillis;
+        this.firstFrameMillis = firstFrameMillis;
+        this.closeMillis = closeMillis;
+    }
+
+    /**
+     * 设置每一帧到达时间的抖动，抖动由种子与帧序号决定
+     *
+     * @param jitterMillis 最大提前或推迟的毫秒数，0 表示严格按帧率
+     */
+    public synchronized void setFrameJitter(int jitterMillis) {
+        if (jitterMillis < 0) {
+            throw new IllegalArgumentException("jitterMillis must not be negative");
+        }
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * @return 本次预览生成并交给分发器的帧数
+     */
+    public long getProducedFrameCount() {
+        return producedFrames;
+    }
+
+    /**
+     * @return 本次预览中分发器没有空闲缓冲而跳过的帧数
+     */
+    public long getSkippedFrameCount() {
+        return skippedFrames;
+    }
+
+    @Override
+    public void openAsync(SurfaceHolder holder, final CameraFacing cameraFacing, final OnCameraListener listener) {
+        synchronized (this) {
+            this.cameraFacing = cameraFacing;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                try {
+                    openCamera(cameraFacing);
+                    notifyOpened(listener, openCamera);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "open fake camera " + cameraFacing + " failed", e);
+                    closeCamera();
+                    notifyError(listener, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void closeAsync(final OnCameraListener listener) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                if (listener != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onCameraClosed();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    @Override
+    public CameraFacing flipAsync(SurfaceHolder holder, OnCameraListener listener) {
+        CameraFacing target;
+        synchronized (this) {
+            target = cameraFacing == CameraFacing.FRONT ? CameraFacing.BACK : CameraFacing.FRONT;
+        }
+        openAsync(holder, target, listener);
+        return target;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        cameraManager.execute(task);
+    }
+
+    /**
+     * 协商尺寸与帧率并开始输出预览帧，只在相机线程调用
+     */
+    private void openCamera(CameraFacing cameraFacing) {
+        Point requested;
+        int fps;
+        int defaultFps;
+        SizeSelector.Cost cost;
+        int[][] sizes;
+        List<int[]> ranges;
+        long[] latencies;
+        synchronized (this) {
+            requested = requestedVideoSize != null ? requestedVideoSize : new Point(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+            fps = constantFrameRate;
+            defaultFps = frameRate;
+            cost = requestedSizeCost != null ? requestedSizeCost : cameraManager.getDefaultSizeCost();
+            sizes = supportedSizes;
+            ranges = new ArrayList<>(Arrays.asList(fpsRanges));
+            latencies = new long[]{openMillis, parametersMillis, startPreviewMillis, firstFrameMillis, closeMillis};
+        }
+        RecorderMetrics metrics = cameraManager.getMetrics();
+        long begin = metrics.begin(RecorderMetrics.Stage.CAMERA_OPEN);
+        sleep(latencies[0]);
+        metrics.end(RecorderMetrics.Stage.CAMERA_OPEN, begin);
+        boolean front = cameraFacing == CameraFacing.FRONT;
+        RecorderCamera theCamera = new RecorderCamera(front ? 1 : 0, null, cameraFacing,
+                front ? FRONT_ORIENTATION : BACK_ORIENTATION);
+
+        begin = metrics.begin(RecorderMetrics.Stage.SET_PARAMETERS);
+        SizeSelector selector = new SizeSelector(sizes, sizes, cost);
+        int[] video = selector.selectVideoSize(requested.x, requested.y);
+        int[] preview = selector.selectPreviewSize(requested.x, requested.y, video);
+        if (preview == null) {
+            throw new IllegalStateException("No preview size for " + requested);
+        }
+        int[] range = fps > 0 ? FrameRateSelector.findConstantRange(ranges, fps) : null;
+        sleep(latencies[1]);
+        metrics.end(RecorderMetrics.Stage.SET_PARAMETERS, begin);
+        Point thePreviewSize = new Point(preview[0], preview[1]);
+        previewSize = thePreviewSize;
+        previewFpsRange = range;
+        openCamera = theCamera;
+        int outputFps = range != null ? range[FrameRateSelector.MAX_INDEX] / 1000 : defaultFps;
+        Log.i(TAG, theCamera + " preview " + thePreviewSize + " at " + outputFps + " fps, fps range "
+                + Arrays.toString(range));
+
+        begin = metrics.begin(RecorderMetrics.Stage.START_PREVIEW);
+        sleep(latencies[2]);
+        metrics.end(RecorderMetrics.Stage.START_PREVIEW, begin);
+        metrics.onPreviewStarted();
+        startProducer(thePreviewSize, outputFps, latencies[3]);
+        // 与锁定帧率时的 camera1 一样一直测量实际输出的帧率
+        PreviewDispatcher dispatcher = cameraManager.getPreviewDispatcher();
+        dispatcher.setMetering(true);
+        dispatcher.attach(previewSource, thePreviewSize.x, thePreviewSize.y, ImageFormat.NV21, theCamera.getOrientation());
+    }
+
+    /**
+     * 停止输出预览帧并关闭相机，只在相机线程调用
+     */
+    private void closeCamera() {
+        if (openCamera == null) {
+            return;
+        }
+        stopProducer();
+        cameraManager.getPreviewDispatcher().detach();
+        long latency;
+        synchronized (this) {
+            latency = closeMillis;
+        }
+        sleep(latency);
+        Log.i(TAG, "produced " + producedFrames + " frames, skipped " + skippedFrames);
+        openCamera = null;
+        previewSize = null;
+        previewFpsRange = null;
+        torch = false;
+    }
+
+    private void startProducer(Point size, int fps, long firstFrameLatency) {
+        final TestPattern thePattern;
+        final long patternSeed;
+        final int jitter;
+        synchronized (this) {
+            thePattern = new TestPattern(patternType, size.x, size.y, seed, patternPeriod);
+            patternSeed = seed;
+            jitter = jitterMillis;
+        }
+        synchronized (buffers) {
+            producing = true;
+        }
+        producedFrames = 0;
+        skippedFrames = 0;
+        final int theFps = fps;
+        final long start = SystemClock.uptimeMillis() + firstFrameLatency;
+        halThread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_DISPLAY);
+        halThread.start();
+        final Handler handler = new Handler(halThread.getLooper());
+        halHandler = handler;
+        // HAL 线程的状态在它自己的线程中初始化
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                producerHandler = handler;
+                pattern = thePattern;
+                frameIndex = 0;
+                firstFrameUptime = start;
+                deliveredFrameRate = theFps;
+                frameJitter = jitter;
+                frameSeed = patternSeed;
+                handler.postAtTime(produceTask, start);
+            }
+        });
+    }
+
+    private void stopProducer() {
+        synchronized (buffers) {
+            producing = false;
+            ready.clear();
+        }
+        if (halThread != null) {
+            halHandler.removeCallbacksAndMessages(null);
+            halThread.quit();
+            halThread = null;
+            halHandler = null;
+        }
+        cameraManager.getCameraHandler().removeCallbacks(deliverTask);
+    }
+
+    /**
+     * 生成一帧并安排下一帧，只在 HAL 线程调用
+     */
+    private void produceFrame() {
+        byte[] buffer = null;
+        boolean installed;
+        synchronized (buffers) {
+            if (!producing) {
+                return;
+            }
+            installed = callback != null;
+            if (installed) {
+                buffer = buffers.pollFirst();
+            }
+        }
+        if (buffer != null && buffer.length >= pattern.getFrameLength()) {
+            pattern.render(buffer, frameIndex);
+            boolean queued;
+            synchronized (buffers) {
+                queued = producing;
+                if (queued) {
+                    ready.addLast(buffer);
+                }
+            }
+            if (queued) {
+                producedFrames++;
+                execute(deliverTask);
+            }
+        } else if (installed) {
+            // 与相机一样，没有可用或者足够大的缓冲时丢弃这一帧
+            skippedFrames++;
+        }
+        frameIndex++;
+        producerHandler.postAtTime(produceTask, frameUptime(frameIndex));
+    }
+
+    /**
+     * @return 第 index 帧的到达时间，按帧率排列并加上由种子决定的抖动
+     */
+    private long frameUptime(long index) {
+        long uptime = firstFrameUptime + index * 1000 / deliveredFrameRate;
+        if (frameJitter > 0) {
+            long hash = (frameSeed + index) * 0x9E3779B97F4A7C15L;
+            uptime += (int) ((hash >>> 33) % (2 * frameJitter + 1)) - frameJitter;
+        }
+        return uptime;
+    }
+
+    /**
+     * 把生成好的帧交给分发器，只在相机线程调用
+     */
+    private void deliverFrames() {
+        while (true) {
+            byte[] frame;
+            PreviewDispatcher dispatcher;
+            synchronized (buffers) {
+                frame = ready.pollFirst();
+                dispatcher = callback;
+            }
+            if (frame == null || dispatcher == null) {
+                return;
+            }
+            dispatcher.onPreviewFrame(frame);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            SystemClock.sleep(millis);
+        }
+    }
+
+    private void notifyOpened(final OnCameraListener listener, final RecorderCamera camera) {
+        if (listener == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraOpened(camera);
+            }
+        });
+    }
+
+    private void notifyError(final OnCameraListener listener, final Exception e) {
+        if (listener == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCameraError(e);
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen() {
+        return openCamera != null;
+    }
+
+    @Override
+    public RecorderCamera getOpenCamera() {
+        return openCamera;
+    }
+
+    @Override
+    public Point getCameraResolution() {
+        return previewSize;
+    }
+
+    @Override
+    public int[] getPreviewFpsRange() {
+        int[] range = previewFpsRange;
+        return range == null ? null : range.clone();
+    }
+
+    @Override
+    public synchronized void setRequestedVideoSize(int width, int height) {
+        requestedVideoSize = new Point(width, height);
+    }
+
+    @Override
+    public synchronized void setConstantFrameRate(int fps) {
+        constantFrameRate = fps;
+    }
+
+    @Override
+    public synchronized void setSizeCost(SizeSelector.Cost cost) {
+        requestedSizeCost = cost;
+    }
+
+    @Override
+    public void setTorch(boolean on) {
+        torch = on;
+    }
+
+    @Override
+    public boolean getTorchState() {
+        return torch && openCamera != null;
+    }
+}
@@ -0,0 +1,144 @@
+package com.nathaniel.recorder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 结束录制的结果。录制器在相机线程中结束，分段合并、移动 moov 与写入磁盘在后处理线程中完成，
+ * 文件已经同步到存储之后完成，{@link #get()} 返回可以直接使用的文件。合并失败时 {@link #get()} 抛出
+ * {@link ExecutionException}，分段文件保留，下次启动时由录制日志恢复
+ * <p>
+ * 在主线程中不要调用 {@link #get()}，用 {@link #addListener} 在完成后回调。结束录制不能取消
+ *
+ * @author nathaniel
+ */
+public final class FinalizeFuture implements Future<File> {
+
+    private static final String TAG = FinalizeFuture.class.getSimpleName();
+
+    private static final class Listener {
+        final Runnable runnable;
+        final Executor executor;
+
+        Listener(Runnable runnable, Executor executor) {
+            this.runnable = runnable;
+            this.executor = executor;
+        }
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    /**
+     * 完成之前添加的监听器，完成后置为 null
+     */
+    private List<Listener> listeners = new ArrayList<>();
+    private File file;
+    private Throwable failure;
+
+    FinalizeFuture() {
+    }
+
+    /**
+     * 添加完成回调，已经完成时立即提交到 Executor。回调中调用 {@link #get()} 不会阻塞
+     *
+     * @param listener 回调
+     * @param executor 回调使用的 Executor
+     */
+    public void addListener(Runnable listener, Executor executor) {
+        if (listener == null || executor == null) {
+            throw new NullPointerException("listener and executor must not be null");
+        }
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(new Listener(listener, executor));
+                return;
+            }
+        }
+        executor.execute(listener);
+    }
+
+    /**
+     * @return false，结束录制不能取消
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * 等待文件写入完成
+     *
+     * @return 录制完成的文件
+     * @throws ExecutionException 合并或者写入失败
+     */
+    @Override
+    public File get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("finalize not done in " + unit.toMillis(timeout) + "ms");
+        }
+        return getResult();
+    }
+
+    private synchronized File getResult() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return file;
+    }
+
+    /**
+     * 文件已经写入完成，只能调用一次
+     */
+    void complete(File file) {
+        finish(file, null);
+    }
+
+    /**
+     * 文件没有生成，只能调用一次
+     */
+    void fail(Throwable failure) {
+        finish(null, failure);
+    }
+
+    private void finish(File file, Throwable failure) {
+        List<Listener> pending;
+        synchronized (this) {
+            if (listeners == null) {
+                Log.w(TAG, "already finished, ignored " + (failure != null ? failure : file));
+                return;
+            }
+            this.file = file;
+            this.failure = failure;
+            pending = listeners;
+            listeners = null;
+        }
+        done.countDown();
+        for (Listener listener : pending) {
+            listener.executor.execute(listener.runnable);
+        }
+    }
+}
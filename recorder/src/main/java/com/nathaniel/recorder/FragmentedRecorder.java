@@ -0,0 +1,482 @@
+package com.nathaniel.recorder;
+
+import android.graphics.Point;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nathaniel.recorder.mp4.AvcUtils;
+import com.nathaniel.recorder.mp4.FragmentedMp4Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Records preview frames and microphone audio through {@link MediaCodec} into a fragmented MP4, see
+ * {@link FragmentedMp4Writer}. Every completed fragment is on disk and readable, so a crash loses at most
+ * one fragment duration instead of the whole take.
+ * <p>
+ * NV21 preview frames arrive from the pooled preview buffers of {@link PreviewDispatcher} on the camera
+ * thread and are queued into the video encoder there; audio capture, encoder output and file writes happen
+ * on a dedicated encoder thread. The video is encoded at the preview resolution. {@link #start} and {@link #stop()} must be called on the camera thread.
+ *
+ * @author nathaniel
+ */
+final class FragmentedRecorder implements PreviewDispatcher.Consumer {
+
+    private static final String TAG = FragmentedRecorder.class.getSimpleName();
+    private static final String THREAD_NAME = "FragmentedRecorder";
+    private static final long TIMEOUT_US = 10000;
+    private static final long STOP_TIMEOUT_MS = 3000;
+    private static final long NANOS_PER_MICRO = 1000L;
+    private static final long MICROS_PER_SECOND = 1000000L;
+
+    private final CameraManager cameraManager;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private boolean consuming;
+    private MediaCodec videoEncoder;
+    private MediaCodec audioEncoder;
+    private AudioRecord audioRecord;
+    private ByteBuffer[] videoInputBuffers;
+    private ByteBuffer[] videoOutputBuffers;
+    private ByteBuffer[] audioInputBuffers;
+    private ByteBuffer[] audioOutputBuffers;
+    private RandomAccessFile outputFile;
+    private FragmentedMp4Writer writer;
+    private File file;
+    private Thread encoderThread;
+    private int width;
+    private int height;
+    private int rotation;
+    private boolean planar;
+    private byte[] frame;
+    private byte[] pcm;
+    private int videoTrack = -1;
+    private int audioTrack = -1;
+    private boolean waitingForKeyFrame;
+    private long lastAudioTimeUs = -1;
+    private volatile boolean recording;
+    private volatile boolean paused;
+    /**
+     * 编码器在结束时限内没有输出结束标记，编码线程写完已有的内容后退出
+     */
+    private volatile boolean abandoned;
+    private volatile long pausedUs;
+    private long pauseStartUs;
+    private int droppedFrames;
+
+    FragmentedRecorder(CameraManager cameraManager) {
+        this.cameraManager = cameraManager;
+    }
+
+    /**
+     * 开始录制
+     *
+     * @param backend            当前相机后端，预览帧来自 {@link CameraManager} 的分发器，camera1 或者 {@link FakeCamera}
+     * @param file               输出文件
+     * @param frameRate          帧数
+     * @param bitRate            码率，单位为 b/s
+     * @param fragmentDurationUs 分片时长，单位微秒
+     * @return true 开始成功
+     */
+    boolean start(CameraBackend backend, File file, int frameRate, int bitRate, long fragmentDurationUs) {
+        if (recording) {
+            Log.w(TAG, "start() while recording");
+            return false;
+        }
+        RecorderCamera openCamera = backend.getOpenCamera();
+        Point resolution = backend.getCameraResolution();
+        if (openCamera == null || resolution == null) {
+            Log.e(TAG, "open camera first ");
+            return false;
+        }
+        MediaCodecInfo codecInfo = CodecFactory.findEncoder(CodecFactory.VIDEO_MIME_TYPE);
+        int colorFormat = codecInfo == null ? -1 : CodecFactory.findYuvColorFormat(codecInfo, CodecFactory.VIDEO_MIME_TYPE);
+        if (colorFormat < 0) {
+            Log.e(TAG, "no H.264 encoder with YUV420 input");
+            return false;
+        }
+        width = resolution.x;
+        height = resolution.y;
+        rotation = openCamera.getOrientation();
+        planar = colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        this.file = file;
+        try {
+            if (file.exists()) {
+                boolean flag = file.delete();
+                Log.e(TAG, " delete file " + file.getName() + " success is " + flag);
+            }
+            outputFile = new RandomAccessFile(file, "rw");
+            writer = new FragmentedMp4Writer(outputFile.getChannel(), fragmentDurationUs);
+            videoEncoder = CodecFactory.newVideoEncoder(codecInfo, colorFormat, width, height, frameRate, bitRate);
+            audioRecord = CodecFactory.newAudioRecord(CodecFactory.AUDIO_SAMPLE_RATE, CodecFactory.AUDIO_CHANNEL_COUNT);
+            if (audioRecord != null) {
+                audioEncoder = CodecFactory.newAudioEncoder(CodecFactory.AUDIO_SAMPLE_RATE,
+                        CodecFactory.AUDIO_CHANNEL_COUNT, CodecFactory.AUDIO_BIT_RATE);
+            } else {
+                Log.w(TAG, "recording without audio");
+            }
+            videoEncoder.start();
+            videoInputBuffers = videoEncoder.getInputBuffers();
+            videoOutputBuffers = videoEncoder.getOutputBuffers();
+            if (audioEncoder != null) {
+                audioEncoder.start();
+                audioInputBuffers = audioEncoder.getInputBuffers();
+                audioOutputBuffers = audioEncoder.getOutputBuffers();
+                pcm = new byte[CodecFactory.getAudioBufferSize(CodecFactory.AUDIO_SAMPLE_RATE, CodecFactory.AUDIO_CHANNEL_COUNT)];
+                audioRecord.startRecording();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "start fragmented recorder failed", e);
+            release();
+            return false;
+        }
+        videoTrack = -1;
+        audioTrack = -1;
+        waitingForKeyFrame = true;
+        lastAudioTimeUs = -1;
+        pausedUs = 0;
+        paused = false;
+        abandoned = false;
+        droppedFrames = 0;
+        recording = true;
+
+        encoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, THREAD_NAME);
+        encoderThread.start();
+
+        frame = new byte[width * height * 3 / 2];
+        consuming = true;
+        cameraManager.setPreviewConsumer(this);
+        Log.i(TAG, "recording " + width + "x" + height + " fragments of " + fragmentDurationUs / 1000 + "ms into " + file);
+        return true;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data) {
+        if (recording && !paused) {
+            encodeFrame(data);
+        }
+    }
+
+    private void encodeFrame(byte[] nv21) {
+        int index;
+        try {
+            index = videoEncoder.dequeueInputBuffer(0);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "dequeue video input failed", e);
+            return;
+        }
+        if (index < 0) {
+            // 编码器来不及处理时丢弃这一帧，不阻塞相机线程
+            droppedFrames++;
+            return;
+        }
+        int frameSize = width * height * 3 / 2;
+        convertNv21(nv21, frame, width, height, planar);
+        ByteBuffer input = videoInputBuffers[index];
+        input.clear();
+        input.put(frame, 0, frameSize);
+        videoEncoder.queueInputBuffer(index, 0, frameSize, nowUs(), 0);
+    }
+
+    /**
+     * NV21 转换为编码器输入格式：semi-planar 交换 VU 顺序，planar 拆分为 U、V 平面
+     */
+    private static void convertNv21(byte[] nv21, byte[] out, int width, int height, boolean planar) {
+        int frameSize = width * height;
+        int chromaSize = frameSize / 4;
+        System.arraycopy(nv21, 0, out, 0, frameSize);
+        if (planar) {
+            for (int i = 0; i < chromaSize; i++) {
+                out[frameSize + i] = nv21[frameSize + 2 * i + 1];
+                out[frameSize + chromaSize + i] = nv21[frameSize + 2 * i];
+            }
+        } else {
+            for (int i = 0; i < chromaSize; i++) {
+                out[frameSize + 2 * i] = nv21[frameSize + 2 * i + 1];
+                out[frameSize + 2 * i + 1] = nv21[frameSize + 2 * i];
+            }
+        }
+    }
+
+    /**
+     * 暂停时间不计入时间轴，恢复后画面与声音接着暂停前的时间继续
+     */
+    private long nowUs() {
+        return System.nanoTime() / NANOS_PER_MICRO - pausedUs;
+    }
+
+    void pause() {
+        if (recording && !paused) {
+            pauseStartUs = System.nanoTime() / NANOS_PER_MICRO;
+            paused = true;
+        }
+    }
+
+    void resume() {
+        if (recording && paused) {
+            pausedUs += System.nanoTime() / NANOS_PER_MICRO - pauseStartUs;
+            paused = false;
+        }
+    }
+
+    /**
+     * 编码线程：采集声音，取出两个编码器的输出并写入文件，直到两路都结束或者被放弃。
+     * 结束录制后由这里送入两路的结束标记，编码器暂时没有空闲缓冲时下一轮重试
+     */
+    private void drainLoop() {
+        boolean videoDone = false;
+        boolean audioDone = audioEncoder == null;
+        boolean videoEndQueued = false;
+        boolean audioEndQueued = false;
+        try {
+            while ((!videoDone || !audioDone) && !abandoned) {
+                if (!videoEndQueued && !recording) {
+                    videoEndQueued = queueVideoEnd();
+                }
+                if (!audioEndQueued && audioEncoder != null) {
+                    audioEndQueued = feedAudio(!recording);
+                }
+                if (!videoDone) {
+                    videoDone = drain(videoEncoder, true);
+                }
+                if (!audioDone) {
+                    audioDone = drain(audioEncoder, false);
+                }
+                if (audioEncoder == null && !videoDone) {
+                    // 没有声音采集来控制节奏
+                    Thread.sleep(TIMEOUT_US / 1000);
+                }
+            }
+            if (abandoned) {
+                Log.e(TAG, "encoder did not finish in " + STOP_TIMEOUT_MS + "ms, keeping what was encoded");
+            }
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "write fragment failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 相机线程已经不再送入画面，送入视频的结束标记
+     *
+     * @return true 已经送入结束标记
+     */
+    private boolean queueVideoEnd() {
+        int index = videoEncoder.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0) {
+            return false;
+        }
+        videoEncoder.queueInputBuffer(index, 0, 0, nowUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        return true;
+    }
+
+    /**
+     * 读取一段 PCM 送入音频编码器
+     *
+     * @param end true 送入结束标记
+     * @return true 已经送入结束标记
+     */
+    private boolean feedAudio(boolean end) {
+        if (end) {
+            int index = audioEncoder.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {
+                return false;
+            }
+            audioEncoder.queueInputBuffer(index, 0, 0, Math.max(0, lastAudioTimeUs + 1), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        int length = audioRecord.read(pcm, 0, pcm.length);
+        if (length <= 0 || paused) {
+            // 暂停时照常读取，丢弃读到的声音
+            return false;
+        }
+        int index = audioEncoder.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0) {
+            Log.w(TAG, "audio encoder busy, dropped " + length + " bytes");
+            return false;
+        }
+        ByteBuffer input = audioInputBuffers[index];
+        input.clear();
+        length = Math.min(length, input.remaining());
+        input.put(pcm, 0, length);
+        // 时间戳取这段 PCM 第一个采样的时间
+        int samples = length / (2 * CodecFactory.AUDIO_CHANNEL_COUNT);
+        long timeUs = nowUs() - samples * MICROS_PER_SECOND / CodecFactory.AUDIO_SAMPLE_RATE;
+        timeUs = Math.max(timeUs, lastAudioTimeUs + 1);
+        lastAudioTimeUs = timeUs;
+        audioEncoder.queueInputBuffer(index, 0, length, timeUs, 0);
+        return false;
+    }
+
+    /**
+     * 取出编码器的全部可用输出
+     *
+     * @return true 编码器已经输出结束标记
+     */
+    @SuppressWarnings("deprecation")
+    private boolean drain(MediaCodec encoder, boolean video) throws IOException {
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(bufferInfo, video ? 0 : TIMEOUT_US / 10);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return false;
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                if (video) {
+                    videoOutputBuffers = encoder.getOutputBuffers();
+                } else {
+                    audioOutputBuffers = encoder.getOutputBuffers();
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                addTrack(encoder.getOutputFormat(), video);
+            } else if (index >= 0) {
+                ByteBuffer output = video ? videoOutputBuffers[index] : audioOutputBuffers[index];
+                boolean config = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                boolean sync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+                int track = video ? videoTrack : audioTrack;
+                if (!config && bufferInfo.size > 0 && track >= 0 && isWriterStarted()) {
+                    if (video && waitingForKeyFrame && sync) {
+                        waitingForKeyFrame = false;
+                    }
+                    if (!video || !waitingForKeyFrame) {
+                        output.position(bufferInfo.offset);
+                        output.limit(bufferInfo.offset + bufferInfo.size);
+                        writer.writeSample(track, output, bufferInfo.presentationTimeUs, !video || sync);
+                    }
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private boolean isWriterStarted() {
+        return videoTrack >= 0 && (audioEncoder == null || audioTrack >= 0);
+    }
+
+    /**
+     * 编码器输出格式确定后添加轨道，所有轨道都添加之后写入文件头
+     */
+    private void addTrack(MediaFormat format, boolean video) throws IOException {
+        if (video) {
+            ByteBuffer csd0 = format.getByteBuffer("csd-0");
+            ByteBuffer csd1 = format.getByteBuffer("csd-1");
+            byte[] sps = csd0 == null ? null : AvcUtils.findUnit(csd0, AvcUtils.NAL_TYPE_SPS);
+            byte[] pps = AvcUtils.findUnit(csd1 != null ? csd1 : csd0, AvcUtils.NAL_TYPE_PPS);
+            videoTrack = writer.addVideoTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps, rotation);
+        } else {
+            ByteBuffer csd0 = format.getByteBuffer("csd-0");
+            byte[] config = new byte[csd0.remaining()];
+            csd0.duplicate().get(config);
+            audioTrack = writer.addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), CodecFactory.AUDIO_BIT_RATE, config);
+        }
+        if (isWriterStarted()) {
+            writer.start();
+        }
+    }
+
+    /**
+     * 结束录制，写入最后一个分片。编码器与文件在编码线程退出之后才释放
+     *
+     * @return 录制的文件，写完至少一个分片时返回，之前写完的分片都已经在磁盘上；一个分片都没有时返回 null
+     */
+    File stop() {
+        if (!recording) {
+            return null;
+        }
+        cameraManager.setPreviewConsumer(null);
+        // 编码线程看到 recording 变为 false 后自己送入结束标记
+        recording = false;
+        boolean interrupted = false;
+        long deadline = SystemClock.uptimeMillis() + STOP_TIMEOUT_MS;
+        while (encoderThread.isAlive()) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                // 编码线程中的调用都有超时，放弃之后很快退出，之后一直等到它退出
+                abandoned = true;
+            }
+            try {
+                encoderThread.join(Math.max(remaining, 0));
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        int fragments = writer.getFragmentCount();
+        Log.i(TAG, "recorded " + fragments + " fragments, " + writer.getBytesWritten()
+                + " bytes, dropped " + droppedFrames + " frames");
+        release();
+        return fragments > 0 ? file : null;
+    }
+
+    private void release() {
+        recording = false;
+        if (consuming) {
+            cameraManager.setPreviewConsumer(null);
+            consuming = false;
+        }
+        if (audioRecord != null) {
+            try {
+                audioRecord.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "stop audio record failed", e);
+            }
+            audioRecord.release();
+            audioRecord = null;
+        }
+        videoEncoder = releaseCodec(videoEncoder);
+        audioEncoder = releaseCodec(audioEncoder);
+        if (outputFile != null) {
+            try {
+                outputFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close output failed", e);
+            }
+            outputFile = null;
+        }
+        videoInputBuffers = null;
+        videoOutputBuffers = null;
+        audioInputBuffers = null;
+        audioOutputBuffers = null;
+    }
+
+    private static MediaCodec releaseCodec(MediaCodec codec) {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "stop codec failed", e);
+            }
+            codec.release();
+        }
+        return null;
+    }
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @return 编码器来不及处理而丢弃的预览帧数
+     */
+    int getDroppedFrames() {
+        return droppedFrames;
+    }
+}
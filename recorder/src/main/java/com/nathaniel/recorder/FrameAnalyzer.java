@@ -0,0 +1,18 @@
+package com.nathaniel.recorder;
+
+/**
+ * 预览帧分析器，通过 {@link CameraManager#addFrameAnalyzer} 注册。
+ * 所有分析器在同一个分析线程中依次回调，分析来不及时丢弃最旧的帧，不会阻塞相机线程，
+ * 丢弃的帧数见 {@link CameraManager#getDroppedFrameCount()}
+ *
+ * @author nathaniel
+ */
+public interface FrameAnalyzer {
+    /**
+     * 分析一帧预览画面，在分析线程中回调。
+     * 帧数据来自固定的缓冲池，回调返回后会交还给相机继续使用，不能保留 {@code frame} 或其中的数组
+     *
+     * @param frame 预览帧
+     */
+    void analyze(PreviewFrame frame);
+}
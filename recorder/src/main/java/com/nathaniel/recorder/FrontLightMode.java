@@ -32,4 +32,8 @@ public enum FrontLightMode {
         return parse(sharedPrefs.getString(RecorderConfig.KEY_FRONT_LIGHT_MODE, OFF.toString()));
     }
 
+    public static void writePref(SharedPreferences sharedPrefs, FrontLightMode mode) {
+        sharedPrefs.edit().putString(RecorderConfig.KEY_FRONT_LIGHT_MODE, mode.toString()).apply();
+    }
+
 }
@@ -0,0 +1,212 @@
+package com.nathaniel.recorder;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nathaniel.recorder.frame.MotionDetector;
+
+/**
+ * 画面运动触发录制：在预览帧的亮度平面上做运动检测，连续几帧的变化块比例超过开始阈值时开始录制，
+ * 变化块比例低于结束阈值持续超过后录时长时结束录制，开始与结束使用不同的阈值避免在临界状态反复切换。
+ * <p>
+ * 检测在分析线程中进行，后录计时在相机线程中进行。使用 MediaRecorder 录制期间部分设备不会回调预览帧，
+ * 此时后录计时到期后结束录制，等到预览恢复后再由运动重新触发，分片录制模式下没有这个限制
+ *
+ * @author nathaniel
+ */
+public final class MotionTrigger implements FrameAnalyzer {
+    private static final String TAG = MotionTrigger.class.getSimpleName();
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final int DEFAULT_SAMPLE_STEP = 8;
+    private static final int DEFAULT_BLOCK_SIZE = 8;
+
+    /**
+     * 运动触发回调，在主线程回调
+     */
+    public interface OnMotionListener {
+        /**
+         * 检测到运动，需要开始录制
+         */
+        void onMotionStarted();
+
+        /**
+         * 运动结束并超过后录时长，需要结束录制
+         */
+        void onMotionStopped();
+    }
+
+    private final CameraManager cameraManager;
+    private final OnMotionListener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile MotionDetector detector = new MotionDetector(DEFAULT_SAMPLE_STEP, DEFAULT_BLOCK_SIZE);
+    private volatile float startLevel = 0.02f;
+    private volatile float stopLevel = 0.01f;
+    private volatile int startFrames = 3;
+    private volatile long postRollMillis = 5000;
+    private volatile boolean triggered;
+    private volatile long lastMotionNanos;
+    private volatile float lastLevel;
+    private volatile long lastProcessingNanos;
+    private volatile long averageProcessingNanos;
+    private volatile long maxProcessingNanos;
+    /**
+     * 连续超过开始阈值的帧数，只在分析线程中使用
+     */
+    private int motionFrames;
+    private final Runnable notifyStartedTask = new Runnable() {
+        @Override
+        public void run() {
+            listener.onMotionStarted();
+        }
+    };
+    private final Runnable notifyStoppedTask = new Runnable() {
+        @Override
+        public void run() {
+            listener.onMotionStopped();
+        }
+    };
+    /**
+     * 后录计时，在相机线程中执行
+     */
+    private final Runnable postRollTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!triggered) {
+                return;
+            }
+            long quietMillis = (SystemClock.elapsedRealtimeNanos() - lastMotionNanos) / NANOS_PER_MILLI;
+            if (quietMillis < postRollMillis) {
+                cameraManager.executeDelayed(this, postRollMillis - quietMillis);
+                return;
+            }
+            triggered = false;
+            Log.i(TAG, "motion stopped, " + quietMillis + "ms quiet, processing avg "
+                    + averageProcessingNanos / 1000 + "us max " + maxProcessingNanos / 1000 + "us");
+            mainHandler.post(notifyStoppedTask);
+        }
+    };
+
+    MotionTrigger(CameraManager cameraManager, OnMotionListener listener) {
+        this.cameraManager = cameraManager;
+        this.listener = listener;
+    }
+
+    @Override
+    public void analyze(PreviewFrame frame) {
+        MotionDetector current = detector;
+        float level = current.process(frame.getData(), frame.getWidth(), frame.getHeight());
+        lastLevel = level;
+        lastProcessingNanos = current.getLastNanos();
+        averageProcessingNanos = current.getAverageNanos();
+        maxProcessingNanos = current.getMaxNanos();
+        if (triggered) {
+            if (level >= stopLevel) {
+                lastMotionNanos = frame.getTimestampNanos();
+            }
+            return;
+        }
+        motionFrames = level >= startLevel ? motionFrames + 1 : 0;
+        if (motionFrames >= startFrames) {
+            motionFrames = 0;
+            lastMotionNanos = frame.getTimestampNanos();
+            triggered = true;
+            Log.i(TAG, "motion started, level " + level);
+            mainHandler.post(notifyStartedTask);
+            cameraManager.executeDelayed(postRollTask, postRollMillis);
+        }
+    }
+
+    /**
+     * 停止触发，之后重新开始时重新建立背景
+     */
+    void reset() {
+        cameraManager.cancel(postRollTask);
+        triggered = false;
+        MotionDetector current = detector;
+        replaceDetector(current.getSampleStep(), current.getBlockSize(), current.getPixelThreshold());
+    }
+
+    /**
+     * 检测器只在分析线程中使用，参数变化时换一个新的而不是修改它
+     */
+    private void replaceDetector(int sampleStep, int blockSize, int pixelThreshold) {
+        detector = new MotionDetector(sampleStep, blockSize)
+                .setPixelThreshold(pixelThreshold)
+                .setLearningShift(detector.getLearningShift());
+    }
+
+    /**
+     * 设置采样网格，之后重新建立背景
+     *
+     * @param sampleStep 每隔几个像素采样一次，越大越快但越不灵敏
+     * @param blockSize  每个块的边长，单位为采样点
+     */
+    public void setGrid(int sampleStep, int blockSize) {
+        replaceDetector(sampleStep, blockSize, detector.getPixelThreshold());
+    }
+
+    /**
+     * @param pixelThreshold 块内平均每个采样点的亮度差超过此值时认为块发生了变化
+     */
+    public void setPixelThreshold(int pixelThreshold) {
+        MotionDetector current = detector;
+        replaceDetector(current.getSampleStep(), current.getBlockSize(), pixelThreshold);
+    }
+
+    /**
+     * 设置滞回阈值
+     *
+     * @param startLevel  变化块比例达到此值时开始录制，0~1
+     * @param stopLevel   变化块比例低于此值时开始后录计时，不大于 startLevel
+     * @param startFrames 连续几帧超过开始阈值才开始录制，过滤闪烁等瞬时变化
+     */
+    public void setLevels(float startLevel, float stopLevel, int startFrames) {
+        if (stopLevel > startLevel) {
+            throw new IllegalArgumentException("stopLevel " + stopLevel + " > startLevel " + startLevel);
+        }
+        this.startLevel = startLevel;
+        this.stopLevel = stopLevel;
+        this.startFrames = Math.max(1, startFrames);
+    }
+
+    /**
+     * @param postRollMillis 运动结束后继续录制的时长，单位毫秒
+     */
+    public void setPostRoll(long postRollMillis) {
+        this.postRollMillis = postRollMillis;
+    }
+
+    public boolean isTriggered() {
+        return triggered;
+    }
+
+    /**
+     * @return 最近一帧的变化块比例
+     */
+    public float getLastLevel() {
+        return lastLevel;
+    }
+
+    /**
+     * @return 最近一帧的检测耗时，单位纳秒
+     */
+    public long getLastProcessingNanos() {
+        return lastProcessingNanos;
+    }
+
+    /**
+     * @return 平均每帧检测耗时，单位纳秒，30 fps 下需要远小于 33ms
+     */
+    public long getAverageProcessingNanos() {
+        return averageProcessingNanos;
+    }
+
+    /**
+     * @return 最长的一帧检测耗时，单位纳秒
+     */
+    public long getMaxProcessingNanos() {
+        return maxProcessingNanos;
+    }
+}
@@ -0,0 +1,16 @@
+package com.nathaniel.recorder;
+
+/**
+ * 仅录音模式下的实时音量，按固定间隔在主线程回调
+ *
+ * @author nathaniel
+ */
+public interface OnAudioLevelListener {
+    /**
+     * 最近一个间隔的音量
+     *
+     * @param rmsDb  均方根音量，单位 dBFS，0 为满幅
+     * @param peakDb 峰值音量，单位 dBFS
+     */
+    void onAudioLevel(float rmsDb, float peakDb);
+}
@@ -0,0 +1,27 @@
+package com.nathaniel.recorder;
+
+/**
+ * 相机异步操作回调，所有方法都在主线程回调
+ *
+ * @author nathaniel
+ */
+public interface OnCameraListener {
+    /**
+     * 相机已打开并开始预览
+     *
+     * @param camera 当前相机
+     */
+    void onCameraOpened(RecorderCamera camera);
+
+    /**
+     * 相机已关闭
+     */
+    void onCameraClosed();
+
+    /**
+     * 相机打开失败
+     *
+     * @param e 异常信息
+     */
+    void onCameraError(Exception e);
+}
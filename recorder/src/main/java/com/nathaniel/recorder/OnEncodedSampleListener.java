@@ -0,0 +1,20 @@
+package com.nathaniel.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MediaCodec 录制管线中编码后的数据，每个样本写入文件之前在写文件线程回调，处理要快，否则会阻塞写入
+ *
+ * @author nathaniel
+ */
+public interface OnEncodedSampleListener {
+    /**
+     * 一个编码后的样本
+     *
+     * @param video              true 视频，false 音频
+     * @param data               只读的样本数据，只在回调期间有效
+     * @param presentationTimeUs 显示时间，单位微秒，从第一帧画面开始计算，不含暂停时间
+     * @param keyFrame           是否为关键帧，音频总是 true
+     */
+    void onEncodedSample(boolean video, ByteBuffer data, long presentationTimeUs, boolean keyFrame);
+}
@@ -0,0 +1,121 @@
+package com.nathaniel.recorder;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nathaniel.recorder.mp4.Mp4Recovery;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 修复上一次进程意外退出时留下的录制文件：扫描目录中的 .journal，分片 MP4 截掉最后一个不完整的分片，
+ * 普通 MP4 的每个分段根据 mdat 中的数据重建 moov，再像正常结束录制一样合并为目标文件。
+ * 在后处理线程中执行，不影响相机打开与预览
+ *
+ * @author nathaniel
+ */
+final class OrphanRecovery implements Runnable {
+    private static final String TAG = OrphanRecovery.class.getSimpleName();
+
+    private final File directory;
+
+    /**
+     * @param directory 录制输出目录
+     */
+    OrphanRecovery(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void run() {
+        File[] journals = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(RecoveryJournal.EXTENSION);
+            }
+        });
+        if (journals == null) {
+            return;
+        }
+        for (File file : journals) {
+            RecoveryJournal journal = RecoveryJournal.read(file);
+            if (journal == null) {
+                Log.e(TAG, "drop unreadable journal " + file.getName());
+                deleteFile(file);
+                continue;
+            }
+            if (journal.isOwnedByThisProcess()) {
+                // 当前进程正在录制
+                continue;
+            }
+            long begin = SystemClock.elapsedRealtime();
+            boolean recovered;
+            try {
+                recovered = journal.isFragmented() ? recoverFragmented(journal) : recoverSegments(journal);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "recover " + journal.getTarget().getName() + " failed", e);
+                recovered = false;
+            }
+            Log.i(TAG, "recover " + journal.getTarget().getName() + " success is " + recovered + " in "
+                    + (SystemClock.elapsedRealtime() - begin) + "ms");
+            // 修复失败时保留文件，但不再重复尝试
+            journal.delete();
+        }
+    }
+
+    private boolean recoverFragmented(RecoveryJournal journal) {
+        File target = journal.getTarget();
+        if (!target.exists()) {
+            return false;
+        }
+        try {
+            long size = Mp4Recovery.trimFragmented(target);
+            Log.i(TAG, "trimmed " + target.getName() + " to " + size + " bytes");
+            return size > 0;
+        } catch (IOException e) {
+            Log.e(TAG, "trim " + target.getName() + " failed", e);
+            return false;
+        }
+    }
+
+    private boolean recoverSegments(RecoveryJournal journal) {
+        Mp4Recovery.Config config = journal.toRecoveryConfig();
+        List<File> segments = new ArrayList<>();
+        for (File segment : journal.getSegments()) {
+            if (!segment.exists()) {
+                continue;
+            }
+            if (segment.length() == 0) {
+                deleteFile(segment);
+                continue;
+            }
+            try {
+                if (Mp4Recovery.needsRecovery(segment)) {
+                    Mp4Recovery.Result result = Mp4Recovery.recover(segment, config);
+                    Log.i(TAG, "recovered " + segment.getName() + ": " + result);
+                    if (result.isAudioDropped()) {
+                        Log.w(TAG, segment.getName() + " recovered without its audio, " + result.getDroppedAudioBytes()
+                                + " bytes of raw AAC can not be split into frames");
+                    }
+                    if (result.getVideoSamples() == 0) {
+                        continue;
+                    }
+                }
+                segments.add(segment);
+            } catch (IOException e) {
+                Log.e(TAG, "recover " + segment.getName() + " failed", e);
+            }
+        }
+        return RecorderView.mergeSegments(segments, journal.getTarget()) != null;
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            Log.w(TAG, "delete " + file.getName() + " failed");
+        }
+    }
+}
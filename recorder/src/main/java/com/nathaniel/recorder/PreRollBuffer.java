@@ -0,0 +1,208 @@
+package com.nathaniel.recorder;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 预录环形缓冲：在固定的几个槽位文件中循环录制短分段，始终保留最近一段时间的画面。
+ * 槽位文件只覆盖写入，不删除也不重新创建；每个分段受文件大小上限约束，所有槽位加起来不超过配额。
+ * 开始正式录制时把覆盖预录时长的分段借给这次录制，合并完成后归还。只在相机线程中使用
+ *
+ * @author nathaniel
+ */
+final class PreRollBuffer {
+    private static final String TAG = PreRollBuffer.class.getSimpleName();
+    private static final String DIRECTORY_NAME = ".preroll";
+    private static final String SLOT_PREFIX = "slot_";
+    private static final String SLOT_EXTENSION = ".mp4";
+    /**
+     * 分段时长上限，分段越短，开始录制时多出来的预录越少，但 MediaRecorder 切换文件越频繁
+     */
+    private static final long SEGMENT_MILLIS = 2000;
+    /**
+     * 分段时长下限，配额不够时缩短预录时长而不是继续缩短分段
+     */
+    private static final long MIN_SEGMENT_MILLIS = 1000;
+    /**
+     * 除了保留的分段，还需要一个正在写入的槽位和一个等待切换的槽位
+     */
+    private static final int EXTRA_SLOTS = 2;
+
+    private final File directory;
+    private final ArrayDeque<File> finished = new ArrayDeque<>();
+    private final Set<File> loaned = new HashSet<>();
+    /**
+     * 最近一次开始录制时借出、还不知道是否会被录制用到的槽位
+     */
+    private final Set<File> takeLoans = new HashSet<>();
+    private File[] slots = new File[0];
+    private int keepCount;
+    private int nextIndex;
+    private File current;
+    private File pending;
+
+    /**
+     * @param directory 录制输出目录，槽位文件放在其中的隐藏目录里
+     */
+    PreRollBuffer(File directory) {
+        this.directory = new File(directory, DIRECTORY_NAME);
+    }
+
+    /**
+     * 根据预录时长、配额与码率分配槽位
+     *
+     * @param preRollMillis  预录时长，单位毫秒
+     * @param quotaBytes     所有槽位文件加起来的大小上限
+     * @param bytesPerSecond 预计每秒写入的字节数
+     * @return 单个分段的文件大小上限
+     */
+    long configure(long preRollMillis, long quotaBytes, long bytesPerSecond) {
+        long budgetMillis = quotaBytes * 1000 / Math.max(1, bytesPerSecond);
+        // (保留分段数 + EXTRA_SLOTS + 1) 个分段的时长不超过配额能容纳的时长，多的 1 个是预录时长向上取整
+        long segmentMillis = Math.max(MIN_SEGMENT_MILLIS,
+                Math.min(SEGMENT_MILLIS, (budgetMillis - preRollMillis) / (EXTRA_SLOTS + 1)));
+        int keep = (int) Math.max(1, (preRollMillis + segmentMillis - 1) / segmentMillis);
+        int maxKeep = (int) Math.max(1, budgetMillis / segmentMillis - EXTRA_SLOTS);
+        if (keep > maxKeep) {
+            Log.w(TAG, "quota " + quotaBytes + " holds " + maxKeep * segmentMillis + "ms of pre-roll, "
+                    + preRollMillis + "ms requested");
+            keep = maxKeep;
+        }
+        int count = keep + EXTRA_SLOTS;
+        long segmentBytes = quotaBytes / count;
+        keepCount = keep;
+        if (count != slots.length) {
+            resize(count);
+        }
+        Log.i(TAG, count + " slots of " + segmentBytes + " bytes, keep " + keep + " segments of ~" + segmentMillis + "ms");
+        return segmentBytes;
+    }
+
+    private void resize(int count) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "can not create " + directory);
+        }
+        File[] resized = new File[count];
+        for (int i = 0; i < Math.max(count, slots.length); i++) {
+            File slot = new File(directory, SLOT_PREFIX + i + SLOT_EXTENSION);
+            if (i < count) {
+                resized[i] = slot;
+            } else if (!loaned.contains(slot) && !slot.equals(current)) {
+                finished.remove(slot);
+                deleteFile(slot);
+            }
+        }
+        slots = resized;
+        nextIndex = 0;
+    }
+
+    /**
+     * @return 下一个可以覆盖写入的槽位，所有槽位都被占用时返回 null
+     */
+    @Nullable
+    File nextSlot() {
+        for (int i = 0; i < slots.length; i++) {
+            File slot = slots[(nextIndex + i) % slots.length];
+            if (loaned.contains(slot) || slot.equals(current) || slot.equals(pending)) {
+                continue;
+            }
+            nextIndex = (nextIndex + i + 1) % slots.length;
+            // 复用最旧的已完成分段
+            finished.remove(slot);
+            if (current == null) {
+                current = slot;
+            } else {
+                pending = slot;
+            }
+            return slot;
+        }
+        Log.w(TAG, "no free slot, " + loaned.size() + " loaned");
+        return null;
+    }
+
+    /**
+     * 一个槽位写入完成
+     *
+     * @param slot 写入完成的槽位，录制失败时为 null
+     */
+    void onSlotFinished(@Nullable File slot) {
+        if (slot != null && slot.equals(current)) {
+            finished.addLast(slot);
+            while (finished.size() > keepCount) {
+                finished.removeFirst();
+            }
+        }
+        current = pending;
+        pending = null;
+    }
+
+    /**
+     * 开始正式录制：取出覆盖预录时长的分段，连同正在写入的槽位一起借出，之后的分段不再写入槽位
+     *
+     * @return 预录分段，按录制顺序排列
+     */
+    List<File> takePreRoll() {
+        List<File> preRoll = new ArrayList<>(finished);
+        takeLoans.clear();
+        takeLoans.addAll(preRoll);
+        // 已经交给录制器等待切换的槽位也会成为录制的一部分
+        for (File slot : new File[]{current, pending}) {
+            if (slot != null) {
+                takeLoans.add(slot);
+            }
+        }
+        loaned.addAll(takeLoans);
+        finished.clear();
+        current = null;
+        pending = null;
+        return preRoll;
+    }
+
+    /**
+     * 停止写入槽位，已完成的分段继续保留
+     */
+    void stop() {
+        current = null;
+        pending = null;
+    }
+
+    /**
+     * 录制结束：借出但没有被用到的槽位立即归还，用到的槽位在合并完成后通过 {@link #release} 归还
+     *
+     * @param segments 录制的所有分段
+     */
+    void endTake(Collection<File> segments) {
+        takeLoans.removeAll(segments);
+        loaned.removeAll(takeLoans);
+        takeLoans.clear();
+    }
+
+    /**
+     * 归还借出的槽位，不属于槽位的文件忽略
+     */
+    void release(Collection<File> files) {
+        loaned.removeAll(files);
+    }
+
+    /**
+     * @return 文件是否为槽位文件，槽位文件不能被删除或移动
+     */
+    boolean isSlot(File file) {
+        return directory.equals(file.getParentFile());
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "delete " + file.getName() + " failed");
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.nathaniel.recorder;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nathaniel.recorder.frame.FrameRateMeter;
+
+import java.util.Arrays;
+
+/**
+ * 预览帧分发：使用 {@link Camera#addCallbackBuffer} 与 {@link Camera#setPreviewCallbackWithBuffer} 在固定的缓冲池中接收预览帧，
+ * 不再像 {@link Camera#setPreviewCallback} 那样每一帧分配一个新数组。
+ * <p>
+ * 每一帧先在相机线程中同步交给 {@link Consumer}（例如编码器），再放入长度固定的分析队列，由分析线程依次交给
+ * {@link FrameAnalyzer}。队列满时丢弃最旧的一帧并立即把它的缓冲交还给相机，相机线程永远不会等待分析；
+ * 分析完成的缓冲先放回归还列表，在下一次预览回调时由相机线程交还给相机。稳定运行时不分配任何对象。
+ * 除注册分析器外，所有方法只能在相机线程中调用
+ *
+ * @author nathaniel
+ */
+final class PreviewDispatcher implements Camera.PreviewCallback {
+
+    private static final String TAG = PreviewDispatcher.class.getSimpleName();
+    private static final String THREAD_NAME = "FrameAnalyzer";
+    /**
+     * 始终留在相机中的缓冲数，少于 2 个时相机会因为没有可用缓冲而丢帧
+     */
+    private static final int CAMERA_BUFFER_COUNT = 3;
+    /**
+     * 等待分析的帧数，超过时丢弃最旧的帧
+     */
+    private static final int QUEUE_CAPACITY = 2;
+    private static final FrameAnalyzer[] NO_ANALYZERS = new FrameAnalyzer[0];
+    /**
+     * 测量帧率的窗口，30 fps 下约 1 秒
+     */
+    private static final int METER_WINDOW = 30;
+
+    /**
+     * 在相机线程中同步处理预览帧，回调返回后缓冲即被复用
+     */
+    interface Consumer {
+        void onPreviewFrame(byte[] data);
+    }
+
+    /**
+     * 预览帧的来源，与 {@link Camera} 的缓冲接口相同，{@link FakeCamera} 也通过它提供合成的预览帧。
+     * 安装后来源在相机线程中回调 {@link #onPreviewFrame(byte[])}
+     */
+    interface BufferSource {
+        void addCallbackBuffer(byte[] buffer);
+
+        /**
+         * @param dispatcher 接收预览帧的分发器，null 表示移除，同时清空已经交给来源的缓冲
+         */
+        void setPreviewCallbackWithBuffer(PreviewDispatcher dispatcher);
+    }
+
+    private final Object lock = new Object();
+    private final FrameRateMeter frameRateMeter = new FrameRateMeter(METER_WINDOW);
+    private final RecorderMetrics metrics;
+    private volatile FrameAnalyzer[] analyzers = NO_ANALYZERS;
+    private volatile long droppedFrames;
+    private volatile long analyzedFrames;
+    /**
+     * 当前的分析线程，线程发现自己不再是当前线程时退出
+     */
+    private volatile Thread worker;
+    // 以下字段由 lock 保护
+    private final PreviewFrame[] queue = new PreviewFrame[QUEUE_CAPACITY];
+    private int queueHead;
+    private int queueSize;
+    private PreviewFrame[] returned = new PreviewFrame[0];
+    private int returnedCount;
+    private PreviewFrame analyzing;
+    private int generation;
+    // 以下字段只在相机线程中使用
+    private PreviewFrame[] pool = new PreviewFrame[0];
+    private BufferSource camera;
+    private Consumer consumer;
+    private boolean metering;
+    private boolean installed;
+    private int width;
+    private int height;
+    private int format;
+    private int rotation;
+    private int bufferSize;
+    private long sequence;
+
+    PreviewDispatcher(RecorderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 添加分析器，可以在任意线程调用，之后需要在相机线程中调用 {@link #update()}
+     */
+    synchronized void addAnalyzer(FrameAnalyzer analyzer) {
+        FrameAnalyzer[] current = analyzers;
+        for (FrameAnalyzer item : current) {
+            if (item == analyzer) {
+                return;
+            }
+        }
+        FrameAnalyzer[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = analyzer;
+        analyzers = added;
+    }
+
+    /**
+     * 移除分析器，可以在任意线程调用。正在进行的一次分析不会被打断
+     */
+    synchronized void removeAnalyzer(FrameAnalyzer analyzer) {
+        FrameAnalyzer[] current = analyzers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == analyzer) {
+                FrameAnalyzer[] removed = new FrameAnalyzer[current.length - 1];
+                System.arraycopy(current, 0, removed, 0, i);
+                System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+                analyzers = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 设置相机线程中的同步处理者，同一时间只支持一个
+     */
+    void setConsumer(Consumer consumer) {
+        this.consumer = consumer;
+        update();
+    }
+
+    /**
+     * 是否测量相机实际输出的帧率，没有处理者与分析器时也会为此安装预览回调
+     */
+    void setMetering(boolean metering) {
+        this.metering = metering;
+        update();
+    }
+
+    /**
+     * @return 按预览回调时间测量的帧率，只在开启测量或者有处理者、分析器时有效
+     */
+    FrameRateMeter getFrameRateMeter() {
+        return frameRateMeter;
+    }
+
+    /**
+     * 相机开始预览
+     *
+     * @param camera   相机
+     * @param width    预览宽度
+     * @param height   预览高度
+     * @param format   预览格式
+     * @param rotation 预览画面需要旋转的角度
+     */
+    void attach(final Camera camera, int width, int height, int format, int rotation) {
+        attach(new BufferSource() {
+            @Override
+            public void addCallbackBuffer(byte[] buffer) {
+                camera.addCallbackBuffer(buffer);
+            }
+
+            @Override
+            public void setPreviewCallbackWithBuffer(PreviewDispatcher dispatcher) {
+                camera.setPreviewCallbackWithBuffer(dispatcher);
+            }
+        }, width, height, format, rotation);
+    }
+
+    /**
+     * 预览帧来源开始输出
+     *
+     * @param camera   预览帧来源
+     * @param width    预览宽度
+     * @param height   预览高度
+     * @param format   预览格式
+     * @param rotation 预览画面需要旋转的角度
+     */
+    void attach(BufferSource camera, int width, int height, int format, int rotation) {
+        this.camera = camera;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.rotation = rotation;
+        this.bufferSize = width * height * ImageFormat.getBitsPerPixel(format) / 8;
+        installed = false;
+        sequence = 0;
+        frameRateMeter.reset();
+        update();
+    }
+
+    /**
+     * 相机停止预览，缓冲池保留到下一次相同尺寸的预览
+     */
+    void detach() {
+        if (camera == null) {
+            return;
+        }
+        uninstall();
+        camera = null;
+        Log.i(TAG, "analyzed " + analyzedFrames + " frames, dropped " + droppedFrames);
+    }
+
+    /**
+     * @return true 已经安装预览回调
+     */
+    boolean isInstalled() {
+        return installed;
+    }
+
+    /**
+     * 相机被其他使用者（例如 MediaRecorder）占用后，预览回调与缓冲可能已被清除，重新安装
+     */
+    void reinstall() {
+        if (installed) {
+            uninstall();
+        }
+        update();
+    }
+
+    /**
+     * 分析器或处理者变化后，按需安装或移除预览回调
+     */
+    void update() {
+        if (camera == null) {
+            return;
+        }
+        int analyzerCount = analyzers.length;
+        if (consumer == null && analyzerCount == 0 && !metering) {
+            if (installed) {
+                uninstall();
+            }
+            return;
+        }
+        // 只有同步处理者时不需要给分析队列与分析线程留缓冲
+        int count = CAMERA_BUFFER_COUNT + (analyzerCount > 0 ? QUEUE_CAPACITY + 1 : 0);
+        if (analyzerCount > 0) {
+            startWorker();
+        }
+        if (pool.length > 0 && !pool[0].matches(width, height, format, rotation, bufferSize)) {
+            pool = new PreviewFrame[0];
+        }
+        int oldCount = pool.length;
+        if (oldCount < count) {
+            pool = Arrays.copyOf(pool, count);
+            for (int i = oldCount; i < count; i++) {
+                pool[i] = new PreviewFrame(width, height, format, rotation, bufferSize);
+            }
+            Log.i(TAG, count + " preview buffers of " + bufferSize + " bytes");
+        }
+        synchronized (lock) {
+            if (returned.length < pool.length) {
+                returned = new PreviewFrame[pool.length];
+            }
+            if (installed) {
+                // 新增的缓冲
+                for (int i = oldCount; i < pool.length; i++) {
+                    pool[i].generation = generation;
+                    camera.addCallbackBuffer(pool[i].getData());
+                }
+                return;
+            }
+            // 之前的队列与归还列表作废，正在分析的帧完成后再交还
+            generation++;
+            queueSize = 0;
+            returnedCount = 0;
+            for (PreviewFrame frame : pool) {
+                frame.generation = generation;
+                if (frame != analyzing) {
+                    camera.addCallbackBuffer(frame.getData());
+                }
+            }
+        }
+        camera.setPreviewCallbackWithBuffer(this);
+        installed = true;
+    }
+
+    private void uninstall() {
+        // 移除回调的同时相机会清空缓冲队列
+        camera.setPreviewCallbackWithBuffer(null);
+        installed = false;
+        synchronized (lock) {
+            generation++;
+            queueSize = 0;
+            returnedCount = 0;
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        onPreviewFrame(data);
+    }
+
+    /**
+     * 接收一帧预览，只在相机线程中调用
+     *
+     * @param data 之前交给来源的缓冲
+     */
+    void onPreviewFrame(byte[] data) {
+        PreviewFrame frame = find(data);
+        if (frame == null || !installed) {
+            // 旧缓冲池中的帧，或者移除回调前已经发出的帧，缓冲在下一次安装时统一交还
+            return;
+        }
+        sequence++;
+        // Camera1 不提供传感器时间戳，以回调时间为准
+        long timestampNanos = SystemClock.elapsedRealtimeNanos();
+        frameRateMeter.onFrame(timestampNanos);
+        metrics.onPreviewFrame();
+        if (consumer != null) {
+            consumer.onPreviewFrame(data);
+        }
+        boolean analyze = analyzers.length > 0;
+        synchronized (lock) {
+            for (int i = 0; i < returnedCount; i++) {
+                camera.addCallbackBuffer(returned[i].getData());
+                returned[i] = null;
+            }
+            returnedCount = 0;
+            if (frame.generation != generation) {
+                return;
+            }
+            if (!analyze) {
+                camera.addCallbackBuffer(data);
+                return;
+            }
+            frame.timestampNanos = timestampNanos;
+            frame.sequence = sequence;
+            if (queueSize == QUEUE_CAPACITY) {
+                PreviewFrame oldest = queue[queueHead];
+                queue[queueHead] = null;
+                queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+                queueSize--;
+                droppedFrames++;
+                camera.addCallbackBuffer(oldest.getData());
+            }
+            queue[(queueHead + queueSize) % QUEUE_CAPACITY] = frame;
+            queueSize++;
+            lock.notify();
+        }
+    }
+
+    private PreviewFrame find(byte[] data) {
+        for (PreviewFrame frame : pool) {
+            if (frame.getData() == data) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private void startWorker() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                analyzeLoop();
+            }
+        }, THREAD_NAME);
+        worker.start();
+    }
+
+    private void analyzeLoop() {
+        while (true) {
+            PreviewFrame frame;
+            synchronized (lock) {
+                while (worker == Thread.currentThread() && queueSize == 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (worker != Thread.currentThread()) {
+                    return;
+                }
+                frame = queue[queueHead];
+                queue[queueHead] = null;
+                queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+                queueSize--;
+                analyzing = frame;
+            }
+            FrameAnalyzer[] current = analyzers;
+            for (FrameAnalyzer analyzer : current) {
+                try {
+                    analyzer.analyze(frame);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "analyzer " + analyzer + " failed", e);
+                }
+            }
+            analyzedFrames++;
+            synchronized (lock) {
+                analyzing = null;
+                if (frame.generation == generation) {
+                    returned[returnedCount++] = frame;
+                }
+            }
+        }
+    }
+
+    /**
+     * 结束分析线程并释放缓冲池
+     */
+    void shutdown() {
+        if (camera != null) {
+            detach();
+        }
+        synchronized (lock) {
+            worker = null;
+            lock.notifyAll();
+        }
+        pool = new PreviewFrame[0];
+    }
+
+    /**
+     * @return 分析队列满时丢弃的帧数
+     */
+    long getDroppedFrameCount() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return 已分析的帧数
+     */
+    long getAnalyzedFrameCount() {
+        return analyzedFrames;
+    }
+}
@@ -0,0 +1,77 @@
+package com.nathaniel.recorder;
+
+/**
+ * 一帧预览画面。对象与数据数组都属于固定的缓冲池，每一帧重复使用，
+ * 只在 {@link FrameAnalyzer#analyze} 回调期间有效
+ *
+ * @author nathaniel
+ */
+public final class PreviewFrame {
+    private final byte[] data;
+    private final int width;
+    private final int height;
+    private final int format;
+    private final int rotation;
+    long timestampNanos;
+    long sequence;
+    /**
+     * 所属缓冲池的代数，相机重新开始预览后旧的帧不再交还给相机
+     */
+    int generation;
+
+    PreviewFrame(int width, int height, int format, int rotation, int bufferSize) {
+        this.data = new byte[bufferSize];
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.rotation = rotation;
+    }
+
+    /**
+     * @return 帧数据，格式见 {@link #getFormat()}，默认为 NV21
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return {@link android.graphics.ImageFormat} 中的格式
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * @return 画面需要顺时针旋转的角度才能与自然方向一致
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return 相机线程收到这一帧的时间，{@link android.os.SystemClock#elapsedRealtimeNanos()} 时间基准
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return 帧序号，从开始预览起递增，包括被丢弃的帧，可以据此判断中间丢了几帧
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    boolean matches(int width, int height, int format, int rotation, int bufferSize) {
+        return this.width == width && this.height == height && this.format == format && this.rotation == rotation
+                && data.length == bufferSize;
+    }
+}
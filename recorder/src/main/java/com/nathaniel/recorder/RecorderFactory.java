@@ -1,5 +1,6 @@
 package com.nathaniel.recorder;
 
+import android.annotation.TargetApi;
 import android.graphics.Point;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
@@ -9,6 +10,11 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.nathaniel.recorder.audio.AudioConfig;
+import com.nathaniel.recorder.policy.FrameRateSelector;
+import com.nathaniel.recorder.policy.SizeSelector;
+
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -61,36 +67,90 @@ public final class RecorderFactory {
      * @return MediaRecorder
      */
     public static MediaRecorder newCustomConfigInstance(@NonNull Camera camera, @NonNull Camera.Parameters parameters, int resolutionX, int resolutionY, int frameRate, int bitRate) {
-        MediaRecorder mediaRecorder = new MediaRecorder();
+        //计算视频尺寸
+        Point point = findCloseSizeValue(parameters, new Point(resolutionX, resolutionY));
+        return newCustomConfigInstance(camera, point, findCloseFrameRate(parameters, frameRate), bitRate);
+    }
+
+    /**
+     * 使用自定义参数生成 MediaRecorder，尺寸与帧数从缓存的相机能力中协商，不再解析相机参数
+     *
+     * @param camera       相机
+     * @param capabilities 相机能力
+     * @param resolutionX  视频宽度
+     * @param resolutionY  视频高度
+     * @param frameRate    帧数
+     * @param bitRate      码率，单位为 b/s
+     * @return MediaRecorder
+     */
+    public static MediaRecorder newCustomConfigInstance(@NonNull Camera camera, @NonNull CameraCapabilities capabilities, int resolutionX, int resolutionY, int frameRate, int bitRate) {
+        return reconfigure(new MediaRecorder(), camera, capabilities, resolutionX, resolutionY, frameRate, bitRate);
+    }
+
+    /**
+     * 重新配置一个已经 {@link MediaRecorder#reset()} 的 MediaRecorder，连续录制时复用同一个实例
+     *
+     * @param mediaRecorder 已经 reset 的 MediaRecorder
+     * @param camera        已经 unlock 的相机
+     * @param capabilities  相机能力
+     * @param resolutionX   视频宽度
+     * @param resolutionY   视频高度
+     * @param frameRate     帧数
+     * @param bitRate       码率，单位为 b/s
+     * @return 传入的 MediaRecorder
+     */
+    public static MediaRecorder reconfigure(@NonNull MediaRecorder mediaRecorder, @NonNull Camera camera, @NonNull CameraCapabilities capabilities, int resolutionX, int resolutionY, int frameRate, int bitRate) {
+        Point point = findCloseSizeValue(capabilities, new Point(resolutionX, resolutionY));
+        return configure(mediaRecorder, camera, point, findCloseFrameRate(capabilities, frameRate), bitRate);
+    }
+
+    private static MediaRecorder newCustomConfigInstance(Camera camera, Point point, int frameRate, int bitRate) {
+        return configure(new MediaRecorder(), camera, point, frameRate, bitRate);
+    }
+
+    /**
+     * 配置一个新建或者已经 {@link MediaRecorder#reset()} 的 MediaRecorder，视频来自 {@link MediaRecorder#getSurface()}
+     * 或者 {@link MediaRecorder#setInputSurface} 设置的 Surface，用于 camera2 的录制
+     *
+     * @param mediaRecorder 新建或者已经 reset 的 MediaRecorder
+     * @param videoSize     视频尺寸，必须是相机支持的录制尺寸
+     * @param frameRate     帧数
+     * @param bitRate       码率，单位为 b/s
+     * @return 传入的 MediaRecorder
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static MediaRecorder configureSurfaceSource(@NonNull MediaRecorder mediaRecorder, @NonNull Point videoSize, int frameRate, int bitRate) {
+        mediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
+        mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        return configureOutput(mediaRecorder, videoSize, frameRate, bitRate);
+    }
+
+    private static MediaRecorder configure(MediaRecorder mediaRecorder, Camera camera, Point point, int frameRate, int bitRate) {
         mediaRecorder.setCamera(camera);
         //设置视频录制过程中所录制的音频来自手机的麦克风
         mediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
         //设置视频源为摄像头
         mediaRecorder.setVideoSource(MediaRecorder.VideoSource.DEFAULT);
+        return configureOutput(mediaRecorder, point, frameRate, bitRate);
+    }
+
+    private static MediaRecorder configureOutput(MediaRecorder mediaRecorder, Point point, int frameRate, int bitRate) {
         //设置视频录制的输出文件为MPEG_4
         mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        //计算视频尺寸
-        Point point = findCloseSizeValue(parameters, new Point(resolutionX, resolutionY));
         mediaRecorder.setVideoSize(point.x, point.y);
         //设置音频编码方式为AAC
         mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
         //设置录制的视频编码为MPEG_4_SP
         mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-        mediaRecorder.setAudioChannels(2);
-        //设置编码帧率，此项会严重影响适配质量，基准数字越高，质量越好
-        mediaRecorder.setAudioEncodingBitRate(128);
+        // 声道、采样率与音频码率按设备协商，结果缓存，见 AudioCapabilities
+        AudioConfig audioConfig = AudioCapabilities.get();
+        mediaRecorder.setAudioChannels(audioConfig.getChannelCount());
+        mediaRecorder.setAudioSamplingRate(audioConfig.getSampleRate());
+        mediaRecorder.setAudioEncodingBitRate(audioConfig.getBitRate());
         mediaRecorder.setVideoEncodingBitRate(bitRate);
         // 设置帧率
-        mediaRecorder.setVideoFrameRate(findCloseFrameRate(parameters, frameRate));
-        Log.e(TAG, "frameRate = " + frameRate + ", videoWidth = " + resolutionX + " videoHeight = " + resolutionY);
-        String vendor = Build.MANUFACTURER;
-        int audioSamplingRate;
-        if (vendor != null && vendor.toLowerCase().contains("samsung")) {
-            audioSamplingRate = 8000;
-        } else {
-            audioSamplingRate = 44100;
-        }
-        mediaRecorder.setAudioSamplingRate(audioSamplingRate);
+        mediaRecorder.setVideoFrameRate(frameRate);
+        Log.e(TAG, "frameRate = " + frameRate + ", videoWidth = " + point.x + " videoHeight = " + point.y + ", audio " + audioConfig);
         return mediaRecorder;
     }
 
@@ -102,74 +162,75 @@ public final class RecorderFactory {
      * @return
      */
     public static int findCloseFrameRate(Camera.Parameters parameters, int frameRate) {
-        // 帧数参数在相机中会*1000,所以判断的时候 *1000
-        frameRate *= 1000;
-        int resultRate = Integer.MIN_VALUE;
-        List<int[]> rangeList = parameters.getSupportedPreviewFpsRange();
-        if (rangeList != null) {
-            for (int[] range : rangeList) {
-                // 如果在范围内，则直接返回
-                if (frameRate >= range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] && frameRate <= range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]) {
-                    resultRate = frameRate;
-                    break;
-                }
-                // 不再范围内，则比较一下更接近的值
-                int minOffset = Math.abs(frameRate - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX]);
-                int maxOffset = Math.abs(frameRate - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
-                int currentOffset = Math.abs(frameRate - resultRate);
-                // 找出最小差距
-                int offset = Math.min(Math.min(minOffset, maxOffset), currentOffset);
-                if (offset == minOffset) {
-                    resultRate = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
-                } else if (offset == maxOffset) {
-                    resultRate = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
-                }
-            }
-        }
-        if (resultRate == Integer.MIN_VALUE) {
-            resultRate = frameRate;
-        }
+        return findCloseFrameRate(parameters.getSupportedPreviewFpsRange(), frameRate);
+    }
+
+    /**
+     * 找到近似支持的帧数
+     *
+     * @param capabilities 相机能力
+     * @param frameRate    目标帧数
+     * @return
+     */
+    public static int findCloseFrameRate(CameraCapabilities capabilities, int frameRate) {
+        return findCloseFrameRate(Arrays.asList(capabilities.getFpsRanges()), frameRate);
+    }
+
+    /**
+     * @param rangeList 支持的帧率范围 {min, max}，单位为 帧数*1000
+     */
+    static int findCloseFrameRate(List<int[]> rangeList, int frameRate) {
+        int resultRate = FrameRateSelector.findCloseFrameRate(rangeList, frameRate);
         Log.e(TAG, "findCloseFrameRate()  resultRate " + resultRate);
-        return resultRate / 1000;
+        return resultRate;
     }
 
     /**
-     * 寻找最接近的分辨率
+     * 寻找代价最小的视频尺寸，规则见 {@link SizeSelector}
      *
      * @param parameters       相机参数信息
      * @param targetResolution 目标分辨率
      * @return
      */
     public static Point findCloseSizeValue(Camera.Parameters parameters, Point targetResolution) {
-        List<Camera.Size> rawSupportedSizes = parameters.getSupportedPreviewSizes();
-        if (rawSupportedSizes == null) {
-            Log.w("MediaRecorderFactory", "Device returned no supported preview sizes; using default");
-            Camera.Size defaultSize = parameters.getPreviewSize();
-            if (defaultSize == null) {
-                throw new IllegalStateException("Parameters contained no preview size!");
-            }
-            return new Point(defaultSize.width, defaultSize.height);
+        Camera.Size defaultPreview = parameters.getPreviewSize();
+        int[] defaultSize = defaultPreview == null ? null : new int[]{defaultPreview.width, defaultPreview.height};
+        SizeSelector selector = new SizeSelector(CameraUtils.toArray(parameters.getSupportedPreviewSizes()),
+                CameraUtils.toArray(parameters.getSupportedVideoSizes()));
+        return toPoint(selector.selectVideoSize(targetResolution.x, targetResolution.y), defaultSize);
+    }
+
+    /**
+     * 寻找代价最小的视频尺寸，同一目标分辨率的结果会记录在相机能力中，下次直接使用
+     *
+     * @param capabilities     相机能力
+     * @param targetResolution 目标分辨率
+     * @return
+     */
+    public static Point findCloseSizeValue(CameraCapabilities capabilities, Point targetResolution) {
+        int[] chosen = capabilities.getChosenVideoSize(targetResolution.x, targetResolution.y);
+        if (chosen != null) {
+            return new Point(chosen[0], chosen[1]);
         }
+        Point point = toPoint(capabilities.getSizeSelector().selectVideoSize(targetResolution.x, targetResolution.y),
+                capabilities.getDefaultPreviewSize());
+        Log.i(TAG, "video size for " + targetResolution + ": " + point);
+        capabilities.setChosenVideoSize(targetResolution.x, targetResolution.y, point.x, point.y);
+        return point;
+    }
 
-        long targetPixels = targetResolution.x * targetResolution.y;
-
-        Camera.Size resultSize = null;
-        long minOffset = Long.MAX_VALUE;
-        for (Camera.Size size : rawSupportedSizes) {
-            long pixels = size.width * size.height;
-            long offset = Math.abs(targetPixels - pixels);
-            if (Math.abs(offset) < minOffset) {
-                minOffset = offset;
-                resultSize = size;
-                // 如果是0，直接跳出
-                if (minOffset == 0) {
-                    break;
-                }
+    /**
+     * @param size        选择的尺寸，相机没有返回支持的尺寸时为空
+     * @param defaultSize 相机默认的预览尺寸
+     */
+    static Point toPoint(int[] size, int[] defaultSize) {
+        if (size == null) {
+            Log.w(TAG, "Device returned no supported sizes; using default");
+            if (defaultSize == null) {
+                throw new IllegalStateException("Parameters contained no preview size!");
             }
+            size = defaultSize;
         }
-        if (resultSize == null) {
-            resultSize = parameters.getPreviewSize();
-        }
-        return new Point(resultSize.width, resultSize.height);
+        return new Point(size[0], size[1]);
     }
 }
@@ -0,0 +1,417 @@
+package com.nathaniel.recorder;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * 录制各阶段的耗时与吞吐统计。时间取 {@link SystemClock#elapsedRealtimeNanos()}，同步执行的阶段同时输出
+ * {@link Trace} 片段，可以在 systrace 或 Perfetto 中查看。每个录制文件完成后生成一份 {@link Report}，
+ * 交给 {@link Sink}，也可以在视频旁边保存为 JSON，见 {@link RecorderView#setMetricsSink}
+ * <p>
+ * 相机阶段保留最近一次打开相机的结果，录制阶段按录制文件统计，生成报告后清零。所有方法都可以在任意线程调用
+ *
+ * @author nathaniel
+ */
+public final class RecorderMetrics {
+
+    private static final String TAG = RecorderMetrics.class.getSimpleName();
+    private static final String TRACE_PREFIX = "Recorder:";
+    private static final String JSON_SUFFIX = ".metrics.json";
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * 统计的阶段
+     */
+    public enum Stage {
+        /**
+         * 打开相机，camera2 为 openCamera 到 onOpened
+         */
+        CAMERA_OPEN("camera_open", false),
+        /**
+         * 设置相机参数，camera2 为提交重复请求
+         */
+        SET_PARAMETERS("set_parameters", false),
+        /**
+         * 开始预览，camera2 为创建会话到会话配置完成
+         */
+        START_PREVIEW("start_preview", false),
+        /**
+         * 开始预览到收到第一帧
+         */
+        FIRST_FRAME("first_frame", false),
+        RECORDER_PREPARE("recorder_prepare", true),
+        RECORDER_START("recorder_start", true),
+        RECORDER_STOP("recorder_stop", true),
+        /**
+         * 录制结束后合并分段、移动 moov，直到文件可以使用
+         */
+        FILE_FINALIZE("file_finalize", true);
+
+        private final String key;
+        private final boolean perTake;
+
+        Stage(String key, boolean perTake) {
+            this.key = key;
+            this.perTake = perTake;
+        }
+
+        /**
+         * @return 报告与 Trace 片段中使用的名称
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * 接收每个录制文件的报告
+     */
+    public interface Sink {
+        /**
+         * 在后处理线程回调，文件已经写完
+         *
+         * @param report 报告
+         */
+        void onReport(Report report);
+    }
+
+    /**
+     * 一个阶段的耗时统计
+     */
+    public static final class Timing {
+        private final int count;
+        private final long lastNanos;
+        private final long maxNanos;
+        private final long totalNanos;
+
+        Timing(int count, long lastNanos, long maxNanos, long totalNanos) {
+            this.count = count;
+            this.lastNanos = lastNanos;
+            this.maxNanos = maxNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        /**
+         * @return 发生的次数，0 表示没有发生
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public long getLastNanos() {
+            return lastNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("count", count)
+                    .put("lastMs", lastNanos / (double) NANOS_PER_MILLI)
+                    .put("maxMs", maxNanos / (double) NANOS_PER_MILLI)
+                    .put("totalMs", totalNanos / (double) NANOS_PER_MILLI);
+        }
+
+        @Override
+        public String toString() {
+            return count + "x last " + lastNanos / NANOS_PER_MILLI + "ms max " + maxNanos / NANOS_PER_MILLI + "ms";
+        }
+    }
+
+    /**
+     * 一个录制文件的报告
+     */
+    public static final class Report {
+        private final Timing[] timings;
+        private final long recordingNanos;
+        private final float deliveredFrameRate;
+        private final float minDeliveredFrameRate;
+        private final long createdAt;
+        private File file;
+        private long fileBytes;
+
+        Report(Timing[] timings, long recordingNanos, float deliveredFrameRate, float minDeliveredFrameRate) {
+            this.timings = timings;
+            this.recordingNanos = recordingNanos;
+            this.deliveredFrameRate = deliveredFrameRate;
+            this.minDeliveredFrameRate = minDeliveredFrameRate;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        /**
+         * 文件完成后补充文件与完成耗时，只在后处理线程调用
+         */
+        void complete(File file, long finalizeNanos) {
+            this.file = file;
+            this.fileBytes = file.length();
+            timings[Stage.FILE_FINALIZE.ordinal()] = new Timing(1, finalizeNanos, finalizeNanos, finalizeNanos);
+        }
+
+        public Timing getTiming(Stage stage) {
+            return timings[stage.ordinal()];
+        }
+
+        /**
+         * @return 录制的文件
+         */
+        public File getFile() {
+            return file;
+        }
+
+        public long getFileBytes() {
+            return fileBytes;
+        }
+
+        /**
+         * @return 实际录制的时长，不含暂停，单位纳秒
+         */
+        public long getRecordingNanos() {
+            return recordingNanos;
+        }
+
+        /**
+         * @return 文件平均每秒写入的字节数，按实际录制时长计算
+         */
+        public float getBytesPerSecond() {
+            return recordingNanos > 0 ? (float) (fileBytes * NANOS_PER_SECOND / recordingNanos) : 0;
+        }
+
+        /**
+         * @return 结束录制时相机实际输出的帧率，只在测量帧率时有效，见 {@link RecorderView#getDeliveredFrameRate()}
+         */
+        public float getDeliveredFrameRate() {
+            return deliveredFrameRate;
+        }
+
+        public float getMinDeliveredFrameRate() {
+            return minDeliveredFrameRate;
+        }
+
+        /**
+         * @return 报告生成的时间，{@link System#currentTimeMillis()}
+         */
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject stages = new JSONObject();
+            for (Stage stage : Stage.values()) {
+                Timing timing = timings[stage.ordinal()];
+                if (timing.getCount() > 0) {
+                    stages.put(stage.getKey(), timing.toJson());
+                }
+            }
+            return new JSONObject()
+                    .put("file", file != null ? file.getAbsolutePath() : JSONObject.NULL)
+                    .put("createdAt", createdAt)
+                    .put("fileBytes", fileBytes)
+                    .put("recordingMs", recordingNanos / (double) NANOS_PER_MILLI)
+                    .put("bytesPerSecond", getBytesPerSecond())
+                    .put("deliveredFps", deliveredFrameRate)
+                    .put("minDeliveredFps", minDeliveredFrameRate)
+                    .put("stages", stages);
+        }
+
+        /**
+         * 保存为文件旁边的 {@code <文件名>.metrics.json}，先写临时文件再重命名
+         *
+         * @return 保存的文件，失败时返回 null
+         */
+        File writeJson() {
+            if (file == null) {
+                return null;
+            }
+            File target = new File(file.getPath() + JSON_SUFFIX);
+            File temp = new File(target.getPath() + ".tmp");
+            Writer writer = null;
+            try {
+                String json = toJson().toString(2);
+                FileOutputStream outputStream = new FileOutputStream(temp);
+                writer = new OutputStreamWriter(outputStream, "UTF-8");
+                writer.write(json);
+                writer.flush();
+                outputStream.getFD().sync();
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "write metrics " + target + " failed", e);
+                return null;
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "close failed", e);
+                    }
+                }
+            }
+            return temp.renameTo(target) ? target : null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(file != null ? file.getName() : "-").append(": ").append(fileBytes).append(" bytes, ")
+                    .append((long) getBytesPerSecond()).append(" B/s, ").append(deliveredFrameRate).append(" fps");
+            for (Stage stage : Stage.values()) {
+                Timing timing = timings[stage.ordinal()];
+                if (timing.getCount() > 0) {
+                    builder.append(", ").append(stage.getKey()).append(' ').append(timing);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    private final int[] counts = new int[Stage.values().length];
+    private final long[] lastNanos = new long[counts.length];
+    private final long[] maxNanos = new long[counts.length];
+    private final long[] totalNanos = new long[counts.length];
+    private volatile long previewStartNanos = -1;
+    private long recordingNanos;
+    private long recordingStartNanos = -1;
+
+    /**
+     * 开始一个同步执行的阶段，与 {@link #end} 在同一个线程成对调用
+     *
+     * @return 开始时间，交给 {@link #end}
+     */
+    public long begin(Stage stage) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            beginSection(stage);
+        }
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * 结束 {@link #begin} 开始的阶段
+     *
+     * @param beginNanos {@link #begin} 的返回值
+     */
+    public void end(Stage stage, long beginNanos) {
+        long duration = SystemClock.elapsedRealtimeNanos() - beginNanos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        record(stage, duration);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(Stage stage) {
+        Trace.beginSection(TRACE_PREFIX + stage.getKey());
+    }
+
+    /**
+     * 记录一个跨越回调、没有 Trace 片段的阶段
+     *
+     * @param durationNanos 耗时，单位纳秒
+     */
+    public synchronized void record(Stage stage, long durationNanos) {
+        int index = stage.ordinal();
+        counts[index]++;
+        lastNanos[index] = durationNanos;
+        maxNanos[index] = Math.max(maxNanos[index], durationNanos);
+        totalNanos[index] += durationNanos;
+    }
+
+    /**
+     * 相机开始预览，之后的第一次 {@link #onPreviewFrame()} 记为 {@link Stage#FIRST_FRAME}
+     */
+    void onPreviewStarted() {
+        previewStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @return true 正在等待开始预览后的第一帧
+     */
+    boolean isFirstFramePending() {
+        return previewStartNanos >= 0;
+    }
+
+    /**
+     * 收到一帧预览，只有开始预览后的第一帧被记录，其余调用只读一个 volatile 字段
+     */
+    void onPreviewFrame() {
+        long start = previewStartNanos;
+        if (start >= 0) {
+            previewStartNanos = -1;
+            record(Stage.FIRST_FRAME, SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    /**
+     * 录制开始或者恢复
+     */
+    synchronized void onRecordingStarted() {
+        if (recordingStartNanos < 0) {
+            recordingStartNanos = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    /**
+     * 录制暂停或者结束
+     */
+    synchronized void onRecordingStopped() {
+        if (recordingStartNanos >= 0) {
+            recordingNanos += SystemClock.elapsedRealtimeNanos() - recordingStartNanos;
+            recordingStartNanos = -1;
+        }
+    }
+
+    /**
+     * 取得当前的统计，不清零
+     */
+    public synchronized Timing getTiming(Stage stage) {
+        int index = stage.ordinal();
+        return new Timing(counts[index], lastNanos[index], maxNanos[index], totalNanos[index]);
+    }
+
+    /**
+     * 结束一个录制文件的统计：生成报告，清零录制阶段与录制时长，相机阶段保留。结束录制时先调用 {@link #onRecordingStopped()}
+     *
+     * @param deliveredFrameRate    相机实际输出的帧率
+     * @param minDeliveredFrameRate 相机实际输出的最低帧率
+     * @return 报告，文件完成后通过 {@link Report#complete} 补充
+     */
+    synchronized Report takeReport(float deliveredFrameRate, float minDeliveredFrameRate) {
+        if (recordingStartNanos >= 0) {
+            // 按大小切换文件时录制还在继续，之后的时长计入下一个文件
+            long now = SystemClock.elapsedRealtimeNanos();
+            recordingNanos += now - recordingStartNanos;
+            recordingStartNanos = now;
+        }
+        Stage[] stages = Stage.values();
+        Timing[] timings = new Timing[stages.length];
+        for (Stage stage : stages) {
+            int index = stage.ordinal();
+            timings[index] = new Timing(counts[index], lastNanos[index], maxNanos[index], totalNanos[index]);
+            if (stage.perTake) {
+                counts[index] = 0;
+                lastNanos[index] = 0;
+                maxNanos[index] = 0;
+                totalNanos[index] = 0;
+            }
+        }
+        Report report = new Report(timings, recordingNanos, deliveredFrameRate, minDeliveredFrameRate);
+        recordingNanos = 0;
+        return report;
+    }
+}
@@ -0,0 +1,77 @@
+package com.nathaniel.recorder;
+
+/**
+ * 录制器的状态，状态之间只能按 {@link #canMoveTo(RecorderState)} 允许的方向转换，见 {@link RecorderStateMachine}
+ *
+ * @author nathaniel
+ */
+public enum RecorderState {
+    /**
+     * 相机关闭，没有在录制
+     */
+    IDLE,
+    /**
+     * 正在打开相机
+     */
+    OPENING,
+    /**
+     * 相机已打开并在预览，可以开始录制；预录也在这个状态中进行
+     */
+    PREVIEWING,
+    /**
+     * 已经请求开始录制，录制器正在相机线程中 prepare 与 start
+     */
+    PREPARING,
+    /**
+     * 正在录制
+     */
+    RECORDING,
+    /**
+     * 录制已暂停
+     */
+    PAUSED,
+    /**
+     * 已经请求结束录制，录制器正在相机线程中结束
+     */
+    FINALIZING,
+    /**
+     * 相机打开失败或者录制器出错，重新打开相机或者关闭相机后恢复
+     */
+    ERROR;
+
+    /**
+     * @param next 目标状态
+     * @return true 可以从当前状态转换到目标状态
+     */
+    public boolean canMoveTo(RecorderState next) {
+        switch (this) {
+            case IDLE:
+                // 仅录音模式不打开相机，直接开始录制
+                return next == OPENING || next == PREPARING || next == ERROR;
+            case OPENING:
+                // 相机打开期间请求的录制排在打开之后执行
+                return next == PREVIEWING || next == PREPARING || next == OPENING || next == IDLE || next == ERROR;
+            case PREVIEWING:
+                return next == PREPARING || next == OPENING || next == IDLE || next == ERROR;
+            case PREPARING:
+                // 开始失败时回到预览，开始之前已经请求结束时直接结束
+                return next == RECORDING || next == PREVIEWING || next == FINALIZING || next == IDLE || next == ERROR;
+            case RECORDING:
+                return next == PAUSED || next == FINALIZING || next == ERROR;
+            case PAUSED:
+                return next == RECORDING || next == FINALIZING || next == ERROR;
+            case FINALIZING:
+                return next == PREVIEWING || next == IDLE || next == ERROR;
+            default:
+                // 出错前已经录制的分段仍可以结束并保存
+                return next == OPENING || next == FINALIZING || next == IDLE;
+        }
+    }
+
+    /**
+     * @return true 录制已经开始，或者正在开始、暂停中
+     */
+    public boolean isRecording() {
+        return this == PREPARING || this == RECORDING || this == PAUSED;
+    }
+}
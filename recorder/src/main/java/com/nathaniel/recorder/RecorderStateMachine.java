@@ -0,0 +1,181 @@
+package com.nathaniel.recorder;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 录制器的状态机。状态保存在 {@link AtomicReference} 中，转换用 compare-and-set 完成，不需要加锁，
+ * 主线程、相机线程与扫描线程可以同时请求转换，只有一个会成功，例如连续两次点击开始只会开始一次录制。
+ * 不允许的转换不会改变状态，会打印日志并通知 {@link OnStateChangeListener#onTransitionRejected}
+ * <p>
+ * 监听器在注册时指定的 {@link Executor} 中回调。同一个 Executor 按转换发生的顺序收到通知，
+ * 不同线程几乎同时完成的转换可能以相反的顺序到达，可以用回调中的原状态判断
+ *
+ * @author nathaniel
+ */
+public final class RecorderStateMachine {
+
+    private static final String TAG = RecorderStateMachine.class.getSimpleName();
+
+    /**
+     * 状态转换回调
+     */
+    public interface OnStateChangeListener {
+        /**
+         * 状态已经转换
+         *
+         * @param previous 原状态
+         * @param current  新状态
+         */
+        void onStateChanged(RecorderState previous, RecorderState current);
+
+        /**
+         * 请求的转换不被允许，状态没有改变，例如没有在录制时请求暂停
+         *
+         * @param current   请求时的状态
+         * @param requested 请求的状态
+         */
+        void onTransitionRejected(RecorderState current, RecorderState requested);
+    }
+
+    private static final class Registration {
+        final OnStateChangeListener listener;
+        final Executor executor;
+
+        Registration(OnStateChangeListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private final AtomicReference<RecorderState> state = new AtomicReference<>(RecorderState.IDLE);
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return 当前状态，读取之后可能立即被其他线程改变，需要据此转换时使用 {@link #moveTo} 或 {@link #compareAndSet}
+     */
+    public RecorderState getState() {
+        return state.get();
+    }
+
+    /**
+     * 从当前状态转换到目标状态，当前状态不允许转换时拒绝
+     *
+     * @param next 目标状态
+     * @return true 转换成功，false 被拒绝
+     */
+    public boolean moveTo(RecorderState next) {
+        while (true) {
+            RecorderState current = state.get();
+            if (!current.canMoveTo(next)) {
+                notifyRejected(current, next);
+                return false;
+            }
+            if (state.compareAndSet(current, next)) {
+                notifyChanged(current, next);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 只有当前状态为 from 时才转换到目标状态，否则拒绝，用于只能从一个状态发起的请求，例如只能从
+     * {@link RecorderState#PAUSED} 恢复录制
+     *
+     * @param from 要求的当前状态
+     * @param next 目标状态
+     * @return true 转换成功，false 被拒绝
+     */
+    public boolean moveTo(RecorderState from, RecorderState next) {
+        if (from.canMoveTo(next) && state.compareAndSet(from, next)) {
+            notifyChanged(from, next);
+            return true;
+        }
+        notifyRejected(state.get(), next);
+        return false;
+    }
+
+    /**
+     * 只有当前状态为 expect 时才转换，用于完成一个已经开始的操作，例如相机打开后从 {@link RecorderState#OPENING}
+     * 转换到 {@link RecorderState#PREVIEWING}。状态已经被其他请求改变时不转换，也不通知拒绝
+     *
+     * @param expect 期望的当前状态
+     * @param update 目标状态，必须是 expect 允许转换到的状态
+     * @return true 转换成功
+     */
+    public boolean compareAndSet(RecorderState expect, RecorderState update) {
+        if (!expect.canMoveTo(update)) {
+            throw new IllegalArgumentException("Illegal transition " + expect + " -> " + update);
+        }
+        if (state.compareAndSet(expect, update)) {
+            notifyChanged(expect, update);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 不检查转换规则直接设置状态，只用于释放相机等必须无条件完成的操作
+     *
+     * @param next 目标状态
+     */
+    void force(RecorderState next) {
+        RecorderState previous = state.getAndSet(next);
+        if (previous != next) {
+            notifyChanged(previous, next);
+        }
+    }
+
+    /**
+     * 添加监听器，同一个监听器可以在不同的 Executor 中注册多次
+     *
+     * @param listener 监听器
+     * @param executor 回调使用的 Executor，需要在主线程回调时传入向主线程 Handler post 任务的 Executor
+     */
+    public void addOnStateChangeListener(OnStateChangeListener listener, Executor executor) {
+        if (listener == null || executor == null) {
+            throw new NullPointerException("listener and executor must not be null");
+        }
+        registrations.add(new Registration(listener, executor));
+    }
+
+    /**
+     * 移除监听器的所有注册，已经提交到 Executor 的回调仍会执行
+     *
+     * @param listener 监听器
+     */
+    public void removeOnStateChangeListener(OnStateChangeListener listener) {
+        for (Registration registration : registrations) {
+            if (registration.listener == listener) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    private void notifyChanged(final RecorderState previous, final RecorderState current) {
+        Log.i(TAG, previous + " -> " + current);
+        for (final Registration registration : registrations) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onStateChanged(previous, current);
+                }
+            });
+        }
+    }
+
+    private void notifyRejected(final RecorderState current, final RecorderState requested) {
+        Log.w(TAG, "rejected " + current + " -> " + requested);
+        for (final Registration registration : registrations) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onTransitionRejected(current, requested);
+                }
+            });
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.nathaniel.recorder;
 
+/**
+ * @deprecated 状态由 {@link RecorderView} 的 {@link RecorderStateMachine} 维护，使用 {@link RecorderState}
+ */
+@Deprecated
 public enum RecorderStatus {
     /**
      * 录制状态
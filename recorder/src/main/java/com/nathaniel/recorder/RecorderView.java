@@ -4,9 +4,10 @@ import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.TypedArray;
+import android.graphics.Point;
 import android.hardware.Camera;
-import android.media.MediaRecorder;
-import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -18,8 +19,22 @@ import android.widget.Toast;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
+import com.nathaniel.recorder.audio.AudioConfig;
+import com.nathaniel.recorder.audio.LevelMeter;
+import com.nathaniel.recorder.mp4.FastStart;
+import com.nathaniel.recorder.mp4.Mp4Concatenator;
+import com.nathaniel.recorder.policy.BitratePolicy;
+import com.nathaniel.recorder.policy.SizeSelector;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * @author nathaniel
@@ -33,6 +48,26 @@ public class RecorderView extends SurfaceView implements SurfaceHolder.Callback
      * 前置相机
      */
     public static final int FACING_FRONT = 1;
+    /**
+     * 使用 {@link android.hardware.Camera}
+     */
+    public static final int CAMERA_API_1 = 1;
+    /**
+     * 使用 camera2，Android 5.0 以下自动使用 {@link #CAMERA_API_1}
+     */
+    public static final int CAMERA_API_2 = 2;
+    /**
+     * 使用不需要相机硬件的 {@link FakeCamera}，用于 CI 与 Robolectric 中的压测，总是录制为分片 MP4
+     */
+    public static final int CAMERA_API_FAKE = 3;
+    /**
+     * 使用 MediaRecorder 录制
+     */
+    public static final int RECORD_ENGINE_MEDIA_RECORDER = 0;
+    /**
+     * 使用 MediaCodec 与 MediaMuxer 录制，只在 {@link #CAMERA_API_2} 下可用
+     */
+    public static final int RECORD_ENGINE_MEDIA_CODEC = 1;
     /**
      * 默认录制宽度
      */
@@ -49,28 +84,204 @@ public class RecorderView extends SurfaceView implements SurfaceHolder.Callback
      * 默认码率，512 KB
      */
     public static final int DEFAULT_BIT_RATE = 512;
+    /**
+     * 默认预录存储空间上限，64 MB
+     */
+    public static final long DEFAULT_PRE_ROLL_QUOTA = 64L * 1024 * 1024;
+    /**
+     * 默认开始录制前要求剩余空间至少能录制的时长，30 秒
+     */
+    public static final long DEFAULT_STORAGE_RESERVE = 30 * 1000;
+    /**
+     * FAT32 文件系统单个文件的大小上限，按大小切换文件时不要超过这个值
+     */
+    public static final long FAT32_MAX_FILE_SIZE = 0xFFFFFFFFL;
     private static final String TAG = RecorderView.class.getSimpleName();
     /**
      * 1KB大小
      */
     private static final int KB = 1024 * 8;
     private static final String FILE_EXTENSION = ".mp4";
+    private static final String AUDIO_FILE_EXTENSION = ".m4a";
+    /**
+     * 仅录音模式与 {@link FakeCamera} 没有设置分片时长时的分片时长，单位毫秒
+     */
+    private static final long DEFAULT_FRAGMENT_DURATION = 1000;
+    private static final String SEGMENT_SUFFIX = ".part";
+    private static final String VOLUME_SEPARATOR = "-";
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long MICROS_PER_MILLI = 1000L;
+    private static final String POST_PROCESS_THREAD_NAME = "RecorderPostProcess";
     /**
      * 相机管理类
      */
     private CameraManager cameraManager;
     /**
-     * 媒体录制类
+     * camera2 后端，第一次使用时创建，与 {@link #cameraManager} 共用相机线程
+     */
+    private Camera2Backend camera2Backend;
+    /**
+     * 合成画面的相机后端，第一次使用时创建，与 {@link #cameraManager} 共用相机线程与预览帧分发器
+     */
+    private FakeCamera fakeCamera;
+    /**
+     * 当前使用的相机后端，{@link #cameraManager}、{@link #camera2Backend} 或者 {@link #fakeCamera}
+     */
+    private volatile CameraBackend cameraBackend;
+    /**
+     * 下一次打开相机时使用的相机 API
+     */
+    private int cameraApi = CAMERA_API_1;
+    /**
+     * 选择预览与视频尺寸的代价函数，为空时使用默认代价
+     */
+    private SizeSelector.Cost sizeCost;
+    /**
+     * 媒体录制类，只在相机线程中使用
+     */
+    private TakeRecorder takeRecorder;
+    /**
+     * 分片 MP4 录制器，只在相机线程中使用
+     */
+    private FragmentedRecorder fragmentedRecorder;
+    /**
+     * MediaCodec 录制器，与 {@link #camera2Backend} 一起创建，只在相机线程中使用
+     */
+    private CodecRecorder codecRecorder;
+    /**
+     * 录制引擎，{@link #RECORD_ENGINE_MEDIA_RECORDER} 或者 {@link #RECORD_ENGINE_MEDIA_CODEC}
+     */
+    private volatile int recordEngine = RECORD_ENGINE_MEDIA_RECORDER;
+    /**
+     * MediaCodec 录制的关键帧间隔，单位秒
+     */
+    private volatile int keyFrameInterval = 1;
+    /**
+     * MediaCodec 录制的 B 帧数上限
+     */
+    private volatile int maxBFrames;
+    private volatile OnEncodedSampleListener encodedSampleListener;
+    /**
+     * 仅录音模式的录音器
+     */
+    private AudioRecorder audioRecorder;
+    /**
+     * 仅录音模式，不打开相机，只录制声音
+     */
+    private volatile boolean audioOnly;
+    private volatile OnAudioLevelListener audioLevelListener;
+    private volatile RecorderMetrics.Sink metricsSink;
+    /**
+     * 是否在录制文件旁边保存统计报告
+     */
+    private volatile boolean metricsJsonEnabled;
+    /**
+     * 结束录制时生成、等待文件完成的统计报告，只在相机线程中使用
+     */
+    private RecorderMetrics.Report finishedReport;
+    /**
+     * 分片时长，单位毫秒，0 表示使用 MediaRecorder 录制普通 MP4
+     */
+    private volatile long fragmentDuration;
+    /**
+     * 录制结束后是否把 moov 移到文件开头
+     */
+    private volatile boolean fastStartEnabled = true;
+    /**
+     * 预录时长，单位毫秒，0 表示关闭
+     */
+    private volatile long preRollDuration;
+    /**
+     * 预录槽位文件加起来的大小上限，单位字节
+     */
+    private volatile long preRollQuota = DEFAULT_PRE_ROLL_QUOTA;
+    /**
+     * 预录环形缓冲，只在相机线程中使用
+     */
+    private PreRollBuffer preRollBuffer;
+    /**
+     * 录制器是否正在写入预录槽位，只在相机线程中使用
+     */
+    private boolean preRolling;
+    /**
+     * 按时长切换预录分段时的分段时长，单位毫秒，只在相机线程中使用
+     */
+    private long preRollSegmentMillis;
+    /**
+     * 开始录制前要求剩余空间至少能录制的时长，单位毫秒，0 表示不检查
+     */
+    private volatile long storageReserve = DEFAULT_STORAGE_RESERVE;
+    /**
+     * 按大小切换文件时单个文件的大小上限，单位字节，0 表示不切换
+     */
+    private volatile long splitFileSize;
+    /**
+     * 当前录制是否按大小切换为多个编号文件，只在相机线程中使用
+     */
+    private boolean splitting;
+    /**
+     * 当前录制未编号的目标文件与当前文件的编号，只在相机线程中使用
+     */
+    private File volumeBaseFile;
+    private int volumeIndex;
+    /**
+     * 连续录制模式
+     */
+    private volatile boolean multiTakeEnabled;
+    /**
+     * 连续录制的序号
+     */
+    private int takeIndex;
+    /**
+     * 最近一次录制完成的文件
+     */
+    private volatile File lastTakeFile;
+    /**
+     * 当前录制的目标文件，暂停产生的分段在结束录制时合并到这个文件，只在相机线程中使用
+     */
+    private File takeFile;
+    /**
+     * 当前录制已经完成的分段，只在相机线程中使用
+     */
+    private final List<File> segmentFiles = new ArrayList<>();
+    /**
+     * 分段文件序号，保证后台合并上一次录制时不会与新的分段重名
+     */
+    private int segmentSerial;
+    /**
+     * 当前录制的日志，进程意外退出后据此修复文件，只在相机线程中使用
+     */
+    private RecoveryJournal journal;
+    /**
+     * 分段合并等后处理线程
+     */
+    private ExecutorService postProcessExecutor;
+    /**
+     * 在主线程执行任务
+     */
+    private final Executor mainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            post(command);
+        }
+    };
+    /**
+     * 最近一次点击开始到录制开始的耗时，单位毫秒
+     */
+    private volatile long startLatency = -1;
+    /**
+     * 运动触发录制，第一次使用时创建
      */
-    private MediaRecorder mediaRecorder;
+    private MotionTrigger motionTrigger;
+    private MotionTrigger.OnMotionListener onMotionListener;
     /**
      * Surface是否已打开
      */
     private boolean surfaceEnable;
     /**
-     * 是否正在录制
+     * 录制器状态，主线程、相机线程与分析线程都通过 compare-and-set 转换，不需要加锁
      */
-    private RecorderStatus recorderStatus = RecorderStatus.PREPARED;
+    private final RecorderStateMachine stateMachine = new RecorderStateMachine();
     /**
      * 输出路径
      */
@@ -91,16 +302,172 @@ public class RecorderView extends SurfaceView implements SurfaceHolder.Callback
      * 帧数
      */
     private int frameRate = DEFAULT_FRAME_RATE;
+    /**
+     * 是否锁定帧率
+     */
+    private volatile boolean constantFrameRate;
     /**
      * 码率，单位是 KB，此单位控制视频1秒钟的体积大小，在分辨率固定的情况下，码率越大画质越好，码率越小画质越差
      */
     private int bitRate = DEFAULT_BIT_RATE;
+    /**
+     * 是否使用固定码率 {@link #bitRate}，否则由 {@link #bitratePolicy} 根据协商后的分辨率与帧数计算
+     */
+    private volatile boolean fixedBitRate;
+    private volatile BitratePolicy bitratePolicy = new BitratePolicy();
+    /**
+     * 最近一次录制使用的码率
+     */
+    private volatile BitratePolicy.Estimate bitrateEstimate;
     /**
      * 指定相机位置
      */
     private CameraFacing cameraFacing = CameraFacing.FRONT;
     private String videoName;
     private String fileFullName;
+    private final OnCameraListener cameraListener = new OnCameraListener() {
+        @Override
+        public void onCameraOpened(RecorderCamera camera) {
+            Log.e(TAG, "camera opened " + camera);
+            // 相机打开期间已经请求录制时保持当前状态
+            stateMachine.compareAndSet(RecorderState.OPENING, RecorderState.PREVIEWING);
+            if (preRollDuration > 0 && usesTakeRecorder()) {
+                cameraManager.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        startPreRoll();
+                    }
+                });
+            } else if (multiTakeEnabled && usesTakeRecorder()) {
+                // 提前为第一段录制 prepare
+                cameraManager.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!takeRecorder.isPrepared() && !takeRecorder.isRecording()) {
+                            prepareNextTake();
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onCameraClosed() {
+            Log.e(TAG, "camera closed");
+        }
+
+        @Override
+        public void onCameraError(Exception e) {
+            stateMachine.moveTo(RecorderState.ERROR);
+            Toast.makeText(getContext(), R.string.open_camera_error, Toast.LENGTH_SHORT).show();
+        }
+    };
+    private final TakeRecorder.OnRolloverListener rolloverListener = new TakeRecorder.OnRolloverListener() {
+        @Override
+        public File onRequestNextFile() {
+            return preRolling ? preRollBuffer.nextSlot() : nextSegmentFile();
+        }
+
+        @Override
+        public void onFileFinished(File file, boolean stopped) {
+            if (preRolling) {
+                preRollBuffer.onSlotFinished(file);
+                if (stopped) {
+                    startPreRollSegment();
+                }
+                return;
+            }
+            if (file != null) {
+                segmentFiles.add(file);
+            }
+            if (splitting && file != null && takeFile != null) {
+                // 当前编号文件写满，之后的内容写入下一个编号文件
+                finishVolume();
+                if (stopped && prepareSegment()) {
+                    takeRecorder.start();
+                }
+                if (takeRecorder.isRecording()) {
+                    writeJournal(false);
+                }
+                return;
+            }
+            if (stopped && takeFile != null && prepareSegment()) {
+                takeRecorder.start();
+            }
+            if (journal != null && takeRecorder.isRecording()) {
+                journal.addSegment(takeRecorder.getOutputFile());
+                journal.write();
+            }
+        }
+    };
+    /**
+     * 不支持无缝切换文件时按时长切换预录分段
+     */
+    private final Runnable rollPreRollTask = new Runnable() {
+        @Override
+        public void run() {
+            if (preRolling && takeRecorder.isRecording()) {
+                preRollBuffer.onSlotFinished(takeRecorder.stop());
+                startPreRollSegment();
+            }
+        }
+    };
+    private final Runnable releaseRecorderTask = new Runnable() {
+        @Override
+        public void run() {
+            File file = stopActiveRecorder();
+            if (preRolling) {
+                cameraManager.cancel(rollPreRollTask);
+                preRollBuffer.onSlotFinished(file);
+                preRollBuffer.stop();
+                preRolling = false;
+            } else if (file != null) {
+                segmentFiles.add(file);
+            }
+            File unused = takeRecorder.isPrepared() ? takeRecorder.getOutputFile() : null;
+            takeRecorder.release();
+            deleteFile(unused);
+        }
+    };
+    /**
+     * 运动结束时只结束这一段录制，不关闭相机，之后继续检测
+     */
+    private final MotionTrigger.OnMotionListener motionListener = new MotionTrigger.OnMotionListener() {
+        @Override
+        public void onMotionStarted() {
+            startRecorder();
+            if (onMotionListener != null) {
+                onMotionListener.onMotionStarted();
+            }
+        }
+
+        @Override
+        public void onMotionStopped() {
+            resetRecorder();
+            if (onMotionListener != null) {
+                onMotionListener.onMotionStopped();
+            }
+        }
+    };
+    /**
+     * 在主线程回调最近一次发布的音量
+     */
+    private final Runnable audioLevelTask = new Runnable() {
+        @Override
+        public void run() {
+            OnAudioLevelListener listener = audioLevelListener;
+            if (listener != null) {
+                LevelMeter meter = audioRecorder.getLevelMeter();
+                listener.onAudioLevel(meter.getRmsDb(), meter.getPeakDb());
+            }
+        }
+    };
+    private final Runnable reopenCameraTask = new Runnable() {
+        @Override
+        public void run() {
+            openCamera();
+        }
+    };
 
     public RecorderView(Context context) {
         this(context, null);
@@ -120,6 +487,19 @@ public class RecorderView extends SurfaceView implements SurfaceHolder.Callback
         getHolder().addCallback(this);
         Log.e(TAG, " initialize recorder view ");
         cameraManager = new CameraManager(getContext().getApplicationContext());
+        cameraBackend = cameraManager;
+        takeRecorder = new TakeRecorder(cameraManager);
+        fragmentedRecorder = new FragmentedRecorder(cameraManager);
+        audioRecorder = new AudioRecorder(new Runnable() {
+            @Override
+            public void run() {
+                if (audioLevelListener != null) {
+                    post(audioLevelTask);
+                }
+            }
+        });
+        // 修复上一次进程意外退出时没有写完的录制
+        getPostProcessExecutor().execute(new OrphanRecovery(new File(parentPath)));
     }
 
     /**
@@ -135,8 +515,22 @@ public class RecorderView extends SurfaceView implements SurfaceHolder.Callback
         videoWidth = typedArray.getInteger(R.styleable.RecorderView_videoWidth, DEFAULT_WIDTH);
         videoHeight = typedArray.getInteger(R.styleable.RecorderView_videoHeight, DEFAULT_HEIGHT);
         frameRate = typedArray.getInteger(R.styleable.RecorderView_frameRate, DEFAULT_FRAME_RATE);
+        constantFrameRate = typedArray.getBoolean(R.styleable.RecorderView_constantFrameRate, false);
         autoOpened = typedArray.getBoolean(R.styleable.RecorderView_autoOpen, false);
         bitRate = typedArray.getInteger(R.styleable.RecorderView_bitRate, DEFAULT_BIT_RATE);
+        fixedBitRate = typedArray.hasValue(R.styleable.RecorderView_bitRate);
+        fragmentDuration = typedArray.getInteger(R.styleable.RecorderView_fragmentDuration, 0);
+        fastStartEnabled = typedArray.getBoolean(R.styleable.RecorderView_fastStart, true);
+        preRollDuration = typedArray.getInteger(R.styleable.RecorderView_preRollDuration, 0);
+        preRollQuota = typedArray.getInteger(R.styleable.RecorderView_preRollQuota,
+                (int) (DEFAULT_PRE_ROLL_QUOTA / 1024 / 1024)) * 1024L * 1024L;
+        storageReserve = typedArray.getInteger(R.styleable.RecorderView_storageReserve,
+                (int) (DEFAULT_STORAGE_RESERVE / 1000)) * 1000L;
+        splitFileSize = typedArray.getInteger(R.styleable.RecorderView_splitFileSize, 0) * 1024L * 1024L;
+        cameraApi = typedArray.getInt(R.styleable.RecorderView_cameraApi, CAMERA_API_1);
+        recordEngine = typedArray.getInt(R.styleable.RecorderView_recordEngine, RECORD_ENGINE_MEDIA_RECORDER);
+        audioOnly = typedArray.getBoolean(R.styleable.RecorderView_audioOnly, false);
+        metricsJsonEnabled = typedArray.getBoolean(R.styleable.RecorderView_metricsJson, false);
         typedArray.recycle();
     }
 
@@ -163,208 +557,1400 @@ public class RecorderView extends SurfaceView implements SurfaceHolder.Callback
     }
 
     /**
-     * 打开相机
+     * 打开相机，相机在相机线程中异步打开，不会阻塞主线程，仅录音模式下不打开。
+     * {@link #CAMERA_API_FAKE} 不需要相机权限，也不等待预览 Surface
      */
     public void openCamera() {
-        if (ContextCompat.checkSelfPermission(getContext(),
+        if (audioOnly) {
+            Log.i(TAG, "audio only, camera stays closed");
+            return;
+        }
+        boolean fake = cameraApi == CAMERA_API_FAKE;
+        if (!fake && ContextCompat.checkSelfPermission(getContext(),
                 Manifest.permission.CAMERA) == PackageManager.PERMISSION_DENIED) {
             Toast.makeText(getContext(), R.string.open_camera_error, Toast.LENGTH_SHORT).show();
             return;
         }
-        if (surfaceEnable) {
-            closeCamera();
-            try {
-                cameraManager.openDriver(getHolder(), cameraFacing);
-                cameraManager.startPreview();
-            } catch (Exception e) {
-                e.printStackTrace();
-                Toast.makeText(getContext(), R.string.open_camera_error, Toast.LENGTH_SHORT).show();
+        if (surfaceEnable || fake) {
+            // 录制中不能切换相机
+            if (!stateMachine.moveTo(RecorderState.OPENING)) {
+                return;
             }
+            CameraBackend backend = selectCameraBackend();
+            backend.setRequestedVideoSize(videoWidth, videoHeight);
+            backend.setConstantFrameRate(constantFrameRate ? frameRate : 0);
+            backend.setSizeCost(sizeCost);
+            cameraManager.execute(releaseRecorderTask);
+            backend.openAsync(getHolder(), cameraFacing, cameraListener);
         }
     }
 
-    public void closeCamera() {
-        if (cameraManager != null) {
-            cameraManager.stopPreview();
-            cameraManager.closeDriver();
-        }
-    }
-
-    public void startRecorder() {
-        Camera camera = cameraManager.getRecorderCamera();
-        if (camera != null) {
-            Camera.Parameters parameters = camera.getParameters();
-            printCameraParams(parameters);
-            camera.unlock();
-            mediaRecorder = RecorderFactory.newCustomConfigInstance(camera, parameters, videoWidth, videoHeight,
-                    frameRate, bitRate * KB);
-            File file = new File(parentPath, fileFullName);
-            if (file.exists()) {
-                boolean flag = file.delete();
-                Log.e(TAG, " delete file " + file.getName() + " success is " + flag);
-            }
-            Log.e(TAG, "begin to recorder, file " + file.getAbsolutePath());
-            mediaRecorder.setOutputFile(file.getAbsolutePath());
-            int cameraOrientation = cameraManager.getOpenCamera().getOrientation();
-            mediaRecorder.setOrientationHint(cameraOrientation);
-            mediaRecorder.setPreviewDisplay(getHolder().getSurface());
-            try {
-                mediaRecorder.prepare();
-                mediaRecorder.start();
-            } catch (IllegalStateException | IOException e) {
-                mediaRecorder.stop();
-                mediaRecorder.reset();
-                mediaRecorder.release();
-                camera.lock();
-                e.printStackTrace();
+    /**
+     * 按 {@link #cameraApi} 选择相机后端，切换后端时先关闭之前的相机
+     */
+    private CameraBackend selectCameraBackend() {
+        CameraBackend previous = cameraBackend;
+        final Camera2Backend backend2;
+        if (cameraApi == CAMERA_API_2 && Camera2Backend.isSupported()) {
+            if (camera2Backend == null) {
+                camera2Backend = new Camera2Backend(getContext().getApplicationContext(), cameraManager);
+                codecRecorder = new CodecRecorder(camera2Backend);
             }
+            backend2 = camera2Backend;
         } else {
-            Log.e(TAG, "open camera first ");
+            backend2 = null;
         }
-    }
-
-    private void printCameraParams(Camera.Parameters parameters) {
-        Log.e(TAG, "video support size : " + parameters.getPreferredPreviewSizeForVideo().width + "X"
-                + parameters.getPreferredPreviewSizeForVideo().height);
-        for (int[] sizes : parameters.getSupportedPreviewFpsRange()) {
-            for (int size : sizes) {
-                Log.e(TAG, "video support fps range : " + size);
-            }
+        CameraBackend backend;
+        if (cameraApi == CAMERA_API_FAKE) {
+            backend = getFakeCamera();
+        } else {
+            backend = backend2 != null ? backend2 : cameraManager;
         }
-        for (Integer sizes : parameters.getSupportedPreviewFrameRates()) {
-            Log.e(TAG, "video support frame range : " + sizes);
+        if (backend != previous) {
+            Log.i(TAG, "switch camera backend to " + backend.getClass().getSimpleName());
+            cameraManager.execute(releaseRecorderTask);
+            previous.closeAsync(null);
+            cameraManager.execute(new Runnable() {
+                @Override
+                public void run() {
+                    takeRecorder.setCamera2Backend(backend2);
+                }
+            });
+            cameraBackend = backend;
         }
+        return backend;
     }
 
-    public void stopRecorder() {
-        Log.e(TAG, " stop recorder  " + recorderStatus.name() + " mediaRecorder is empty or not "
-                + (mediaRecorder == null));
-        if (mediaRecorder == null) {
-            return;
-        }
-        try {
-            mediaRecorder.stop();
-            mediaRecorder.reset();
-            mediaRecorder.release();
-            Camera camera = cameraManager.getRecorderCamera();
-            if (camera != null) {
-                camera.lock();
-                camera.release();
-            }
-        } catch (IllegalStateException e) {
-            e.printStackTrace();
+    public void closeCamera() {
+        if (cameraManager != null) {
+            // 之后到达的结束、暂停请求都会被拒绝
+            stateMachine.force(RecorderState.IDLE);
+            cameraManager.execute(releaseRecorderTask);
+            cameraBackend.closeAsync(null);
         }
     }
 
-    public void cancelRecorder() {
-        resetRecorder();
-        deleteFile();
+    public int getRecordEngine() {
+        return recordEngine;
     }
 
-    private void deleteFile() {
-        File file = new File(parentPath, fileFullName);
-        if (file.exists()) {
-            boolean flag = file.delete();
-            Log.e(TAG, " delete file " + file.getName() + " success is " + flag);
+    /**
+     * 选择录制引擎，下一次开始录制时生效。{@link #RECORD_ENGINE_MEDIA_CODEC} 用 MediaCodec 编码 camera2 会话输出的画面，
+     * 用 MediaMuxer 在单独的线程写入文件，可以设置关键帧间隔与 B 帧、取得编码后的数据与统计，
+     * 只在 {@link #CAMERA_API_2} 下可用，否则使用 MediaRecorder。这个引擎不按大小切换文件，正在预录时仍然使用 MediaRecorder
+     *
+     * @param recordEngine {@link #RECORD_ENGINE_MEDIA_RECORDER} 或者 {@link #RECORD_ENGINE_MEDIA_CODEC}
+     */
+    public void setRecordEngine(int recordEngine) {
+        if (recordEngine != RECORD_ENGINE_MEDIA_RECORDER && recordEngine != RECORD_ENGINE_MEDIA_CODEC) {
+            throw new IllegalArgumentException("Unknown record engine " + recordEngine);
         }
+        this.recordEngine = recordEngine;
     }
 
-    public void resetRecorder() {
-        if (mediaRecorder == null) {
-            return;
-        }
-        Log.e(TAG, "reset recorder and status is " + recorderStatus.name());
-        try {
-            mediaRecorder.stop();
-            mediaRecorder.reset();
-            openCamera();
-        } catch (IllegalStateException e) {
-            e.printStackTrace();
+    /**
+     * 设置 MediaCodec 录制的编码参数，下一次开始录制时生效
+     *
+     * @param keyFrameInterval 关键帧间隔，单位秒
+     * @param maxBFrames       B 帧数上限，Android 10 及以上生效，0 表示不使用 B 帧
+     */
+    public void setEncoderOptions(int keyFrameInterval, int maxBFrames) {
+        if (keyFrameInterval <= 0 || maxBFrames < 0) {
+            throw new IllegalArgumentException("keyFrameInterval must be positive and maxBFrames must not be negative");
         }
+        this.keyFrameInterval = keyFrameInterval;
+        this.maxBFrames = maxBFrames;
     }
 
-    public RecorderStatus getRecorderStatus() {
-        return recorderStatus;
+    /**
+     * 设置 MediaCodec 录制中编码后数据的监听，下一次开始录制时生效
+     *
+     * @param listener 监听，在写文件线程回调，null 表示移除
+     */
+    public void setOnEncodedSampleListener(@Nullable OnEncodedSampleListener listener) {
+        this.encodedSampleListener = listener;
     }
 
-    public void setRecorderStatus(RecorderStatus recorderStatus) {
-        this.recorderStatus = recorderStatus;
+    /**
+     * @return MediaCodec 录制当前或者最近一次的码率与队列统计，没有使用过时为 null
+     */
+    @Nullable
+    public EncoderStats getEncoderStats() {
+        CodecRecorder recorder = codecRecorder;
+        return recorder != null ? recorder.getStats() : null;
     }
 
-    public String getVideoPath() {
-        return parentPath + videoName + FILE_EXTENSION;
+    public boolean isAudioOnly() {
+        return audioOnly;
     }
 
     /**
-     * 设置video的路径
-     * 
-     * @param parentPath 文件的路路径
-     * @param videoName  文件名称不带后缀名
+     * 设置仅录音模式，下一次开始录制时生效。仅录音时不打开相机，声音编码为 AAC 写入分片的 .m4a 文件，
+     * 开始、暂停、恢复与结束和录像相同。开启时关闭已经打开的相机，关闭时重新打开相机，录制中不要切换
+     *
+     * @param audioOnly true 仅录音
      */
-    public void setVideoPath(String parentPath, String videoName) {
-        this.parentPath = parentPath;
-        this.videoName = videoName;
-        fileFullName = videoName + FILE_EXTENSION;
+    public void setAudioOnly(boolean audioOnly) {
+        if (this.audioOnly == audioOnly) {
+            return;
+        }
+        this.audioOnly = audioOnly;
+        if (audioOnly) {
+            closeCamera();
+        } else {
+            openCamera();
+        }
     }
 
-    public boolean isAutoOpen() {
-        return autoOpened;
+    /**
+     * 设置仅录音模式下的音量监听，录音与暂停时每 50 毫秒在主线程回调一次
+     *
+     * @param listener 监听，null 表示移除
+     */
+    public void setOnAudioLevelListener(@Nullable OnAudioLevelListener listener) {
+        this.audioLevelListener = listener;
     }
 
-    public void setAutoOpen(boolean autoOpen) {
-        this.autoOpened = autoOpen;
+    /**
+     * @return 仅录音模式下最近的均方根音量，单位 dBFS，没有录音时为 {@link LevelMeter#MIN_DB}
+     */
+    public float getAudioRmsDb() {
+        return audioRecorder.getLevelMeter().getRmsDb();
     }
 
-    public int getVideoWidth() {
-        return videoWidth;
+    /**
+     * @return 仅录音模式下最近的峰值音量，单位 dBFS
+     */
+    public float getAudioPeakDb() {
+        return audioRecorder.getLevelMeter().getPeakDb();
     }
 
-    public void setVideoWidth(int videoWidth) {
-        this.videoWidth = videoWidth;
+    /**
+     * @return 打开相机与录制各阶段的耗时统计
+     */
+    public RecorderMetrics getMetrics() {
+        return cameraManager.getMetrics();
     }
 
-    public int getVideoHeight() {
-        return videoHeight;
+    /**
+     * 设置统计报告的接收者，每个录制文件写完之后在后处理线程回调
+     *
+     * @param sink 接收者，null 表示移除
+     */
+    public void setMetricsSink(@Nullable RecorderMetrics.Sink sink) {
+        this.metricsSink = sink;
     }
 
-    public void setVideoHeight(int videoHeight) {
-        this.videoHeight = videoHeight;
+    public boolean isMetricsJsonEnabled() {
+        return metricsJsonEnabled;
     }
 
-    public int getFrameRate() {
-        return frameRate;
+    /**
+     * 是否把每个录制文件的统计报告保存为文件旁边的 {@code <文件名>.metrics.json}，默认关闭
+     *
+     * @param metricsJsonEnabled true 保存
+     */
+    public void setMetricsJsonEnabled(boolean metricsJsonEnabled) {
+        this.metricsJsonEnabled = metricsJsonEnabled;
     }
 
-    public void setFrameRate(int frameRate) {
-        this.frameRate = frameRate;
+    public int getCameraApi() {
+        return cameraApi;
     }
 
-    public int getBitRate() {
-        return bitRate;
+    /**
+     * 选择相机 API，下一次打开相机时生效。camera2 的预览与录制 Surface 在同一个会话中，Android 5.0 以下使用
+     * {@link #CAMERA_API_1}。camera2 下预览帧分析器、运动触发、自动闪光灯与分片 MP4 不可用，
+     * 设置了分片时长时按普通 MP4 录制。{@link #CAMERA_API_FAKE} 使用 {@link #getFakeCamera()} 的合成画面，
+     * 预览帧分析器与运动触发可用，录制为分片 MP4，不支持预录与提前 prepare
+     *
+     * @param cameraApi {@link #CAMERA_API_1}、{@link #CAMERA_API_2} 或者 {@link #CAMERA_API_FAKE}
+     */
+    public void setCameraApi(int cameraApi) {
+        if (cameraApi != CAMERA_API_1 && cameraApi != CAMERA_API_2 && cameraApi != CAMERA_API_FAKE) {
+            throw new IllegalArgumentException("Unknown camera api " + cameraApi);
+        }
+        this.cameraApi = cameraApi;
     }
 
-    public void setBitRate(int bitRate) {
-        this.bitRate = bitRate;
+    /**
+     * 取得 {@link #CAMERA_API_FAKE} 使用的合成相机，第一次调用时创建。在打开相机之前设置画面、尺寸、帧率与模拟的耗时
+     *
+     * @return 合成相机
+     */
+    public synchronized FakeCamera getFakeCamera() {
+        if (fakeCamera == null) {
+            fakeCamera = new FakeCamera(cameraManager);
+        }
+        return fakeCamera;
     }
 
-    public void setTorch(boolean isOpen) {
-        if (cameraManager != null) {
-            cameraManager.setTorch(isOpen);
+    /**
+     * 开始录制，录制器在相机线程中创建与启动。连续录制模式下录制器已经提前 prepare，这里只需要 start。
+     * 状态转换为 {@link RecorderState#PREPARING}，开始后为 {@link RecorderState#RECORDING}，失败时回到之前的状态
+     *
+     * @return true 请求被接受，false 已经在录制或者正在结束录制
+     */
+    public boolean startRecorder() {
+        final long tapNanos = SystemClock.elapsedRealtimeNanos();
+        if (!stateMachine.moveTo(RecorderState.PREPARING)) {
+            return false;
         }
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (stateMachine.getState() != RecorderState.PREPARING) {
+                    // 开始之前已经请求结束或者关闭了相机
+                    Log.w(TAG, "start abandoned in state " + stateMachine.getState());
+                    return;
+                }
+                boolean started = audioOnly ? startAudioInternal(tapNanos) : startRecorderInternal(tapNanos);
+                stateMachine.compareAndSet(RecorderState.PREPARING, started ? RecorderState.RECORDING : idleState());
+            }
+        });
+        return true;
     }
 
-    @Override
-    public void surfaceCreated(SurfaceHolder holder) {
-        surfaceEnable = true;
-        if (autoOpened) {
-            openCamera();
+    /**
+     * @return true 录制已经开始
+     */
+    private boolean startRecorderInternal(long tapNanos) {
+        if (preRolling && takeRecorder.isRecording()) {
+            // 录制器已经在写入，之后的分段不再循环覆盖，之前保留的分段作为这次录制的开头
+            if (!hasStorageFor(bitrateEstimate)) {
+                return false;
+            }
+            preRolling = false;
+            cameraManager.cancel(rollPreRollTask);
+            takeRecorder.setRecycleFiles(false);
+            splitting = false;
+            nextTakeFile();
+            segmentFiles.addAll(preRollBuffer.takePreRoll());
+            Log.e(TAG, "begin to recorder with " + segmentFiles.size() + " pre-roll segments, file " + takeFile.getAbsolutePath());
+            onRecorderStarted(tapNanos);
+            return true;
+        }
+        if (takeRecorder.isRecording() || fragmentedRecorder.isRecording() || isCodecRecording() || isAudioRecording()) {
+            Log.w(TAG, "recorder already started");
+            return true;
+        }
+        boolean started;
+        if (isFragmentedTake()) {
+            // 分片录制按预览分辨率编码
+            Point resolution = cameraBackend.getCameraResolution();
+            BitratePolicy.Estimate estimate = resolution == null ? estimateTakeBitRate()
+                    : estimateBitRate(resolution.x, resolution.y, recordFrameRate());
+            if (!hasStorageFor(estimate)) {
+                return false;
+            }
+            releaseRecorderTask.run();
+            splitting = false;
+            nextTakeFile();
+            Log.e(TAG, "begin to recorder fragmented, file " + takeFile.getAbsolutePath());
+            long duration = fragmentDuration > 0 ? fragmentDuration : DEFAULT_FRAGMENT_DURATION;
+            started = fragmentedRecorder.start(cameraBackend, takeFile, estimate.getFrameRate(), estimate.getVideoBitRate(),
+                    duration * MICROS_PER_MILLI);
+        } else if (recordEngine == RECORD_ENGINE_MEDIA_CODEC && codecRecorder != null && cameraBackend == camera2Backend) {
+            BitratePolicy.Estimate estimate = estimateTakeBitRate();
+            if (!hasStorageFor(estimate)) {
+                return false;
+            }
+            // 预录与提前 prepare 的 MediaRecorder 不再需要
+            releaseRecorderTask.run();
+            splitting = false;
+            nextTakeFile();
+            File segment = nextSegmentFile();
+            Log.e(TAG, "begin to recorder with media codec, file " + segment.getAbsolutePath());
+            codecRecorder.setEncoderOptions(keyFrameInterval, maxBFrames);
+            codecRecorder.setOnEncodedSampleListener(encodedSampleListener);
+            started = codecRecorder.start(segment, estimate.getFrameRate(), estimate.getVideoBitRate());
+        } else {
+            if (!takeRecorder.isPrepared() && !prepareNextTake()) {
+                return false;
+            }
+            if (!hasStorageFor(bitrateEstimate)) {
+                return false;
+            }
+            Log.e(TAG, "begin to recorder, file " + takeRecorder.getOutputFile().getAbsolutePath());
+            started = takeRecorder.start();
+        }
+        if (started) {
+            onRecorderStarted(tapNanos);
         }
+        return started;
     }
 
-    @Override
-    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        Log.e(TAG, "surfaceChanged()");
-    }
+    /**
+     * 仅录音模式开始录音，声音写入分片 MP4，只在相机线程调用
+     *
+     * @return true 录音已经开始
+     */
+    private boolean startAudioInternal(long tapNanos) {
+        if (takeRecorder.isRecording() || fragmentedRecorder.isRecording() || isCodecRecording() || isAudioRecording()) {
+            Log.w(TAG, "recorder already started");
+            return true;
+        }
+        if (!hasStorageFor(BitratePolicy.fixed(0, 0, 0, 0, CodecFactory.AUDIO_BIT_RATE))) {
+            return false;
+        }
+        splitting = false;
+        nextTakeFile();
+        long duration = fragmentDuration > 0 ? fragmentDuration : DEFAULT_FRAGMENT_DURATION;
+        Log.e(TAG, "begin to recorder audio, file " + takeFile.getAbsolutePath());
+        if (audioRecorder.start(takeFile, CodecFactory.AUDIO_SAMPLE_RATE, CodecFactory.AUDIO_CHANNEL_COUNT,
+                CodecFactory.AUDIO_BIT_RATE, duration * MICROS_PER_MILLI)) {
+            onRecorderStarted(tapNanos);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 开始录制前检查剩余空间，不足时提示并放弃这次录制，只在相机线程调用
+     *
+     * @param estimate 这次录制的码率
+     * @return true 空间足够
+     */
+    private boolean hasStorageFor(@Nullable BitratePolicy.Estimate estimate) {
+        long reserve = storageReserve;
+        if (reserve <= 0 || estimate == null) {
+            return true;
+        }
+        if (StorageCheck.hasSpaceFor(new File(parentPath), estimate.getBytesPerSecond(), reserve)) {
+            return true;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getContext(), R.string.storage_not_enough, Toast.LENGTH_SHORT).show();
+            }
+        });
+        return false;
+    }
+
+    private void onRecorderStarted(long tapNanos) {
+        writeJournal(fragmentedRecorder.isRecording() || isAudioRecording());
+        cameraManager.getMetrics().onRecordingStarted();
+        startLatency = (SystemClock.elapsedRealtimeNanos() - tapNanos) / NANOS_PER_MILLI;
+        Log.i(TAG, "tap to recording latency " + startLatency + "ms");
+    }
+
+    /**
+     * 开始在槽位文件中循环预录，只在相机线程调用
+     */
+    private void startPreRoll() {
+        if (preRollDuration <= 0 || !usesTakeRecorder() || preRolling || takeRecorder.isRecording()
+                || !cameraBackend.isOpen()) {
+            return;
+        }
+        if (preRollBuffer == null) {
+            preRollBuffer = new PreRollBuffer(new File(parentPath));
+        }
+        long bytesPerSecond = estimateTakeBitRate().getBytesPerSecond();
+        long segmentBytes = preRollBuffer.configure(preRollDuration, preRollQuota, bytesPerSecond);
+        if (TakeRecorder.isSeamlessRolloverSupported()) {
+            takeRecorder.setRollover(segmentBytes, rolloverListener);
+        } else {
+            // 大小上限在录制中途不能取消，正式录制开始后会被截断，这里改为按时长切换
+            takeRecorder.setRollover(0, null);
+            preRollSegmentMillis = segmentBytes * 1000 / bytesPerSecond;
+        }
+        takeRecorder.setRecycleFiles(true);
+        preRolling = true;
+        startPreRollSegment();
+    }
+
+    /**
+     * 在下一个槽位开始录制，不支持无缝切换文件时每个分段之间会有短暂的间隔
+     */
+    private void startPreRollSegment() {
+        File slot = preRollBuffer.nextSlot();
+        if (slot != null && takeRecorder.prepare(slot, getHolder().getSurface(), videoWidth, videoHeight, recordFrameRate(),
+                estimateTakeBitRate().getVideoBitRate())
+                && takeRecorder.start()) {
+            if (!TakeRecorder.isSeamlessRolloverSupported()) {
+                cameraManager.executeDelayed(rollPreRollTask, preRollSegmentMillis);
+            }
+            return;
+        }
+        Log.e(TAG, "pre-roll stopped");
+        preRollBuffer.stop();
+        preRolling = false;
+    }
+
+    /**
+     * 停止预录并释放录制器，只在相机线程调用
+     */
+    private void stopPreRoll() {
+        if (!preRolling) {
+            return;
+        }
+        cameraManager.cancel(rollPreRollTask);
+        preRollBuffer.onSlotFinished(takeRecorder.stop());
+        preRollBuffer.stop();
+        preRolling = false;
+        takeRecorder.release();
+    }
+
+    /**
+     * 录制开始后写入日志，只在相机线程调用
+     *
+     * @param fragmented 是否为分片 MP4
+     */
+    private void writeJournal(boolean fragmented) {
+        RecorderCamera openCamera = cameraBackend.getOpenCamera();
+        int rotation = openCamera != null ? openCamera.getOrientation() : 0;
+        AudioConfig audio = isCodecRecording()
+                ? new AudioConfig(CodecFactory.AUDIO_SAMPLE_RATE, CodecFactory.AUDIO_CHANNEL_COUNT, CodecFactory.AUDIO_BIT_RATE)
+                : AudioCapabilities.get();
+        journal = RecoveryJournal.create(getContext(), takeFile, fragmented, videoWidth, videoHeight, recordFrameRate(),
+                rotation, audio);
+        if (!fragmented) {
+            for (File segment : segmentFiles) {
+                journal.addSegment(segment);
+            }
+            journal.addSegment(isCodecRecording() ? codecRecorder.getOutputFile() : takeRecorder.getOutputFile());
+        }
+        journal.write();
+    }
+
+    /**
+     * 结束正在录制的录制器，只在相机线程调用
+     *
+     * @return 录制完成的文件，没有在录制或者录制失败时返回 null
+     */
+    private File stopActiveRecorder() {
+        if (fragmentedRecorder.isRecording()) {
+            return fragmentedRecorder.stop();
+        }
+        if (isCodecRecording()) {
+            return codecRecorder.stop();
+        }
+        if (isAudioRecording()) {
+            return audioRecorder.stop();
+        }
+        return takeRecorder.stop();
+    }
+
+    private boolean isCodecRecording() {
+        return codecRecorder != null && codecRecorder.isRecording();
+    }
+
+    private boolean isAudioRecording() {
+        return audioRecorder != null && audioRecorder.isRecording();
+    }
+
+    /**
+     * @return 没有录制时的状态：相机打开时为 {@link RecorderState#PREVIEWING}，仅录音模式或者相机关闭时为
+     * {@link RecorderState#IDLE}
+     */
+    private RecorderState idleState() {
+        return !audioOnly && cameraBackend.isOpen() ? RecorderState.PREVIEWING : RecorderState.IDLE;
+    }
+
+    /**
+     * @return true 按预览帧录制为分片 MP4：camera1 设置了分片时长，或者使用 {@link FakeCamera}
+     */
+    private boolean isFragmentedTake() {
+        return cameraBackend == fakeCamera && fakeCamera != null || fragmentDuration > 0 && cameraBackend == cameraManager;
+    }
+
+    /**
+     * @return true 录制使用 MediaRecorder，可以预录与提前 prepare；仅录音、分片录制与 {@link FakeCamera} 不使用
+     */
+    private boolean usesTakeRecorder() {
+        return !audioOnly && fragmentDuration == 0 && (fakeCamera == null || cameraBackend != fakeCamera);
+    }
+
+    /**
+     * 为下一次录制分配文件并 prepare 第一个分段，只在相机线程调用
+     *
+     * @return true 准备成功
+     */
+    private boolean prepareNextTake() {
+        long maxFileSize = splitFileSize;
+        splitting = maxFileSize > 0;
+        takeRecorder.setRollover(maxFileSize, splitting ? rolloverListener : null);
+        takeRecorder.setRecycleFiles(false);
+        nextTakeFile();
+        return prepareSegment();
+    }
+
+    /**
+     * 为下一次录制分配目标文件
+     */
+    private void nextTakeFile() {
+        if (multiTakeEnabled) {
+            takeIndex++;
+            takeFile = new File(parentPath, videoName + "_" + takeIndex + (audioOnly ? AUDIO_FILE_EXTENSION : FILE_EXTENSION));
+        } else {
+            takeFile = new File(parentPath, getFileFullName());
+        }
+        volumeBaseFile = takeFile;
+        volumeIndex = 1;
+        if (splitting) {
+            takeFile = volumeFile(volumeIndex);
+        }
+        segmentFiles.clear();
+    }
+
+    /**
+     * @return 按大小切换文件时的第 index 个编号文件，例如 sample-1.mp4
+     */
+    private File volumeFile(int index) {
+        String name = volumeBaseFile.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        return new File(volumeBaseFile.getParentFile(), baseName + VOLUME_SEPARATOR + index + FILE_EXTENSION);
+    }
+
+    /**
+     * 把当前编号文件已经完成的分段交给后台合并，之后的分段属于下一个编号文件，只在相机线程调用
+     */
+    private void finishVolume() {
+        File volume = takeFile;
+        List<File> segments = new ArrayList<>(segmentFiles);
+        segmentFiles.clear();
+        takeFile = volumeFile(++volumeIndex);
+        Log.i(TAG, "volume " + volume.getName() + " finished, continue with " + takeFile.getName());
+        mergeSegments(segments, volume, takeJournal(), null);
+    }
+
+    /**
+     * 为当前录制的下一个分段 prepare 录制器，只在相机线程调用
+     *
+     * @return true 准备成功
+     */
+    private boolean prepareSegment() {
+        return takeRecorder.prepare(nextSegmentFile(), getHolder().getSurface(), videoWidth, videoHeight, recordFrameRate(),
+                estimateTakeBitRate().getVideoBitRate());
+    }
+
+    /**
+     * 按 MediaRecorder 实际会使用的分辨率与帧数计算码率，只在相机线程调用
+     */
+    private BitratePolicy.Estimate estimateTakeBitRate() {
+        Camera2Backend backend2 = cameraBackend == camera2Backend ? camera2Backend : null;
+        Point videoSize = backend2 != null ? backend2.getVideoSize() : null;
+        if (videoSize != null) {
+            return estimateBitRate(videoSize.x, videoSize.y, backend2.findCloseFrameRate(recordFrameRate()));
+        }
+        CameraCapabilities capabilities = cameraManager.getCapabilities();
+        if (capabilities == null) {
+            return estimateBitRate(videoWidth, videoHeight, recordFrameRate());
+        }
+        // 协商结果缓存在相机能力中，与 RecorderFactory 配置录制器时的结果一致
+        Point size = RecorderFactory.findCloseSizeValue(capabilities, new Point(videoWidth, videoHeight));
+        return estimateBitRate(size.x, size.y, RecorderFactory.findCloseFrameRate(capabilities, recordFrameRate()));
+    }
+
+    /**
+     * @return 录制使用的帧数，锁定帧率时为相机实际锁定的帧数，只在相机线程调用
+     */
+    private int recordFrameRate() {
+        int[] range = constantFrameRate ? cameraBackend.getPreviewFpsRange() : null;
+        if (range != null && range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] == range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]) {
+            return range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] / 1000;
+        }
+        return frameRate;
+    }
+
+    private BitratePolicy.Estimate estimateBitRate(int width, int height, int frameRate) {
+        BitratePolicy.Estimate estimate = fixedBitRate
+                ? BitratePolicy.fixed(width, height, frameRate, bitRate * KB, CodecFactory.AUDIO_BIT_RATE)
+                : bitratePolicy.estimate(width, height, frameRate, BitratePolicy.Codec.H264, CodecFactory.AUDIO_BIT_RATE);
+        BitratePolicy.Estimate previous = bitrateEstimate;
+        if (previous == null || previous.getVideoBitRate() != estimate.getVideoBitRate()) {
+            Log.i(TAG, "bitrate " + estimate);
+        }
+        bitrateEstimate = estimate;
+        return estimate;
+    }
+
+    /**
+     * @return 当前录制的下一个分段文件
+     */
+    private File nextSegmentFile() {
+        String name = takeFile.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        return new File(takeFile.getParentFile(), baseName + SEGMENT_SUFFIX + segmentSerial++ + FILE_EXTENSION);
+    }
+
+    /**
+     * 取出当前录制的日志，交给合并任务在合并完成后删除
+     */
+    @Nullable
+    private RecoveryJournal takeJournal() {
+        RecoveryJournal current = journal;
+        journal = null;
+        return current;
+    }
+
+    /**
+     * 结束当前分段，并取出当前录制的所有分段
+     *
+     * @param prepareNext true 立即为下一次录制 prepare 录制器，否则释放录制器
+     * @return 当前录制的分段文件，按录制顺序排列
+     */
+    private List<File> finishSegments(boolean prepareNext) {
+        Log.e(TAG, "finish take and state is " + stateMachine.getState());
+        File file = stopActiveRecorder();
+        if (file != null) {
+            segmentFiles.add(file);
+        }
+        // 在为下一次录制 prepare 之前结束这次的统计
+        cameraManager.getMetrics().onRecordingStopped();
+        finishedReport = takeMetricsReport();
+        // 暂停时已经为下一个分段 prepare 过，这个文件没有内容
+        File unused = takeRecorder.isPrepared() ? takeRecorder.getOutputFile() : null;
+        List<File> segments = new ArrayList<>(segmentFiles);
+        segmentFiles.clear();
+        if (preRollBuffer != null) {
+            preRollBuffer.endTake(segments);
+        }
+        if (prepareNext && usesTakeRecorder() && preRollDuration > 0) {
+            takeRecorder.release();
+            startPreRoll();
+        } else if (prepareNext && usesTakeRecorder()) {
+            prepareNextTake();
+        } else {
+            takeRecorder.release();
+        }
+        deleteFile(unused);
+        return segments;
+    }
+
+    /**
+     * 在后处理线程中把分段合并为一个文件，只有一个分段时直接重命名。文件同步到存储之后才删除日志并完成 future
+     *
+     * @param segments 分段文件
+     * @param target   合并后的文件
+     * @param journal  当前录制的日志，文件写入完成后删除，可以为空
+     * @param future   文件写入完成或者失败时完成，可以为空
+     */
+    private void mergeSegments(final List<File> segments, final File target, @Nullable final RecoveryJournal journal,
+                               @Nullable final FinalizeFuture future) {
+        final int width = videoWidth;
+        final int height = videoHeight;
+        final boolean fragmented = journal != null && journal.isFragmented();
+        final PreRollBuffer slots = preRollBuffer;
+        final RecorderMetrics metrics = cameraManager.getMetrics();
+        // 按大小切换文件时录制还在继续，只取已经完成的这个文件的统计
+        final RecorderMetrics.Report report = finishedReport != null ? finishedReport : takeMetricsReport();
+        finishedReport = null;
+        getPostProcessExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                long finalizeBegin = metrics.begin(RecorderMetrics.Stage.FILE_FINALIZE);
+                File file = null;
+                RuntimeException error = null;
+                // 任何一步抛出异常都要结束 future，否则等待结果的调用方会一直阻塞
+                try {
+                    file = mergeSegments(segments, target, slots);
+                    releaseSlots(slots, segments);
+                    if (file != null) {
+                        if (!fragmented) {
+                            RecoveryJournal.rememberCodecConfig(getContext(), width, height, file);
+                        }
+                        if (fastStartEnabled) {
+                            applyFastStart(file);
+                        }
+                        // MediaRecorder 写入与重命名都没有同步，同步之前断电时仍需要日志恢复
+                        if (syncFile(file) && journal != null) {
+                            journal.delete();
+                        }
+                        lastTakeFile = file;
+                    }
+                    metrics.end(RecorderMetrics.Stage.FILE_FINALIZE, finalizeBegin);
+                    if (file != null) {
+                        deliverReport(report, file, SystemClock.elapsedRealtimeNanos() - finalizeBegin);
+                    }
+                } catch (RuntimeException e) {
+                    error = e;
+                    throw e;
+                } finally {
+                    if (future != null) {
+                        if (file != null && error == null) {
+                            future.complete(file);
+                        } else {
+                            future.fail(new IOException("finalize " + target.getName() + " from " + segments.size()
+                                    + " segments failed", error));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 结束一个录制文件的统计，只在相机线程调用
+     */
+    private RecorderMetrics.Report takeMetricsReport() {
+        return cameraManager.getMetrics().takeReport(cameraManager.getDeliveredFrameRate(),
+                cameraManager.getMinDeliveredFrameRate());
+    }
+
+    /**
+     * 补充文件信息后保存并交给 {@link #metricsSink}，只在后处理线程调用。统计出错只打印日志，不影响录制的文件
+     */
+    private void deliverReport(RecorderMetrics.Report report, File file, long finalizeNanos) {
+        report.complete(file, finalizeNanos);
+        Log.i(TAG, "metrics " + report);
+        if (metricsJsonEnabled) {
+            try {
+                report.writeJson();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "write metrics of " + file.getName() + " failed", e);
+            }
+        }
+        RecorderMetrics.Sink sink = metricsSink;
+        if (sink != null) {
+            try {
+                sink.onReport(report);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "metrics sink failed for " + file.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return 合并后的文件，失败时返回 null，此时分段文件会被保留
+     */
+    static File mergeSegments(List<File> segments, File target) {
+        return mergeSegments(segments, target, null);
+    }
+
+    /**
+     * @param slots 预录缓冲，其中的槽位文件只复制，不移动也不删除，可以为空
+     * @return 合并后的文件，失败时返回 null，此时分段文件会被保留
+     */
+    private static File mergeSegments(List<File> segments, File target, @Nullable PreRollBuffer slots) {
+        if (segments.isEmpty()) {
+            return null;
+        }
+        if (segments.size() == 1 && segments.get(0).equals(target)) {
+            // 分片 MP4 直接写入目标文件
+            return target;
+        }
+        if (target.exists() && !target.delete()) {
+            Log.e(TAG, "can not delete " + target.getAbsolutePath());
+            return null;
+        }
+        if (segments.size() == 1 && !isSlot(slots, segments.get(0))) {
+            if (segments.get(0).renameTo(target)) {
+                return target;
+            }
+            Log.e(TAG, "rename " + segments.get(0).getName() + " to " + target.getName() + " failed");
+            return null;
+        }
+        long begin = SystemClock.elapsedRealtime();
+        try {
+            Mp4Concatenator.concat(segments, target);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "merge " + segments.size() + " segments into " + target.getName() + " failed", e);
+            deleteFile(target);
+            return null;
+        }
+        Log.i(TAG, "merged " + segments.size() + " segments in " + (SystemClock.elapsedRealtime() - begin) + "ms");
+        for (File segment : segments) {
+            if (!isSlot(slots, segment)) {
+                deleteFile(segment);
+            }
+        }
+        return target;
+    }
+
+    private static boolean isSlot(@Nullable PreRollBuffer slots, File file) {
+        return slots != null && slots.isSlot(file);
+    }
+
+    /**
+     * 把录制借用的预录槽位还给预录缓冲
+     */
+    private void releaseSlots(@Nullable final PreRollBuffer slots, final List<File> segments) {
+        if (slots == null) {
+            return;
+        }
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                slots.release(segments);
+            }
+        });
+    }
+
+    /**
+     * 把 moov 移到 mdat 之前，上传后不需要下载完整个文件就能开始播放，失败时保留原文件
+     */
+    private static void applyFastStart(File file) {
+        try {
+            FastStart.Result result = FastStart.process(file);
+            Log.i(TAG, "faststart " + file.getName() + ": " + result);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "faststart " + file.getName() + " failed", e);
+        }
+    }
+
+    /**
+     * 把文件内容同步到存储，已经同步过的文件几乎没有开销
+     *
+     * @return true 同步成功
+     */
+    private static boolean syncFile(File file) {
+        RandomAccessFile output = null;
+        try {
+            output = new RandomAccessFile(file, "rw");
+            output.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "sync " + file.getName() + " failed", e);
+            return false;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "close " + file.getName() + " failed", e);
+                }
+            }
+        }
+    }
+
+    private static void deleteFile(@Nullable File file) {
+        if (file != null && file.exists()) {
+            boolean flag = file.delete();
+            Log.e(TAG, " delete file " + file.getName() + " success is " + flag);
+        }
+    }
+
+    private synchronized ExecutorService getPostProcessExecutor() {
+        if (postProcessExecutor == null) {
+            postProcessExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, POST_PROCESS_THREAD_NAME);
+                }
+            });
+        }
+        return postProcessExecutor;
+    }
+
+    /**
+     * 结束录制并释放相机，暂停产生的分段在后台合并。立即返回，录制器在相机线程中结束
+     *
+     * @return 文件写入完成时完成的 future，没有在录制时请求被拒绝，返回 null
+     */
+    @Nullable
+    public FinalizeFuture stopRecorder() {
+        if (!stateMachine.moveTo(RecorderState.FINALIZING)) {
+            return null;
+        }
+        final FinalizeFuture future = new FinalizeFuture();
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.e(TAG, " stop recorder  " + stateMachine.getState());
+                File target = takeFile;
+                mergeSegments(finishSegments(false), target, takeJournal(), future);
+                if (cameraBackend == cameraManager) {
+                    cameraManager.stopPreview();
+                    cameraManager.closeDriver();
+                } else {
+                    cameraBackend.closeAsync(null);
+                }
+                stateMachine.compareAndSet(RecorderState.FINALIZING, RecorderState.IDLE);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 放弃这次录制并删除已经录制的分段
+     *
+     * @return true 请求被接受，false 没有在录制
+     */
+    public boolean cancelRecorder() {
+        if (!stateMachine.moveTo(RecorderState.FINALIZING)) {
+            return false;
+        }
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<File> segments = finishSegments(multiTakeEnabled);
+                for (File segment : segments) {
+                    if (!isSlot(preRollBuffer, segment)) {
+                        deleteFile(segment);
+                    }
+                }
+                if (preRollBuffer != null) {
+                    preRollBuffer.release(segments);
+                }
+                RecoveryJournal current = takeJournal();
+                if (current != null) {
+                    current.delete();
+                }
+                stateMachine.compareAndSet(RecorderState.FINALIZING, idleState());
+                if (!multiTakeEnabled) {
+                    post(reopenCameraTask);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 结束录制，连续录制模式下录制器会在后台为下一段准备好，否则重新打开预览。立即返回，录制器在相机线程中结束，
+     * 预览在文件合并、写入的同时恢复，可以在 future 完成之前开始下一次录制
+     *
+     * @return 文件写入完成时完成的 future，没有在录制时请求被拒绝，返回 null
+     */
+    @Nullable
+    public FinalizeFuture resetRecorder() {
+        if (!stateMachine.moveTo(RecorderState.FINALIZING)) {
+            return null;
+        }
+        final FinalizeFuture future = new FinalizeFuture();
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean recording = takeRecorder.isRecording() || fragmentedRecorder.isRecording() || isCodecRecording()
+                        || isAudioRecording() || !segmentFiles.isEmpty();
+                File target = takeFile;
+                mergeSegments(finishSegments(multiTakeEnabled), target, takeJournal(), future);
+                stateMachine.compareAndSet(RecorderState.FINALIZING, idleState());
+                if (!multiTakeEnabled && recording) {
+                    post(reopenCameraTask);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 结束录制，见 {@link #resetRecorder()}
+     *
+     * @param onFinished 分段合并、文件写入完成或者失败之后在主线程回调，可以为空，请求被拒绝时不回调
+     * @return true 请求被接受，false 没有在录制
+     * @deprecated 使用 {@link #resetRecorder()} 返回的 {@link FinalizeFuture}
+     */
+    @Deprecated
+    public boolean resetRecorder(@Nullable Runnable onFinished) {
+        FinalizeFuture future = resetRecorder();
+        if (future != null && onFinished != null) {
+            future.addListener(onFinished, mainExecutor);
+        }
+        return future != null;
+    }
+
+    /**
+     * @return 录制器状态机，可以注册状态监听器
+     */
+    public RecorderStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    /**
+     * @return 当前录制器状态
+     */
+    public RecorderState getRecorderState() {
+        return stateMachine.getState();
+    }
+
+    /**
+     * @return 由 {@link #getRecorderState()} 换算的旧状态
+     * @deprecated 使用 {@link #getRecorderState()}
+     */
+    @Deprecated
+    public RecorderStatus getRecorderStatus() {
+        switch (stateMachine.getState()) {
+            case PREPARING:
+            case RECORDING:
+                return RecorderStatus.RECORDING;
+            case PAUSED:
+                return RecorderStatus.PAUSING;
+            default:
+                return RecorderStatus.PREPARED;
+        }
+    }
+
+    /**
+     * 状态由录制器根据开始、暂停、结束请求维护，外部设置会被忽略
+     *
+     * @deprecated 调用 {@link #startRecorder()}、{@link #pauseRecord()} 等方法，状态会随之转换
+     */
+    @Deprecated
+    public void setRecorderStatus(RecorderStatus recorderStatus) {
+        Log.w(TAG, "ignored recorder status " + recorderStatus + ", state is " + stateMachine.getState());
+    }
+
+    /**
+     * @return 最近一次录制完成的文件路径
+     */
+    public String getVideoPath() {
+        File file = lastTakeFile;
+        return file != null ? file.getAbsolutePath() : new File(parentPath, getFileFullName()).getAbsolutePath();
+    }
+
+    private String getFileFullName() {
+        if (audioOnly) {
+            return videoName + AUDIO_FILE_EXTENSION;
+        }
+        return fileFullName != null ? fileFullName : videoName + FILE_EXTENSION;
+    }
+
+    /**
+     * 是否开启连续录制模式
+     *
+     * @return true 开启
+     */
+    public boolean isMultiTakeEnabled() {
+        return multiTakeEnabled;
+    }
+
+    /**
+     * 连续录制模式：每段录制结束后在后台立即 reset 并为下一段分配文件、完成 prepare，
+     * 下一次 {@link #startRecorder()} 只需要 start。每段文件名为 videoName_序号.mp4
+     *
+     * @param multiTakeEnabled true 开启
+     */
+    public void setMultiTakeEnabled(final boolean multiTakeEnabled) {
+        this.multiTakeEnabled = multiTakeEnabled;
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (takeRecorder.isRecording()) {
+                    return;
+                }
+                if (multiTakeEnabled) {
+                    if (!takeRecorder.isPrepared() && cameraBackend.isOpen() && usesTakeRecorder()) {
+                        prepareNextTake();
+                    }
+                } else {
+                    takeRecorder.release();
+                }
+            }
+        });
+    }
+
+    public long getPreRollDuration() {
+        return preRollDuration;
+    }
+
+    public long getPreRollQuota() {
+        return preRollQuota;
+    }
+
+    /**
+     * 预录模式：打开相机后在一组固定的槽位文件中循环录制短分段，调用 {@link #startRecorder()} 时不需要启动录制器，
+     * 之前保留的分段与之后录制的内容不经重新编码合并为一个文件，录制的开头至少包含指定时长的画面。
+     * 槽位文件只覆盖写入，不会反复删除与创建，占用的空间不超过配额，配额不足以容纳指定时长时预录会变短。
+     * Android 8.0 以下按码率估算的时长切换分段，切换时会丢失几百毫秒的画面，占用空间也只是近似受配额约束。
+     * 分片 MP4 模式下不可用
+     *
+     * @param preRollDuration 预录时长，单位毫秒，0 表示关闭
+     * @param preRollQuota    预录占用的存储空间上限，单位字节
+     */
+    public void setPreRoll(long preRollDuration, long preRollQuota) {
+        if (preRollDuration < 0 || preRollQuota <= 0) {
+            throw new IllegalArgumentException("preRollDuration must not be negative and preRollQuota must be positive");
+        }
+        this.preRollDuration = preRollDuration;
+        this.preRollQuota = preRollQuota;
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                // 按新的参数重新分配槽位
+                stopPreRoll();
+                startPreRoll();
+            }
+        });
+    }
+
+    public long getStorageReserve() {
+        return storageReserve;
+    }
+
+    /**
+     * 开始录制前按当前码率检查剩余空间是否至少能录制指定时长，不足时提示并不开始录制。
+     * 只在开始时检查一次，录制过程中空间用完时由录制器报错结束
+     *
+     * @param storageReserve 需要保证的录制时长，单位毫秒，0 表示不检查
+     */
+    public void setStorageReserve(long storageReserve) {
+        if (storageReserve < 0) {
+            throw new IllegalArgumentException("storageReserve must not be negative");
+        }
+        this.storageReserve = storageReserve;
+    }
+
+    /**
+     * @return 按当前码率估算，输出目录剩余空间还能录制的时长，单位毫秒，无法获取剩余空间时返回 -1
+     */
+    public long getRemainingRecordMillis() {
+        return StorageCheck.remainingMillis(new File(parentPath), getExpectedBytesPerSecond());
+    }
+
+    public long getSplitFileSize() {
+        return splitFileSize;
+    }
+
+    /**
+     * 按大小切换文件：单个文件达到上限时自动切换到下一个编号文件，例如 sample-1.mp4、sample-2.mp4，
+     * 避免 FAT32 存储卡上 MediaRecorder 在 4 GB 处结束录制。Android 8.0 及以上通过
+     * {@link android.media.MediaRecorder#setNextOutputFile} 切换，文件之间不丢帧；之前的版本在上限处停止后
+     * 立即开始下一个文件，中间会丢失几百毫秒的画面。每个编号文件写完后在后台完成合并与 faststart。
+     * 下一次录制开始时生效，分片 MP4 模式与预录开始的录制不切换
+     *
+     * @param splitFileSize 单个文件的大小上限，单位字节，不超过 {@link #FAT32_MAX_FILE_SIZE}，0 表示关闭
+     */
+    public void setSplitFileSize(long splitFileSize) {
+        if (splitFileSize < 0 || splitFileSize > FAT32_MAX_FILE_SIZE) {
+            throw new IllegalArgumentException("splitFileSize must be in [0, " + FAT32_MAX_FILE_SIZE + "]");
+        }
+        this.splitFileSize = splitFileSize;
+    }
+
+    public long getFragmentDuration() {
+        return fragmentDuration;
+    }
+
+    /**
+     * 分片 MP4 模式：通过 MediaCodec 编码预览画面，每隔一段时间写入一个 moof/mdat 分片并同步到磁盘，
+     * 进程被杀或崩溃时只丢失最后一个分片，录制过程中已写入的部分也可以直接读取。分片越短丢失越少，
+     * 但写入与同步磁盘的次数越多。视频按预览分辨率编码，下一次录制开始时生效
+     *
+     * @param fragmentDuration 分片时长，单位毫秒，0 表示关闭，使用 MediaRecorder 录制普通 MP4
+     */
+    public void setFragmentDuration(long fragmentDuration) {
+        if (fragmentDuration < 0) {
+            throw new IllegalArgumentException("fragmentDuration must not be negative");
+        }
+        this.fragmentDuration = fragmentDuration;
+    }
+
+    public boolean isFastStartEnabled() {
+        return fastStartEnabled;
+    }
+
+    /**
+     * 录制结束、分段合并之后在后台把 moov 移到 mdat 之前，{@link OnRecorderListener#onRecorderComplete}
+     * 回调时文件已经可以边下载边播放。处理期间需要额外一份文件大小的存储空间，空间不足时跳过
+     *
+     * @param fastStartEnabled true 开启，默认开启
+     */
+    public void setFastStartEnabled(boolean fastStartEnabled) {
+        this.fastStartEnabled = fastStartEnabled;
+    }
+
+    /**
+     * 获取上一次从调用 {@link #startRecorder()} 到录制真正开始的耗时
+     *
+     * @return 耗时，单位毫秒，还没有录制过时为 -1
+     */
+    public long getStartLatency() {
+        return startLatency;
+    }
+
+    /**
+     * 设置video的路径
+     * 
+     * @param parentPath 文件的路路径
+     * @param videoName  文件名称不带后缀名
+     */
+    public void setVideoPath(String parentPath, String videoName) {
+        if (!TextUtils.equals(this.parentPath, parentPath)) {
+            getPostProcessExecutor().execute(new OrphanRecovery(new File(parentPath)));
+        }
+        this.parentPath = parentPath;
+        this.videoName = videoName;
+        fileFullName = videoName + FILE_EXTENSION;
+    }
+
+    public boolean isAutoOpen() {
+        return autoOpened;
+    }
+
+    public void setAutoOpen(boolean autoOpen) {
+        this.autoOpened = autoOpen;
+    }
+
+    public int getVideoWidth() {
+        return videoWidth;
+    }
+
+    public void setVideoWidth(int videoWidth) {
+        this.videoWidth = videoWidth;
+    }
+
+    public int getVideoHeight() {
+        return videoHeight;
+    }
+
+    public void setVideoHeight(int videoHeight) {
+        this.videoHeight = videoHeight;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public boolean isConstantFrameRate() {
+        return constantFrameRate;
+    }
+
+    /**
+     * 锁定帧率模式：相机使用与目标帧数最接近的固定帧率范围，暗光下画面会变暗或噪点增加，但不会掉到 7~15 帧，
+     * 录制的帧数与每帧码率保持稳定。实际输出的帧率见 {@link #getDeliveredFrameRate()}，下一次打开相机时生效
+     *
+     * @param constantFrameRate true 锁定
+     */
+    public void setConstantFrameRate(boolean constantFrameRate) {
+        this.constantFrameRate = constantFrameRate;
+    }
+
+    /**
+     * @return 最近约 1 秒相机实际输出的帧率，锁定帧率或有预览分析器时测量，否则为 0
+     */
+    public float getDeliveredFrameRate() {
+        return cameraManager.getDeliveredFrameRate();
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * 设置固定码率，之后不再使用 {@link #setBitratePolicy 码率策略}
+     *
+     * @param bitRate 码率，单位为 KB
+     */
+    public void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+        this.fixedBitRate = true;
+    }
+
+    /**
+     * 设置码率策略，码率根据实际协商到的分辨率与帧数计算，取消之前设置的固定码率
+     *
+     * @param bitratePolicy 码率策略
+     */
+    public void setBitratePolicy(BitratePolicy bitratePolicy) {
+        this.bitratePolicy = bitratePolicy;
+        this.fixedBitRate = false;
+    }
+
+    public BitratePolicy getBitratePolicy() {
+        return bitratePolicy;
+    }
+
+    /**
+     * @return 最近一次录制预计每秒写入的字节数，还没有录制过时按目标分辨率与帧数估算
+     */
+    public long getExpectedBytesPerSecond() {
+        BitratePolicy.Estimate estimate = bitrateEstimate;
+        if (estimate == null) {
+            estimate = fixedBitRate
+                    ? BitratePolicy.fixed(videoWidth, videoHeight, frameRate, bitRate * KB, CodecFactory.AUDIO_BIT_RATE)
+                    : bitratePolicy.estimate(videoWidth, videoHeight, frameRate, BitratePolicy.Codec.H264, CodecFactory.AUDIO_BIT_RATE);
+        }
+        return estimate.getBytesPerSecond();
+    }
+
+    /**
+     * 设置选择预览与视频尺寸的代价函数，例如更看重宽高比还是像素数、编码器的尺寸上限，下一次打开相机时生效
+     *
+     * @param cost 代价函数，null 表示使用默认代价与编码器的尺寸上限
+     */
+    public void setSizeCost(@Nullable SizeSelector.Cost cost) {
+        sizeCost = cost;
+    }
+
+    public void setTorch(boolean isOpen) {
+        if (cameraBackend != null) {
+            cameraBackend.setTorch(isOpen);
+        }
+    }
+
+    /**
+     * 设置闪光灯模式，下一次打开相机时生效。{@link FrontLightMode#AUTO} 根据预览画面亮度自动开关，
+     * 手动调用 {@link #setTorch} 后本次预览不再自动开关
+     *
+     * @param mode 闪光灯模式
+     */
+    public void setFrontLightMode(FrontLightMode mode) {
+        FrontLightMode.writePref(PreferenceManager.getDefaultSharedPreferences(getContext()), mode);
+    }
+
+    /**
+     * 注册预览帧分析器，见 {@link CameraManager#addFrameAnalyzer}
+     *
+     * @param analyzer 分析器，在分析线程中回调
+     */
+    public void addFrameAnalyzer(FrameAnalyzer analyzer) {
+        cameraManager.addFrameAnalyzer(analyzer);
+    }
+
+    public void removeFrameAnalyzer(FrameAnalyzer analyzer) {
+        cameraManager.removeFrameAnalyzer(analyzer);
+    }
+
+    /**
+     * @return 分析来不及而被丢弃的预览帧数
+     */
+    public long getDroppedFrameCount() {
+        return cameraManager.getDroppedFrameCount();
+    }
+
+    /**
+     * 开启或关闭运动触发录制：检测到画面运动时开始录制，运动结束超过后录时长后结束这一段录制并继续检测。
+     * 阈值、采样网格与后录时长通过 {@link #getMotionTrigger()} 设置
+     *
+     * @param enabled true 开启
+     */
+    public void setMotionTriggerEnabled(boolean enabled) {
+        MotionTrigger trigger = getMotionTrigger();
+        if (enabled) {
+            cameraManager.addFrameAnalyzer(trigger);
+        } else {
+            cameraManager.removeFrameAnalyzer(trigger);
+            trigger.reset();
+        }
+    }
+
+    /**
+     * @return 运动触发录制的配置与检测耗时
+     */
+    public synchronized MotionTrigger getMotionTrigger() {
+        if (motionTrigger == null) {
+            motionTrigger = new MotionTrigger(cameraManager, motionListener);
+        }
+        return motionTrigger;
+    }
+
+    /**
+     * @param onMotionListener 运动触发开始与结束录制之后在主线程回调，可以为空
+     */
+    public void setOnMotionListener(@Nullable MotionTrigger.OnMotionListener onMotionListener) {
+        this.onMotionListener = onMotionListener;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        surfaceEnable = true;
+        if (autoOpened) {
+            openCamera();
+        }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        Log.e(TAG, "surfaceChanged()");
+    }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
@@ -372,32 +1958,121 @@ public class RecorderView extends SurfaceView implements SurfaceHolder.Callback
         Log.e(TAG, "surfaceDestroyed()");
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stateMachine.force(RecorderState.IDLE);
+        cameraManager.execute(releaseRecorderTask);
+        if (camera2Backend != null) {
+            camera2Backend.closeAsync(null);
+        }
+        if (fakeCamera != null) {
+            fakeCamera.closeAsync(null);
+        }
+        cameraManager.release();
+        synchronized (this) {
+            if (postProcessExecutor != null) {
+                // 已经提交的合并任务会继续执行完
+                postProcessExecutor.shutdown();
+                postProcessExecutor = null;
+            }
+        }
+    }
+
     public void reverseCamera() {
         cameraFacing = cameraFacing == CameraFacing.FRONT ? CameraFacing.BACK : CameraFacing.FRONT;
         openCamera();
     }
 
     public boolean getTorchState() {
-        return cameraManager != null && cameraManager.getTorchState();
+        return cameraBackend != null && cameraBackend.getTorchState();
     }
 
     public boolean getTorchEnable() {
-        return cameraFacing == CameraFacing.BACK;
+        return !audioOnly && cameraFacing == CameraFacing.BACK;
     }
 
-    public void pauseRecord() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            mediaRecorder.pause();
-        } else {
-            Log.e(TAG, "system version name is " + Build.VERSION.CODENAME);
+    /**
+     * 暂停录制：结束当前分段并为下一个分段 prepare，恢复时只需要 start，所有系统版本都可用
+     *
+     * @return true 请求被接受，false 没有在录制
+     */
+    public boolean pauseRecord() {
+        if (!stateMachine.moveTo(RecorderState.RECORDING, RecorderState.PAUSED)) {
+            return false;
         }
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                cameraManager.getMetrics().onRecordingStopped();
+                if (fragmentedRecorder.isRecording()) {
+                    fragmentedRecorder.pause();
+                    return;
+                }
+                if (isCodecRecording()) {
+                    codecRecorder.pause();
+                    return;
+                }
+                if (isAudioRecording()) {
+                    audioRecorder.pause();
+                    return;
+                }
+                if (!takeRecorder.isRecording() || preRolling) {
+                    return;
+                }
+                File file = takeRecorder.stop();
+                if (file != null) {
+                    segmentFiles.add(file);
+                }
+                prepareSegment();
+            }
+        });
+        return true;
     }
 
-    public void resumeRecord() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            mediaRecorder.resume();
-        } else {
-            Log.e(TAG, "system version name is " + Build.VERSION.CODENAME);
+    /**
+     * 恢复录制，开始一个新的分段
+     *
+     * @return true 请求被接受，false 没有暂停
+     */
+    public boolean resumeRecord() {
+        if (!stateMachine.moveTo(RecorderState.PAUSED, RecorderState.RECORDING)) {
+            return false;
         }
+        cameraManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                RecorderMetrics metrics = cameraManager.getMetrics();
+                if (fragmentedRecorder.isRecording()) {
+                    fragmentedRecorder.resume();
+                    metrics.onRecordingStarted();
+                    return;
+                }
+                if (isCodecRecording()) {
+                    codecRecorder.resume();
+                    metrics.onRecordingStarted();
+                    return;
+                }
+                if (isAudioRecording()) {
+                    audioRecorder.resume();
+                    metrics.onRecordingStarted();
+                    return;
+                }
+                if (takeRecorder.isRecording() || takeFile == null) {
+                    return;
+                }
+                if (!takeRecorder.isPrepared() && !prepareSegment() || !takeRecorder.start()) {
+                    // 已经录制的分段保留，结束录制时仍会合并
+                    stateMachine.compareAndSet(RecorderState.RECORDING, RecorderState.ERROR);
+                    return;
+                }
+                metrics.onRecordingStarted();
+                if (journal != null) {
+                    journal.addSegment(takeRecorder.getOutputFile());
+                    journal.write();
+                }
+            }
+        });
+        return true;
     }
 }
@@ -0,0 +1,277 @@
+package com.nathaniel.recorder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.nathaniel.recorder.audio.AudioConfig;
+import com.nathaniel.recorder.mp4.Mp4Recovery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 录制日志：录制开始时在目标文件旁写入一个很小的 .journal 文件，记录目标文件、分段文件、视频参数与编码参数，
+ * 录制正常结束后删除。进程在录制中途退出时日志会留下来，下次启动时据此修复孤立的录制文件，
+ * 见 {@link OrphanRecovery}
+ *
+ * @author nathaniel
+ */
+final class RecoveryJournal {
+
+    static final String EXTENSION = ".journal";
+    private static final String TAG = RecoveryJournal.class.getSimpleName();
+    private static final String PREFS_NAME = "recorder_codec_config";
+    private static final String KEY_TARGET = "target";
+    private static final String KEY_SEGMENTS = "segments";
+    private static final String KEY_FRAGMENTED = "fragmented";
+    private static final String KEY_WIDTH = "width";
+    private static final String KEY_HEIGHT = "height";
+    private static final String KEY_FRAME_RATE = "frame-rate";
+    private static final String KEY_ROTATION = "rotation";
+    private static final String KEY_SPS = "sps";
+    private static final String KEY_PPS = "pps";
+    private static final String KEY_AUDIO_SPECIFIC_CONFIG = "asc";
+    private static final String KEY_PID = "pid";
+    private static final String SEPARATOR = "|";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File file;
+    private final Properties properties;
+
+    private RecoveryJournal(File file, Properties properties) {
+        this.file = file;
+        this.properties = properties;
+    }
+
+    /**
+     * 创建一次录制的日志，调用 {@link #write()} 之后才会写入磁盘
+     *
+     * @param context    用于读取上一次成功录制的编码参数
+     * @param target     录制的目标文件
+     * @param fragmented 是否为分片 MP4
+     * @param width      目标宽度
+     * @param height     目标高度
+     * @param frameRate  帧数
+     * @param rotation   视频旋转角度
+     * @param audio      AAC 音频参数，没有声音时为 null
+     * @return 录制日志
+     */
+    static RecoveryJournal create(Context context, File target, boolean fragmented, int width, int height, int frameRate,
+                                  int rotation, AudioConfig audio) {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_TARGET, target.getAbsolutePath());
+        properties.setProperty(KEY_SEGMENTS, "");
+        properties.setProperty(KEY_FRAGMENTED, String.valueOf(fragmented));
+        properties.setProperty(KEY_WIDTH, String.valueOf(width));
+        properties.setProperty(KEY_HEIGHT, String.valueOf(height));
+        properties.setProperty(KEY_FRAME_RATE, String.valueOf(frameRate));
+        properties.setProperty(KEY_ROTATION, String.valueOf(rotation));
+        properties.setProperty(KEY_PID, String.valueOf(Process.myPid()));
+        // 录制器写入的是不带 ADTS 头的 AAC，修复时无法从文件中得到 AudioSpecificConfig，按录制参数记下
+        byte[] audioSpecificConfig = audio != null
+                ? Mp4Recovery.aacLcConfig(audio.getSampleRate(), audio.getChannelCount()) : null;
+        if (audioSpecificConfig != null) {
+            properties.setProperty(KEY_AUDIO_SPECIFIC_CONFIG, toHex(audioSpecificConfig));
+        }
+        // MediaRecorder 不公开编码参数，使用相同参数下上一次成功录制的文件中记下的 SPS/PPS
+        String codecConfig = getPreferences(context).getString(templateKey(width, height), null);
+        if (codecConfig != null) {
+            String[] values = codecConfig.split("\\" + SEPARATOR);
+            if (values.length == 4) {
+                properties.setProperty(KEY_WIDTH, values[0]);
+                properties.setProperty(KEY_HEIGHT, values[1]);
+                properties.setProperty(KEY_SPS, values[2]);
+                properties.setProperty(KEY_PPS, values[3]);
+            }
+        }
+        return new RecoveryJournal(new File(target.getPath() + EXTENSION), properties);
+    }
+
+    /**
+     * 读取日志文件
+     *
+     * @param file 日志文件
+     * @return 日志，文件损坏时返回 null
+     */
+    static RecoveryJournal read(File file) {
+        Properties properties = new Properties();
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            properties.load(inputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "read journal " + file + " failed", e);
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+        if (properties.getProperty(KEY_TARGET) == null) {
+            return null;
+        }
+        return new RecoveryJournal(file, properties);
+    }
+
+    /**
+     * 录制成功后记下文件中的编码参数，供之后相同参数的录制日志使用
+     *
+     * @param context 上下文
+     * @param width   目标宽度
+     * @param height  目标高度
+     * @param video   录制完成的文件
+     */
+    static void rememberCodecConfig(Context context, int width, int height, File video) {
+        Mp4Recovery.Config config;
+        try {
+            config = Mp4Recovery.readVideoConfig(video);
+        } catch (IOException e) {
+            Log.w(TAG, "read codec config of " + video + " failed", e);
+            return;
+        }
+        if (config == null) {
+            return;
+        }
+        String value = config.getWidth() + SEPARATOR + config.getHeight() + SEPARATOR + toHex(config.getSps())
+                + SEPARATOR + toHex(config.getPps());
+        SharedPreferences preferences = getPreferences(context);
+        String key = templateKey(width, height);
+        if (!value.equals(preferences.getString(key, null))) {
+            preferences.edit().putString(key, value).apply();
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String templateKey(int width, int height) {
+        return "avc_" + width + "x" + height;
+    }
+
+    /**
+     * 记录一个新的分段，调用 {@link #write()} 后生效
+     *
+     * @param segment 分段文件
+     */
+    void addSegment(File segment) {
+        String segments = properties.getProperty(KEY_SEGMENTS);
+        String path = segment.getAbsolutePath();
+        properties.setProperty(KEY_SEGMENTS, TextUtils.isEmpty(segments) ? path : segments + SEPARATOR + path);
+    }
+
+    /**
+     * 写入磁盘，先写临时文件再重命名，进程在写入过程中退出也不会留下半个日志
+     *
+     * @return true 写入成功
+     */
+    boolean write() {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(temp);
+            properties.store(outputStream, null);
+            outputStream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "write journal " + file + " failed", e);
+            return false;
+        } finally {
+            closeQuietly(outputStream);
+        }
+        return temp.renameTo(file);
+    }
+
+    void delete() {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "delete journal " + file + " failed");
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    File getTarget() {
+        return new File(properties.getProperty(KEY_TARGET));
+    }
+
+    List<File> getSegments() {
+        List<File> segments = new ArrayList<>();
+        for (String path : properties.getProperty(KEY_SEGMENTS, "").split("\\" + SEPARATOR)) {
+            if (!path.isEmpty()) {
+                segments.add(new File(path));
+            }
+        }
+        return segments;
+    }
+
+    boolean isFragmented() {
+        return Boolean.parseBoolean(properties.getProperty(KEY_FRAGMENTED));
+    }
+
+    /**
+     * @return 是否由当前进程写入，即录制可能仍在进行
+     */
+    boolean isOwnedByThisProcess() {
+        return String.valueOf(Process.myPid()).equals(properties.getProperty(KEY_PID));
+    }
+
+    /**
+     * @return 修复孤立文件需要的参数
+     */
+    Mp4Recovery.Config toRecoveryConfig() {
+        Mp4Recovery.Config config = new Mp4Recovery.Config(getInt(KEY_WIDTH), getInt(KEY_HEIGHT), getInt(KEY_FRAME_RATE))
+                .setRotation(getInt(KEY_ROTATION));
+        String sps = properties.getProperty(KEY_SPS);
+        String pps = properties.getProperty(KEY_PPS);
+        if (sps != null && pps != null) {
+            config.setVideoCodecConfig(fromHex(sps), fromHex(pps));
+        }
+        String audioSpecificConfig = properties.getProperty(KEY_AUDIO_SPECIFIC_CONFIG);
+        if (audioSpecificConfig != null) {
+            config.setAudioSpecificConfig(fromHex(audioSpecificConfig));
+        }
+        return config;
+    }
+
+    private int getInt(String key) {
+        try {
+            return Integer.parseInt(properties.getProperty(key, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.nathaniel.recorder;
+
+import android.os.Build;
+import android.os.StatFs;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * 录制前的存储空间检查：按码率与需要保证的录制时长估算写入的字节数，与目标目录所在分区的剩余空间比较
+ *
+ * @author nathaniel
+ */
+final class StorageCheck {
+    private static final String TAG = StorageCheck.class.getSimpleName();
+    /**
+     * 除录制内容之外额外保留的空间，用于 moov、日志文件与文件系统本身
+     */
+    static final long MIN_FREE_BYTES = 16L * 1024 * 1024;
+
+    private StorageCheck() {
+    }
+
+    /**
+     * @param directory 目标目录，不存在时检查最近一级存在的上级目录
+     * @return 可用空间，单位字节，无法获取时返回 -1
+     */
+    @SuppressWarnings("deprecation")
+    static long getAvailableBytes(File directory) {
+        File existing = directory;
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        if (existing == null) {
+            return -1;
+        }
+        try {
+            StatFs statFs = new StatFs(existing.getAbsolutePath());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                return statFs.getAvailableBytes();
+            }
+            return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "stat " + existing.getAbsolutePath() + " failed", e);
+            return -1;
+        }
+    }
+
+    /**
+     * @param bytesPerSecond 每秒写入的字节数
+     * @param durationMillis 需要保证的录制时长，单位毫秒
+     * @return 录制这段时长需要的空间，单位字节
+     */
+    static long requiredBytes(long bytesPerSecond, long durationMillis) {
+        return bytesPerSecond * durationMillis / 1000 + MIN_FREE_BYTES;
+    }
+
+    /**
+     * @return 剩余空间足够录制指定时长，无法获取剩余空间时返回 true，交给录制器自己报错
+     */
+    static boolean hasSpaceFor(File directory, long bytesPerSecond, long durationMillis) {
+        long available = getAvailableBytes(directory);
+        long required = requiredBytes(bytesPerSecond, durationMillis);
+        if (available >= 0 && available < required) {
+            Log.e(TAG, "not enough space in " + directory.getAbsolutePath() + ", available " + available
+                    + " bytes, required " + required + " bytes");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return 剩余空间还能录制的时长，单位毫秒，无法获取剩余空间时返回 -1
+     */
+    static long remainingMillis(File directory, long bytesPerSecond) {
+        long available = getAvailableBytes(directory);
+        if (available < 0 || bytesPerSecond <= 0) {
+            return -1;
+        }
+        return Math.max(0, available - MIN_FREE_BYTES) * 1000 / bytesPerSecond;
+    }
+}
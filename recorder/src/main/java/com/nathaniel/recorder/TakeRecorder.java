@@ -0,0 +1,394 @@
+package com.nathaniel.recorder;
+
+import android.annotation.TargetApi;
+import android.graphics.Point;
+import android.hardware.Camera;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Owns the {@link MediaRecorder} of one {@link RecorderView} and keeps it across takes: after a take it is
+ * reset and re-prepared for the next output file, so starting the next take is only
+ * {@link MediaRecorder#start()}. With a {@link Camera2Backend} set the recorder takes its frames from a
+ * surface fed by the capture session instead of an unlocked {@link Camera}. All methods must be called on the
+ * camera thread.
+ *
+ * @author nathaniel
+ */
+final class TakeRecorder {
+
+    private static final String TAG = TakeRecorder.class.getSimpleName();
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private final CameraManager cameraManager;
+    private MediaRecorder mediaRecorder;
+    private Camera camera;
+    /**
+     * 不为空时录制 camera2 会话输出到录制器 Surface 的画面
+     */
+    private Camera2Backend camera2Backend;
+    private boolean camera2Configured;
+    private File outputFile;
+    private boolean prepared;
+    private boolean recording;
+    private long prepareMillis;
+    /**
+     * 单个文件的大小上限，0 表示不限制
+     */
+    private long maxFileSize;
+    private OnRolloverListener rolloverListener;
+    /**
+     * 已经通过 setNextOutputFile 交给 MediaRecorder、还没有开始写入的文件
+     */
+    private File pendingFile;
+    /**
+     * 等待写入的文件是否为新建的，录制在切换之前结束时删除
+     */
+    private boolean pendingCreated;
+    /**
+     * 直接覆盖写入已经存在的文件，不先删除
+     */
+    private boolean recycleFiles;
+    private final MediaRecorder.OnInfoListener infoListener = new MediaRecorder.OnInfoListener() {
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra) {
+            if (mr == mediaRecorder) {
+                onRecorderInfo(what);
+            }
+        }
+    };
+
+    TakeRecorder(CameraManager cameraManager) {
+        this.cameraManager = cameraManager;
+    }
+
+    /**
+     * 单个文件达到大小上限时切换到下一个文件。Android 8.0 及以上通过 {@link MediaRecorder#setNextOutputFile}
+     * 无缝切换，之前的版本录制器在上限处自动停止，由监听者重新 prepare 与 start。下一次 prepare 时生效
+     *
+     * @param maxFileSize 单个文件的大小上限，单位字节，0 表示不限制
+     * @param listener    切换监听，在相机线程回调
+     */
+    void setRollover(long maxFileSize, @Nullable OnRolloverListener listener) {
+        this.maxFileSize = maxFileSize;
+        this.rolloverListener = listener;
+    }
+
+    /**
+     * @return 是否支持不停止录制切换输出文件
+     */
+    static boolean isSeamlessRolloverSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    /**
+     * 切换录制的画面来源，之前的录制器会被释放
+     *
+     * @param backend camera2 后端，null 表示使用 {@link CameraManager} 打开的相机
+     */
+    void setCamera2Backend(@Nullable Camera2Backend backend) {
+        if (backend != camera2Backend) {
+            release();
+            camera2Backend = backend;
+        }
+    }
+
+    /**
+     * 覆盖写入已经存在的文件而不是先删除再创建，循环使用固定的几个文件时减少文件系统元数据的改动。
+     * 旧文件比新录制的内容长时尾部会残留旧数据，{@link com.nathaniel.recorder.mp4.Mp4Concatenator}
+     * 读到完整的 moov 与 mdat 之后不再往后读
+     *
+     * @param recycleFiles true 复用已有文件
+     */
+    void setRecycleFiles(boolean recycleFiles) {
+        this.recycleFiles = recycleFiles;
+    }
+
+    /**
+     * 配置录制器并 prepare，之后 {@link #start()} 只需要启动编码
+     *
+     * @param file           输出文件
+     * @param previewSurface 预览 Surface
+     * @param videoWidth     目标宽度
+     * @param videoHeight    目标高度
+     * @param frameRate      目标帧数
+     * @param bitRate        码率，单位为 b/s
+     * @return true prepare 成功
+     */
+    boolean prepare(File file, Surface previewSurface, int videoWidth, int videoHeight, int frameRate, int bitRate) {
+        if (recording) {
+            Log.w(TAG, "prepare() while recording");
+            return false;
+        }
+        long begin = SystemClock.elapsedRealtimeNanos();
+        RecorderCamera openCamera;
+        if (camera2Backend != null) {
+            openCamera = camera2Backend.getOpenCamera();
+            if (openCamera == null || !configureCamera2(frameRate, bitRate)) {
+                Log.e(TAG, "open camera first ");
+                return false;
+            }
+        } else {
+            Camera theCamera = cameraManager.getRecorderCamera();
+            CameraCapabilities capabilities = cameraManager.getCapabilities();
+            if (theCamera == null || capabilities == null) {
+                Log.e(TAG, "open camera first ");
+                return false;
+            }
+            openCamera = cameraManager.getOpenCamera();
+            if (mediaRecorder == null || camera != theCamera) {
+                release();
+                theCamera.unlock();
+                camera = theCamera;
+                mediaRecorder = RecorderFactory.newCustomConfigInstance(theCamera, capabilities, videoWidth, videoHeight,
+                        frameRate, bitRate);
+            } else {
+                mediaRecorder.reset();
+                RecorderFactory.reconfigure(mediaRecorder, theCamera, capabilities, videoWidth, videoHeight, frameRate, bitRate);
+            }
+            mediaRecorder.setPreviewDisplay(previewSurface);
+        }
+        if (file.exists() && !recycleFiles) {
+            boolean flag = file.delete();
+            Log.e(TAG, " delete file " + file.getName() + " success is " + flag);
+        }
+        mediaRecorder.setOutputFile(file.getAbsolutePath());
+        mediaRecorder.setOrientationHint(openCamera.getOrientation());
+        if (maxFileSize > 0) {
+            mediaRecorder.setMaxFileSize(maxFileSize);
+            mediaRecorder.setOnInfoListener(infoListener);
+        }
+        pendingFile = null;
+        RecorderMetrics metrics = cameraManager.getMetrics();
+        long prepareBegin = metrics.begin(RecorderMetrics.Stage.RECORDER_PREPARE);
+        try {
+            mediaRecorder.prepare();
+        } catch (IllegalStateException | IOException e) {
+            Log.e(TAG, "prepare recorder failed", e);
+            release();
+            return false;
+        } finally {
+            metrics.end(RecorderMetrics.Stage.RECORDER_PREPARE, prepareBegin);
+        }
+        outputFile = file;
+        prepared = true;
+        prepareMillis = (SystemClock.elapsedRealtimeNanos() - begin) / NANOS_PER_MILLI;
+        Log.i(TAG, "recorder prepared in " + prepareMillis + "ms, file " + file.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * 为 camera2 配置录制器，尺寸使用打开相机时为会话选定的录制尺寸
+     *
+     * @return true 配置成功
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean configureCamera2(int frameRate, int bitRate) {
+        Point videoSize = camera2Backend.getVideoSize();
+        if (mediaRecorder == null) {
+            mediaRecorder = new MediaRecorder();
+        } else {
+            mediaRecorder.reset();
+        }
+        RecorderFactory.configureSurfaceSource(mediaRecorder, videoSize, camera2Backend.findCloseFrameRate(frameRate), bitRate);
+        camera2Configured = true;
+        Surface persistent = camera2Backend.getPersistentSurface();
+        if (persistent != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            setInputSurface(persistent);
+        }
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setInputSurface(Surface surface) {
+        mediaRecorder.setInputSurface(surface);
+    }
+
+    boolean start() {
+        if (!prepared) {
+            return false;
+        }
+        RecorderMetrics metrics = cameraManager.getMetrics();
+        long begin = metrics.begin(RecorderMetrics.Stage.RECORDER_START);
+        try {
+            if (camera2Configured && !startCamera2()) {
+                release();
+                return false;
+            }
+            mediaRecorder.start();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "start recorder failed", e);
+            release();
+            return false;
+        } finally {
+            metrics.end(RecorderMetrics.Stage.RECORDER_START, begin);
+        }
+        prepared = false;
+        recording = true;
+        return true;
+    }
+
+    /**
+     * 让 camera2 会话开始向录制器输出，录制器 start 之前到达的画面会被丢弃
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean startCamera2() {
+        Surface persistent = camera2Backend.getPersistentSurface();
+        return camera2Backend.startRecording(persistent != null ? persistent : mediaRecorder.getSurface());
+    }
+
+    /**
+     * 结束当前录制，MediaRecorder 与相机保持不变，可以再次 {@link #prepare}
+     *
+     * @return 录制完成的文件，录制失败时返回 null
+     */
+    File stop() {
+        if (!recording) {
+            return null;
+        }
+        recording = false;
+        RecorderMetrics metrics = cameraManager.getMetrics();
+        long begin = metrics.begin(RecorderMetrics.Stage.RECORDER_STOP);
+        if (camera2Configured) {
+            camera2Backend.stopRecording();
+        }
+        try {
+            mediaRecorder.stop();
+        } catch (RuntimeException e) {
+            // stop() right after start() has no valid data
+            Log.e(TAG, "stop recorder failed", e);
+            return null;
+        } finally {
+            metrics.end(RecorderMetrics.Stage.RECORDER_STOP, begin);
+            discardPendingFile();
+        }
+        return outputFile;
+    }
+
+    private void onRecorderInfo(int what) {
+        if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+            // 录制器已经在上限处停止
+            Log.i(TAG, "max file size reached, " + outputFile.getName());
+            File finished = stop();
+            if (rolloverListener != null) {
+                rolloverListener.onFileFinished(finished, true);
+            }
+        } else if (isSeamlessRolloverSupported()) {
+            onSeamlessRolloverInfo(what);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void onSeamlessRolloverInfo(int what) {
+        if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+            File next = rolloverListener != null ? rolloverListener.onRequestNextFile() : null;
+            if (next == null || pendingFile != null) {
+                return;
+            }
+            if (next.exists() && !recycleFiles) {
+                boolean flag = next.delete();
+                Log.e(TAG, " delete file " + next.getName() + " success is " + flag);
+            }
+            try {
+                mediaRecorder.setNextOutputFile(next);
+                pendingFile = next;
+                pendingCreated = !recycleFiles;
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "set next output file failed", e);
+            }
+        } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED && pendingFile != null) {
+            File finished = outputFile;
+            outputFile = pendingFile;
+            pendingFile = null;
+            Log.i(TAG, "rolled over from " + finished.getName() + " to " + outputFile.getName());
+            if (rolloverListener != null) {
+                rolloverListener.onFileFinished(finished, false);
+            }
+        }
+    }
+
+    /**
+     * 已经交给 MediaRecorder 但没有开始写入的文件
+     */
+    private void discardPendingFile() {
+        if (pendingFile != null && pendingCreated && pendingFile.exists()) {
+            boolean flag = pendingFile.delete();
+            Log.e(TAG, " delete file " + pendingFile.getName() + " success is " + flag);
+        }
+        pendingFile = null;
+    }
+
+    /**
+     * 释放录制器并把相机交还给应用
+     */
+    void release() {
+        if (mediaRecorder != null) {
+            if (recording) {
+                stop();
+            }
+            mediaRecorder.reset();
+            mediaRecorder.release();
+            mediaRecorder = null;
+        }
+        camera2Configured = false;
+        if (camera != null) {
+            try {
+                camera.lock();
+                // MediaRecorder 占用相机期间预览回调被清除
+                cameraManager.restorePreviewCallback();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "lock camera failed", e);
+            }
+            camera = null;
+        }
+        prepared = false;
+        recording = false;
+    }
+
+    boolean isPrepared() {
+        return prepared;
+    }
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * @return 上一次 prepare 的耗时，单位毫秒
+     */
+    long getPrepareMillis() {
+        return prepareMillis;
+    }
+
+    /**
+     * 输出文件切换监听
+     */
+    interface OnRolloverListener {
+        /**
+         * 当前文件即将达到大小上限，只在支持无缝切换时回调
+         *
+         * @return 下一个输出文件，返回 null 时录制器在上限处停止
+         */
+        @Nullable
+        File onRequestNextFile();
+
+        /**
+         * 一个文件写入完成
+         *
+         * @param file    写入完成的文件，录制失败时为 null
+         * @param stopped true 录制器已经停止，需要重新 prepare 才能继续录制
+         */
+        void onFileFinished(@Nullable File file, boolean stopped);
+    }
+}
@@ -0,0 +1,95 @@
+package com.nathaniel.recorder.audio;
+
+/**
+ * Microphone capture and AAC encoding parameters negotiated for a device, see {@link AudioNegotiator}.
+ * <p>
+ * Immutable. It can be flattened into a short string and parsed back, so the result of a probe can be
+ * persisted and reused instead of probing again on every take.
+ *
+ * @author nathaniel
+ */
+public final class AudioConfig {
+
+    private static final char SEPARATOR = ',';
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int bitRate;
+
+    /**
+     * @param sampleRate   sample rate in Hz
+     * @param channelCount 1 or 2
+     * @param bitRate      AAC bit rate in bits per second
+     */
+    public AudioConfig(int sampleRate, int channelCount, int bitRate) {
+        if (sampleRate <= 0 || channelCount < 1 || channelCount > 2 || bitRate <= 0) {
+            throw new IllegalArgumentException("Bad audio config " + sampleRate + "Hz x" + channelCount + " " + bitRate + "b/s");
+        }
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitRate = bitRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * @return AAC bit rate in bits per second
+     */
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * @return {@code sampleRate,channelCount,bitRate}, readable by {@link #unflatten}
+     */
+    public String flatten() {
+        return String.valueOf(sampleRate) + SEPARATOR + channelCount + SEPARATOR + bitRate;
+    }
+
+    /**
+     * @param flattened output of {@link #flatten()}
+     * @return the config, null when the string is missing or broken
+     */
+    public static AudioConfig unflatten(String flattened) {
+        if (flattened == null) {
+            return null;
+        }
+        String[] values = flattened.split(String.valueOf(SEPARATOR));
+        if (values.length != 3) {
+            return null;
+        }
+        try {
+            return new AudioConfig(Integer.parseInt(values[0]), Integer.parseInt(values[1]), Integer.parseInt(values[2]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AudioConfig)) {
+            return false;
+        }
+        AudioConfig other = (AudioConfig) o;
+        return sampleRate == other.sampleRate && channelCount == other.channelCount && bitRate == other.bitRate;
+    }
+
+    @Override
+    public int hashCode() {
+        return (sampleRate * 31 + channelCount) * 31 + bitRate;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + "Hz x" + channelCount + " " + bitRate / 1000 + "kb/s";
+    }
+}
@@ -0,0 +1,85 @@
+package com.nathaniel.recorder.audio;
+
+/**
+ * Picks the microphone format to record with from a fixed table of candidates, replacing per-vendor guesses.
+ * <p>
+ * Candidates are tried from the highest sample rate down, with the preferred channel count first; the first
+ * one the {@link Probe} accepts wins. 44100 Hz mono is the one format every device must support, so it is
+ * returned when nothing is accepted. The AAC bit rate follows from the result, see {@link #bitRateFor}.
+ *
+ * @author nathaniel
+ */
+public final class AudioNegotiator {
+
+    /**
+     * Sample rates tried, best first
+     */
+    private static final int[] SAMPLE_RATES = {48000, 44100, 32000, 22050, 16000, 11025, 8000};
+    /**
+     * Format returned when no candidate is accepted
+     */
+    public static final int FALLBACK_SAMPLE_RATE = 44100;
+
+    /**
+     * Tells whether the device can capture a format.
+     */
+    public interface Probe {
+        /**
+         * @param sampleRate   sample rate in Hz
+         * @param channelCount 1 or 2
+         * @return true when the format can be captured
+         */
+        boolean isSupported(int sampleRate, int channelCount);
+    }
+
+    private AudioNegotiator() {
+    }
+
+    /**
+     * @param probe             asked once per candidate until one is accepted
+     * @param preferredChannels channel count to try first, 1 or 2; the other one is tried at the same rate
+     *                          before dropping to a lower rate
+     * @param maxSampleRate     highest sample rate to consider, for example to match a codec limit
+     * @return the best accepted format with its bit rate
+     */
+    public static AudioConfig negotiate(Probe probe, int preferredChannels, int maxSampleRate) {
+        if (preferredChannels < 1 || preferredChannels > 2) {
+            throw new IllegalArgumentException("Bad channel count " + preferredChannels);
+        }
+        int otherChannels = 3 - preferredChannels;
+        for (int sampleRate : SAMPLE_RATES) {
+            if (sampleRate > maxSampleRate) {
+                continue;
+            }
+            if (probe.isSupported(sampleRate, preferredChannels)) {
+                return new AudioConfig(sampleRate, preferredChannels, bitRateFor(sampleRate, preferredChannels));
+            }
+            if (probe.isSupported(sampleRate, otherChannels)) {
+                return new AudioConfig(sampleRate, otherChannels, bitRateFor(sampleRate, otherChannels));
+            }
+        }
+        return new AudioConfig(FALLBACK_SAMPLE_RATE, 1, bitRateFor(FALLBACK_SAMPLE_RATE, 1));
+    }
+
+    /**
+     * AAC-LC bit rate that is transparent enough for speech and ambient sound without wasting space: 64 kb/s
+     * per channel at 44.1 kHz and above, less for lower rates that carry less bandwidth.
+     *
+     * @return bit rate in bits per second
+     */
+    public static int bitRateFor(int sampleRate, int channelCount) {
+        int perChannel;
+        if (sampleRate >= 44100) {
+            perChannel = 64000;
+        } else if (sampleRate >= 32000) {
+            perChannel = 48000;
+        } else if (sampleRate >= 22050) {
+            perChannel = 40000;
+        } else if (sampleRate >= 16000) {
+            perChannel = 32000;
+        } else {
+            perChannel = 16000;
+        }
+        return perChannel * channelCount;
+    }
+}
@@ -0,0 +1,127 @@
+package com.nathaniel.recorder.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RMS and peak level of 16-bit PCM, measured in place on the capture buffer.
+ * <p>
+ * {@link #update} reads the samples through absolute gets without allocating or moving the buffer position,
+ * so it can run on every capture read. Levels are accumulated over an interval and published once per
+ * interval, which keeps the rate of UI updates independent of the capture buffer size. Both levels of one
+ * interval are published together. {@link #update} must be called from one thread; the getters may be called
+ * from any thread.
+ *
+ * @author nathaniel
+ */
+public final class LevelMeter {
+
+    /**
+     * Level in dBFS reported for digital silence, about the dynamic range of 16-bit samples
+     */
+    public static final float MIN_DB = -96f;
+    private static final float FULL_SCALE = 32768f;
+
+    private final long intervalNanos;
+    private long windowStartNanos = -1;
+    private long sumSquares;
+    private int peak;
+    private int samples;
+    /**
+     * RMS float bits in the high word, peak float bits in the low word
+     */
+    private volatile long levels;
+
+    /**
+     * @param intervalMillis how often levels are published, in milliseconds
+     */
+    public LevelMeter(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive");
+        }
+        intervalNanos = intervalMillis * 1000000L;
+    }
+
+    /**
+     * Adds the samples between position and limit, the buffer is not modified.
+     *
+     * @param pcm       16-bit samples in the byte order of the buffer, channels interleaved
+     * @param nowNanos  monotonic time in nanoseconds
+     * @return true when the interval elapsed and new levels were published
+     */
+    public boolean update(ByteBuffer pcm, long nowNanos) {
+        long sum = sumSquares;
+        int max = peak;
+        int end = pcm.limit() - 1;
+        int i = pcm.position();
+        for (; i < end; i += 2) {
+            int sample = pcm.getShort(i);
+            sum += sample * sample;
+            if (sample < 0) {
+                sample = -sample;
+            }
+            if (sample > max) {
+                max = sample;
+            }
+        }
+        samples += (i - pcm.position()) / 2;
+        sumSquares = sum;
+        peak = max;
+        if (windowStartNanos < 0) {
+            windowStartNanos = nowNanos;
+        }
+        if (nowNanos - windowStartNanos < intervalNanos || samples == 0) {
+            return false;
+        }
+        float rms = (float) (Math.sqrt((double) sum / samples) / FULL_SCALE);
+        levels = (long) Float.floatToIntBits(rms) << 32 | Float.floatToIntBits(max / FULL_SCALE) & 0xffffffffL;
+        windowStartNanos = nowNanos;
+        sumSquares = 0;
+        peak = 0;
+        samples = 0;
+        return true;
+    }
+
+    /**
+     * Drops the interval in progress and the published levels.
+     */
+    public void reset() {
+        windowStartNanos = -1;
+        sumSquares = 0;
+        peak = 0;
+        samples = 0;
+        levels = 0;
+    }
+
+    /**
+     * @return RMS level of the last interval, 0 to 1 of full scale
+     */
+    public float getRms() {
+        return Float.intBitsToFloat((int) (levels >>> 32));
+    }
+
+    /**
+     * @return peak level of the last interval, 0 to 1 of full scale
+     */
+    public float getPeak() {
+        return Float.intBitsToFloat((int) levels);
+    }
+
+    public float getRmsDb() {
+        return toDb(getRms());
+    }
+
+    public float getPeakDb() {
+        return toDb(getPeak());
+    }
+
+    /**
+     * @param level 0 to 1 of full scale
+     * @return level in dBFS, not below {@link #MIN_DB}
+     */
+    public static float toDb(float level) {
+        if (level <= 0) {
+            return MIN_DB;
+        }
+        return Math.max(MIN_DB, (float) (20 * Math.log10(level)));
+    }
+}
@@ -0,0 +1,186 @@
+package com.nathaniel.recorder.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed ring of PCM slots carved out of one direct buffer, handing captured audio from a capture thread to
+ * an encoder thread without allocating or copying on the way.
+ * <p>
+ * The producer fills the slot returned by {@link #beginWrite()} in place, for example with
+ * {@code AudioRecord.read(ByteBuffer, int)}, and publishes it with {@link #endWrite}. When the consumer falls
+ * behind and every slot is taken, the producer gets a spare slot instead so capture never blocks; what is
+ * written there is counted by {@link #getOverrunCount()} and dropped. Exactly one producer and one consumer
+ * thread; the counters may be read from any thread.
+ *
+ * @author nathaniel
+ */
+public final class PcmRing {
+
+    private final ByteBuffer[] slots;
+    private final int[] lengths;
+    private final long[] timesUs;
+    private final ByteBuffer spare;
+    private final Object lock = new Object();
+    private final int slotSize;
+    private volatile long written;
+    private volatile long read;
+    private volatile long overruns;
+    private volatile boolean closed;
+    private ByteBuffer writing;
+
+    /**
+     * @param slotCount number of slots, at least 2
+     * @param slotSize  bytes per slot, typically one {@code AudioRecord} read
+     */
+    public PcmRing(int slotCount, int slotSize) {
+        if (slotCount < 2 || slotSize <= 0) {
+            throw new IllegalArgumentException("Bad ring " + slotCount + "x" + slotSize);
+        }
+        this.slotSize = slotSize;
+        ByteBuffer buffer = ByteBuffer.allocateDirect((slotCount + 1) * slotSize);
+        slots = new ByteBuffer[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = slice(buffer, i * slotSize, slotSize);
+        }
+        spare = slice(buffer, slotCount * slotSize, slotSize);
+        lengths = new int[slotCount];
+        timesUs = new long[slotCount];
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + size);
+        return duplicate.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Producer side: the slot to fill next, cleared, in native byte order. Calling it again without
+     * {@link #endWrite} returns the same slot, which is how a read is discarded.
+     */
+    public ByteBuffer beginWrite() {
+        ByteBuffer slot = written - read < slots.length ? slots[(int) (written % slots.length)] : spare;
+        slot.clear();
+        writing = slot;
+        return slot;
+    }
+
+    /**
+     * Producer side: publishes the slot returned by {@link #beginWrite()}.
+     *
+     * @param length bytes written from the start of the slot
+     * @param timeUs capture time of the first sample in microseconds
+     */
+    public void endWrite(int length, long timeUs) {
+        if (writing == null) {
+            throw new IllegalStateException("endWrite() without beginWrite()");
+        }
+        ByteBuffer slot = writing;
+        writing = null;
+        if (slot == spare) {
+            overruns++;
+            return;
+        }
+        int index = (int) (written % slots.length);
+        lengths[index] = Math.min(length, slotSize);
+        timesUs[index] = timeUs;
+        synchronized (lock) {
+            written++;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Producer side: no more slots will be written, the consumer drains what is left and then sees
+     * {@link #isDrained()}.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Consumer side: waits for the next published slot.
+     *
+     * @param timeoutMillis longest time to wait, 0 to return at once
+     * @return the slot with position 0 and limit at its length, stays valid until {@link #endRead()};
+     * null when nothing arrived in time or the ring is closed and empty
+     */
+    public ByteBuffer beginRead(long timeoutMillis) throws InterruptedException {
+        if (written == read && timeoutMillis > 0) {
+            synchronized (lock) {
+                if (written == read && !closed) {
+                    lock.wait(timeoutMillis);
+                }
+            }
+        }
+        if (written == read) {
+            return null;
+        }
+        int index = (int) (read % slots.length);
+        ByteBuffer slot = slots[index];
+        slot.limit(lengths[index]);
+        slot.position(0);
+        return slot;
+    }
+
+    /**
+     * @return capture time of the first sample of the slot returned by {@link #beginRead}
+     */
+    public long getReadTimeUs() {
+        return timesUs[(int) (read % slots.length)];
+    }
+
+    /**
+     * Consumer side: hands the slot returned by {@link #beginRead} back to the producer.
+     */
+    public void endRead() {
+        if (written == read) {
+            throw new IllegalStateException("endRead() without a slot");
+        }
+        read++;
+    }
+
+    /**
+     * @return true when the producer closed the ring and the consumer has read every slot
+     */
+    public boolean isDrained() {
+        return closed && written == read;
+    }
+
+    /**
+     * Makes the ring empty and open again, only while neither side is using it.
+     */
+    public void reset() {
+        written = 0;
+        read = 0;
+        overruns = 0;
+        closed = false;
+        writing = null;
+    }
+
+    /**
+     * @return slots published and not read yet
+     */
+    public int size() {
+        return (int) (written - read);
+    }
+
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * @return writes dropped because every slot was waiting for the consumer
+     */
+    public long getOverrunCount() {
+        return overruns;
+    }
+}
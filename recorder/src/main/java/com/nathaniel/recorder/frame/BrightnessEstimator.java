@@ -0,0 +1,94 @@
+package com.nathaniel.recorder.frame;
+
+import java.util.Arrays;
+
+/**
+ * Estimates scene brightness from a sparse luma histogram.
+ * <p>
+ * Only every {@code sampleStep}-th pixel of every {@code sampleStep}-th row goes into a 256-bin histogram
+ * that is reused across frames. The estimate is a percentile of that histogram rather than the mean, so a
+ * lamp or a window in a dark room does not make the room look lit. Not thread-safe.
+ *
+ * @author nathaniel
+ */
+public final class BrightnessEstimator {
+
+    private static final int BINS = 256;
+
+    private final int sampleStep;
+    private final int[] histogram = new int[BINS];
+    private int samples;
+
+    /**
+     * @param sampleStep distance in pixels between samples in both directions, at least 1
+     */
+    public BrightnessEstimator(int sampleStep) {
+        if (sampleStep < 1) {
+            throw new IllegalArgumentException("Bad sample step " + sampleStep);
+        }
+        this.sampleStep = sampleStep;
+    }
+
+    /**
+     * Builds the histogram of a frame, replacing the previous one.
+     *
+     * @param luma   frame whose first {@code width * height} bytes are the Y plane, e.g. NV21 or I420
+     * @param width  frame width
+     * @param height frame height
+     */
+    public void sample(byte[] luma, int width, int height) {
+        int[] histogram = this.histogram;
+        Arrays.fill(histogram, 0);
+        int count = 0;
+        // Offset the grid by half a step so the frame border is not over-weighted
+        int start = sampleStep / 2;
+        for (int y = start; y < height; y += sampleStep) {
+            int row = y * width;
+            for (int x = start; x < width; x += sampleStep) {
+                histogram[luma[row + x] & 0xFF]++;
+                count++;
+            }
+        }
+        samples = count;
+    }
+
+    /**
+     * @param fraction 0 to 1, e.g. 0.5 for the median
+     * @return the luma value below which {@code fraction} of the samples of the last frame lie
+     */
+    public int percentile(float fraction) {
+        if (samples == 0) {
+            return 0;
+        }
+        int target = Math.max(1, (int) Math.ceil(samples * fraction));
+        int seen = 0;
+        for (int value = 0; value < BINS; value++) {
+            seen += histogram[value];
+            if (seen >= target) {
+                return value;
+            }
+        }
+        return BINS - 1;
+    }
+
+    /**
+     * @return mean luma of the samples of the last frame
+     */
+    public int mean() {
+        if (samples == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int value = 0; value < BINS; value++) {
+            sum += (long) value * histogram[value];
+        }
+        return (int) (sum / samples);
+    }
+
+    /**
+     * @return number of samples in the last histogram
+     */
+    public int getSampleCount() {
+        return samples;
+    }
+}
@@ -0,0 +1,400 @@
+package com.nathaniel.recorder.frame;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Converts NV21 camera frames to I420, NV12 or ARGB_8888, optionally rotating, mirroring and downscaling
+ * in the same pass.
+ * <p>
+ * Rotation, mirroring and scaling are folded into per-row and per-column source offset tables that are
+ * built once per configuration, so every kernel is a table lookup per output sample and no kernel
+ * allocates. Output buffers are owned by the caller and reused across frames. For camera frames use
+ * {@code setRotation(camera.getOrientation())} to get an upright picture and {@code setMirror(true)} for
+ * the front camera to match what the preview shows. Downscaling uses nearest-neighbour sampling at pixel
+ * centres.
+ * <p>
+ * The {@code convert} overloads taking a {@link ForkJoinPool} split the output rows into bands and run
+ * them in parallel; they need {@code java.util.concurrent.ForkJoinPool}, i.e. Android 5.0 or any JVM.
+ * An instance is not thread-safe: use one converter per producing thread.
+ *
+ * @author nathaniel
+ */
+public final class FrameConverter {
+
+    /**
+     * Output layouts.
+     */
+    public enum Format {
+        /**
+         * Y plane, then U plane, then V plane, chroma subsampled 2x2.
+         */
+        I420,
+        /**
+         * Y plane, then interleaved U/V, chroma subsampled 2x2.
+         */
+        NV12,
+        /**
+         * One {@code int} per pixel, {@code 0xAARRGGBB} as used by {@code Bitmap#setPixels}.
+         */
+        ARGB_8888
+    }
+
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final Format format;
+    private int rotation;
+    private boolean mirror;
+    private int outputWidth;
+    private int outputHeight;
+    private boolean scaled;
+    /**
+     * Offsets of output row {@code y} / column {@code x} into the NV21 luma plane; the source index of an
+     * output pixel is {@code lumaRows[y] + lumaColumns[x]} whatever the rotation.
+     */
+    private int[] lumaRows;
+    private int[] lumaColumns;
+    /**
+     * Same for the interleaved V/U plane, indexed by luma output coordinates, pointing at the V byte.
+     */
+    private int[] chromaRows;
+    private int[] chromaColumns;
+    private boolean dirty = true;
+    private ParallelRows parallelRows;
+
+    /**
+     * @param sourceWidth  width of the NV21 input, even
+     * @param sourceHeight height of the NV21 input, even
+     * @param format       output layout
+     */
+    public FrameConverter(int sourceWidth, int sourceHeight, Format format) {
+        if (sourceWidth <= 0 || sourceHeight <= 0 || (sourceWidth & 1) != 0 || (sourceHeight & 1) != 0) {
+            throw new IllegalArgumentException("Bad source size " + sourceWidth + "x" + sourceHeight);
+        }
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.format = format;
+        this.outputWidth = sourceWidth;
+        this.outputHeight = sourceHeight;
+    }
+
+    /**
+     * Rotates the picture clockwise. Resets the output size to the rotated source size.
+     *
+     * @param degrees 0, 90, 180 or 270
+     */
+    public FrameConverter setRotation(int degrees) {
+        int normalized = ((degrees % 360) + 360) % 360;
+        if (normalized % 90 != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90: " + degrees);
+        }
+        rotation = normalized;
+        boolean swap = rotation == 90 || rotation == 270;
+        outputWidth = swap ? sourceHeight : sourceWidth;
+        outputHeight = swap ? sourceWidth : sourceHeight;
+        scaled = false;
+        dirty = true;
+        return this;
+    }
+
+    /**
+     * Flips the picture horizontally after rotating it.
+     */
+    public FrameConverter setMirror(boolean mirror) {
+        this.mirror = mirror;
+        dirty = true;
+        return this;
+    }
+
+    /**
+     * Downscales to the given size, in output (rotated) orientation. Call after {@link #setRotation}.
+     *
+     * @param width  even, at most the rotated source width
+     * @param height even, at most the rotated source height
+     */
+    public FrameConverter setOutputSize(int width, int height) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int maxWidth = swap ? sourceHeight : sourceWidth;
+        int maxHeight = swap ? sourceWidth : sourceHeight;
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0 || width > maxWidth
+                || height > maxHeight) {
+            throw new IllegalArgumentException("Bad output size " + width + "x" + height + ", source is "
+                    + maxWidth + "x" + maxHeight + " after rotation");
+        }
+        outputWidth = width;
+        outputHeight = height;
+        scaled = width != maxWidth || height != maxHeight;
+        dirty = true;
+        return this;
+    }
+
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return required output length: bytes for I420/NV12, ints for ARGB_8888
+     */
+    public int getOutputLength() {
+        int pixels = outputWidth * outputHeight;
+        return format == Format.ARGB_8888 ? pixels : pixels * 3 / 2;
+    }
+
+    /**
+     * @return required input length in bytes
+     */
+    public int getInputLength() {
+        return sourceWidth * sourceHeight * 3 / 2;
+    }
+
+    /**
+     * Converts one frame to I420 or NV12 on the calling thread.
+     */
+    public void convert(byte[] nv21, byte[] output) {
+        checkBuffers(nv21, output.length, false);
+        convertRows(nv21, output, null, 0, outputHeight);
+    }
+
+    /**
+     * Converts one frame to ARGB_8888 on the calling thread.
+     */
+    public void convert(byte[] nv21, int[] output) {
+        checkBuffers(nv21, output.length, true);
+        convertRows(nv21, null, output, 0, outputHeight);
+    }
+
+    /**
+     * Converts one frame to I420 or NV12, splitting the rows across {@code pool}. Blocks until done.
+     */
+    public void convert(byte[] nv21, byte[] output, ForkJoinPool pool) {
+        checkBuffers(nv21, output.length, false);
+        parallelRows(pool).invoke(pool, nv21, output, null);
+    }
+
+    /**
+     * Converts one frame to ARGB_8888, splitting the rows across {@code pool}. Blocks until done.
+     */
+    public void convert(byte[] nv21, int[] output, ForkJoinPool pool) {
+        checkBuffers(nv21, output.length, true);
+        parallelRows(pool).invoke(pool, nv21, null, output);
+    }
+
+    private ParallelRows parallelRows(ForkJoinPool pool) {
+        if (parallelRows == null || parallelRows.getParallelism() != pool.getParallelism()
+                || parallelRows.getRows() != outputHeight) {
+            parallelRows = new ParallelRows(this, pool.getParallelism());
+        }
+        return parallelRows;
+    }
+
+    private void checkBuffers(byte[] nv21, int outputLength, boolean argb) {
+        if ((format == Format.ARGB_8888) != argb) {
+            throw new IllegalArgumentException("Output buffer type does not match " + format);
+        }
+        if (nv21.length < getInputLength()) {
+            throw new IllegalArgumentException("Input is " + nv21.length + " bytes, " + getInputLength() + " needed");
+        }
+        if (outputLength < getOutputLength()) {
+            throw new IllegalArgumentException("Output is " + outputLength + " long, " + getOutputLength() + " needed");
+        }
+        if (dirty) {
+            buildTables();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Converts output rows {@code [fromRow, toRow)}; {@code fromRow} must be even. Chroma rows belonging to
+     * those luma rows are converted as well, so bands can run concurrently.
+     */
+    void convertRows(byte[] nv21, byte[] bytes, int[] argb, int fromRow, int toRow) {
+        if (format == Format.ARGB_8888) {
+            convertArgb(nv21, argb, fromRow, toRow);
+            return;
+        }
+        boolean identity = rotation == 0 && !mirror && !scaled;
+        if (identity) {
+            System.arraycopy(nv21, fromRow * outputWidth, bytes, fromRow * outputWidth, (toRow - fromRow) * outputWidth);
+        } else {
+            convertLuma(nv21, bytes, fromRow, toRow);
+        }
+        if (format == Format.I420) {
+            convertChromaPlanar(nv21, bytes, fromRow / 2, (toRow + 1) / 2, identity);
+        } else {
+            convertChromaSemiPlanar(nv21, bytes, fromRow / 2, (toRow + 1) / 2, identity);
+        }
+    }
+
+    int getOutputRows() {
+        return outputHeight;
+    }
+
+    private void convertLuma(byte[] nv21, byte[] output, int fromRow, int toRow) {
+        int width = outputWidth;
+        int[] columns = lumaColumns;
+        for (int y = fromRow; y < toRow; y++) {
+            int base = lumaRows[y];
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                output[out + x] = nv21[base + columns[x]];
+            }
+        }
+    }
+
+    private void convertChromaPlanar(byte[] nv21, byte[] output, int fromRow, int toRow, boolean identity) {
+        int chromaWidth = outputWidth / 2;
+        int uPlane = outputWidth * outputHeight;
+        int vPlane = uPlane + uPlane / 4;
+        for (int y = fromRow; y < toRow; y++) {
+            int out = y * chromaWidth;
+            if (identity) {
+                int in = sourceWidth * sourceHeight + y * sourceWidth;
+                for (int x = 0; x < chromaWidth; x++) {
+                    output[vPlane + out + x] = nv21[in + x * 2];
+                    output[uPlane + out + x] = nv21[in + x * 2 + 1];
+                }
+                continue;
+            }
+            int base = chromaRows[y * 2];
+            for (int x = 0; x < chromaWidth; x++) {
+                int in = base + chromaColumns[x * 2];
+                output[vPlane + out + x] = nv21[in];
+                output[uPlane + out + x] = nv21[in + 1];
+            }
+        }
+    }
+
+    private void convertChromaSemiPlanar(byte[] nv21, byte[] output, int fromRow, int toRow, boolean identity) {
+        int chromaWidth = outputWidth / 2;
+        int uvPlane = outputWidth * outputHeight;
+        for (int y = fromRow; y < toRow; y++) {
+            int out = uvPlane + y * outputWidth;
+            if (identity) {
+                int in = sourceWidth * sourceHeight + y * sourceWidth;
+                for (int x = 0; x < outputWidth; x += 2) {
+                    output[out + x] = nv21[in + x + 1];
+                    output[out + x + 1] = nv21[in + x];
+                }
+                continue;
+            }
+            int base = chromaRows[y * 2];
+            for (int x = 0; x < chromaWidth; x++) {
+                int in = base + chromaColumns[x * 2];
+                output[out + x * 2] = nv21[in + 1];
+                output[out + x * 2 + 1] = nv21[in];
+            }
+        }
+    }
+
+    /**
+     * BT.601 limited range to full range RGB, 10-bit fixed point.
+     */
+    private void convertArgb(byte[] nv21, int[] output, int fromRow, int toRow) {
+        int width = outputWidth;
+        int[] lumaColumns = this.lumaColumns;
+        int[] chromaColumns = this.chromaColumns;
+        for (int y = fromRow; y < toRow; y++) {
+            int lumaBase = lumaRows[y];
+            int chromaBase = chromaRows[y];
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                int luma = (nv21[lumaBase + lumaColumns[x]] & 0xFF) - 16;
+                int chroma = chromaBase + chromaColumns[x];
+                int v = (nv21[chroma] & 0xFF) - 128;
+                int u = (nv21[chroma + 1] & 0xFF) - 128;
+                int scaledLuma = 1192 * (luma < 0 ? 0 : luma);
+                int r = scaledLuma + 1634 * v;
+                int g = scaledLuma - 833 * v - 400 * u;
+                int b = scaledLuma + 2066 * u;
+                r = r < 0 ? 0 : (r > 261120 ? 255 : r >> 10);
+                g = g < 0 ? 0 : (g > 261120 ? 255 : g >> 10);
+                b = b < 0 ? 0 : (b > 261120 ? 255 : b >> 10);
+                output[out + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private void buildTables() {
+        lumaRows = ensure(lumaRows, outputHeight);
+        chromaRows = ensure(chromaRows, outputHeight);
+        lumaColumns = ensure(lumaColumns, outputWidth);
+        chromaColumns = ensure(chromaColumns, outputWidth);
+        boolean swap = rotation == 90 || rotation == 270;
+        int rotatedWidth = swap ? sourceHeight : sourceWidth;
+        int rotatedHeight = swap ? sourceWidth : sourceHeight;
+        int chromaPlane = sourceWidth * sourceHeight;
+        for (int y = 0; y < outputHeight; y++) {
+            int rotatedY = sample(y, outputHeight, rotatedHeight);
+            // Each output axis maps to exactly one source axis, so a row contributes either a source
+            // column or a source row and the column table provides the other one
+            int sourceX;
+            int sourceY;
+            switch (rotation) {
+                case 90:
+                    sourceX = rotatedY;
+                    sourceY = 0;
+                    break;
+                case 180:
+                    sourceX = 0;
+                    sourceY = sourceHeight - 1 - rotatedY;
+                    break;
+                case 270:
+                    sourceX = sourceWidth - 1 - rotatedY;
+                    sourceY = 0;
+                    break;
+                default:
+                    sourceX = 0;
+                    sourceY = rotatedY;
+                    break;
+            }
+            lumaRows[y] = sourceY * sourceWidth + sourceX;
+            chromaRows[y] = chromaPlane + (sourceY / 2) * sourceWidth + (sourceX / 2) * 2;
+        }
+        for (int x = 0; x < outputWidth; x++) {
+            int rotatedX = sample(x, outputWidth, rotatedWidth);
+            if (mirror) {
+                rotatedX = rotatedWidth - 1 - rotatedX;
+            }
+            int sourceX;
+            int sourceY;
+            switch (rotation) {
+                case 90:
+                    sourceX = 0;
+                    sourceY = sourceHeight - 1 - rotatedX;
+                    break;
+                case 180:
+                    sourceX = sourceWidth - 1 - rotatedX;
+                    sourceY = 0;
+                    break;
+                case 270:
+                    sourceX = 0;
+                    sourceY = rotatedX;
+                    break;
+                default:
+                    sourceX = rotatedX;
+                    sourceY = 0;
+                    break;
+            }
+            lumaColumns[x] = sourceY * sourceWidth + sourceX;
+            chromaColumns[x] = (sourceY / 2) * sourceWidth + (sourceX / 2) * 2;
+        }
+    }
+
+    /**
+     * @return the source coordinate whose pixel centre is nearest to the centre of output pixel {@code i}
+     */
+    private static int sample(int i, int outputSize, int sourceSize) {
+        return (int) (((2L * i + 1) * sourceSize) / (2L * outputSize));
+    }
+
+    private static int[] ensure(int[] table, int length) {
+        return table != null && table.length == length ? table : new int[length];
+    }
+}
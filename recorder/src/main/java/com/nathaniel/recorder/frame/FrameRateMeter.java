@@ -0,0 +1,104 @@
+package com.nathaniel.recorder.frame;
+
+/**
+ * Measures the frame rate actually delivered by the camera from frame timestamps.
+ * <p>
+ * The rate is taken over a sliding window of the last {@code window} frames, so it follows changes such as
+ * auto exposure stretching the frame time in low light within about a second. The lowest windowed rate and
+ * the longest single interval since {@link #reset()} are kept as well. {@link #onFrame} must be called from
+ * one thread; the getters may be called from any thread.
+ *
+ * @author nathaniel
+ */
+public final class FrameRateMeter {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final long[] timestamps;
+    private int head;
+    private int count;
+    private volatile long frames;
+    private volatile float framesPerSecond;
+    private volatile float minFramesPerSecond;
+    private volatile long maxIntervalNanos;
+
+    /**
+     * @param window number of frames the rate is measured over, at least 2
+     */
+    public FrameRateMeter(int window) {
+        if (window < 2) {
+            throw new IllegalArgumentException("Bad window " + window);
+        }
+        timestamps = new long[window];
+    }
+
+    /**
+     * @param timestampNanos monotonic time of the frame in nanoseconds
+     */
+    public void onFrame(long timestampNanos) {
+        long[] timestamps = this.timestamps;
+        int window = timestamps.length;
+        if (count > 0) {
+            long last = timestamps[(head + count - 1) % window];
+            long interval = timestampNanos - last;
+            if (interval <= 0) {
+                // Same or out of order timestamp, nothing to measure
+                return;
+            }
+            if (interval > maxIntervalNanos) {
+                maxIntervalNanos = interval;
+            }
+        }
+        if (count == window) {
+            head = (head + 1) % window;
+        } else {
+            count++;
+        }
+        timestamps[(head + count - 1) % window] = timestampNanos;
+        frames++;
+        if (count == window) {
+            float rate = (float) ((window - 1) * NANOS_PER_SECOND / (timestampNanos - timestamps[head]));
+            framesPerSecond = rate;
+            if (minFramesPerSecond == 0 || rate < minFramesPerSecond) {
+                minFramesPerSecond = rate;
+            }
+        }
+    }
+
+    public void reset() {
+        head = 0;
+        count = 0;
+        frames = 0;
+        framesPerSecond = 0;
+        minFramesPerSecond = 0;
+        maxIntervalNanos = 0;
+    }
+
+    /**
+     * @return frames per second over the last window, 0 until the window has filled
+     */
+    public float getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    /**
+     * @return lowest windowed rate since the last reset, 0 until the window has filled
+     */
+    public float getMinFramesPerSecond() {
+        return minFramesPerSecond;
+    }
+
+    /**
+     * @return longest gap between two frames since the last reset, in nanoseconds
+     */
+    public long getMaxIntervalNanos() {
+        return maxIntervalNanos;
+    }
+
+    /**
+     * @return frames seen since the last reset
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+}
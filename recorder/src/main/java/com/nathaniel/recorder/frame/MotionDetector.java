@@ -0,0 +1,212 @@
+package com.nathaniel.recorder.frame;
+
+import java.util.Arrays;
+
+/**
+ * Detects scene motion on the luma plane of camera frames.
+ * <p>
+ * Only every {@code sampleStep}-th pixel of every {@code sampleStep}-th row is read. Samples are grouped
+ * into square blocks of {@code blockSize x blockSize} samples; a block has changed when the sum of absolute
+ * differences (SAD) between the frame and a running-average background exceeds {@code pixelThreshold}
+ * per sample. {@link #process} returns the fraction of changed blocks. The background follows the scene
+ * with an exponential moving average in 8.8 fixed point, so lighting drifts and parked objects fade
+ * into it. State arrays are allocated on the first frame and when the frame size changes, never in
+ * steady state.
+ * <p>
+ * Not thread-safe; feed it from a single thread.
+ *
+ * @author nathaniel
+ */
+public final class MotionDetector {
+
+    private static final int FIXED_SHIFT = 8;
+
+    private final int sampleStep;
+    private final int blockSize;
+    private int pixelThreshold = 12;
+    private int learningShift = 5;
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+    private int blockColumns;
+    private int blockRows;
+    /**
+     * Background luma per sample, 8.8 fixed point.
+     */
+    private int[] background;
+    /**
+     * SAD per block of the last frame.
+     */
+    private int[] blockSad;
+    private boolean initialized;
+    private long frames;
+    private long lastNanos;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * @param sampleStep distance in pixels between samples in both directions, at least 1
+     * @param blockSize  block edge in samples, at least 1
+     */
+    public MotionDetector(int sampleStep, int blockSize) {
+        if (sampleStep < 1 || blockSize < 1) {
+            throw new IllegalArgumentException("Bad grid " + sampleStep + "/" + blockSize);
+        }
+        this.sampleStep = sampleStep;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param threshold mean absolute luma difference per sample above which a block counts as changed
+     */
+    public MotionDetector setPixelThreshold(int threshold) {
+        this.pixelThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param shift the background moves {@code 1 / 2^shift} of the way to each new frame; larger values
+     *              remember the background longer
+     */
+    public MotionDetector setLearningShift(int shift) {
+        if (shift < 0 || shift > FIXED_SHIFT) {
+            throw new IllegalArgumentException("Learning shift must be within 0.." + FIXED_SHIFT);
+        }
+        this.learningShift = shift;
+        return this;
+    }
+
+    public int getSampleStep() {
+        return sampleStep;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getPixelThreshold() {
+        return pixelThreshold;
+    }
+
+    public int getLearningShift() {
+        return learningShift;
+    }
+
+    /**
+     * Forgets the background; the next frame becomes the new one.
+     */
+    public void reset() {
+        initialized = false;
+    }
+
+    /**
+     * Compares a frame with the background and updates the background.
+     *
+     * @param luma   frame whose first {@code width * height} bytes are the Y plane, e.g. NV21 or I420
+     * @param width  frame width
+     * @param height frame height
+     * @return fraction of changed blocks, 0 for the first frame
+     */
+    public float process(byte[] luma, int width, int height) {
+        long begin = System.nanoTime();
+        if (width != this.width || height != this.height) {
+            resize(width, height);
+        }
+        float level;
+        if (initialized) {
+            level = compare(luma);
+        } else {
+            seed(luma);
+            initialized = true;
+            level = 0;
+        }
+        lastNanos = System.nanoTime() - begin;
+        totalNanos += lastNanos;
+        maxNanos = Math.max(maxNanos, lastNanos);
+        frames++;
+        return level;
+    }
+
+    private void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + sampleStep - 1) / sampleStep;
+        rows = (height + sampleStep - 1) / sampleStep;
+        blockColumns = (columns + blockSize - 1) / blockSize;
+        blockRows = (rows + blockSize - 1) / blockSize;
+        background = new int[columns * rows];
+        blockSad = new int[blockColumns * blockRows];
+        initialized = false;
+    }
+
+    private void seed(byte[] luma) {
+        int index = 0;
+        for (int y = 0; y < height; y += sampleStep) {
+            int row = y * width;
+            for (int x = 0; x < width; x += sampleStep) {
+                background[index++] = (luma[row + x] & 0xFF) << FIXED_SHIFT;
+            }
+        }
+    }
+
+    private float compare(byte[] luma) {
+        int[] background = this.background;
+        int[] blockSad = this.blockSad;
+        Arrays.fill(blockSad, 0);
+        int shift = learningShift;
+        int index = 0;
+        for (int sampleRow = 0; sampleRow < rows; sampleRow++) {
+            int row = sampleRow * sampleStep * width;
+            int blockRow = (sampleRow / blockSize) * blockColumns;
+            for (int sampleColumn = 0; sampleColumn < columns; sampleColumn++) {
+                int current = (luma[row + sampleColumn * sampleStep] & 0xFF) << FIXED_SHIFT;
+                int reference = background[index];
+                int difference = current - reference;
+                blockSad[blockRow + sampleColumn / blockSize] += difference < 0 ? -difference : difference;
+                background[index++] = reference + (difference >> shift);
+            }
+        }
+        int changed = 0;
+        int fullBlockThreshold = (pixelThreshold << FIXED_SHIFT) * blockSize * blockSize;
+        for (int blockRow = 0; blockRow < blockRows; blockRow++) {
+            // Edge blocks may hold fewer samples
+            int height = Math.min(blockSize, rows - blockRow * blockSize);
+            for (int blockColumn = 0; blockColumn < blockColumns; blockColumn++) {
+                int width = Math.min(blockSize, columns - blockColumn * blockSize);
+                int threshold = width == blockSize && height == blockSize
+                        ? fullBlockThreshold
+                        : (pixelThreshold << FIXED_SHIFT) * width * height;
+                if (blockSad[blockRow * blockColumns + blockColumn] > threshold) {
+                    changed++;
+                }
+            }
+        }
+        return changed / (float) blockSad.length;
+    }
+
+    /**
+     * @return processing time of the last frame in nanoseconds
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * @return mean processing time per frame in nanoseconds
+     */
+    public long getAverageNanos() {
+        return frames == 0 ? 0 : totalNanos / frames;
+    }
+
+    /**
+     * @return worst processing time per frame in nanoseconds
+     */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+}
@@ -0,0 +1,97 @@
+package com.nathaniel.recorder.frame;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs {@link FrameConverter#convertRows} over preallocated row bands on a {@link ForkJoinPool}. The task
+ * objects are reinitialized and reused for every frame, so a conversion does not allocate. Kept apart from
+ * {@link FrameConverter} so that the sequential path never loads the fork/join classes.
+ *
+ * @author nathaniel
+ */
+final class ParallelRows extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Bands per worker, more than one so that a worker that is descheduled does not hold up the frame.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+    /**
+     * Rows below which splitting costs more than it saves.
+     */
+    private static final int MIN_BAND_ROWS = 16;
+
+    private final FrameConverter converter;
+    private final int parallelism;
+    private final Band[] bands;
+    private byte[] input;
+    private byte[] bytes;
+    private int[] argb;
+
+    ParallelRows(FrameConverter converter, int parallelism) {
+        this.converter = converter;
+        this.parallelism = parallelism;
+        int rows = converter.getOutputRows();
+        int count = Math.max(1, Math.min(parallelism * BANDS_PER_THREAD, rows / MIN_BAND_ROWS));
+        // Bands start on even rows so that each one owns whole chroma rows
+        int bandRows = ((rows + count - 1) / count + 1) & ~1;
+        count = (rows + bandRows - 1) / bandRows;
+        bands = new Band[count];
+        for (int i = 0; i < count; i++) {
+            bands[i] = new Band(i * bandRows, Math.min(rows, (i + 1) * bandRows));
+        }
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return output rows the bands were laid out for
+     */
+    int getRows() {
+        return bands[bands.length - 1].toRow;
+    }
+
+    void invoke(ForkJoinPool pool, byte[] input, byte[] bytes, int[] argb) {
+        this.input = input;
+        this.bytes = bytes;
+        this.argb = argb;
+        reinitialize();
+        try {
+            pool.invoke(this);
+        } finally {
+            this.input = null;
+            this.bytes = null;
+            this.argb = null;
+        }
+    }
+
+    @Override
+    protected void compute() {
+        for (Band band : bands) {
+            band.reinitialize();
+        }
+        ForkJoinTask.invokeAll(bands);
+    }
+
+    private final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int fromRow;
+        private final int toRow;
+
+        Band(int fromRow, int toRow) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            converter.convertRows(input, bytes, argb, fromRow, toRow);
+        }
+    }
+}
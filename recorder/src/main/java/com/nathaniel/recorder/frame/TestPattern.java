@@ -0,0 +1,182 @@
+package com.nathaniel.recorder.frame;
+
+import java.util.Arrays;
+
+/**
+ * Deterministic synthetic NV21 frames, the picture source of a fake camera.
+ * <p>
+ * A frame depends only on the constructor arguments and the frame index, so two runs with the same seed
+ * produce the same bytes and a test can compare analyzer output or encoded sizes across runs. The patterns
+ * cover the cases the analyzers and the encoder care about:
+ * <ul>
+ * <li>{@link Type#MOVING_BOX}: a static luma gradient with a bright box bouncing across it, one period per
+ * round trip; a small, steady amount of motion.</li>
+ * <li>{@link Type#NOISE}: uniform random luma on grey chroma, new every frame; worst case for the encoder
+ * and full-frame motion.</li>
+ * <li>{@link Type#BRIGHTNESS_RAMP}: a flat frame whose luma goes from black to white and back once per
+ * period; drives brightness based logic such as the automatic torch.</li>
+ * </ul>
+ * Rendering costs about one copy of the frame; the gradient is computed once. Not thread-safe, use one
+ * instance per producing thread.
+ *
+ * @author nathaniel
+ */
+public final class TestPattern {
+
+    /**
+     * Picture content, see the class documentation.
+     */
+    public enum Type {
+        MOVING_BOX,
+        NOISE,
+        BRIGHTNESS_RAMP
+    }
+
+    /**
+     * Frames per period when none is given, three seconds at 30 fps
+     */
+    public static final int DEFAULT_PERIOD = 90;
+    /**
+     * Video range luma limits
+     */
+    private static final int BLACK = 16;
+    private static final int WHITE = 235;
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+    private static final byte BOX_V = (byte) 200;
+    private static final byte BOX_U = (byte) 90;
+
+    private final Type type;
+    private final int width;
+    private final int height;
+    private final long seed;
+    private final int period;
+    private byte[] background;
+
+    /**
+     * @param type   picture content
+     * @param width  frame width, even
+     * @param height frame height, even
+     * @param seed   seed of {@link Type#NOISE}
+     * @param period frames per box round trip or brightness cycle
+     */
+    public TestPattern(Type type, int width, int height, long seed, int period) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Bad frame size " + width + "x" + height);
+        }
+        if (period < 2) {
+            throw new IllegalArgumentException("period must be at least 2 frames");
+        }
+        this.type = type;
+        this.width = width;
+        this.height = height;
+        this.seed = seed;
+        this.period = period;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return bytes of one NV21 frame
+     */
+    public int getFrameLength() {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * @param nv21       output, at least {@link #getFrameLength()} bytes
+     * @param frameIndex index of the frame from the start of the stream
+     */
+    public void render(byte[] nv21, long frameIndex) {
+        if (nv21.length < getFrameLength()) {
+            throw new IllegalArgumentException("Buffer of " + nv21.length + " bytes, need " + getFrameLength());
+        }
+        switch (type) {
+            case MOVING_BOX:
+                renderMovingBox(nv21, frameIndex);
+                break;
+            case NOISE:
+                renderNoise(nv21, frameIndex);
+                break;
+            default:
+                renderRamp(nv21, frameIndex);
+                break;
+        }
+    }
+
+    private void renderMovingBox(byte[] nv21, long frameIndex) {
+        if (background == null) {
+            background = new byte[getFrameLength()];
+            int span = width + height - 2;
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    background[row + x] = (byte) (BLACK + (WHITE - BLACK) * (x + y) / span);
+                }
+            }
+            Arrays.fill(background, width * height, background.length, NEUTRAL_CHROMA);
+        }
+        System.arraycopy(background, 0, nv21, 0, background.length);
+        // Box on the chroma grid, so its colour does not bleed into the gradient
+        int size = Math.max(2, Math.min(width, height) / 4) & ~1;
+        int left = triangle(frameIndex, width - size) & ~1;
+        int top = triangle(frameIndex + period / 4, height - size) & ~1;
+        for (int y = top; y < top + size; y++) {
+            Arrays.fill(nv21, y * width + left, y * width + left + size, (byte) WHITE);
+        }
+        int chroma = width * height;
+        for (int y = top / 2; y < (top + size) / 2; y++) {
+            int row = chroma + y * width;
+            for (int x = left; x < left + size; x += 2) {
+                nv21[row + x] = BOX_V;
+                nv21[row + x + 1] = BOX_U;
+            }
+        }
+    }
+
+    private void renderNoise(byte[] nv21, long frameIndex) {
+        // xorshift64, seeded per frame so any frame can be rendered on its own
+        long state = (seed ^ 0x9E3779B97F4A7C15L) * 31 + frameIndex;
+        if (state == 0) {
+            state = 1;
+        }
+        int luma = width * height;
+        int i = 0;
+        while (i < luma) {
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            long bits = state;
+            for (int b = 0; b < 8 && i < luma; b++) {
+                nv21[i++] = (byte) bits;
+                bits >>>= 8;
+            }
+        }
+        Arrays.fill(nv21, luma, getFrameLength(), NEUTRAL_CHROMA);
+    }
+
+    private void renderRamp(byte[] nv21, long frameIndex) {
+        int luma = width * height;
+        Arrays.fill(nv21, 0, luma, (byte) (BLACK + triangle(frameIndex, WHITE - BLACK)));
+        Arrays.fill(nv21, luma, getFrameLength(), NEUTRAL_CHROMA);
+    }
+
+    /**
+     * @return position in {@code [0, range]} going up during the first half of a period and down in the second
+     */
+    private int triangle(long frameIndex, int range) {
+        int phase = (int) (frameIndex % period);
+        int half = period / 2;
+        int step = phase <= half ? phase : period - phase;
+        return (int) ((long) range * step / half);
+    }
+}
@@ -0,0 +1,91 @@
+package com.nathaniel.recorder.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for H.264 elementary streams in Annex B form, i.e. NAL units separated by
+ * {@code 00 00 01} or {@code 00 00 00 01} start codes, which is what encoders hand out.
+ *
+ * @author nathaniel
+ */
+public final class AvcUtils {
+
+    public static final int NAL_TYPE_NON_IDR = 1;
+    public static final int NAL_TYPE_IDR = 5;
+    public static final int NAL_TYPE_SEI = 6;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+    public static final int NAL_TYPE_AUD = 9;
+
+    private AvcUtils() {
+    }
+
+    /**
+     * Finds the next start code in {@code [from, to)}.
+     *
+     * @return absolute index of the first byte of the start code, or -1
+     */
+    public static int findStartCode(ByteBuffer data, int from, int to) {
+        for (int i = from; i + 2 < to; i++) {
+            if ((data.get(i + 2) & 0xFF) > 1) {
+                // No start code can begin at i, i + 1 or i + 2
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i > from && data.get(i - 1) == 0 ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits the remaining bytes of {@code data} into NAL units without their start codes. Data that does
+     * not start with a start code is returned as a single unit. The returned buffers share content with
+     * {@code data}, whose position is not changed.
+     */
+    public static List<ByteBuffer> splitAnnexB(ByteBuffer data) {
+        List<ByteBuffer> units = new ArrayList<>();
+        int end = data.limit();
+        int start = findStartCode(data, data.position(), end);
+        if (start != data.position()) {
+            units.add(data.slice());
+            return units;
+        }
+        while (start >= 0) {
+            int payload = start + (data.get(start + 2) == 1 ? 3 : 4);
+            int next = findStartCode(data, payload, end);
+            int unitEnd = next < 0 ? end : next;
+            if (unitEnd > payload) {
+                ByteBuffer unit = data.duplicate();
+                unit.limit(unitEnd).position(payload);
+                units.add(unit.slice());
+            }
+            start = next;
+        }
+        return units;
+    }
+
+    /**
+     * @return nal_unit_type of a NAL unit without start code
+     */
+    public static int nalType(ByteBuffer unit) {
+        return unit.get(unit.position()) & 0x1F;
+    }
+
+    /**
+     * Finds the first NAL unit of the given type in Annex B data, such as the SPS in the codec config.
+     *
+     * @return the unit's bytes, or null if there is none
+     */
+    public static byte[] findUnit(ByteBuffer data, int type) {
+        for (ByteBuffer unit : splitAnnexB(data)) {
+            if (unit.hasRemaining() && nalType(unit) == type) {
+                byte[] bytes = new byte[unit.remaining()];
+                unit.get(bytes);
+                return bytes;
+            }
+        }
+        return null;
+    }
+}
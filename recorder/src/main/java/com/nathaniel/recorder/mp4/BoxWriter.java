@@ -0,0 +1,225 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered, forward-only writer of ISO BMFF boxes into a {@link FileChannel}. Box sizes are written as
+ * placeholders by {@link #begin} and patched in place by {@link #end}, so callers can stream box content
+ * without knowing its size up front.
+ *
+ * @author nathaniel
+ */
+public final class BoxWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_DEPTH = 16;
+    private static final long MAX_UINT32 = 0xFFFFFFFFL;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer patch = ByteBuffer.allocate(8);
+    private final long[] starts = new long[MAX_DEPTH];
+    private final boolean[] large = new boolean[MAX_DEPTH];
+    private long flushedPosition;
+    private int depth;
+
+    /**
+     * @param channel  output channel
+     * @param position absolute position the first byte is written to
+     */
+    public BoxWriter(FileChannel channel, long position) {
+        this.channel = channel;
+        this.flushedPosition = position;
+    }
+
+    /**
+     * Absolute position of the next byte written.
+     */
+    public long position() {
+        return flushedPosition + buffer.position();
+    }
+
+    /**
+     * Opens a box with a 32-bit size.
+     */
+    public void begin(int type) throws IOException {
+        push(false);
+        writeInt(0);
+        writeInt(type);
+    }
+
+    /**
+     * Opens a box with a 64-bit largesize, for boxes such as {@code mdat} that may exceed 4 GB.
+     */
+    public void beginLarge(int type) throws IOException {
+        push(true);
+        writeInt(1);
+        writeInt(type);
+        writeLong(0);
+    }
+
+    /**
+     * Opens a full box, i.e. a box starting with version and flags.
+     */
+    public void beginFull(int type, int version, int flags) throws IOException {
+        begin(type);
+        writeInt((version << 24) | (flags & 0xFFFFFF));
+    }
+
+    /**
+     * Closes the innermost open box and patches its size.
+     *
+     * @return size of the closed box
+     */
+    public long end() throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("No open box");
+        }
+        depth--;
+        long start = starts[depth];
+        long size = position() - start;
+        if (large[depth]) {
+            patchLong(start + Mp4Box.HEADER_SIZE, size);
+        } else {
+            if (size > MAX_UINT32) {
+                throw new IOException("Box at " + start + " too large for a 32-bit size: " + size);
+            }
+            patchInt(start, (int) size);
+        }
+        return size;
+    }
+
+    private void push(boolean largeBox) {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("Boxes nested too deep");
+        }
+        starts[depth] = position();
+        large[depth] = largeBox;
+        depth++;
+    }
+
+    public void writeByte(int value) throws IOException {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    public void writeShort(int value) throws IOException {
+        ensure(2);
+        buffer.putShort((short) value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    /**
+     * Writes the low 32 bits of an unsigned value.
+     */
+    public void writeUInt(long value) throws IOException {
+        writeInt((int) value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    public void writeZeros(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            writeByte(0);
+        }
+    }
+
+    public void write(byte[] bytes) throws IOException {
+        write(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Writes the remaining bytes of {@code source}, advancing its position.
+     */
+    public void write(ByteBuffer source) throws IOException {
+        if (source.remaining() <= buffer.remaining()) {
+            buffer.put(source);
+            return;
+        }
+        flush();
+        while (source.hasRemaining()) {
+            flushedPosition += channel.write(source, flushedPosition);
+        }
+    }
+
+    /**
+     * Copies {@code count} bytes of {@code source} starting at {@code position} with
+     * {@link FileChannel#transferTo}, so the data does not pass through the Java heap.
+     */
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+        flush();
+        channel.position(flushedPosition);
+        long remaining = count;
+        while (remaining > 0) {
+            long transferred = source.transferTo(position, remaining, channel);
+            if (transferred <= 0) {
+                throw new IOException("Source ended " + remaining + " bytes early");
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+        flushedPosition += count;
+    }
+
+    /**
+     * Overwrites a 32-bit value that was already written.
+     */
+    public void patchInt(long position, int value) throws IOException {
+        long index = position - flushedPosition;
+        if (index >= 0) {
+            buffer.putInt((int) index, value);
+            return;
+        }
+        flush();
+        patch.clear();
+        patch.putInt(value).flip();
+        writeAt(patch, position);
+    }
+
+    /**
+     * Overwrites a 64-bit value that was already written.
+     */
+    public void patchLong(long position, long value) throws IOException {
+        long index = position - flushedPosition;
+        if (index >= 0) {
+            buffer.putLong((int) index, value);
+            return;
+        }
+        flush();
+        patch.clear();
+        patch.putLong(value).flip();
+        writeAt(patch, position);
+    }
+
+    private void writeAt(ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    private void ensure(int count) throws IOException {
+        if (buffer.remaining() < count) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes buffered bytes to the channel. Open boxes can still be closed afterwards.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushedPosition += channel.write(buffer, flushedPosition);
+        }
+        buffer.clear();
+    }
+}
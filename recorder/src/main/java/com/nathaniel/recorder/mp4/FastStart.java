@@ -0,0 +1,288 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Moves the {@code moov} box of an MP4 in front of its media data ("faststart"), so players can start
+ * progressive playback before the whole file has been downloaded.
+ * <p>
+ * The result is written to a sibling file and renamed over the original, so the path stays the same and
+ * a crash half way leaves the original intact. Media data is copied with {@link FileChannel#transferTo}
+ * and never passes through the Java heap; the {@code moov} is streamed box by box, only chunk offset
+ * tables are rewritten, shifted by the size of the relocated {@code moov}. 32-bit {@code stco} tables are
+ * widened to {@code co64} when a shifted offset no longer fits.
+ *
+ * @author nathaniel
+ */
+public final class FastStart {
+
+    private static final long MAX_UINT32 = 0xFFFFFFFFL;
+    private static final String TEMP_SUFFIX = ".faststart";
+
+    private FastStart() {
+    }
+
+    /**
+     * Outcome of {@link #process(File)}.
+     */
+    public static final class Result {
+        private final boolean moved;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        Result(boolean moved, long bytes, long elapsedNanos) {
+            this.moved = moved;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return false if the file already had its {@code moov} in front and was left alone
+         */
+        public boolean isMoved() {
+            return moved;
+        }
+
+        /**
+         * @return bytes written to the new file
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000L;
+        }
+
+        /**
+         * @return write throughput in MB/s, 0 if nothing was moved
+         */
+        public double getMegabytesPerSecond() {
+            if (!moved || elapsedNanos <= 0) {
+                return 0;
+            }
+            return bytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return moved
+                    ? String.format("moved %d bytes in %dms, %.1f MB/s", bytes, getElapsedMillis(), getMegabytesPerSecond())
+                    : "already faststart";
+        }
+    }
+
+    /**
+     * @return whether {@code moov} comes after the first {@code mdat}
+     */
+    public static boolean needsFastStart(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return locate(input.getChannel()) != null;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Relocates the {@code moov} of {@code file} in front of its media data. Needs free space for one more
+     * copy of the file while running.
+     *
+     * @throws IOException if the file is not a complete MP4 or there is not enough space; the original is
+     *                     left untouched in that case
+     */
+    public static Result process(File file) throws IOException {
+        long begin = System.nanoTime();
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        long written;
+        try {
+            FileChannel source = input.getChannel();
+            Mp4Box[] layout = locate(source);
+            if (layout == null) {
+                return new Result(false, 0, System.nanoTime() - begin);
+            }
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (directory != null && directory.getUsableSpace() < source.size()) {
+                throw new IOException("Not enough space to rewrite " + file + ": " + directory.getUsableSpace()
+                        + " bytes free, " + source.size() + " needed");
+            }
+            written = rewrite(source, layout[0], layout[1], temp);
+        } catch (IOException | RuntimeException e) {
+            if (temp.exists() && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+            throw e;
+        } finally {
+            input.close();
+        }
+        if (!temp.renameTo(file)) {
+            if (!temp.delete()) {
+                temp.deleteOnExit();
+            }
+            throw new IOException("Rename " + temp + " to " + file + " failed");
+        }
+        return new Result(true, written, System.nanoTime() - begin);
+    }
+
+    /**
+     * @return the first {@code mdat} and the {@code moov}, or null if the {@code moov} is already in front
+     */
+    private static Mp4Box[] locate(FileChannel channel) throws IOException {
+        long size = channel.size();
+        Mp4Box firstMdat = null;
+        Mp4Box moov = null;
+        for (Mp4Box box : Mp4Box.readTopLevel(channel)) {
+            if (box.getEnd() > size) {
+                throw new IOException("Truncated '" + Mp4Box.typeName(box.getType()) + "' at " + box.getOffset());
+            }
+            if (box.getType() == Mp4Box.MDAT && firstMdat == null) {
+                firstMdat = box;
+            } else if (box.getType() == Mp4Box.MOOV) {
+                moov = box;
+            }
+        }
+        if (moov == null) {
+            throw new IOException("No moov box");
+        }
+        if (firstMdat == null || moov.getOffset() < firstMdat.getOffset()) {
+            return null;
+        }
+        return new Mp4Box[]{firstMdat, moov};
+    }
+
+    private static long rewrite(FileChannel source, Mp4Box firstMdat, Mp4Box moov, File temp) throws IOException {
+        long insertAt = firstMdat.getOffset();
+        long maxOffset = 0;
+        long stcoEntries = 0;
+        TableReader reader = new TableReader();
+        for (Mp4Box trak : moov.children(source)) {
+            if (trak.getType() != Mp4Box.TRAK) {
+                continue;
+            }
+            Mp4Box stbl = trak.find(source, Mp4Box.MDIA, Mp4Box.MINF, Mp4Box.STBL);
+            Mp4Box offsets = stbl != null ? chunkOffsets(source, stbl) : null;
+            if (offsets == null) {
+                continue;
+            }
+            boolean co64 = offsets.getType() == Mp4Box.CO64;
+            long count = readCount(source, reader, offsets);
+            reader.reset(source, offsets.getPayloadOffset() + 8, count * (co64 ? 8 : 4));
+            for (long i = 0; i < count; i++) {
+                maxOffset = Math.max(maxOffset, co64 ? reader.readLong() : reader.readUInt());
+            }
+            if (!co64) {
+                stcoEntries += count;
+            }
+        }
+        long moovSize = moov.getSize();
+        boolean widen = new Shift(insertAt, moov, moovSize).apply(maxOffset) > MAX_UINT32;
+        if (widen) {
+            moovSize += stcoEntries * 4;
+        }
+        Shift shift = new Shift(insertAt, moov, moovSize);
+
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            BoxWriter writer = new BoxWriter(channel, 0);
+            writer.transferFrom(source, 0, insertAt);
+            copyBox(source, moov, writer, reader, shift, widen);
+            if (writer.position() - insertAt != moovSize) {
+                throw new IOException("moov rewritten to " + (writer.position() - insertAt) + " bytes, expected " + moovSize);
+            }
+            writer.transferFrom(source, insertAt, moov.getOffset() - insertAt);
+            writer.transferFrom(source, moov.getEnd(), source.size() - moov.getEnd());
+            writer.flush();
+            channel.force(true);
+            return writer.position();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Copies {@code box}, descending into the containers on the way to the chunk offset tables and copying
+     * everything else verbatim.
+     */
+    private static void copyBox(FileChannel source, Mp4Box box, BoxWriter writer, TableReader reader, Shift shift,
+                                boolean widen) throws IOException {
+        int type = box.getType();
+        if (type == Mp4Box.MOOV || type == Mp4Box.TRAK || type == Mp4Box.MDIA || type == Mp4Box.MINF
+                || type == Mp4Box.STBL) {
+            if (box.getHeaderSize() == Mp4Box.LARGE_HEADER_SIZE) {
+                writer.beginLarge(type);
+            } else {
+                writer.begin(type);
+            }
+            List<Mp4Box> children = box.children(source);
+            for (Mp4Box child : children) {
+                copyBox(source, child, writer, reader, shift, widen);
+            }
+            writer.end();
+        } else if (type == Mp4Box.STCO || type == Mp4Box.CO64) {
+            boolean co64 = type == Mp4Box.CO64;
+            boolean write64 = co64 || widen;
+            long count = readCount(source, reader, box);
+            writer.beginFull(write64 ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0);
+            writer.writeUInt(count);
+            reader.reset(source, box.getPayloadOffset() + 8, count * (co64 ? 8 : 4));
+            for (long i = 0; i < count; i++) {
+                long offset = shift.apply(co64 ? reader.readLong() : reader.readUInt());
+                if (write64) {
+                    writer.writeLong(offset);
+                } else {
+                    writer.writeUInt(offset);
+                }
+            }
+            writer.end();
+        } else {
+            writer.transferFrom(source, box.getOffset(), box.getSize());
+        }
+    }
+
+    private static Mp4Box chunkOffsets(FileChannel channel, Mp4Box stbl) throws IOException {
+        Mp4Box offsets = stbl.child(channel, Mp4Box.STCO);
+        return offsets != null ? offsets : stbl.child(channel, Mp4Box.CO64);
+    }
+
+    private static long readCount(FileChannel channel, TableReader reader, Mp4Box table) throws IOException {
+        return reader.reset(channel, table.getPayloadOffset() + 4, 4).readUInt();
+    }
+
+    /**
+     * Maps an offset in the original file to the rewritten one: data between the first {@code mdat} and the
+     * {@code moov} moves down by the new {@code moov} size, data after the old {@code moov} by the difference.
+     */
+    private static final class Shift {
+        private final long insertAt;
+        private final long moovStart;
+        private final long moovEnd;
+        private final long newMoovSize;
+
+        Shift(long insertAt, Mp4Box moov, long newMoovSize) {
+            this.insertAt = insertAt;
+            this.moovStart = moov.getOffset();
+            this.moovEnd = moov.getEnd();
+            this.newMoovSize = newMoovSize;
+        }
+
+        long apply(long offset) throws IOException {
+            if (offset < insertAt) {
+                return offset;
+            }
+            if (offset < moovStart) {
+                return offset + newMoovSize;
+            }
+            if (offset >= moovEnd) {
+                return offset + newMoovSize - (moovEnd - moovStart);
+            }
+            throw new IOException("Chunk offset " + offset + " points into the moov box");
+        }
+    }
+}
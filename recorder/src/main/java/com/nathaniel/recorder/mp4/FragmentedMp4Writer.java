@@ -0,0 +1,410 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a fragmented MP4: an {@code ftyp} and a {@code moov} without samples up front, then one
+ * {@code moof}+{@code mdat} pair per fragment. A fragment is cut at the first video sync sample after the
+ * fragment duration has elapsed and is forced to disk before the next one starts, so everything up to
+ * the last completed fragment survives a crash and can be read while recording continues.
+ * <p>
+ * Samples of the fragment in progress are buffered in memory, about fragment duration times bit rate.
+ * Tracks are added before {@link #start()}, like with {@code MediaMuxer}. Not thread safe.
+ *
+ * @author nathaniel
+ */
+public final class FragmentedMp4Writer {
+
+    private static final long MICROS_PER_SECOND = 1000000L;
+    private static final int INITIAL_SAMPLES = 64;
+    private static final int INITIAL_DATA_SIZE = 256 * 1024;
+    private static final int DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    /**
+     * sample_depends_on = 2, the sample does not depend on others
+     */
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    /**
+     * sample_depends_on = 1 and sample_is_non_sync_sample
+     */
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final FileChannel channel;
+    private final long fragmentDurationUs;
+    private final List<Track> tracks = new ArrayList<>();
+    private BoxWriter writer;
+    private boolean started;
+    private boolean finished;
+    private int sequenceNumber;
+    private long baseTimeUs = -1;
+    private long fragmentStartUs = -1;
+    private long bytesWritten;
+
+    /**
+     * @param channel            output, written from its current size on
+     * @param fragmentDurationUs minimum duration of a fragment; shorter fragments lose less on a crash,
+     *                           longer ones need fewer writes and syncs
+     */
+    public FragmentedMp4Writer(FileChannel channel, long fragmentDurationUs) {
+        if (fragmentDurationUs <= 0) {
+            throw new IllegalArgumentException("fragmentDurationUs must be positive");
+        }
+        this.channel = channel;
+        this.fragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Adds an H.264 track.
+     *
+     * @param sps      sequence parameter set without start code
+     * @param pps      picture parameter set without start code
+     * @param rotation clockwise display rotation in degrees
+     * @return track index for {@link #writeSample}
+     */
+    public int addVideoTrack(int width, int height, byte[] sps, byte[] pps, int rotation) {
+        if (sps == null || sps.length < 4 || pps == null) {
+            throw new IllegalArgumentException("Missing SPS or PPS");
+        }
+        Track track = new Track(false, Mp4Headers.VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.sps = sps;
+        track.pps = pps;
+        track.rotation = rotation;
+        return addTrack(track);
+    }
+
+    /**
+     * Adds an AAC track.
+     *
+     * @param audioSpecificConfig codec config as produced by the encoder
+     * @return track index for {@link #writeSample}
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, int bitRate, byte[] audioSpecificConfig) {
+        if (audioSpecificConfig == null) {
+            throw new IllegalArgumentException("Missing AudioSpecificConfig");
+        }
+        Track track = new Track(true, sampleRate);
+        track.channelCount = channelCount;
+        track.bitRate = bitRate;
+        track.audioSpecificConfig = audioSpecificConfig;
+        return addTrack(track);
+    }
+
+    private int addTrack(Track track) {
+        if (started) {
+            throw new IllegalStateException("Tracks must be added before start()");
+        }
+        tracks.add(track);
+        return tracks.size() - 1;
+    }
+
+    /**
+     * Writes {@code ftyp} and {@code moov} and syncs them, after that the file is a valid, empty movie.
+     */
+    public void start() throws IOException {
+        if (started) {
+            throw new IllegalStateException("Already started");
+        }
+        if (tracks.isEmpty()) {
+            throw new IllegalStateException("No tracks");
+        }
+        started = true;
+        writer = new BoxWriter(channel, channel.size());
+        long begin = writer.position();
+        Mp4Headers.writeFtyp(writer, "isom", 0x200, "isom", "iso6", "avc1", "mp41");
+        writer.begin(Mp4Box.MOOV);
+        Mp4Headers.writeMvhd(writer, 0, tracks.size() + 1);
+        for (int i = 0; i < tracks.size(); i++) {
+            writeTrak(tracks.get(i), i + 1);
+        }
+        writer.begin(Mp4Box.MVEX);
+        for (int i = 0; i < tracks.size(); i++) {
+            writer.beginFull(Mp4Box.TREX, 0, 0);
+            writer.writeInt(i + 1);
+            writer.writeInt(1);
+            writer.writeZeros(12);
+            writer.end();
+        }
+        writer.end();
+        writer.end();
+        writer.flush();
+        channel.force(false);
+        bytesWritten += writer.position() - begin;
+    }
+
+    private void writeTrak(Track track, int trackId) throws IOException {
+        writer.begin(Mp4Box.TRAK);
+        Mp4Headers.writeTkhd(writer, trackId, 0, track.audio, track.width, track.height, track.rotation);
+        writer.begin(Mp4Box.MDIA);
+        Mp4Headers.writeMdhd(writer, track.timescale, 0);
+        Mp4Headers.writeHdlr(writer, track.audio);
+        writer.begin(Mp4Box.MINF);
+        Mp4Headers.writeMediaInformationHeaders(writer, track.audio);
+        writer.begin(Mp4Box.STBL);
+        writer.beginFull(Mp4Box.STSD, 0, 0);
+        writer.writeInt(1);
+        if (track.audio) {
+            Mp4Headers.writeMp4a(writer, track.timescale, track.channelCount, track.bitRate, track.audioSpecificConfig);
+        } else {
+            Mp4Headers.writeAvc1(writer, track.width, track.height, track.sps, track.pps);
+        }
+        writer.end();
+        // Samples live in the fragments, the regular tables are empty
+        for (int type : new int[]{Mp4Box.STTS, Mp4Box.STSC, Mp4Box.STCO}) {
+            writer.beginFull(type, 0, 0);
+            writer.writeInt(0);
+            writer.end();
+        }
+        writer.beginFull(Mp4Box.STSZ, 0, 0);
+        writer.writeInt(0);
+        writer.writeInt(0);
+        writer.end();
+        writer.end();
+        writer.end();
+        writer.end();
+        writer.end();
+    }
+
+    /**
+     * Adds one encoded sample. Video samples are H.264 access units in Annex B form, audio samples raw
+     * AAC frames. Presentation times must not decrease within a track.
+     *
+     * @param trackIndex         index returned when the track was added
+     * @param data               sample bytes between position and limit, not modified
+     * @param presentationTimeUs presentation time in microseconds
+     * @param sync               whether this is a key frame
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, boolean sync) throws IOException {
+        if (!started || finished) {
+            throw new IllegalStateException("Writer is not started");
+        }
+        Track track = tracks.get(trackIndex);
+        if (baseTimeUs < 0) {
+            baseTimeUs = presentationTimeUs;
+        }
+        if (track == primaryTrack() && sync) {
+            if (fragmentStartUs < 0) {
+                fragmentStartUs = presentationTimeUs;
+            } else if (presentationTimeUs - fragmentStartUs >= fragmentDurationUs) {
+                writeFragment(presentationTimeUs);
+                fragmentStartUs = presentationTimeUs;
+            }
+        }
+        if (track.audio) {
+            track.add(data, presentationTimeUs, true);
+        } else {
+            track.addAnnexB(data, presentationTimeUs, sync);
+        }
+    }
+
+    /**
+     * Writes the fragment in progress and syncs the file. The writer can not be used afterwards, the
+     * channel is left open.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (started) {
+            writeFragment(-1);
+        }
+        finished = true;
+    }
+
+    /**
+     * Fragments are cut on sync samples of the first video track, or of the first track if there is no video.
+     */
+    private Track primaryTrack() {
+        for (Track track : tracks) {
+            if (!track.audio) {
+                return track;
+            }
+        }
+        return tracks.get(0);
+    }
+
+    /**
+     * @param nextPrimaryUs presentation time of the sample that starts the next fragment, -1 at the end
+     */
+    private void writeFragment(long nextPrimaryUs) throws IOException {
+        boolean empty = true;
+        for (Track track : tracks) {
+            empty &= track.count == 0;
+        }
+        if (empty) {
+            return;
+        }
+        long moofStart = writer.position();
+        long[] dataOffsetPositions = new long[tracks.size()];
+        writer.begin(Mp4Box.MOOF);
+        writer.beginFull(Mp4Box.MFHD, 0, 0);
+        writer.writeInt(++sequenceNumber);
+        writer.end();
+        Track primary = primaryTrack();
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            if (track.count == 0) {
+                continue;
+            }
+            writer.begin(Mp4Box.TRAF);
+            writer.beginFull(Mp4Box.TFHD, 0, DEFAULT_BASE_IS_MOOF);
+            writer.writeInt(i + 1);
+            writer.end();
+            writer.beginFull(Mp4Box.TFDT, 1, 0);
+            writer.writeLong(track.toTimescale(Math.max(0, track.presentationTimes[0] - baseTimeUs)));
+            writer.end();
+            writer.beginFull(Mp4Box.TRUN, 0, TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS);
+            writer.writeInt(track.count);
+            dataOffsetPositions[i] = writer.position();
+            writer.writeInt(0);
+            long endUs = track == primary ? nextPrimaryUs : -1;
+            for (int s = 0; s < track.count; s++) {
+                writer.writeUInt(track.duration(s, endUs));
+                writer.writeInt(track.sizes[s]);
+                writer.writeInt(track.syncs[s] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            writer.end();
+            writer.end();
+        }
+        writer.end();
+        writer.begin(Mp4Box.MDAT);
+        long dataOffset = writer.position() - moofStart;
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            if (track.count == 0) {
+                continue;
+            }
+            writer.patchInt(dataOffsetPositions[i], (int) dataOffset);
+            dataOffset += track.data.position();
+            track.data.flip();
+            writer.write(track.data);
+            track.clear();
+        }
+        writer.end();
+        writer.flush();
+        channel.force(false);
+        bytesWritten += writer.position() - moofStart;
+    }
+
+    /**
+     * @return number of fragments written so far
+     */
+    public int getFragmentCount() {
+        return sequenceNumber;
+    }
+
+    /**
+     * @return bytes written and synced so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private static final class Track {
+        final boolean audio;
+        final int timescale;
+        int width;
+        int height;
+        int rotation;
+        byte[] sps;
+        byte[] pps;
+        int channelCount;
+        int bitRate;
+        byte[] audioSpecificConfig;
+
+        ByteBuffer data = ByteBuffer.allocate(INITIAL_DATA_SIZE);
+        int[] sizes = new int[INITIAL_SAMPLES];
+        long[] presentationTimes = new long[INITIAL_SAMPLES];
+        boolean[] syncs = new boolean[INITIAL_SAMPLES];
+        int count;
+        long lastDuration;
+
+        Track(boolean audio, int timescale) {
+            this.audio = audio;
+            this.timescale = timescale;
+        }
+
+        long toTimescale(long us) {
+            return us * timescale / MICROS_PER_SECOND;
+        }
+
+        void add(ByteBuffer sample, long presentationTimeUs, boolean sync) {
+            ensureData(sample.remaining());
+            int size = sample.remaining();
+            data.put(sample.duplicate());
+            addEntry(size, presentationTimeUs, sync);
+        }
+
+        /**
+         * Stores an access unit with 4-byte length prefixes instead of start codes.
+         */
+        void addAnnexB(ByteBuffer sample, long presentationTimeUs, boolean sync) {
+            int start = data.position();
+            for (ByteBuffer unit : AvcUtils.splitAnnexB(sample)) {
+                if (!unit.hasRemaining() || AvcUtils.nalType(unit) == AvcUtils.NAL_TYPE_AUD) {
+                    continue;
+                }
+                ensureData(4 + unit.remaining());
+                data.putInt(unit.remaining());
+                data.put(unit);
+            }
+            if (data.position() > start) {
+                addEntry(data.position() - start, presentationTimeUs, sync);
+            }
+        }
+
+        private void addEntry(int size, long presentationTimeUs, boolean sync) {
+            if (count == sizes.length) {
+                int capacity = count * 2;
+                sizes = Arrays.copyOf(sizes, capacity);
+                presentationTimes = Arrays.copyOf(presentationTimes, capacity);
+                syncs = Arrays.copyOf(syncs, capacity);
+            }
+            sizes[count] = size;
+            presentationTimes[count] = presentationTimeUs;
+            syncs[count] = sync;
+            count++;
+        }
+
+        private void ensureData(int size) {
+            if (data.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + size));
+                data.flip();
+                larger.put(data);
+                data = larger;
+            }
+        }
+
+        /**
+         * Duration of sample {@code index} in the track timescale. The last sample of a fragment lasts until
+         * {@code endUs} if known, otherwise as long as the sample before it.
+         */
+        long duration(int index, long endUs) {
+            long duration;
+            if (index + 1 < count) {
+                duration = toTimescale(presentationTimes[index + 1]) - toTimescale(presentationTimes[index]);
+            } else if (endUs >= 0) {
+                duration = toTimescale(endUs) - toTimescale(presentationTimes[index]);
+            } else {
+                duration = lastDuration;
+            }
+            duration = Math.max(0, duration);
+            lastDuration = duration;
+            return duration;
+        }
+
+        void clear() {
+            data.clear();
+            count = 0;
+        }
+    }
+}
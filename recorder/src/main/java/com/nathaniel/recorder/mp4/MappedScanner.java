@@ -0,0 +1,67 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to a large file through a sliding memory-mapped window, so a multi-GB file can be
+ * scanned with a fixed amount of address space and no copies into the Java heap. Reads are expected to
+ * move mostly forward; a read outside the current window maps a new window starting at that position.
+ *
+ * @author nathaniel
+ */
+final class MappedScanner {
+
+    static final int WINDOW_SIZE = 16 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLength;
+
+    /**
+     * @param size bytes of the file that may be read, reads at or after it fail
+     */
+    MappedScanner(FileChannel channel, long size) {
+        this.channel = channel;
+        this.size = size;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the unsigned byte at {@code position}
+     */
+    int get(long position) throws IOException {
+        ensure(position, 1);
+        return window.get((int) (position - windowStart)) & 0xFF;
+    }
+
+    int getInt(long position) throws IOException {
+        ensure(position, 4);
+        return window.getInt((int) (position - windowStart));
+    }
+
+    /**
+     * @return whether {@code length} bytes starting at {@code position} exist
+     */
+    boolean has(long position, long length) {
+        return position >= 0 && position + length <= size;
+    }
+
+    private void ensure(long position, int length) throws IOException {
+        if (position >= windowStart && position + length <= windowStart + windowLength) {
+            return;
+        }
+        if (!has(position, length)) {
+            throw new IOException("Read of " + length + " bytes at " + position + " past " + size);
+        }
+        windowStart = position;
+        windowLength = (int) Math.min(WINDOW_SIZE, size - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+    }
+}
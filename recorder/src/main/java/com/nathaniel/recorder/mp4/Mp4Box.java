@@ -0,0 +1,272 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Header of one ISO BMFF box read from a {@link FileChannel}: its type, where it starts, how long its
+ * header is and its total size. Only headers are read, payloads stay on disk until somebody asks.
+ *
+ * @author nathaniel
+ */
+public final class Mp4Box {
+
+    public static final int FTYP = fourcc("ftyp");
+    public static final int MOOV = fourcc("moov");
+    public static final int MDAT = fourcc("mdat");
+    public static final int FREE = fourcc("free");
+    public static final int SKIP = fourcc("skip");
+    public static final int WIDE = fourcc("wide");
+    public static final int UDTA = fourcc("udta");
+    public static final int META = fourcc("meta");
+    public static final int MVHD = fourcc("mvhd");
+    public static final int TRAK = fourcc("trak");
+    public static final int TKHD = fourcc("tkhd");
+    public static final int EDTS = fourcc("edts");
+    public static final int MDIA = fourcc("mdia");
+    public static final int MDHD = fourcc("mdhd");
+    public static final int HDLR = fourcc("hdlr");
+    public static final int MINF = fourcc("minf");
+    public static final int VMHD = fourcc("vmhd");
+    public static final int SMHD = fourcc("smhd");
+    public static final int DINF = fourcc("dinf");
+    public static final int DREF = fourcc("dref");
+    public static final int URL = fourcc("url ");
+    public static final int STBL = fourcc("stbl");
+    public static final int STSD = fourcc("stsd");
+    public static final int STTS = fourcc("stts");
+    public static final int CTTS = fourcc("ctts");
+    public static final int STSS = fourcc("stss");
+    public static final int STSZ = fourcc("stsz");
+    public static final int STSC = fourcc("stsc");
+    public static final int STCO = fourcc("stco");
+    public static final int CO64 = fourcc("co64");
+    public static final int MVEX = fourcc("mvex");
+    public static final int TREX = fourcc("trex");
+    public static final int MOOF = fourcc("moof");
+    public static final int MFHD = fourcc("mfhd");
+    public static final int TRAF = fourcc("traf");
+    public static final int TFHD = fourcc("tfhd");
+    public static final int TFDT = fourcc("tfdt");
+    public static final int TRUN = fourcc("trun");
+    public static final int AVC1 = fourcc("avc1");
+    public static final int AVCC = fourcc("avcC");
+    public static final int MP4A = fourcc("mp4a");
+    public static final int ESDS = fourcc("esds");
+    public static final int VIDE = fourcc("vide");
+    public static final int SOUN = fourcc("soun");
+
+    /**
+     * Size of a compact box header: 32-bit size plus type.
+     */
+    public static final int HEADER_SIZE = 8;
+    /**
+     * Size of a box header with a 64-bit largesize.
+     */
+    public static final int LARGE_HEADER_SIZE = 16;
+
+    private final int type;
+    private final long offset;
+    private final int headerSize;
+    private final long size;
+
+    private Mp4Box(int type, long offset, int headerSize, long size) {
+        this.type = type;
+        this.offset = offset;
+        this.headerSize = headerSize;
+        this.size = size;
+    }
+
+    public static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    public static String typeName(int type) {
+        return new String(new char[]{(char) (type >>> 24 & 0xFF), (char) (type >>> 16 & 0xFF),
+                (char) (type >>> 8 & 0xFF), (char) (type & 0xFF)});
+    }
+
+    /**
+     * Reads the box header at {@code offset}.
+     *
+     * @param channel file to read from
+     * @param offset  absolute position of the header
+     * @param limit   end of the enclosing box or file, a box may not extend past it
+     * @return the box, or null if there is no complete header before {@code limit}
+     * @throws IOException if the header is malformed
+     */
+    public static Mp4Box read(FileChannel channel, long offset, long limit) throws IOException {
+        if (limit - offset < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(LARGE_HEADER_SIZE);
+        header.limit(HEADER_SIZE);
+        readFully(channel, header, offset);
+        long size = header.getInt(0) & 0xFFFFFFFFL;
+        int type = header.getInt(4);
+        int headerSize = HEADER_SIZE;
+        if (size == 1) {
+            if (limit - offset < LARGE_HEADER_SIZE) {
+                return null;
+            }
+            header.limit(LARGE_HEADER_SIZE);
+            readFully(channel, header, offset + HEADER_SIZE);
+            size = header.getLong(HEADER_SIZE);
+            headerSize = LARGE_HEADER_SIZE;
+        } else if (size == 0) {
+            // Box extends to the end of the file
+            size = limit - offset;
+        }
+        if (size < headerSize) {
+            throw new IOException("Bad size " + size + " of box '" + typeName(type) + "' at " + offset);
+        }
+        return new Mp4Box(type, offset, headerSize, size);
+    }
+
+    /**
+     * Lists the top level boxes of a file, stopping at the first truncated box.
+     */
+    public static List<Mp4Box> readTopLevel(FileChannel channel) throws IOException {
+        return readChildren(channel, 0, channel.size());
+    }
+
+    /**
+     * Lists the boxes between {@code from} and {@code to}. A box running past {@code to} is still listed,
+     * callers can detect truncation by comparing {@link #getEnd()} with the limit.
+     */
+    public static List<Mp4Box> readChildren(FileChannel channel, long from, long to) throws IOException {
+        List<Mp4Box> boxes = new ArrayList<>();
+        long position = from;
+        while (position < to) {
+            Mp4Box box = read(channel, position, to);
+            if (box == null) {
+                break;
+            }
+            boxes.add(box);
+            if (box.getEnd() > to) {
+                break;
+            }
+            position = box.getEnd();
+        }
+        return boxes;
+    }
+
+    /**
+     * Lists the child boxes of this container box.
+     */
+    public List<Mp4Box> children(FileChannel channel) throws IOException {
+        return readChildren(channel, getPayloadOffset(), getEnd());
+    }
+
+    /**
+     * Finds the first child of the given type.
+     *
+     * @return the child, or null if there is none
+     */
+    public Mp4Box child(FileChannel channel, int childType) throws IOException {
+        long position = getPayloadOffset();
+        long end = getEnd();
+        while (position < end) {
+            Mp4Box box = read(channel, position, end);
+            if (box == null) {
+                return null;
+            }
+            if (box.type == childType) {
+                return box;
+            }
+            position = box.getEnd();
+        }
+        return null;
+    }
+
+    /**
+     * Follows a path of child types, e.g. {@code MDIA, MINF, STBL}.
+     *
+     * @return the innermost box, or null if any step is missing
+     */
+    public Mp4Box find(FileChannel channel, int... path) throws IOException {
+        Mp4Box box = this;
+        for (int childType : path) {
+            box = box.child(channel, childType);
+            if (box == null) {
+                return null;
+            }
+        }
+        return box;
+    }
+
+    /**
+     * Reads the whole payload into a heap buffer. Only meant for small boxes such as headers and
+     * sample descriptions, sample tables should be streamed with {@link TableReader}.
+     */
+    public ByteBuffer readPayload(FileChannel channel) throws IOException {
+        long payloadSize = getPayloadSize();
+        if (payloadSize > Integer.MAX_VALUE) {
+            throw new IOException("Box '" + typeName(type) + "' too large to read: " + payloadSize);
+        }
+        ByteBuffer payload = ByteBuffer.allocate((int) payloadSize);
+        readFully(channel, payload, getPayloadOffset());
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Reads the whole box, header included.
+     */
+    public ByteBuffer readFullBox(FileChannel channel) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Box '" + typeName(type) + "' too large to read: " + size);
+        }
+        ByteBuffer box = ByteBuffer.allocate((int) size);
+        readFully(channel, box, offset);
+        box.flip();
+        return box;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getPayloadOffset() {
+        return offset + headerSize;
+    }
+
+    public long getPayloadSize() {
+        return size - headerSize;
+    }
+
+    public long getEnd() {
+        return offset + size;
+    }
+
+    @Override
+    public String toString() {
+        return "'" + typeName(type) + "' @" + offset + " size " + size;
+    }
+}
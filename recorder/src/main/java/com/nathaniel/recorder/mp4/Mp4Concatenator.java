@@ -0,0 +1,725 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins MP4 files recorded with the same settings into one file without decoding anything.
+ * <p>
+ * The {@code mdat} payloads are copied back to back with {@link FileChannel#transferTo}, then a single
+ * {@code moov} is written whose sample tables (stts, ctts, stss, stsz, stsc, stco/co64) are the
+ * tables of all inputs appended one after another, with chunk offsets and sample numbers rebased.
+ * Only box headers and small descriptive boxes of the inputs are kept in memory; the sample tables are
+ * streamed from each input in turn, so multi-hour sessions need a bounded amount of heap.
+ * Edit lists of the inputs are dropped.
+ *
+ * @author nathaniel
+ */
+public final class Mp4Concatenator {
+
+    private static final long MAX_UINT32 = 0xFFFFFFFFL;
+
+    private Mp4Concatenator() {
+    }
+
+    /**
+     * Concatenates {@code inputs} in order into {@code output}, which is overwritten.
+     *
+     * @param inputs  finished MP4 files with the same tracks, codecs and media timescales
+     * @param output  destination file, must not be one of the inputs
+     * @throws IOException if an input is not a complete MP4 or the inputs are not compatible
+     */
+    public static void concat(List<File> inputs, File output) throws IOException {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to concatenate");
+        }
+        List<Segment> segments = new ArrayList<>(inputs.size());
+        for (File input : inputs) {
+            segments.add(Segment.parse(input));
+        }
+        Segment first = segments.get(0);
+        for (Segment segment : segments) {
+            first.checkCompatible(segment);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            BoxWriter writer = new BoxWriter(channel, 0);
+            writer.write(first.ftyp.duplicate());
+
+            long[] dataBases = new long[segments.size()];
+            writer.beginLarge(Mp4Box.MDAT);
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                dataBases[i] = writer.position();
+                RandomAccessFile input = new RandomAccessFile(segment.file, "r");
+                try {
+                    writer.transferFrom(input.getChannel(), segment.dataStart, segment.dataEnd - segment.dataStart);
+                } finally {
+                    input.close();
+                }
+            }
+            writer.end();
+            boolean use64BitOffsets = writer.position() > MAX_UINT32;
+
+            writeMoov(writer, segments, dataBases, use64BitOffsets);
+            writer.flush();
+            channel.force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void writeMoov(BoxWriter writer, List<Segment> segments, long[] dataBases, boolean use64BitOffsets)
+            throws IOException {
+        Segment first = segments.get(0);
+        long movieDuration = 0;
+        for (Segment segment : segments) {
+            movieDuration += rescale(segment.movieDuration, segment.movieTimescale, first.movieTimescale);
+        }
+        writer.begin(Mp4Box.MOOV);
+        writeTimedHeader(writer, Mp4Box.MVHD, first.mvhd, movieDuration, false);
+        TableReader reader = new TableReader();
+        for (int t = 0; t < first.tracks.size(); t++) {
+            Track[] parts = new Track[segments.size()];
+            for (int i = 0; i < segments.size(); i++) {
+                parts[i] = segments.get(i).findTrack(first.tracks.get(t));
+            }
+            writeTrack(writer, reader, segments, parts, dataBases, use64BitOffsets);
+        }
+        if (first.udta != null) {
+            writer.write(first.udta.duplicate());
+        }
+        writer.end();
+    }
+
+    private static void writeTrack(BoxWriter writer, TableReader reader, List<Segment> segments, Track[] parts,
+                                   long[] dataBases, boolean use64BitOffsets) throws IOException {
+        Track model = parts[0];
+        long trackDuration = 0;
+        long mediaDuration = 0;
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) {
+                Segment segment = segments.get(i);
+                trackDuration += rescale(parts[i].trackDuration, segment.movieTimescale, segments.get(0).movieTimescale);
+                mediaDuration += parts[i].mediaDuration;
+            }
+        }
+        writer.begin(Mp4Box.TRAK);
+        writeTimedHeader(writer, Mp4Box.TKHD, model.tkhd, trackDuration, true);
+        writer.begin(Mp4Box.MDIA);
+        writeTimedHeader(writer, Mp4Box.MDHD, model.mdhd, mediaDuration, false);
+        writer.write(model.hdlr.duplicate());
+        writer.begin(Mp4Box.MINF);
+        for (ByteBuffer header : model.minfHeaders) {
+            writer.write(header.duplicate());
+        }
+        writer.begin(Mp4Box.STBL);
+        int[][] descriptionMap = writeStsd(writer, parts);
+        writeStts(writer, reader, segments, parts);
+        writeCtts(writer, reader, segments, parts);
+        writeStss(writer, reader, segments, parts);
+        writeStsz(writer, reader, segments, parts);
+        writeStsc(writer, reader, segments, parts, descriptionMap);
+        writeChunkOffsets(writer, reader, segments, parts, dataBases, use64BitOffsets);
+        writer.end();
+        writer.end();
+        writer.end();
+        writer.end();
+    }
+
+    /**
+     * Writes the sample descriptions of all parts, keeping each distinct entry once.
+     *
+     * @return for every part, the output index (1-based) of each of its entries
+     */
+    private static int[][] writeStsd(BoxWriter writer, Track[] parts) throws IOException {
+        List<ByteBuffer> entries = new ArrayList<>();
+        int[][] map = new int[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] == null) {
+                continue;
+            }
+            List<ByteBuffer> own = parts[i].descriptions;
+            map[i] = new int[own.size()];
+            for (int e = 0; e < own.size(); e++) {
+                int index = entries.indexOf(own.get(e));
+                if (index < 0) {
+                    entries.add(own.get(e));
+                    index = entries.size() - 1;
+                }
+                map[i][e] = index + 1;
+            }
+        }
+        writer.beginFull(Mp4Box.STSD, 0, 0);
+        writer.writeInt(entries.size());
+        for (ByteBuffer entry : entries) {
+            writer.write(entry.duplicate());
+        }
+        writer.end();
+        return map;
+    }
+
+    private static void writeStts(BoxWriter writer, TableReader reader, List<Segment> segments, Track[] parts)
+            throws IOException {
+        writer.beginFull(Mp4Box.STTS, 0, 0);
+        RunWriter runs = new RunWriter(writer);
+        for (int i = 0; i < parts.length; i++) {
+            Track part = parts[i];
+            if (part == null || part.stts == null) {
+                continue;
+            }
+            RandomAccessFile input = new RandomAccessFile(segments.get(i).file, "r");
+            try {
+                reader.reset(input.getChannel(), part.stts.offset, part.stts.count * 8);
+                for (long e = 0; e < part.stts.count; e++) {
+                    runs.add(reader.readUInt(), reader.readInt());
+                }
+            } finally {
+                input.close();
+            }
+        }
+        runs.finish();
+        writer.end();
+    }
+
+    private static void writeCtts(BoxWriter writer, TableReader reader, List<Segment> segments, Track[] parts)
+            throws IOException {
+        int version = -1;
+        for (Track part : parts) {
+            if (part != null && part.ctts != null) {
+                version = Math.max(version, part.cttsVersion);
+            }
+        }
+        if (version < 0) {
+            return;
+        }
+        writer.beginFull(Mp4Box.CTTS, version, 0);
+        RunWriter runs = new RunWriter(writer);
+        for (int i = 0; i < parts.length; i++) {
+            Track part = parts[i];
+            if (part == null) {
+                continue;
+            }
+            if (part.ctts == null) {
+                // No composition offsets means decode order equals presentation order
+                runs.add(part.sampleCount, 0);
+                continue;
+            }
+            RandomAccessFile input = new RandomAccessFile(segments.get(i).file, "r");
+            try {
+                reader.reset(input.getChannel(), part.ctts.offset, part.ctts.count * 8);
+                for (long e = 0; e < part.ctts.count; e++) {
+                    runs.add(reader.readUInt(), reader.readInt());
+                }
+            } finally {
+                input.close();
+            }
+        }
+        runs.finish();
+        writer.end();
+    }
+
+    private static void writeStss(BoxWriter writer, TableReader reader, List<Segment> segments, Track[] parts)
+            throws IOException {
+        boolean any = false;
+        for (Track part : parts) {
+            any |= part != null && part.stss != null;
+        }
+        if (!any) {
+            return;
+        }
+        writer.beginFull(Mp4Box.STSS, 0, 0);
+        long countPosition = writer.position();
+        writer.writeInt(0);
+        long entries = 0;
+        long sampleBase = 0;
+        for (int i = 0; i < parts.length; i++) {
+            Track part = parts[i];
+            if (part == null) {
+                continue;
+            }
+            if (part.stss == null) {
+                // Every sample of this part is a sync sample
+                for (long s = 1; s <= part.sampleCount; s++) {
+                    writer.writeUInt(sampleBase + s);
+                }
+                entries += part.sampleCount;
+            } else {
+                RandomAccessFile input = new RandomAccessFile(segments.get(i).file, "r");
+                try {
+                    reader.reset(input.getChannel(), part.stss.offset, part.stss.count * 4);
+                    for (long e = 0; e < part.stss.count; e++) {
+                        writer.writeUInt(sampleBase + reader.readUInt());
+                    }
+                } finally {
+                    input.close();
+                }
+                entries += part.stss.count;
+            }
+            sampleBase += part.sampleCount;
+        }
+        writer.patchInt(countPosition, (int) entries);
+        writer.end();
+    }
+
+    private static void writeStsz(BoxWriter writer, TableReader reader, List<Segment> segments, Track[] parts)
+            throws IOException {
+        int constantSize = -1;
+        long sampleCount = 0;
+        for (Track part : parts) {
+            if (part == null) {
+                continue;
+            }
+            sampleCount += part.sampleCount;
+            if (part.sampleCount == 0) {
+                continue;
+            }
+            if (constantSize == -1) {
+                constantSize = part.sampleSize;
+            } else if (constantSize != part.sampleSize) {
+                constantSize = 0;
+            }
+        }
+        writer.beginFull(Mp4Box.STSZ, 0, 0);
+        if (constantSize > 0) {
+            writer.writeInt(constantSize);
+            writer.writeUInt(sampleCount);
+            writer.end();
+            return;
+        }
+        writer.writeInt(0);
+        writer.writeUInt(sampleCount);
+        for (int i = 0; i < parts.length; i++) {
+            Track part = parts[i];
+            if (part == null || part.sampleCount == 0) {
+                continue;
+            }
+            if (part.sampleSize != 0) {
+                for (long s = 0; s < part.sampleCount; s++) {
+                    writer.writeInt(part.sampleSize);
+                }
+                continue;
+            }
+            RandomAccessFile input = new RandomAccessFile(segments.get(i).file, "r");
+            try {
+                reader.reset(input.getChannel(), part.stszEntries, part.sampleCount * 4);
+                for (long s = 0; s < part.sampleCount; s++) {
+                    writer.writeInt(reader.readInt());
+                }
+            } finally {
+                input.close();
+            }
+        }
+        writer.end();
+    }
+
+    private static void writeStsc(BoxWriter writer, TableReader reader, List<Segment> segments, Track[] parts,
+                                  int[][] descriptionMap) throws IOException {
+        writer.beginFull(Mp4Box.STSC, 0, 0);
+        long countPosition = writer.position();
+        writer.writeInt(0);
+        long entries = 0;
+        long chunkBase = 0;
+        long lastSamplesPerChunk = -1;
+        int lastDescription = -1;
+        for (int i = 0; i < parts.length; i++) {
+            Track part = parts[i];
+            if (part == null || part.stsc == null) {
+                continue;
+            }
+            RandomAccessFile input = new RandomAccessFile(segments.get(i).file, "r");
+            try {
+                reader.reset(input.getChannel(), part.stsc.offset, part.stsc.count * 12);
+                for (long e = 0; e < part.stsc.count; e++) {
+                    long firstChunk = reader.readUInt();
+                    long samplesPerChunk = reader.readUInt();
+                    int description = reader.readInt();
+                    if (description >= 1 && description <= descriptionMap[i].length) {
+                        description = descriptionMap[i][description - 1];
+                    }
+                    if (samplesPerChunk == lastSamplesPerChunk && description == lastDescription) {
+                        continue;
+                    }
+                    writer.writeUInt(chunkBase + firstChunk);
+                    writer.writeUInt(samplesPerChunk);
+                    writer.writeInt(description);
+                    lastSamplesPerChunk = samplesPerChunk;
+                    lastDescription = description;
+                    entries++;
+                }
+            } finally {
+                input.close();
+            }
+            chunkBase += part.chunkOffsets.count;
+        }
+        writer.patchInt(countPosition, (int) entries);
+        writer.end();
+    }
+
+    private static void writeChunkOffsets(BoxWriter writer, TableReader reader, List<Segment> segments, Track[] parts,
+                                          long[] dataBases, boolean use64BitOffsets) throws IOException {
+        long chunkCount = 0;
+        for (Track part : parts) {
+            if (part != null && part.chunkOffsets != null) {
+                chunkCount += part.chunkOffsets.count;
+            }
+        }
+        writer.beginFull(use64BitOffsets ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0);
+        writer.writeUInt(chunkCount);
+        for (int i = 0; i < parts.length; i++) {
+            Track part = parts[i];
+            if (part == null || part.chunkOffsets == null) {
+                continue;
+            }
+            Segment segment = segments.get(i);
+            long shift = dataBases[i] - segment.dataStart;
+            RandomAccessFile input = new RandomAccessFile(segment.file, "r");
+            try {
+                reader.reset(input.getChannel(), part.chunkOffsets.offset,
+                        part.chunkOffsets.count * (part.co64 ? 8 : 4));
+                for (long c = 0; c < part.chunkOffsets.count; c++) {
+                    long offset = part.co64 ? reader.readLong() : reader.readUInt();
+                    if (offset < segment.dataStart || offset >= segment.dataEnd) {
+                        throw new IOException("Chunk offset " + offset + " outside media data of " + segment.file);
+                    }
+                    if (use64BitOffsets) {
+                        writer.writeLong(offset + shift);
+                    } else {
+                        writer.writeUInt(offset + shift);
+                    }
+                }
+            } finally {
+                input.close();
+            }
+        }
+        writer.end();
+    }
+
+    /**
+     * Rewrites an mvhd, tkhd or mdhd box with a new duration, switching to version 1 when the duration
+     * no longer fits 32 bits.
+     */
+    static void writeTimedHeader(BoxWriter writer, int type, ByteBuffer payload, long duration, boolean trackHeader)
+            throws IOException {
+        int version = payload.get(0) & 0xFF;
+        int flags = payload.getInt(0) & 0xFFFFFF;
+        boolean wide = version == 1 || duration > MAX_UINT32;
+        int position = 4;
+        long creation;
+        long modification;
+        if (version == 1) {
+            creation = payload.getLong(position);
+            modification = payload.getLong(position + 8);
+            position += 16;
+        } else {
+            creation = payload.getInt(position) & MAX_UINT32;
+            modification = payload.getInt(position + 4) & MAX_UINT32;
+            position += 8;
+        }
+        // tkhd has track_ID and a reserved word before the duration, mvhd and mdhd have the timescale
+        int middle = trackHeader ? 8 : 4;
+        writer.beginFull(type, wide ? 1 : 0, flags);
+        if (wide) {
+            writer.writeLong(creation);
+            writer.writeLong(modification);
+        } else {
+            writer.writeUInt(creation);
+            writer.writeUInt(modification);
+        }
+        ByteBuffer middleBytes = payload.duplicate();
+        middleBytes.position(position).limit(position + middle);
+        writer.write(middleBytes);
+        position += middle + (version == 1 ? 8 : 4);
+        if (wide) {
+            writer.writeLong(duration);
+        } else {
+            writer.writeUInt(duration);
+        }
+        ByteBuffer rest = payload.duplicate();
+        rest.position(position);
+        writer.write(rest);
+        writer.end();
+    }
+
+    /**
+     * Reads the timescale and duration of an mvhd or mdhd payload.
+     *
+     * @return {timescale, duration}
+     */
+    static long[] readTimescaleAndDuration(ByteBuffer payload) {
+        if ((payload.get(0) & 0xFF) == 1) {
+            return new long[]{payload.getInt(20) & MAX_UINT32, payload.getLong(24)};
+        }
+        return new long[]{payload.getInt(12) & MAX_UINT32, payload.getInt(16) & MAX_UINT32};
+    }
+
+    static long readTrackDuration(ByteBuffer tkhd) {
+        if ((tkhd.get(0) & 0xFF) == 1) {
+            return tkhd.getLong(28);
+        }
+        return tkhd.getInt(20) & MAX_UINT32;
+    }
+
+    static long rescale(long value, long fromTimescale, long toTimescale) {
+        if (fromTimescale == toTimescale || fromTimescale == 0) {
+            return value;
+        }
+        return value * toTimescale / fromTimescale;
+    }
+
+    /**
+     * Run-length writer for stts/ctts: adjacent entries with the same value are merged, including across
+     * input boundaries. The entry count is patched when finished.
+     */
+    private static final class RunWriter {
+        private final BoxWriter writer;
+        private final long countPosition;
+        private long entries;
+        private long pendingCount;
+        private int pendingValue;
+
+        RunWriter(BoxWriter writer) throws IOException {
+            this.writer = writer;
+            this.countPosition = writer.position();
+            writer.writeInt(0);
+        }
+
+        void add(long count, int value) throws IOException {
+            if (count == 0) {
+                return;
+            }
+            if (pendingCount > 0 && value == pendingValue && pendingCount + count <= MAX_UINT32) {
+                pendingCount += count;
+                return;
+            }
+            flushPending();
+            pendingCount = count;
+            pendingValue = value;
+        }
+
+        private void flushPending() throws IOException {
+            if (pendingCount > 0) {
+                writer.writeUInt(pendingCount);
+                writer.writeInt(pendingValue);
+                entries++;
+            }
+        }
+
+        void finish() throws IOException {
+            flushPending();
+            pendingCount = 0;
+            writer.patchInt(countPosition, (int) entries);
+        }
+    }
+
+    /**
+     * Location of a sample table's entries inside an input file.
+     */
+    private static final class Table {
+        final long offset;
+        final long count;
+
+        Table(long offset, long count) {
+            this.offset = offset;
+            this.count = count;
+        }
+
+        /**
+         * Reads the entry count of a full box table whose entries follow the count.
+         */
+        static Table read(FileChannel channel, Mp4Box box, int countOffset) throws IOException {
+            if (box == null) {
+                return null;
+            }
+            ByteBuffer count = ByteBuffer.allocate(4);
+            Mp4Box.readFully(channel, count, box.getPayloadOffset() + countOffset);
+            return new Table(box.getPayloadOffset() + countOffset + 4, count.getInt(0) & MAX_UINT32);
+        }
+    }
+
+    private static final class Track {
+        int handler;
+        int handlerIndex;
+        ByteBuffer tkhd;
+        ByteBuffer mdhd;
+        ByteBuffer hdlr;
+        final List<ByteBuffer> minfHeaders = new ArrayList<>();
+        final List<ByteBuffer> descriptions = new ArrayList<>();
+        long mediaTimescale;
+        long mediaDuration;
+        long trackDuration;
+        Table stts;
+        Table ctts;
+        int cttsVersion;
+        Table stss;
+        Table stsc;
+        Table chunkOffsets;
+        boolean co64;
+        int sampleSize;
+        long sampleCount;
+        long stszEntries;
+
+        static Track parse(FileChannel channel, Mp4Box trak) throws IOException {
+            Track track = new Track();
+            Mp4Box tkhd = trak.child(channel, Mp4Box.TKHD);
+            Mp4Box mdia = trak.child(channel, Mp4Box.MDIA);
+            Mp4Box mdhd = mdia == null ? null : mdia.child(channel, Mp4Box.MDHD);
+            Mp4Box hdlr = mdia == null ? null : mdia.child(channel, Mp4Box.HDLR);
+            Mp4Box minf = mdia == null ? null : mdia.child(channel, Mp4Box.MINF);
+            Mp4Box stbl = minf == null ? null : minf.child(channel, Mp4Box.STBL);
+            if (tkhd == null || mdhd == null || hdlr == null || stbl == null) {
+                throw new IOException("Incomplete track at " + trak.getOffset());
+            }
+            track.tkhd = tkhd.readPayload(channel);
+            track.mdhd = mdhd.readPayload(channel);
+            track.hdlr = hdlr.readFullBox(channel);
+            track.handler = track.hdlr.getInt(Mp4Box.HEADER_SIZE + 8);
+            long[] timing = readTimescaleAndDuration(track.mdhd);
+            track.mediaTimescale = timing[0];
+            track.mediaDuration = timing[1];
+            track.trackDuration = readTrackDuration(track.tkhd);
+            for (Mp4Box header : minf.children(channel)) {
+                if (header.getType() != Mp4Box.STBL) {
+                    track.minfHeaders.add(header.readFullBox(channel));
+                }
+            }
+
+            Mp4Box stsd = stbl.child(channel, Mp4Box.STSD);
+            if (stsd == null) {
+                throw new IOException("Track without sample description at " + trak.getOffset());
+            }
+            // version/flags and entry_count precede the entries
+            for (Mp4Box entry : Mp4Box.readChildren(channel, stsd.getPayloadOffset() + 8, stsd.getEnd())) {
+                track.descriptions.add(entry.readFullBox(channel));
+            }
+            track.stts = Table.read(channel, stbl.child(channel, Mp4Box.STTS), 4);
+            Mp4Box ctts = stbl.child(channel, Mp4Box.CTTS);
+            track.ctts = Table.read(channel, ctts, 4);
+            if (ctts != null) {
+                ByteBuffer version = ByteBuffer.allocate(1);
+                Mp4Box.readFully(channel, version, ctts.getPayloadOffset());
+                track.cttsVersion = version.get(0);
+            }
+            track.stss = Table.read(channel, stbl.child(channel, Mp4Box.STSS), 4);
+            track.stsc = Table.read(channel, stbl.child(channel, Mp4Box.STSC), 4);
+            Mp4Box stco = stbl.child(channel, Mp4Box.STCO);
+            if (stco == null) {
+                stco = stbl.child(channel, Mp4Box.CO64);
+                track.co64 = true;
+            }
+            track.chunkOffsets = Table.read(channel, stco, 4);
+            Mp4Box stsz = stbl.child(channel, Mp4Box.STSZ);
+            if (stsz == null || track.stts == null || track.stsc == null || track.chunkOffsets == null) {
+                throw new IOException("Track without sample tables at " + trak.getOffset());
+            }
+            ByteBuffer sizes = ByteBuffer.allocate(8);
+            Mp4Box.readFully(channel, sizes, stsz.getPayloadOffset() + 4);
+            track.sampleSize = sizes.getInt(0);
+            track.sampleCount = sizes.getInt(4) & MAX_UINT32;
+            track.stszEntries = stsz.getPayloadOffset() + 12;
+            return track;
+        }
+    }
+
+    private static final class Segment {
+        File file;
+        ByteBuffer ftyp;
+        ByteBuffer mvhd;
+        ByteBuffer udta;
+        long movieTimescale;
+        long movieDuration;
+        long dataStart = Long.MAX_VALUE;
+        long dataEnd;
+        final List<Track> tracks = new ArrayList<>();
+
+        static Segment parse(File file) throws IOException {
+            Segment segment = new Segment();
+            segment.file = file;
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                long fileSize = channel.size();
+                Mp4Box moov = null;
+                long position = 0;
+                // A file recorded over an older, longer one may carry stale bytes after its last box, so
+                // stop as soon as both the moov and the media data have been seen
+                while (position < fileSize && (moov == null || segment.dataEnd == 0)) {
+                    Mp4Box box = Mp4Box.read(channel, position, fileSize);
+                    if (box == null) {
+                        break;
+                    }
+                    if (box.getEnd() > fileSize) {
+                        throw new IOException("Truncated box " + box + " in " + file);
+                    }
+                    if (box.getType() == Mp4Box.FTYP) {
+                        segment.ftyp = box.readFullBox(channel);
+                    } else if (box.getType() == Mp4Box.MOOV) {
+                        moov = box;
+                    } else if (box.getType() == Mp4Box.MDAT) {
+                        // Everything from the first to the end of the last mdat is copied as media data
+                        segment.dataStart = Math.min(segment.dataStart, box.getPayloadOffset());
+                        segment.dataEnd = Math.max(segment.dataEnd, box.getEnd());
+                    }
+                    position = box.getEnd();
+                }
+                if (segment.ftyp == null || moov == null || segment.dataEnd == 0) {
+                    throw new IOException("Not a complete MP4 file: " + file);
+                }
+                Mp4Box mvhd = moov.child(channel, Mp4Box.MVHD);
+                if (mvhd == null) {
+                    throw new IOException("No movie header in " + file);
+                }
+                segment.mvhd = mvhd.readPayload(channel);
+                long[] timing = readTimescaleAndDuration(segment.mvhd);
+                segment.movieTimescale = timing[0];
+                segment.movieDuration = timing[1];
+                for (Mp4Box child : moov.children(channel)) {
+                    if (child.getType() == Mp4Box.TRAK) {
+                        Track track = Track.parse(channel, child);
+                        for (Track other : segment.tracks) {
+                            if (other.handler == track.handler) {
+                                track.handlerIndex++;
+                            }
+                        }
+                        segment.tracks.add(track);
+                    } else if (child.getType() == Mp4Box.UDTA) {
+                        segment.udta = child.readFullBox(channel);
+                    }
+                }
+            } finally {
+                input.close();
+            }
+            return segment;
+        }
+
+        /**
+         * Finds the track matching {@code model} by handler type and position among tracks of that type.
+         */
+        Track findTrack(Track model) {
+            for (Track track : tracks) {
+                if (track.handler == model.handler && track.handlerIndex == model.handlerIndex) {
+                    return track;
+                }
+            }
+            return null;
+        }
+
+        void checkCompatible(Segment other) throws IOException {
+            for (Track track : tracks) {
+                Track match = other.findTrack(track);
+                if (match != null && match.mediaTimescale != track.mediaTimescale) {
+                    throw new IOException("Track '" + Mp4Box.typeName(track.handler) + "' of " + other.file
+                            + " uses timescale " + match.mediaTimescale + " instead of " + track.mediaTimescale);
+                }
+            }
+        }
+    }
+}
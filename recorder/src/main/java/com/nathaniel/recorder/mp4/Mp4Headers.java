@@ -0,0 +1,250 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.IOException;
+
+/**
+ * Writers for the descriptive boxes every MP4 written from scratch needs: file type, movie, track and
+ * media headers, handlers and the avc1/mp4a sample entries.
+ *
+ * @author nathaniel
+ */
+final class Mp4Headers {
+
+    static final int MOVIE_TIMESCALE = 1000;
+    static final int VIDEO_TIMESCALE = 90000;
+
+    private static final int FIXED_ONE = 0x00010000;
+    private static final int FIXED_2_30_ONE = 0x40000000;
+    /**
+     * 'und' as packed ISO-639-2/T language code
+     */
+    private static final int LANGUAGE_UNDETERMINED = 0x55C4;
+    private static final int TRACK_ENABLED_IN_MOVIE = 0x3;
+    private static final int AAC_OBJECT_TYPE = 0x40;
+    private static final int AUDIO_STREAM_TYPE = 0x15;
+
+    private Mp4Headers() {
+    }
+
+    static void writeFtyp(BoxWriter writer, String majorBrand, int minorVersion, String... compatibleBrands)
+            throws IOException {
+        writer.begin(Mp4Box.FTYP);
+        writer.writeInt(Mp4Box.fourcc(majorBrand));
+        writer.writeInt(minorVersion);
+        for (String brand : compatibleBrands) {
+            writer.writeInt(Mp4Box.fourcc(brand));
+        }
+        writer.end();
+    }
+
+    static void writeMvhd(BoxWriter writer, long duration, int nextTrackId) throws IOException {
+        boolean wide = duration > 0xFFFFFFFFL;
+        writer.beginFull(Mp4Box.MVHD, wide ? 1 : 0, 0);
+        writeTimes(writer, wide);
+        writer.writeInt(MOVIE_TIMESCALE);
+        writeDuration(writer, duration, wide);
+        // rate, volume, reserved
+        writer.writeInt(FIXED_ONE);
+        writer.writeShort(0x0100);
+        writer.writeZeros(10);
+        writeMatrix(writer, 0);
+        // pre_defined
+        writer.writeZeros(24);
+        writer.writeInt(nextTrackId);
+        writer.end();
+    }
+
+    /**
+     * @param rotation clockwise rotation of the video in degrees, 0/90/180/270
+     */
+    static void writeTkhd(BoxWriter writer, int trackId, long duration, boolean audio, int width, int height,
+                          int rotation) throws IOException {
+        boolean wide = duration > 0xFFFFFFFFL;
+        writer.beginFull(Mp4Box.TKHD, wide ? 1 : 0, TRACK_ENABLED_IN_MOVIE);
+        writeTimes(writer, wide);
+        writer.writeInt(trackId);
+        writer.writeInt(0);
+        writeDuration(writer, duration, wide);
+        writer.writeZeros(8);
+        // layer, alternate_group
+        writer.writeShort(0);
+        writer.writeShort(audio ? 1 : 0);
+        writer.writeShort(audio ? 0x0100 : 0);
+        writer.writeShort(0);
+        writeMatrix(writer, rotation);
+        writer.writeInt(width << 16);
+        writer.writeInt(height << 16);
+        writer.end();
+    }
+
+    static void writeMdhd(BoxWriter writer, int timescale, long duration) throws IOException {
+        boolean wide = duration > 0xFFFFFFFFL;
+        writer.beginFull(Mp4Box.MDHD, wide ? 1 : 0, 0);
+        writeTimes(writer, wide);
+        writer.writeInt(timescale);
+        writeDuration(writer, duration, wide);
+        writer.writeShort(LANGUAGE_UNDETERMINED);
+        writer.writeShort(0);
+        writer.end();
+    }
+
+    static void writeHdlr(BoxWriter writer, boolean audio) throws IOException {
+        writer.beginFull(Mp4Box.HDLR, 0, 0);
+        writer.writeInt(0);
+        writer.writeInt(audio ? Mp4Box.SOUN : Mp4Box.VIDE);
+        writer.writeZeros(12);
+        writer.write((audio ? "SoundHandle\0" : "VideoHandle\0").getBytes("US-ASCII"));
+        writer.end();
+    }
+
+    /**
+     * Writes vmhd or smhd followed by a dinf that points to the file itself.
+     */
+    static void writeMediaInformationHeaders(BoxWriter writer, boolean audio) throws IOException {
+        if (audio) {
+            writer.beginFull(Mp4Box.SMHD, 0, 0);
+            writer.writeInt(0);
+        } else {
+            writer.beginFull(Mp4Box.VMHD, 0, 1);
+            writer.writeZeros(8);
+        }
+        writer.end();
+        writer.begin(Mp4Box.DINF);
+        writer.beginFull(Mp4Box.DREF, 0, 0);
+        writer.writeInt(1);
+        // flag 1: media data is in the same file
+        writer.beginFull(Mp4Box.URL, 0, 1);
+        writer.end();
+        writer.end();
+        writer.end();
+    }
+
+    /**
+     * Writes an avc1 sample entry with its avcC, using 4-byte NAL unit lengths.
+     *
+     * @param sps sequence parameter set without start code
+     * @param pps picture parameter set without start code
+     */
+    static void writeAvc1(BoxWriter writer, int width, int height, byte[] sps, byte[] pps) throws IOException {
+        writer.begin(Mp4Box.AVC1);
+        writer.writeZeros(6);
+        writer.writeShort(1);
+        writer.writeZeros(16);
+        writer.writeShort(width);
+        writer.writeShort(height);
+        // 72 dpi
+        writer.writeInt(0x00480000);
+        writer.writeInt(0x00480000);
+        writer.writeInt(0);
+        writer.writeShort(1);
+        writer.writeZeros(32);
+        writer.writeShort(0x0018);
+        writer.writeShort(-1);
+        writer.begin(Mp4Box.AVCC);
+        writer.writeByte(1);
+        writer.writeByte(sps[1]);
+        writer.writeByte(sps[2]);
+        writer.writeByte(sps[3]);
+        writer.writeByte(0xFC | 3);
+        writer.writeByte(0xE0 | 1);
+        writer.writeShort(sps.length);
+        writer.write(sps);
+        writer.writeByte(1);
+        writer.writeShort(pps.length);
+        writer.write(pps);
+        writer.end();
+        writer.end();
+    }
+
+    /**
+     * Writes an mp4a sample entry with an esds carrying the AudioSpecificConfig.
+     */
+    static void writeMp4a(BoxWriter writer, int sampleRate, int channelCount, int bitRate, byte[] audioSpecificConfig)
+            throws IOException {
+        writer.begin(Mp4Box.MP4A);
+        writer.writeZeros(6);
+        writer.writeShort(1);
+        writer.writeZeros(8);
+        writer.writeShort(channelCount);
+        writer.writeShort(16);
+        writer.writeInt(0);
+        writer.writeInt(sampleRate << 16);
+        writer.beginFull(Mp4Box.ESDS, 0, 0);
+        int decoderSpecificSize = 2 + audioSpecificConfig.length;
+        int decoderConfigSize = 2 + 13 + decoderSpecificSize;
+        // ES_Descriptor
+        writer.writeByte(0x03);
+        writer.writeByte(3 + decoderConfigSize + 3);
+        writer.writeShort(0);
+        writer.writeByte(0);
+        // DecoderConfigDescriptor
+        writer.writeByte(0x04);
+        writer.writeByte(13 + decoderSpecificSize);
+        writer.writeByte(AAC_OBJECT_TYPE);
+        writer.writeByte(AUDIO_STREAM_TYPE);
+        // bufferSizeDB
+        writer.writeByte(0);
+        writer.writeShort(0);
+        writer.writeInt(bitRate);
+        writer.writeInt(bitRate);
+        // DecoderSpecificInfo
+        writer.writeByte(0x05);
+        writer.writeByte(audioSpecificConfig.length);
+        writer.write(audioSpecificConfig);
+        // SLConfigDescriptor
+        writer.writeByte(0x06);
+        writer.writeByte(1);
+        writer.writeByte(0x02);
+        writer.end();
+        writer.end();
+    }
+
+    private static void writeTimes(BoxWriter writer, boolean wide) throws IOException {
+        // creation_time and modification_time are left unset
+        writer.writeZeros(wide ? 16 : 8);
+    }
+
+    private static void writeDuration(BoxWriter writer, long duration, boolean wide) throws IOException {
+        if (wide) {
+            writer.writeLong(duration);
+        } else {
+            writer.writeUInt(duration);
+        }
+    }
+
+    private static void writeMatrix(BoxWriter writer, int rotation) throws IOException {
+        int a = FIXED_ONE;
+        int b = 0;
+        int c = 0;
+        int d = FIXED_ONE;
+        switch (rotation) {
+            case 90:
+                a = 0;
+                b = FIXED_ONE;
+                c = -FIXED_ONE;
+                d = 0;
+                break;
+            case 180:
+                a = -FIXED_ONE;
+                d = -FIXED_ONE;
+                break;
+            case 270:
+                a = 0;
+                b = -FIXED_ONE;
+                c = FIXED_ONE;
+                d = 0;
+                break;
+            default:
+                break;
+        }
+        writer.writeInt(a);
+        writer.writeInt(b);
+        writer.writeInt(0);
+        writer.writeInt(c);
+        writer.writeInt(d);
+        writer.writeInt(0);
+        writer.writeInt(0);
+        writer.writeInt(0);
+        writer.writeInt(FIXED_2_30_ONE);
+    }
+}
@@ -0,0 +1,726 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Rebuilds the index of an MP4 whose writer died before writing {@code moov}, leaving {@code ftyp} and a
+ * partial {@code mdat}.
+ * <p>
+ * The media data is scanned for H.264 access units stored as NAL units with 4-byte length prefixes (what
+ * MediaRecorder and {@link FragmentedMp4Writer} write) and for ADTS framed AAC. Sample tables are rebuilt
+ * from what was found, the {@code mdat} header is patched and a {@code moov} is appended in place, so
+ * nothing is copied. Raw AAC frames carry no length and can not be told apart without decoding them;
+ * runs of such data are skipped and the file is recovered without them, {@link Result#isAudioDropped()}
+ * tells when that happened. Timestamps are not stored in
+ * media data, video samples get the nominal frame rate and AAC frames 1024 samples each.
+ * <p>
+ * The file is read through a {@link MappedScanner}, only the rebuilt sample tables (a few bytes per
+ * sample) live on the heap.
+ *
+ * @author nathaniel
+ */
+public final class Mp4Recovery {
+
+    /**
+     * NAL units larger than this are treated as garbage, a 4K key frame stays well below
+     */
+    private static final long MAX_NAL_SIZE = 8 * 1024 * 1024;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int AAC_LC_OBJECT_TYPE = 2;
+    private static final int[] ADTS_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050,
+            16000, 12000, 11025, 8000, 7350};
+
+    private Mp4Recovery() {
+    }
+
+    /**
+     * What is known about the recording from outside of the file.
+     */
+    public static final class Config {
+        private final int width;
+        private final int height;
+        private final int frameRate;
+        private int rotation;
+        private byte[] sps;
+        private byte[] pps;
+        private byte[] audioSpecificConfig;
+
+        public Config(int width, int height, int frameRate) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate > 0 ? frameRate : 30;
+        }
+
+        /**
+         * @param rotation clockwise display rotation in degrees
+         */
+        public Config setRotation(int rotation) {
+            this.rotation = rotation;
+            return this;
+        }
+
+        /**
+         * Parameter sets of the encoder, without start codes. If not set, parameter sets found in the media
+         * data are used; without either the video can not be recovered.
+         */
+        public Config setVideoCodecConfig(byte[] sps, byte[] pps) {
+            this.sps = sps;
+            this.pps = pps;
+            return this;
+        }
+
+        /**
+         * AudioSpecificConfig of the encoder, see {@link #aacLcConfig}. If not set, it is derived from the first
+         * ADTS header.
+         */
+        public Config setAudioSpecificConfig(byte[] audioSpecificConfig) {
+            this.audioSpecificConfig = audioSpecificConfig;
+            return this;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public byte[] getSps() {
+            return sps;
+        }
+
+        public byte[] getPps() {
+            return pps;
+        }
+
+        public byte[] getAudioSpecificConfig() {
+            return audioSpecificConfig;
+        }
+    }
+
+    /**
+     * @return the 2 byte AudioSpecificConfig of AAC LC at the given format, or null if the sample rate has no
+     * index of its own
+     */
+    public static byte[] aacLcConfig(int sampleRate, int channelCount) {
+        for (int index = 0; index < ADTS_SAMPLE_RATES.length; index++) {
+            if (ADTS_SAMPLE_RATES[index] == sampleRate) {
+                return audioSpecificConfig(AAC_LC_OBJECT_TYPE, index, channelCount);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] audioSpecificConfig(int objectType, int rateIndex, int channelCount) {
+        return new byte[]{(byte) ((objectType << 3) | (rateIndex >> 1)),
+                (byte) (((rateIndex & 0x01) << 7) | (channelCount << 3))};
+    }
+
+    /**
+     * Outcome of a recovery.
+     */
+    public static final class Result {
+        private int videoSamples;
+        private int audioSamples;
+        private long skippedBytes;
+        private long droppedAudioBytes;
+        private long durationMs;
+
+        public int getVideoSamples() {
+            return videoSamples;
+        }
+
+        public int getAudioSamples() {
+            return audioSamples;
+        }
+
+        /**
+         * @return bytes of media data that could not be assigned to a sample
+         */
+        public long getSkippedBytes() {
+            return skippedBytes;
+        }
+
+        /**
+         * @return skipped bytes that sit between two runs of video while no audio was recovered, which is where
+         * MediaRecorder and MediaMuxer interleave their raw AAC chunks
+         */
+        public long getDroppedAudioBytes() {
+            return droppedAudioBytes;
+        }
+
+        /**
+         * @return whether the file is likely to have had audio that was left out, the recovered file is silent
+         */
+        public boolean isAudioDropped() {
+            return droppedAudioBytes > 0;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return videoSamples + " video and " + audioSamples + " audio samples, " + durationMs + "ms, "
+                    + skippedBytes + " bytes skipped" + (isAudioDropped() ? ", audio dropped" : "");
+        }
+    }
+
+    /**
+     * @return whether the file has media data but no complete {@code moov}
+     */
+    public static boolean needsRecovery(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return findOrphanMdat(input.getChannel()) != null;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Recovers {@code file} in place.
+     *
+     * @throws IOException if the file is not an orphan or nothing could be recovered; the media data is left
+     *                     untouched in that case
+     */
+    public static Result recover(File file, Config config) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = output.getChannel();
+            long[] mdat = findOrphanMdat(channel);
+            if (mdat == null) {
+                throw new IOException(file + " has no orphan media data");
+            }
+            Scan scan = new Scan(config);
+            scan.run(new MappedScanner(channel, channel.size()), mdat[0] + mdat[1]);
+            boolean hasVideo = scan.video.count > 0 && scan.sps != null && scan.pps != null;
+            boolean hasAudio = scan.audio.count > 0 && scan.audioSpecificConfig != null;
+            if (!hasVideo && !hasAudio) {
+                throw new IOException("Nothing recoverable in " + file + ", " + scan.video.count + " video samples");
+            }
+
+            long mdatSize = scan.dataEnd - mdat[0];
+            ByteBuffer header = ByteBuffer.allocate((int) mdat[1]);
+            if (mdat[1] == Mp4Box.LARGE_HEADER_SIZE) {
+                header.putInt(1).putInt(Mp4Box.MDAT).putLong(mdatSize);
+            } else if (mdatSize <= 0xFFFFFFFFL) {
+                header.putInt((int) mdatSize).putInt(Mp4Box.MDAT);
+            } else {
+                throw new IOException("Media data of " + mdatSize + " bytes does not fit a 32-bit mdat header");
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, mdat[0] + header.position());
+            }
+
+            BoxWriter writer = new BoxWriter(channel, scan.dataEnd);
+            boolean use64BitOffsets = scan.dataEnd > 0xFFFFFFFFL;
+            long videoDuration = hasVideo
+                    ? (long) scan.video.count * Mp4Headers.VIDEO_TIMESCALE / config.frameRate : 0;
+            long audioDuration = hasAudio ? (long) scan.audio.count * AAC_FRAME_SAMPLES : 0;
+            Result result = new Result();
+            result.videoSamples = hasVideo ? scan.video.count : 0;
+            result.audioSamples = hasAudio ? scan.audio.count : 0;
+            result.skippedBytes = scan.skippedBytes;
+            result.droppedAudioBytes = hasAudio ? 0 : scan.interleavedBytes;
+            result.durationMs = Math.max(videoDuration * Mp4Headers.MOVIE_TIMESCALE / Mp4Headers.VIDEO_TIMESCALE,
+                    hasAudio ? audioDuration * Mp4Headers.MOVIE_TIMESCALE / scan.sampleRate : 0);
+
+            writer.begin(Mp4Box.MOOV);
+            int trackId = 1;
+            Mp4Headers.writeMvhd(writer, result.durationMs, (hasVideo ? 1 : 0) + (hasAudio ? 1 : 0) + 1);
+            if (hasVideo) {
+                writeTrack(writer, trackId++, false, scan.video, videoDuration, Mp4Headers.VIDEO_TIMESCALE,
+                        Mp4Headers.VIDEO_TIMESCALE / config.frameRate, result.durationMs, config, scan, use64BitOffsets);
+            }
+            if (hasAudio) {
+                writeTrack(writer, trackId, true, scan.audio, audioDuration, scan.sampleRate, AAC_FRAME_SAMPLES,
+                        result.durationMs, config, scan, use64BitOffsets);
+            }
+            writer.end();
+            writer.flush();
+            channel.truncate(writer.position());
+            channel.force(false);
+            return result;
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void writeTrack(BoxWriter writer, int trackId, boolean audio, SampleTable table, long mediaDuration,
+                                   int timescale, int sampleDuration, long movieDuration, Config config, Scan scan,
+                                   boolean use64BitOffsets) throws IOException {
+        writer.begin(Mp4Box.TRAK);
+        Mp4Headers.writeTkhd(writer, trackId, movieDuration, audio, audio ? 0 : config.width, audio ? 0 : config.height,
+                audio ? 0 : config.rotation);
+        writer.begin(Mp4Box.MDIA);
+        Mp4Headers.writeMdhd(writer, timescale, mediaDuration);
+        Mp4Headers.writeHdlr(writer, audio);
+        writer.begin(Mp4Box.MINF);
+        Mp4Headers.writeMediaInformationHeaders(writer, audio);
+        writer.begin(Mp4Box.STBL);
+        writer.beginFull(Mp4Box.STSD, 0, 0);
+        writer.writeInt(1);
+        if (audio) {
+            Mp4Headers.writeMp4a(writer, scan.sampleRate, scan.channelCount, 0, scan.audioSpecificConfig);
+        } else {
+            Mp4Headers.writeAvc1(writer, config.width, config.height, scan.sps, scan.pps);
+        }
+        writer.end();
+
+        writer.beginFull(Mp4Box.STTS, 0, 0);
+        writer.writeInt(1);
+        writer.writeInt(table.count);
+        writer.writeInt(sampleDuration);
+        writer.end();
+
+        if (table.syncCount < table.count) {
+            writer.beginFull(Mp4Box.STSS, 0, 0);
+            writer.writeInt(table.syncCount);
+            for (int i = 0; i < table.syncCount; i++) {
+                writer.writeInt(table.syncSamples[i]);
+            }
+            writer.end();
+        }
+
+        writer.beginFull(Mp4Box.STSZ, 0, 0);
+        writer.writeInt(0);
+        writer.writeInt(table.count);
+        for (int i = 0; i < table.count; i++) {
+            writer.writeInt(table.sizes[i]);
+        }
+        writer.end();
+
+        writer.beginFull(Mp4Box.STSC, 0, 0);
+        long countPosition = writer.position();
+        writer.writeInt(0);
+        int entries = 0;
+        int lastSamples = -1;
+        for (int i = 0; i < table.chunkCount; i++) {
+            if (table.chunkSamples[i] != lastSamples) {
+                writer.writeInt(i + 1);
+                writer.writeInt(table.chunkSamples[i]);
+                writer.writeInt(1);
+                lastSamples = table.chunkSamples[i];
+                entries++;
+            }
+        }
+        writer.patchInt(countPosition, entries);
+        writer.end();
+
+        writer.beginFull(use64BitOffsets ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0);
+        writer.writeInt(table.chunkCount);
+        for (int i = 0; i < table.chunkCount; i++) {
+            if (use64BitOffsets) {
+                writer.writeLong(table.chunkOffsets[i]);
+            } else {
+                writer.writeUInt(table.chunkOffsets[i]);
+            }
+        }
+        writer.end();
+        writer.end();
+        writer.end();
+        writer.end();
+        writer.end();
+    }
+
+    /**
+     * Walks the top level boxes without trusting the size of {@code mdat}, which writers fill in last.
+     *
+     * @return {position, header size} of the {@code mdat} to recover, or null if the file has a complete
+     * {@code moov} or no media data
+     */
+    static long[] findOrphanMdat(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(Mp4Box.LARGE_HEADER_SIZE);
+        long position = 0;
+        long[] mdat = null;
+        while (position + Mp4Box.HEADER_SIZE <= fileSize) {
+            header.clear();
+            header.limit(position + Mp4Box.LARGE_HEADER_SIZE <= fileSize ? Mp4Box.LARGE_HEADER_SIZE : Mp4Box.HEADER_SIZE);
+            Mp4Box.readFully(channel, header, position);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            int type = header.getInt(4);
+            int headerSize = Mp4Box.HEADER_SIZE;
+            if (size == 1 && header.limit() == Mp4Box.LARGE_HEADER_SIZE) {
+                size = header.getLong(8);
+                headerSize = Mp4Box.LARGE_HEADER_SIZE;
+            }
+            boolean complete = size >= headerSize && position + size <= fileSize;
+            if (type == Mp4Box.MOOV && complete) {
+                return null;
+            }
+            if (type == Mp4Box.MDAT && mdat == null) {
+                mdat = new long[]{position, headerSize};
+            }
+            if (!complete || size == headerSize && type == Mp4Box.MDAT) {
+                // Placeholder or garbage size, the rest of the file is media data
+                break;
+            }
+            position += size;
+        }
+        return mdat;
+    }
+
+    /**
+     * Truncates a fragmented MP4 after its last complete fragment, dropping a half written one.
+     *
+     * @return number of bytes removed
+     */
+    public static long trimFragmented(File file) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = output.getChannel();
+            long fileSize = channel.size();
+            long validEnd = 0;
+            boolean moofPending = false;
+            long position = 0;
+            while (position < fileSize) {
+                Mp4Box box;
+                try {
+                    box = Mp4Box.read(channel, position, fileSize);
+                } catch (IOException e) {
+                    break;
+                }
+                if (box == null || box.getEnd() > fileSize) {
+                    break;
+                }
+                if (box.getType() == Mp4Box.MOOF) {
+                    moofPending = true;
+                } else if (box.getType() == Mp4Box.MDAT && moofPending || box.getType() == Mp4Box.MOOV) {
+                    moofPending = false;
+                    validEnd = box.getEnd();
+                } else if (!moofPending) {
+                    validEnd = box.getEnd();
+                }
+                position = box.getEnd();
+            }
+            long removed = fileSize - validEnd;
+            if (removed > 0) {
+                channel.truncate(validEnd);
+                channel.force(false);
+            }
+            return removed;
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Reads the coded size and parameter sets of the first H.264 track of a complete MP4, to be used as
+     * codec config when recovering later recordings made with the same settings.
+     *
+     * @return config without frame rate, or null if there is no H.264 track
+     */
+    public static Config readVideoConfig(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            for (Mp4Box top : Mp4Box.readTopLevel(channel)) {
+                if (top.getType() != Mp4Box.MOOV) {
+                    continue;
+                }
+                for (Mp4Box trak : top.children(channel)) {
+                    Mp4Box stsd = trak.getType() == Mp4Box.TRAK
+                            ? trak.find(channel, Mp4Box.MDIA, Mp4Box.MINF, Mp4Box.STBL, Mp4Box.STSD) : null;
+                    if (stsd == null) {
+                        continue;
+                    }
+                    for (Mp4Box entry : Mp4Box.readChildren(channel, stsd.getPayloadOffset() + 8, stsd.getEnd())) {
+                        if (entry.getType() != Mp4Box.AVC1) {
+                            continue;
+                        }
+                        // VisualSampleEntry fields take 78 bytes before the child boxes, width and height at 24
+                        ByteBuffer size = ByteBuffer.allocate(4);
+                        Mp4Box.readFully(channel, size, entry.getPayloadOffset() + 24);
+                        for (Mp4Box child : Mp4Box.readChildren(channel, entry.getPayloadOffset() + 78, entry.getEnd())) {
+                            byte[][] parameterSets = child.getType() == Mp4Box.AVCC
+                                    ? parseAvcC(child.readPayload(channel)) : null;
+                            if (parameterSets != null) {
+                                return new Config(size.getShort(0) & 0xFFFF, size.getShort(2) & 0xFFFF, 0)
+                                        .setVideoCodecConfig(parameterSets[0], parameterSets[1]);
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[][] parseAvcC(ByteBuffer avcC) {
+        avcC.position(5);
+        int spsCount = avcC.get() & 0x1F;
+        byte[] sps = null;
+        for (int i = 0; i < spsCount; i++) {
+            byte[] unit = new byte[avcC.getShort() & 0xFFFF];
+            avcC.get(unit);
+            if (sps == null) {
+                sps = unit;
+            }
+        }
+        int ppsCount = avcC.get() & 0xFF;
+        byte[] pps = null;
+        for (int i = 0; i < ppsCount; i++) {
+            byte[] unit = new byte[avcC.getShort() & 0xFFFF];
+            avcC.get(unit);
+            if (pps == null) {
+                pps = unit;
+            }
+        }
+        return sps == null || pps == null ? null : new byte[][]{sps, pps};
+    }
+
+    /**
+     * Sample sizes, sync samples and chunks of one track, chunks being runs of adjacent samples.
+     */
+    private static final class SampleTable {
+        int[] sizes = new int[1024];
+        int count;
+        int[] syncSamples = new int[64];
+        int syncCount;
+        long[] chunkOffsets = new long[64];
+        int[] chunkSamples = new int[64];
+        int chunkCount;
+        long lastEnd = -1;
+
+        void add(long offset, int size, boolean sync) {
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            sizes[count++] = size;
+            if (sync) {
+                if (syncCount == syncSamples.length) {
+                    syncSamples = Arrays.copyOf(syncSamples, syncCount * 2);
+                }
+                syncSamples[syncCount++] = count;
+            }
+            if (offset == lastEnd) {
+                chunkSamples[chunkCount - 1]++;
+            } else {
+                if (chunkCount == chunkOffsets.length) {
+                    chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+                    chunkSamples = Arrays.copyOf(chunkSamples, chunkCount * 2);
+                }
+                chunkOffsets[chunkCount] = offset;
+                chunkSamples[chunkCount++] = 1;
+            }
+            lastEnd = offset + size;
+        }
+    }
+
+    /**
+     * One pass over the media data.
+     */
+    private static final class Scan {
+        final SampleTable video = new SampleTable();
+        final SampleTable audio = new SampleTable();
+        byte[] sps;
+        byte[] pps;
+        byte[] audioSpecificConfig;
+        int sampleRate;
+        int channelCount;
+        long dataEnd;
+        long skippedBytes;
+        /**
+         * Skipped bytes with video on both sides
+         */
+        long interleavedBytes;
+
+        Scan(Config config) {
+            sps = config.sps;
+            pps = config.pps;
+            audioSpecificConfig = config.audioSpecificConfig;
+        }
+
+        void run(MappedScanner scanner, long dataStart) throws IOException {
+            long end = scanner.size();
+            long position = dataStart;
+            boolean inVideo = false;
+            dataEnd = dataStart;
+            while (position < end) {
+                long nalEnd = nalEnd(scanner, position);
+                if (nalEnd > 0 && (inVideo || nalEnd == end || nalEnd(scanner, nalEnd) > 0)) {
+                    position = readAccessUnit(scanner, position);
+                    dataEnd = position;
+                    inVideo = true;
+                    continue;
+                }
+                int frameLength = adtsFrameLength(scanner, position);
+                if (frameLength > 0) {
+                    int headerSize = (scanner.get(position + 1) & 0x01) != 0 ? ADTS_HEADER_SIZE : ADTS_HEADER_SIZE + 2;
+                    if (audioSpecificConfig == null || sampleRate == 0) {
+                        readAdtsConfig(scanner, position);
+                    }
+                    audio.add(position + headerSize, frameLength - headerSize, true);
+                    position += frameLength;
+                    dataEnd = position;
+                    inVideo = false;
+                    continue;
+                }
+                // Raw audio or a torn write: skip to where video or ADTS audio continues
+                long next = position + 1;
+                while (next < end && !isVideoStart(scanner, next) && adtsFrameLength(scanner, next) < 0) {
+                    next++;
+                }
+                skippedBytes += next - position;
+                if (inVideo && next < end && isVideoStart(scanner, next)) {
+                    interleavedBytes += next - position;
+                }
+                position = next;
+                inVideo = false;
+            }
+            if (sampleRate == 0 && audioSpecificConfig != null && audioSpecificConfig.length >= 2) {
+                int index = ((audioSpecificConfig[0] & 0x07) << 1) | ((audioSpecificConfig[1] & 0x80) >> 7);
+                sampleRate = index < ADTS_SAMPLE_RATES.length ? ADTS_SAMPLE_RATES[index] : 44100;
+                channelCount = (audioSpecificConfig[1] >> 3) & 0x0F;
+            }
+        }
+
+        /**
+         * Reads the NAL units of one access unit starting at {@code position}.
+         *
+         * @return end of the access unit
+         */
+        private long readAccessUnit(MappedScanner scanner, long start) throws IOException {
+            long end = scanner.size();
+            long position = start;
+            boolean sawSlice = false;
+            boolean sync = false;
+            while (position < end) {
+                long unitEnd = nalEnd(scanner, position);
+                if (unitEnd < 0) {
+                    break;
+                }
+                int type = scanner.get(position + 4) & 0x1F;
+                boolean slice = type == AvcUtils.NAL_TYPE_NON_IDR || type == AvcUtils.NAL_TYPE_IDR;
+                if (sawSlice && (!slice || (scanner.get(position + 5) & 0x80) != 0)) {
+                    // A non-slice unit or a slice with first_mb_in_slice == 0 starts the next picture
+                    break;
+                }
+                if (type == AvcUtils.NAL_TYPE_SPS && sps == null) {
+                    sps = readBytes(scanner, position + 4, unitEnd);
+                } else if (type == AvcUtils.NAL_TYPE_PPS && pps == null) {
+                    pps = readBytes(scanner, position + 4, unitEnd);
+                }
+                sawSlice |= slice;
+                sync |= type == AvcUtils.NAL_TYPE_IDR;
+                position = unitEnd;
+            }
+            video.add(start, (int) (position - start), sync);
+            return position;
+        }
+
+        /**
+         * A position where video continues after skipped data: a NAL unit followed by another one or by the
+         * end of the file.
+         */
+        private static boolean isVideoStart(MappedScanner scanner, long position) throws IOException {
+            long unitEnd = nalEnd(scanner, position);
+            return unitEnd > 0 && (unitEnd == scanner.size() || nalEnd(scanner, unitEnd) > 0);
+        }
+
+        /**
+         * @return end of the length prefixed NAL unit at {@code position}, or -1 if there is no plausible one
+         */
+        private static long nalEnd(MappedScanner scanner, long position) throws IOException {
+            if (!scanner.has(position, 6)) {
+                return -1;
+            }
+            long length = scanner.getInt(position) & 0xFFFFFFFFL;
+            if (length < 2 || length > MAX_NAL_SIZE || !scanner.has(position + 4, length)) {
+                return -1;
+            }
+            int header = scanner.get(position + 4);
+            if ((header & 0x80) != 0) {
+                return -1;
+            }
+            int referenceIdc = header >> 5;
+            switch (header & 0x1F) {
+                case AvcUtils.NAL_TYPE_NON_IDR:
+                    break;
+                case AvcUtils.NAL_TYPE_IDR:
+                case AvcUtils.NAL_TYPE_SPS:
+                case AvcUtils.NAL_TYPE_PPS:
+                    if (referenceIdc == 0) {
+                        return -1;
+                    }
+                    break;
+                case AvcUtils.NAL_TYPE_SEI:
+                case AvcUtils.NAL_TYPE_AUD:
+                    if (referenceIdc != 0) {
+                        return -1;
+                    }
+                    break;
+                default:
+                    return -1;
+            }
+            return position + 4 + length;
+        }
+
+        /**
+         * @return length of the ADTS frame at {@code position} if it is followed by another frame, video or
+         * the end of the file, otherwise -1
+         */
+        private static int adtsFrameLength(MappedScanner scanner, long position) throws IOException {
+            int length = adtsHeaderLength(scanner, position);
+            if (length < 0) {
+                return -1;
+            }
+            long next = position + length;
+            if (next == scanner.size() || adtsHeaderLength(scanner, next) > 0 || nalEnd(scanner, next) > 0) {
+                return length;
+            }
+            return -1;
+        }
+
+        private static int adtsHeaderLength(MappedScanner scanner, long position) throws IOException {
+            if (!scanner.has(position, ADTS_HEADER_SIZE)) {
+                return -1;
+            }
+            // 12 sync bits and layer 00
+            if (scanner.get(position) != 0xFF || (scanner.get(position + 1) & 0xF6) != 0xF0) {
+                return -1;
+            }
+            int length = ((scanner.get(position + 3) & 0x03) << 11) | (scanner.get(position + 4) << 3)
+                    | (scanner.get(position + 5) >> 5);
+            if (length <= ADTS_HEADER_SIZE + 2 || !scanner.has(position, length)) {
+                return -1;
+            }
+            return length;
+        }
+
+        private void readAdtsConfig(MappedScanner scanner, long position) throws IOException {
+            int profile = scanner.get(position + 2) >> 6;
+            int rateIndex = (scanner.get(position + 2) >> 2) & 0x0F;
+            int channels = ((scanner.get(position + 2) & 0x01) << 2) | (scanner.get(position + 3) >> 6);
+            if (rateIndex >= ADTS_SAMPLE_RATES.length) {
+                return;
+            }
+            sampleRate = ADTS_SAMPLE_RATES[rateIndex];
+            channelCount = channels;
+            if (audioSpecificConfig == null) {
+                audioSpecificConfig = Mp4Recovery.audioSpecificConfig(profile + 1, rateIndex, channels);
+            }
+        }
+
+        private static byte[] readBytes(MappedScanner scanner, long from, long to) throws IOException {
+            byte[] bytes = new byte[(int) (to - from)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) scanner.get(from + i);
+            }
+            return bytes;
+        }
+    }
+}
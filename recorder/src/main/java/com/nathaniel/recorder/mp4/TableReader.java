@@ -0,0 +1,66 @@
+package com.nathaniel.recorder.mp4;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the big-endian entries of a sample table through a small fixed buffer, so tables of any length
+ * can be read without holding them in memory. One instance can be reused for many tables.
+ *
+ * @author nathaniel
+ */
+public final class TableReader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private FileChannel channel;
+    private long position;
+    private long end;
+
+    /**
+     * Starts reading {@code length} bytes at {@code offset}.
+     */
+    public TableReader reset(FileChannel channel, long offset, long length) {
+        this.channel = channel;
+        this.position = offset;
+        this.end = offset + length;
+        buffer.clear().limit(0);
+        return this;
+    }
+
+    public int readInt() throws IOException {
+        fill(4);
+        return buffer.getInt();
+    }
+
+    public long readUInt() throws IOException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    public long readLong() throws IOException {
+        fill(8);
+        return buffer.getLong();
+    }
+
+    private void fill(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return;
+        }
+        buffer.compact();
+        int wanted = (int) Math.min(buffer.remaining(), end - position);
+        buffer.limit(buffer.position() + wanted);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Sample table truncated at " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
+        if (buffer.remaining() < count) {
+            throw new EOFException("Sample table truncated at " + position);
+        }
+    }
+}
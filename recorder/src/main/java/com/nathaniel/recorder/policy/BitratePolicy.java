@@ -0,0 +1,207 @@
+package com.nathaniel.recorder.policy;
+
+/**
+ * Chooses the video encoder bitrate from the negotiated resolution and frame rate instead of a fixed
+ * number, so a 480p take does not get the bitrate of a 1080p one.
+ * <p>
+ * The model is bits per pixel per frame: {@code bitRate = width * height * frameRate * bitsPerPixel *
+ * codecFactor}, clamped to {@code [minBitRate, maxBitRate]}. The codec factor expresses how many bits a
+ * codec needs relative to H.264 for similar quality. Instances are immutable; the {@code with} methods
+ * return modified copies.
+ *
+ * @author nathaniel
+ */
+public final class BitratePolicy {
+
+    /**
+     * 0.1 bits per pixel per frame is a common H.264 target for camera content: about 6 Mb/s at 1080p30
+     * and 2.8 Mb/s at 720p30.
+     */
+    public static final float DEFAULT_BITS_PER_PIXEL = 0.1f;
+    public static final int DEFAULT_MIN_BIT_RATE = 500 * 1000;
+    public static final int DEFAULT_MAX_BIT_RATE = 20 * 1000 * 1000;
+
+    /**
+     * Video codecs with their default factor relative to H.264.
+     */
+    public enum Codec {
+        H264(1.0f),
+        HEVC(0.65f),
+        VP8(1.1f),
+        VP9(0.7f),
+        MPEG4_SP(1.6f);
+
+        private final float defaultFactor;
+
+        Codec(float defaultFactor) {
+            this.defaultFactor = defaultFactor;
+        }
+
+        public float getDefaultFactor() {
+            return defaultFactor;
+        }
+    }
+
+    /**
+     * Result of {@link #estimate}.
+     */
+    public static final class Estimate {
+        private final int width;
+        private final int height;
+        private final int frameRate;
+        private final int videoBitRate;
+        private final int audioBitRate;
+
+        Estimate(int width, int height, int frameRate, int videoBitRate, int audioBitRate) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.videoBitRate = videoBitRate;
+            this.audioBitRate = audioBitRate;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getFrameRate() {
+            return frameRate;
+        }
+
+        /**
+         * @return encoder bitrate in bits per second
+         */
+        public int getVideoBitRate() {
+            return videoBitRate;
+        }
+
+        public int getAudioBitRate() {
+            return audioBitRate;
+        }
+
+        /**
+         * @return expected file growth in bytes per second, video plus audio, container overhead ignored
+         */
+        public long getBytesPerSecond() {
+            return ((long) videoBitRate + audioBitRate) / 8;
+        }
+
+        /**
+         * @return bits per pixel per frame actually granted after clamping
+         */
+        public float getBitsPerPixel() {
+            long pixelsPerSecond = (long) width * height * frameRate;
+            return pixelsPerSecond == 0 ? 0 : videoBitRate / (float) pixelsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + frameRate + " video " + videoBitRate + " b/s (" + getBitsPerPixel()
+                    + " bpp), audio " + audioBitRate + " b/s, " + getBytesPerSecond() + " B/s";
+        }
+    }
+
+    private final float bitsPerPixel;
+    private final int minBitRate;
+    private final int maxBitRate;
+    private final float[] codecFactors;
+
+    public BitratePolicy() {
+        this(DEFAULT_BITS_PER_PIXEL, DEFAULT_MIN_BIT_RATE, DEFAULT_MAX_BIT_RATE, defaultFactors());
+    }
+
+    private BitratePolicy(float bitsPerPixel, int minBitRate, int maxBitRate, float[] codecFactors) {
+        if (bitsPerPixel <= 0) {
+            throw new IllegalArgumentException("bitsPerPixel must be positive: " + bitsPerPixel);
+        }
+        if (minBitRate <= 0 || maxBitRate < minBitRate) {
+            throw new IllegalArgumentException("Bad bitrate range [" + minBitRate + ", " + maxBitRate + "]");
+        }
+        this.bitsPerPixel = bitsPerPixel;
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.codecFactors = codecFactors;
+    }
+
+    private static float[] defaultFactors() {
+        Codec[] codecs = Codec.values();
+        float[] factors = new float[codecs.length];
+        for (Codec codec : codecs) {
+            factors[codec.ordinal()] = codec.getDefaultFactor();
+        }
+        return factors;
+    }
+
+    /**
+     * @param bitsPerPixel H.264 bits per pixel per frame, higher is better quality and bigger files
+     */
+    public BitratePolicy withBitsPerPixel(float bitsPerPixel) {
+        return new BitratePolicy(bitsPerPixel, minBitRate, maxBitRate, codecFactors);
+    }
+
+    /**
+     * @param minBitRate lower cap in bits per second, keeps small sizes watchable
+     * @param maxBitRate upper cap in bits per second, bounds storage and upload cost
+     */
+    public BitratePolicy withLimits(int minBitRate, int maxBitRate) {
+        return new BitratePolicy(bitsPerPixel, minBitRate, maxBitRate, codecFactors);
+    }
+
+    /**
+     * @param factor bits this codec needs relative to H.264 for similar quality
+     */
+    public BitratePolicy withCodecFactor(Codec codec, float factor) {
+        if (factor <= 0) {
+            throw new IllegalArgumentException("Codec factor must be positive: " + factor);
+        }
+        float[] factors = codecFactors.clone();
+        factors[codec.ordinal()] = factor;
+        return new BitratePolicy(bitsPerPixel, minBitRate, maxBitRate, factors);
+    }
+
+    public float getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    public int getMinBitRate() {
+        return minBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    public float getCodecFactor(Codec codec) {
+        return codecFactors[codec.ordinal()];
+    }
+
+    /**
+     * @return video encoder bitrate in bits per second
+     */
+    public int videoBitRate(int width, int height, int frameRate, Codec codec) {
+        if (width <= 0 || height <= 0 || frameRate <= 0) {
+            throw new IllegalArgumentException("Bad format " + width + "x" + height + "@" + frameRate);
+        }
+        double bits = (double) width * height * frameRate * bitsPerPixel * codecFactors[codec.ordinal()];
+        return (int) Math.max(minBitRate, Math.min(maxBitRate, Math.round(bits)));
+    }
+
+    /**
+     * @param audioBitRate audio encoder bitrate in bits per second, 0 without audio
+     * @return bitrates and expected bytes per second for the negotiated format
+     */
+    public Estimate estimate(int width, int height, int frameRate, Codec codec, int audioBitRate) {
+        return new Estimate(width, height, frameRate, videoBitRate(width, height, frameRate, codec), audioBitRate);
+    }
+
+    /**
+     * Wraps a fixed bitrate as an estimate, for callers that still configure the bitrate by hand.
+     */
+    public static Estimate fixed(int width, int height, int frameRate, int videoBitRate, int audioBitRate) {
+        return new Estimate(width, height, frameRate, videoBitRate, audioBitRate);
+    }
+}
@@ -0,0 +1,98 @@
+package com.nathaniel.recorder.policy;
+
+import java.util.List;
+
+/**
+ * Chooses recording frame rates from the preview fps ranges a camera reports.
+ * <p>
+ * Ranges are {@code {min, max}} pairs in frames per second * 1000, as returned by
+ * {@code Camera.Parameters#getSupportedPreviewFpsRange()} or converted from camera2
+ * {@code CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES}. Frame rates passed in and returned are whole frames per
+ * second. Stateless; all methods are static.
+ *
+ * @author nathaniel
+ */
+public final class FrameRateSelector {
+
+    /**
+     * Index of the lower bound in a range, same as {@code Camera.Parameters.PREVIEW_FPS_MIN_INDEX}
+     */
+    public static final int MIN_INDEX = 0;
+    /**
+     * Index of the upper bound in a range, same as {@code Camera.Parameters.PREVIEW_FPS_MAX_INDEX}
+     */
+    public static final int MAX_INDEX = 1;
+
+    private FrameRateSelector() {
+    }
+
+    /**
+     * @param ranges    supported ranges, may be null
+     * @param frameRate target frame rate
+     * @return the target when a range contains it, otherwise the closest range bound; the target when there
+     * are no ranges
+     */
+    public static int findCloseFrameRate(List<int[]> ranges, int frameRate) {
+        // Ranges are scaled by 1000, compare in the same unit
+        int target = frameRate * 1000;
+        int resultRate = Integer.MIN_VALUE;
+        if (ranges != null) {
+            for (int[] range : ranges) {
+                if (target >= range[MIN_INDEX] && target <= range[MAX_INDEX]) {
+                    resultRate = target;
+                    break;
+                }
+                int minOffset = Math.abs(target - range[MIN_INDEX]);
+                int maxOffset = Math.abs(target - range[MAX_INDEX]);
+                int currentOffset = Math.abs(target - resultRate);
+                int offset = Math.min(Math.min(minOffset, maxOffset), currentOffset);
+                if (offset == minOffset) {
+                    resultRate = range[MIN_INDEX];
+                } else if (offset == maxOffset) {
+                    resultRate = range[MAX_INDEX];
+                }
+            }
+        }
+        if (resultRate == Integer.MIN_VALUE) {
+            resultRate = target;
+        }
+        return resultRate / 1000;
+    }
+
+    /**
+     * Picks the range that keeps the frame rate as constant as possible: a fixed range within one frame per
+     * second of the target, otherwise the containing range with the highest lower bound, otherwise the
+     * closest fixed range.
+     *
+     * @param ranges supported ranges, may be null
+     * @param fps    target frame rate
+     * @return one of the given ranges, null when there are none
+     */
+    public static int[] findConstantRange(List<int[]> ranges, int fps) {
+        if (ranges == null || ranges.isEmpty()) {
+            return null;
+        }
+        int target = fps * 1000;
+        int[] fixed = null;
+        int[] containing = null;
+        for (int[] range : ranges) {
+            int min = range[MIN_INDEX];
+            int max = range[MAX_INDEX];
+            if (min == max) {
+                // On a tie take the lower one, so the request is not exceeded
+                int offset = Math.abs(min - target);
+                int best = fixed == null ? Integer.MAX_VALUE : Math.abs(fixed[MIN_INDEX] - target);
+                if (offset < best || (offset == best && min < fixed[MIN_INDEX])) {
+                    fixed = range;
+                }
+            } else if (min <= target && target <= max
+                    && (containing == null || min > containing[MIN_INDEX])) {
+                containing = range;
+            }
+        }
+        if (fixed != null && (containing == null || Math.abs(fixed[MIN_INDEX] - target) <= 1000)) {
+            return fixed;
+        }
+        return containing != null ? containing : fixed;
+    }
+}
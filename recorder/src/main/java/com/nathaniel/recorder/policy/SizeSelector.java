@@ -0,0 +1,383 @@
+package com.nathaniel.recorder.policy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses preview and video sizes of one camera with a single cost function, so both streams get the same
+ * aspect ratio and, where the camera allows, the same size, and the ISP does not have to scale or crop one
+ * of them.
+ * <p>
+ * The cost of a candidate for a target is
+ * {@code aspectWeight * |ln(aspect / targetAspect)| + pixelWeight * |ln(pixels / targetPixels)|}, plus
+ * {@code mismatchPenalty} when the candidate does not match the other stream. Candidates outside the
+ * encoder limits are skipped. Sizes are compared in landscape orientation, so a portrait target such as
+ * 1080x1920 matches a 1920x1080 camera size.
+ * <p>
+ * The index is built once per camera: sizes are grouped by aspect ratio and each group is sorted by pixel
+ * count. A query binary searches the target pixel count in every group and scans outwards only while the
+ * pixel term alone can still beat the best candidate, which is O(g log n) for g aspect ratios, a handful on
+ * real devices. Instances are immutable and thread-safe; {@link #withCost} shares the index.
+ *
+ * @author nathaniel
+ */
+public final class SizeSelector {
+
+    /**
+     * Sizes whose aspect ratios differ by less than this are grouped together, e.g. 1920x1088 with 16:9
+     */
+    private static final double ASPECT_TOLERANCE = 0.01;
+
+    /**
+     * Weights and limits of the cost function. Immutable; the {@code with} methods return modified copies.
+     */
+    public static final class Cost {
+        /**
+         * Default cost: aspect distortion weighs four times as much as the pixel count difference, so
+         * 1440x1080 never beats 1280x720 for a 1920x1080 target, and a size that does not match the other
+         * stream loses against one that is about 28% further away in pixels.
+         */
+        public static final Cost DEFAULT = new Cost(4.0, 1.0, 0.25, Integer.MAX_VALUE, Integer.MAX_VALUE, 480 * 320);
+
+        private final double aspectWeight;
+        private final double pixelWeight;
+        private final double mismatchPenalty;
+        private final int maxLongSide;
+        private final int maxShortSide;
+        private final long minPreviewPixels;
+
+        private Cost(double aspectWeight, double pixelWeight, double mismatchPenalty, int maxLongSide,
+                     int maxShortSide, long minPreviewPixels) {
+            if (aspectWeight < 0 || pixelWeight < 0 || mismatchPenalty < 0) {
+                throw new IllegalArgumentException("Cost weights must not be negative");
+            }
+            if (maxLongSide <= 0 || maxShortSide <= 0) {
+                throw new IllegalArgumentException("Bad encoder limit " + maxLongSide + "x" + maxShortSide);
+            }
+            this.aspectWeight = aspectWeight;
+            this.pixelWeight = pixelWeight;
+            this.mismatchPenalty = mismatchPenalty;
+            this.maxLongSide = maxLongSide;
+            this.maxShortSide = maxShortSide;
+            this.minPreviewPixels = minPreviewPixels;
+        }
+
+        public Cost withAspectWeight(double aspectWeight) {
+            return new Cost(aspectWeight, pixelWeight, mismatchPenalty, maxLongSide, maxShortSide, minPreviewPixels);
+        }
+
+        public Cost withPixelWeight(double pixelWeight) {
+            return new Cost(aspectWeight, pixelWeight, mismatchPenalty, maxLongSide, maxShortSide, minPreviewPixels);
+        }
+
+        /**
+         * @param mismatchPenalty added when a video size is not a preview size, or a preview size is not
+         *                        the chosen video size
+         */
+        public Cost withMismatchPenalty(double mismatchPenalty) {
+            return new Cost(aspectWeight, pixelWeight, mismatchPenalty, maxLongSide, maxShortSide, minPreviewPixels);
+        }
+
+        /**
+         * @param maxWidth  largest width the encoder accepts
+         * @param maxHeight largest height the encoder accepts
+         */
+        public Cost withEncoderLimit(int maxWidth, int maxHeight) {
+            return new Cost(aspectWeight, pixelWeight, mismatchPenalty, Math.max(maxWidth, maxHeight),
+                    Math.min(maxWidth, maxHeight), minPreviewPixels);
+        }
+
+        /**
+         * @param minPreviewPixels preview sizes below this are skipped unless nothing else is left
+         */
+        public Cost withMinPreviewPixels(long minPreviewPixels) {
+            return new Cost(aspectWeight, pixelWeight, mismatchPenalty, maxLongSide, maxShortSide, minPreviewPixels);
+        }
+
+        public double getAspectWeight() {
+            return aspectWeight;
+        }
+
+        public double getPixelWeight() {
+            return pixelWeight;
+        }
+
+        public double getMismatchPenalty() {
+            return mismatchPenalty;
+        }
+
+        /**
+         * @return {long side, short side} of the encoder limit
+         */
+        public int[] getEncoderLimit() {
+            return new int[]{maxLongSide, maxShortSide};
+        }
+
+        public long getMinPreviewPixels() {
+            return minPreviewPixels;
+        }
+
+        /**
+         * @return every field in a stable form without ';' or '=', equal for equal costs, so sizes chosen
+         * under this cost can be persisted together with it
+         */
+        public String flatten() {
+            return aspectWeight + "/" + pixelWeight + "/" + mismatchPenalty + "/" + maxLongSide + "x" + maxShortSide
+                    + "/" + minPreviewPixels;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Cost)) {
+                return false;
+            }
+            Cost other = (Cost) o;
+            return Double.compare(aspectWeight, other.aspectWeight) == 0
+                    && Double.compare(pixelWeight, other.pixelWeight) == 0
+                    && Double.compare(mismatchPenalty, other.mismatchPenalty) == 0
+                    && maxLongSide == other.maxLongSide
+                    && maxShortSide == other.maxShortSide
+                    && minPreviewPixels == other.minPreviewPixels;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Double.valueOf(aspectWeight).hashCode();
+            result = 31 * result + Double.valueOf(pixelWeight).hashCode();
+            result = 31 * result + Double.valueOf(mismatchPenalty).hashCode();
+            result = 31 * result + maxLongSide;
+            result = 31 * result + maxShortSide;
+            return 31 * result + (int) (minPreviewPixels ^ (minPreviewPixels >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return "Cost " + flatten();
+        }
+    }
+
+    /**
+     * Sizes with one aspect ratio, sorted by pixel count.
+     */
+    private static final class Group {
+        final double aspect;
+        final long[] pixels;
+        final int[][] sizes;
+
+        Group(double aspect, long[] pixels, int[][] sizes) {
+            this.aspect = aspect;
+            this.pixels = pixels;
+            this.sizes = sizes;
+        }
+    }
+
+    private final Group[] previewGroups;
+    private final Group[] videoGroups;
+    /**
+     * Landscape keys of the preview sizes, sorted for binary search
+     */
+    private final long[] previewKeys;
+    private final Cost cost;
+
+    /**
+     * @param previewSizes supported preview sizes, each {width, height}
+     * @param videoSizes   supported video sizes, each {width, height}; null or empty when the camera records
+     *                     at preview sizes
+     */
+    public SizeSelector(int[][] previewSizes, int[][] videoSizes) {
+        this(previewSizes, videoSizes, Cost.DEFAULT);
+    }
+
+    public SizeSelector(int[][] previewSizes, int[][] videoSizes, Cost cost) {
+        int[][] previews = previewSizes == null ? new int[0][] : previewSizes;
+        this.previewGroups = index(previews);
+        this.videoGroups = videoSizes == null || videoSizes.length == 0 ? previewGroups : index(videoSizes);
+        long[] keys = new long[previews.length];
+        for (int i = 0; i < previews.length; i++) {
+            keys[i] = key(previews[i][0], previews[i][1]);
+        }
+        Arrays.sort(keys);
+        this.previewKeys = keys;
+        this.cost = cost;
+    }
+
+    private SizeSelector(SizeSelector other, Cost cost) {
+        this.previewGroups = other.previewGroups;
+        this.videoGroups = other.videoGroups;
+        this.previewKeys = other.previewKeys;
+        this.cost = cost;
+    }
+
+    /**
+     * @return a selector with the same sizes and another cost function
+     */
+    public SizeSelector withCost(Cost cost) {
+        return cost == this.cost ? this : new SizeSelector(this, cost);
+    }
+
+    public Cost getCost() {
+        return cost;
+    }
+
+    /**
+     * @param targetWidth  requested video width
+     * @param targetHeight requested video height
+     * @return the video size with the lowest cost as {width, height} in camera orientation, null when the
+     * camera reported no sizes
+     */
+    public int[] selectVideoSize(int targetWidth, int targetHeight) {
+        return select(videoGroups, targetWidth, targetHeight, previewKeys, 0);
+    }
+
+    /**
+     * @param targetWidth  width the preview should roughly have, e.g. the screen width, used when there is
+     *                     no video size
+     * @param targetHeight height the preview should roughly have
+     * @param videoSize    chosen video size {width, height}; when given the preview aims at its aspect ratio
+     *                     and size, so the same frames can feed preview, analysis and encoding
+     * @return the preview size with the lowest cost as {width, height} in camera orientation, null when the
+     * camera reported no preview sizes
+     */
+    public int[] selectPreviewSize(int targetWidth, int targetHeight, int[] videoSize) {
+        long[] match = null;
+        if (videoSize != null) {
+            targetWidth = videoSize[0];
+            targetHeight = videoSize[1];
+            match = new long[]{key(videoSize[0], videoSize[1])};
+        }
+        return select(previewGroups, targetWidth, targetHeight, match, cost.minPreviewPixels);
+    }
+
+    private int[] select(Group[] groups, int targetWidth, int targetHeight, long[] match, long minPixels) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            throw new IllegalArgumentException("Bad target " + targetWidth + "x" + targetHeight);
+        }
+        int[] result = select(groups, targetWidth, targetHeight, match, minPixels, true);
+        if (result == null) {
+            // Nothing within the limits, better some size than none
+            result = select(groups, targetWidth, targetHeight, match, 0, false);
+        }
+        return result;
+    }
+
+    private int[] select(Group[] groups, int targetWidth, int targetHeight, long[] match, long minPixels,
+                         boolean limited) {
+        int longSide = Math.max(targetWidth, targetHeight);
+        int shortSide = Math.min(targetWidth, targetHeight);
+        double targetAspect = longSide / (double) shortSide;
+        double logTargetPixels = Math.log((double) longSide * shortSide);
+        int[] best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (Group group : groups) {
+            double aspectCost = cost.aspectWeight * Math.abs(Math.log(group.aspect / targetAspect));
+            if (aspectCost >= bestCost) {
+                continue;
+            }
+            long[] pixels = group.pixels;
+            int split = Arrays.binarySearch(pixels, (long) longSide * shortSide);
+            if (split < 0) {
+                split = -split - 1;
+            }
+            // Walk down from the target, then up; each direction stops once the pixel term alone is too big
+            for (int i = split - 1; i >= 0; i--) {
+                double partial = aspectCost + cost.pixelWeight * (logTargetPixels - Math.log(pixels[i]));
+                if (partial >= bestCost || pixels[i] < minPixels) {
+                    break;
+                }
+                double total = partial + mismatch(group.sizes[i], match);
+                if (total < bestCost && (!limited || fits(group.sizes[i]))) {
+                    bestCost = total;
+                    best = group.sizes[i];
+                }
+            }
+            for (int i = split; i < pixels.length; i++) {
+                double partial = aspectCost + cost.pixelWeight * (Math.log(pixels[i]) - logTargetPixels);
+                if (partial >= bestCost) {
+                    break;
+                }
+                if (pixels[i] < minPixels) {
+                    continue;
+                }
+                double total = partial + mismatch(group.sizes[i], match);
+                if (total < bestCost && (!limited || fits(group.sizes[i]))) {
+                    bestCost = total;
+                    best = group.sizes[i];
+                }
+            }
+        }
+        return best == null ? null : best.clone();
+    }
+
+    private double mismatch(int[] size, long[] match) {
+        if (match == null || Arrays.binarySearch(match, key(size[0], size[1])) >= 0) {
+            return 0;
+        }
+        return cost.mismatchPenalty;
+    }
+
+    private boolean fits(int[] size) {
+        return Math.max(size[0], size[1]) <= cost.maxLongSide && Math.min(size[0], size[1]) <= cost.maxShortSide;
+    }
+
+    /**
+     * @return orientation independent key of a size, long side in the high word
+     */
+    private static long key(int width, int height) {
+        return (long) Math.max(width, height) << 32 | Math.min(width, height);
+    }
+
+    private static double aspect(int[] size) {
+        return Math.max(size[0], size[1]) / (double) Math.max(1, Math.min(size[0], size[1]));
+    }
+
+    private static Group[] index(int[][] sizes) {
+        List<int[]> valid = new ArrayList<>(sizes.length);
+        for (int[] size : sizes) {
+            if (size != null && size.length >= 2 && size[0] > 0 && size[1] > 0) {
+                valid.add(size);
+            }
+        }
+        int[][] sorted = valid.toArray(new int[valid.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Double.compare(aspect(a), aspect(b));
+            }
+        });
+        List<Group> groups = new ArrayList<>();
+        int from = 0;
+        while (from < sorted.length) {
+            double first = aspect(sorted[from]);
+            int to = from + 1;
+            while (to < sorted.length && aspect(sorted[to]) - first < ASPECT_TOLERANCE) {
+                to++;
+            }
+            groups.add(group(Arrays.copyOfRange(sorted, from, to)));
+            from = to;
+        }
+        return groups.toArray(new Group[groups.size()]);
+    }
+
+    private static Group group(int[][] sizes) {
+        Arrays.sort(sizes, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                long pa = (long) a[0] * a[1];
+                long pb = (long) b[0] * b[1];
+                return pa < pb ? -1 : (pa == pb ? 0 : 1);
+            }
+        });
+        long[] pixels = new long[sizes.length];
+        double aspectSum = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            pixels[i] = (long) sizes[i][0] * sizes[i][1];
+            aspectSum += aspect(sizes[i]);
+        }
+        return new Group(aspectSum / sizes.length, pixels, sizes);
+    }
+}
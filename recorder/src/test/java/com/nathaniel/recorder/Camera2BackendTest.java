@@ -0,0 +1,171 @@
+package com.nathaniel.recorder;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
+import android.graphics.Point;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.os.Looper;
+import android.util.Range;
+import android.util.Size;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowCameraCharacteristics;
+import org.robolectric.shadows.ShadowSurfaceView;
+import org.robolectric.shadows.StreamConfigurationMapBuilder;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 在 Robolectric 中用 ShadowCameraManager 提供的 camera2 相机打开会话
+ *
+ * @author nathaniel
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Camera2BackendTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private Application application;
+
+    @Before
+    public void setUp() {
+        application = RuntimeEnvironment.getApplication();
+        shadowOf(application).grantPermissions(Manifest.permission.CAMERA);
+        android.hardware.camera2.CameraManager systemCameraManager = (android.hardware.camera2.CameraManager)
+                application.getSystemService(Context.CAMERA_SERVICE);
+        shadowOf(systemCameraManager).addCamera("0", characteristics(CameraMetadata.LENS_FACING_BACK, 90));
+        shadowOf(systemCameraManager).addCamera("1", characteristics(CameraMetadata.LENS_FACING_FRONT, 270));
+    }
+
+    private static CameraCharacteristics characteristics(int facing, int orientation) {
+        CameraCharacteristics characteristics = ShadowCameraCharacteristics.newCameraCharacteristics();
+        ShadowCameraCharacteristics shadow = shadowOf(characteristics);
+        shadow.set(CameraCharacteristics.LENS_FACING, facing);
+        shadow.set(CameraCharacteristics.SENSOR_ORIENTATION, orientation);
+        shadow.set(CameraCharacteristics.FLASH_INFO_AVAILABLE, facing == CameraMetadata.LENS_FACING_BACK);
+        shadow.set(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES, new Range[]{
+                new Range<>(15, 15), new Range<>(7, 30), new Range<>(30, 30)});
+        shadow.set(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP, StreamConfigurationMapBuilder.newBuilder()
+                .addOutputSize(ImageFormat.PRIVATE, new Size(1920, 1080))
+                .addOutputSize(ImageFormat.PRIVATE, new Size(1440, 1080))
+                .addOutputSize(ImageFormat.PRIVATE, new Size(1280, 720))
+                .addOutputSize(ImageFormat.PRIVATE, new Size(640, 480))
+                .build());
+        return characteristics;
+    }
+
+    @Test
+    public void recorderViewOpensCamera2Session() throws Exception {
+        RecorderView view = new RecorderView(application);
+        view.setCameraApi(RecorderView.CAMERA_API_2);
+        view.surfaceCreated(view.getHolder());
+        view.openCamera();
+
+        // Surface 还不是选定的预览尺寸时，相机打开了也不创建会话
+        RecorderMetrics metrics = view.getMetrics();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (metrics.getTiming(RecorderMetrics.Stage.CAMERA_OPEN).getCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(10);
+        }
+        changeSurface(view, 640, 480);
+        Thread.sleep(100);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.CAMERA_OPEN).getCount());
+        assertEquals(0, metrics.getTiming(RecorderMetrics.Stage.START_PREVIEW).getCount());
+        assertEquals(RecorderState.OPENING, view.getRecorderState());
+
+        changeSurface(view, 1920, 1080);
+        waitFor(view, RecorderState.PREVIEWING);
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.CAMERA_OPEN).getCount());
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.START_PREVIEW).getCount());
+        assertTrue(metrics.getTiming(RecorderMetrics.Stage.SET_PARAMETERS).getCount() >= 1);
+        view.closeCamera();
+    }
+
+    @Test
+    public void backendChoosesSizeAndFpsRangeFromCharacteristics() throws Exception {
+        CameraManager cameraManager = new CameraManager(application);
+        Camera2Backend backend = new Camera2Backend(application, cameraManager);
+        backend.setRequestedVideoSize(1280, 720);
+        backend.setConstantFrameRate(30);
+        final AtomicReference<RecorderCamera> opened = new AtomicReference<>();
+        SurfaceView surfaceView = new SurfaceView(application);
+        backend.openAsync(surfaceView.getHolder(), CameraFacing.FRONT, new OnCameraListener() {
+            @Override
+            public void onCameraOpened(RecorderCamera camera) {
+                opened.set(camera);
+            }
+
+            @Override
+            public void onCameraClosed() {
+            }
+
+            @Override
+            public void onCameraError(Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (opened.get() == null && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            changeSurface(surfaceView, 1280, 720);
+            Thread.sleep(10);
+        }
+        RecorderCamera camera = opened.get();
+        assertNotNull("camera not opened", camera);
+        assertEquals(CameraFacing.FRONT, camera.getCameraFacing());
+        assertEquals(270, camera.getOrientation());
+        assertTrue(backend.isOpen());
+        assertEquals(new Point(1280, 720), backend.getCameraResolution());
+        assertArrayEquals(new int[]{30000, 30000}, backend.getPreviewFpsRange());
+        backend.closeAsync(null);
+        cameraManager.release();
+    }
+
+    /**
+     * Robolectric 的 SurfaceView 不会自己改变尺寸，按选定的预览尺寸回调 surfaceChanged
+     */
+    private static void changeSurface(SurfaceView view, int width, int height) {
+        ShadowSurfaceView.FakeSurfaceHolder holder = shadowOf(view).getFakeSurfaceHolder();
+        for (SurfaceHolder.Callback callback : new ArrayList<>(holder.getCallbacks())) {
+            callback.surfaceChanged(holder, PixelFormat.OPAQUE, width, height);
+        }
+    }
+
+    /**
+     * 相机在相机线程中打开，回调发到主线程，推进主线程直到录制器进入指定状态
+     */
+    static void waitFor(RecorderView view, RecorderState state) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (view.getRecorderState() != state && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        assertEquals(state, view.getRecorderState());
+    }
+}
@@ -0,0 +1,97 @@
+package com.nathaniel.recorder;
+
+import android.hardware.Camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowCamera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 打开相机失败后核对能力缓存：只替换与相机服务不符的条目，其余相机的参数与选定尺寸保持不变
+ *
+ * @author nathaniel
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CapabilitiesStoreTest {
+
+    private static final String PARAMETERS = "preview-size=640x480;"
+            + "preview-size-values=1920x1080,1280x720,640x480;";
+
+    private CapabilitiesStore store;
+
+    @Before
+    public void setUp() {
+        addCamera(0, Camera.CameraInfo.CAMERA_FACING_BACK, 90);
+        addCamera(1, Camera.CameraInfo.CAMERA_FACING_FRONT, 270);
+        store = new CapabilitiesStore(RuntimeEnvironment.getApplication());
+        assertEquals(2, store.getNumberOfCameras());
+        for (int i = 0; i < 2; i++) {
+            CameraCapabilities probed = store.get(i);
+            CameraCapabilities opened = CameraCapabilities.parse(i, probed.getFacing(), probed.getOrientation(), PARAMETERS);
+            opened.setChosenVideoSize(1920, 1080, 1920, 1080);
+            store.update(opened);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ShadowCamera.clearCameraInfo();
+    }
+
+    private static void addCamera(int id, int facing, int orientation) {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        info.facing = facing;
+        info.orientation = orientation;
+        ShadowCamera.addCameraInfo(id, info);
+    }
+
+    private CapabilitiesStore reload() {
+        return new CapabilitiesStore(RuntimeEnvironment.getApplication());
+    }
+
+    @Test
+    public void matchingCacheIsLeftAlone() {
+        assertFalse(store.reconcile());
+
+        CapabilitiesStore reloaded = reload();
+        for (int i = 0; i < 2; i++) {
+            assertTrue(reloaded.get(i).hasParameters());
+            assertArrayEquals(new int[]{1920, 1080}, reloaded.get(i).getChosenVideoSize(1920, 1080));
+        }
+    }
+
+    @Test
+    public void onlyTheChangedCameraIsProbedAgain() {
+        addCamera(1, Camera.CameraInfo.CAMERA_FACING_FRONT, 90);
+
+        assertTrue(store.reconcile());
+        CapabilitiesStore reloaded = reload();
+        assertTrue(reloaded.get(0).hasParameters());
+        assertArrayEquals(new int[]{1920, 1080}, reloaded.get(0).getChosenVideoSize(1920, 1080));
+        assertFalse(reloaded.get(1).hasParameters());
+        assertEquals(90, reloaded.get(1).getOrientation());
+        assertNull(reloaded.get(1).getChosenVideoSize(1920, 1080));
+    }
+
+    @Test
+    public void removedCameraIsDropped() {
+        ShadowCamera.clearCameraInfo();
+        addCamera(0, Camera.CameraInfo.CAMERA_FACING_BACK, 90);
+
+        assertTrue(store.reconcile());
+        CapabilitiesStore reloaded = reload();
+        assertEquals(1, reloaded.getNumberOfCameras());
+        assertTrue(reloaded.get(0).hasParameters());
+        assertEquals(CameraInterface.NO_REQUESTED_CAMERA, reloaded.findCameraId(CameraFacing.FRONT));
+    }
+}
@@ -0,0 +1,215 @@
+package com.nathaniel.recorder;
+
+import android.app.Application;
+import android.media.MediaCodecInfo;
+import android.media.MediaCrypto;
+import android.media.MediaFormat;
+import android.os.Looper;
+import android.view.Surface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.MediaCodecInfoBuilder;
+import org.robolectric.shadows.ShadowMediaCodec;
+import org.robolectric.shadows.ShadowMediaCodecList;
+import org.robolectric.shadows.ShadowStatFs;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 用 {@link FakeCamera} 的合成画面录制，核对各阶段的计时次数与分析器收到的帧数。
+ * Robolectric 的时钟不会自己走，测试推进时钟让 HAL 线程按帧率出帧
+ *
+ * @author nathaniel
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FakeCameraRecordingTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int FRAME_RATE = 30;
+    private static final long FIRST_FRAME_MILLIS = 120;
+    /**
+     * 推进 1 秒时钟至少产出的帧数，第一帧在预览开始 {@link #FIRST_FRAME_MILLIS} 之后
+     */
+    private static final long FRAMES_PER_SECOND_MIN = (1000 - FIRST_FRAME_MILLIS) * FRAME_RATE / 1000;
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final String ENCODER_NAME = "fake.avc.encoder";
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x0d, (byte) 0xda, 0x05, 0x07, (byte) 0xe8};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    /**
+     * AAC LC，44100Hz，单声道
+     */
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x08};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Application application;
+    private RecorderView view;
+    private FakeCamera fakeCamera;
+    private final AtomicLong analyzedFrames = new AtomicLong();
+
+    @Before
+    public void setUp() {
+        application = RuntimeEnvironment.getApplication();
+        // 分片录制需要一个 YUV420 输入的 H.264 编码器，这里的编码器原样输出输入，配置时给出 SPS 与 PPS
+        MediaCodecInfo.CodecCapabilities capabilities = MediaCodecInfoBuilder.CodecCapabilitiesBuilder.newBuilder()
+                .setMediaFormat(MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, WIDTH, HEIGHT))
+                .setIsEncoder(true)
+                .setColorFormats(new int[]{MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar})
+                .build();
+        ShadowMediaCodecList.addCodec(MediaCodecInfoBuilder.newBuilder()
+                .setName(ENCODER_NAME)
+                .setIsEncoder(true)
+                .setCapabilities(capabilities)
+                .build());
+        int frameSize = WIDTH * HEIGHT * 3 / 2;
+        ShadowMediaCodec.addEncoder(ENCODER_NAME, new ShadowMediaCodec.CodecConfig(frameSize, frameSize,
+                new ShadowMediaCodec.CodecConfig.Codec() {
+                    @Override
+                    public void process(ByteBuffer in, ByteBuffer out) {
+                        out.put(in);
+                    }
+
+                    @Override
+                    public void onConfigured(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
+                        format.setByteBuffer("csd-0", ByteBuffer.wrap(SPS));
+                        format.setByteBuffer("csd-1", ByteBuffer.wrap(PPS));
+                    }
+                }));
+        // Robolectric 的 AudioRecord 可以创建，声音编码器同样需要给出 AudioSpecificConfig
+        ShadowMediaCodec.addEncoder(MediaFormat.MIMETYPE_AUDIO_AAC, new ShadowMediaCodec.CodecConfig(8192, 8192,
+                new ShadowMediaCodec.CodecConfig.Codec() {
+                    @Override
+                    public void process(ByteBuffer in, ByteBuffer out) {
+                        out.put(in);
+                    }
+
+                    @Override
+                    public void onConfigured(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
+                        format.setByteBuffer("csd-0", ByteBuffer.wrap(AUDIO_SPECIFIC_CONFIG));
+                    }
+                }));
+
+        view = new RecorderView(application);
+        view.setCameraApi(RecorderView.CAMERA_API_FAKE);
+        // Robolectric 的 StatFs 默认没有可用空间，给输出目录登记 4GB
+        ShadowStatFs.registerStats(folder.getRoot(), 1 << 20, 1 << 20, 1 << 20);
+        view.setVideoPath(folder.getRoot().getAbsolutePath(), "fake");
+        fakeCamera = view.getFakeCamera();
+        fakeCamera.setSupportedSizes(new int[][]{{WIDTH, HEIGHT}});
+        fakeCamera.setFrameRate(FRAME_RATE);
+        fakeCamera.setLatencies(50, 10, 20, FIRST_FRAME_MILLIS, 10);
+        view.addFrameAnalyzer(new FrameAnalyzer() {
+            @Override
+            public void analyze(PreviewFrame frame) {
+                analyzedFrames.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        view.closeCamera();
+        ShadowMediaCodec.clearCodecs();
+        ShadowMediaCodecList.reset();
+    }
+
+    @Test
+    public void previewFramesReachTheAnalyzer() {
+        view.surfaceCreated(view.getHolder());
+        view.openCamera();
+        Camera2BackendTest.waitFor(view, RecorderState.PREVIEWING);
+
+        advance(1000);
+        waitForFrames();
+        long produced = fakeCamera.getProducedFrameCount();
+        assertTrue("produced " + produced, produced >= FRAMES_PER_SECOND_MIN);
+        assertEquals(produced, analyzedFrames.get() + view.getDroppedFrameCount());
+
+        RecorderMetrics metrics = view.getMetrics();
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.CAMERA_OPEN).getCount());
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.SET_PARAMETERS).getCount());
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.START_PREVIEW).getCount());
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.FIRST_FRAME).getCount());
+        assertTrue(metrics.getTiming(RecorderMetrics.Stage.FIRST_FRAME).getLastNanos()
+                >= TimeUnit.MILLISECONDS.toNanos(FIRST_FRAME_MILLIS));
+    }
+
+    @Test
+    public void recordingKeepsAnalyzerFed() throws Exception {
+        view.surfaceCreated(view.getHolder());
+        view.openCamera();
+        Camera2BackendTest.waitFor(view, RecorderState.PREVIEWING);
+
+        assertTrue(view.startRecorder());
+        Camera2BackendTest.waitFor(view, RecorderState.RECORDING);
+        advance(1000);
+        waitForFrames();
+        long produced = fakeCamera.getProducedFrameCount();
+        assertTrue("produced " + produced, produced >= FRAMES_PER_SECOND_MIN);
+
+        // 结束录制同时关闭相机，时钟不再推进，之后不会再有新的帧
+        FinalizeFuture future = view.stopRecorder();
+        assertNotNull(future);
+        Camera2BackendTest.waitFor(view, RecorderState.IDLE);
+        File file = future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(file + " missing", file.isFile() && file.length() > 0);
+        assertEquals(produced, fakeCamera.getProducedFrameCount());
+        assertEquals(produced, analyzedFrames.get() + view.getDroppedFrameCount());
+
+        RecorderMetrics metrics = view.getMetrics();
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.CAMERA_OPEN).getCount());
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.FIRST_FRAME).getCount());
+        // 分片录制不经过 MediaRecorder，没有 prepare/start/stop 的计时
+        assertEquals(0, metrics.getTiming(RecorderMetrics.Stage.RECORDER_START).getCount());
+        assertEquals(1, metrics.getTiming(RecorderMetrics.Stage.FILE_FINALIZE).getCount());
+    }
+
+    /**
+     * 按 10ms 的步长推进时钟，让 HAL 线程逐帧产出，分析线程有时间跟上
+     */
+    private static void advance(long millis) {
+        for (long elapsed = 0; elapsed < millis; elapsed += 10) {
+            ShadowSystemClock.advanceBy(10, TimeUnit.MILLISECONDS);
+            shadowOf(Looper.getMainLooper()).idle();
+            sleep(2);
+        }
+    }
+
+    /**
+     * 等到产出的每一帧都已分析或者被丢弃
+     */
+    private void waitForFrames() {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (analyzedFrames.get() + view.getDroppedFrameCount() < fakeCamera.getProducedFrameCount()
+                && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            sleep(10);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}